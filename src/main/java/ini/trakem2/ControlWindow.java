@@ -28,6 +28,7 @@ import ij.gui.GenericDialog;
 import ij.gui.YesNoCancelDialog;
 import ini.trakem2.display.Display3D;
 import ini.trakem2.display.ImageJCommandListener;
+import ini.trakem2.display.TileRenderer;
 import ini.trakem2.display.YesNoDialog;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.tree.LayerTree;
@@ -211,6 +212,7 @@ public class ControlWindow {
 			}
 			Utils.destroy(instance);
 			Loader.destroyPreloader(instance);
+			TileRenderer.destroy();
 			instance.command_listener.destroy();
 			instance.command_listener = null;
 			if (null != instance.red_phone) instance.red_phone.quit();
@@ -45,6 +45,7 @@ import ini.trakem2.display.Stack;
 import ini.trakem2.display.Treeline;
 import ini.trakem2.display.YesNoDialog;
 import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.persistence.DBLoader;
 import ini.trakem2.persistence.DBObject;
 import ini.trakem2.persistence.FSLoader;
@@ -1524,16 +1525,29 @@ public class Project extends DBObject {
 		gd.addChoice("Image_resizing_mode: ", Loader.MIPMAP_MODES.values().toArray(new String[Loader.MIPMAP_MODES.size()]), Loader.getMipMapModeName(mipmaps_mode));
 		gd.addChoice("mipmaps format:", FSLoader.MIPMAP_FORMATS, FSLoader.MIPMAP_FORMATS[loader.getMipMapFormat()]);
 		gd.addNumericField("Save mipmap images from level", this.first_mipmap_level_saved, 0);
+		boolean mipmaps_mmap = "true".equals(ht_props.get("mipmaps_mmap"));
+		gd.addCheckbox("Memory-map_.raw_and_.rag_mipmaps", mipmaps_mmap);
+		boolean tiled_rendering = "true".equals(ht_props.get("tiled_rendering"));
+		gd.addCheckbox("Paint_images_as_cached_tiles", tiled_rendering);
 		boolean layer_mipmaps = "true".equals(ht_props.get("layer_mipmaps"));
 		gd.addCheckbox("Layer_mipmaps", layer_mipmaps);
 		boolean keep_mipmaps = "true".equals(ht_props.get("keep_mipmaps"));
 		gd.addCheckbox("Keep_mipmaps_when_deleting_images", keep_mipmaps); // coping with the fact that thee is no Action context ... there should be one in the Worker thread.
 		int bucket_side = (int)getProperty("bucket_side", Bucket.MIN_BUCKET_SIZE);
 		gd.addNumericField("Bucket side length: ", bucket_side, 0, 6, "pixels");
+		final String[] spatial_indices = new String[]{"Buckets", "R-tree"};
+		final boolean rtree = "rtree".equals(ht_props.get("spatial_index"));
+		gd.addChoice("Spatial_index:", spatial_indices, spatial_indices[rtree ? 1 : 0]);
 		boolean no_shutdown_hook = "true".equals(ht_props.get("no_shutdown_hook"));
 		gd.addCheckbox("No_shutdown_hook to save the project", no_shutdown_hook);
+		boolean journaled_save = "true".equals(ht_props.get("journaled_save"));
+		gd.addCheckbox("Journaled_saving (append changes to a .journal file)", journaled_save);
 		int n_undo_steps = getProperty("n_undo_steps", 32);
 		gd.addSlider("Undo steps", 32, 200, n_undo_steps);
+		int n_undo_steps_in_memory = getProperty("n_undo_steps_in_memory", 8);
+		gd.addNumericField("Undo_steps_kept_uncompressed:", n_undo_steps_in_memory, 0, 6, "steps");
+		int undo_disk_mb = getProperty("undo_disk_mb", 1024);
+		gd.addNumericField("Undo_disk_store:", undo_disk_mb, 0, 6, "MB");
 		boolean flood_fill_to_image_edge = "true".equals(ht_props.get("flood_fill_to_image_edge"));
 		gd.addCheckbox("AreaList_flood_fill_to_image_edges", flood_fill_to_image_edge);
 		int look_ahead_cache = (int)getProperty("look_ahead_cache", 0);
@@ -1542,8 +1556,14 @@ public class Project extends DBObject {
 		gd.addNumericField("Autosave every:", autosaving_interval, 0, 6, "minutes");
 		int n_mipmap_threads = getProperty("n_mipmap_threads", 1);
 		gd.addSlider("Number of threads for mipmaps", 1, n_mipmap_threads, n_mipmap_threads);
+		final int n_scheduler_threads = Scheduler.getInstance().getThreadBudget();
+		gd.addSlider("Number of threads for all background work", 1, Math.max(n_scheduler_threads, 4 * Runtime.getRuntime().availableProcessors()), n_scheduler_threads);
 		int meshResolution = getProperty("mesh_resolution", 32);
 		gd.addSlider("Default mesh resolution for images", 1, 512, meshResolution);
+		int export_tiles_in_flight = getProperty("export_tiles_in_flight", 64);
+		gd.addNumericField("Export_tiles_in_memory (quadtree):", export_tiles_in_flight, 0, 6, "tiles");
+		boolean parallel_flat_images = "true".equals(ht_props.get("parallel_flat_images"));
+		gd.addCheckbox("Paint_flat_images_in_parallel (may differ slightly from AWT)", parallel_flat_images);
 		//
 		gd.showDialog();
 		//
@@ -1573,6 +1593,13 @@ public class Project extends DBObject {
 
 		setFirstMipMapLevelSaved(gd.getNextNumber());
 
+		if (adjustProp("mipmaps_mmap", mipmaps_mmap, gd.getNextBoolean())) {
+			loader.setMemoryMappedMipMaps(getBooleanProperty("mipmaps_mmap"));
+		}
+		if (adjustProp("tiled_rendering", tiled_rendering, gd.getNextBoolean())) {
+			Display.repaint(layer_set);
+		}
+
 		boolean layer_mipmaps2 = gd.getNextBoolean();
 		if (adjustProp("layer_mipmaps", layer_mipmaps, layer_mipmaps2)) {
 			if (layer_mipmaps && !layer_mipmaps2) {
@@ -1593,10 +1620,22 @@ public class Project extends DBObject {
 			setProperty("bucket_side", Integer.toString(bucket_side));
 			layer_set.recreateBuckets(true);
 		}
+		final boolean rtree2 = 1 == gd.getNextChoiceIndex();
+		if (rtree != rtree2) {
+			setProperty("spatial_index", rtree2 ? "rtree" : null);
+			layer_set.recreateBuckets(true);
+		}
 		adjustProp("no_shutdown_hook", no_shutdown_hook, gd.getNextBoolean());
+		adjustProp("journaled_save", journaled_save, gd.getNextBoolean());
 		n_undo_steps = (int)gd.getNextNumber();
 		if (n_undo_steps < 0) n_undo_steps = 0;
 		setProperty("n_undo_steps", Integer.toString(n_undo_steps));
+		n_undo_steps_in_memory = (int)gd.getNextNumber();
+		if (n_undo_steps_in_memory < 0) n_undo_steps_in_memory = 0;
+		setProperty("n_undo_steps_in_memory", Integer.toString(n_undo_steps_in_memory));
+		undo_disk_mb = (int)gd.getNextNumber();
+		if (undo_disk_mb < 0) undo_disk_mb = 0;
+		setProperty("undo_disk_mb", Integer.toString(undo_disk_mb));
 		adjustProp("flood_fill_to_image_edge", flood_fill_to_image_edge, gd.getNextBoolean());
 		double d_look_ahead_cache = gd.getNextNumber();
 		if (!Double.isNaN(d_look_ahead_cache) && d_look_ahead_cache >= 0) {
@@ -1624,6 +1663,12 @@ public class Project extends DBObject {
 			// WARNING: this does it for a static service, affecting all projects!
 			FSLoader.restartMipMapThreads(n_mipmap_threads2);
 		}
+		final int n_scheduler_threads2 = (int)Math.max(1, gd.getNextNumber());
+		if (n_scheduler_threads != n_scheduler_threads2) {
+			// WARNING: shared by all projects
+			Scheduler.getInstance().setThreadBudget(n_scheduler_threads2);
+			Utils.logAll("Set the thread budget for background work of all projects to " + n_scheduler_threads2);
+		}
 		int meshResolution2 = (int)gd.getNextNumber();
 		if (meshResolution != meshResolution2) {
 			if (meshResolution2 > 0) {
@@ -1632,6 +1677,15 @@ public class Project extends DBObject {
 				Utils.log("WARNING: ignoring invalid mesh resolution value " + meshResolution2);
 			}
 		}
+		int export_tiles_in_flight2 = (int)gd.getNextNumber();
+		if (export_tiles_in_flight != export_tiles_in_flight2) {
+			if (export_tiles_in_flight2 > 0) {
+				setProperty("export_tiles_in_flight", Integer.toString(export_tiles_in_flight2));
+			} else {
+				Utils.log("WARNING: ignoring invalid number of tiles in memory " + export_tiles_in_flight2);
+			}
+		}
+		adjustProp("parallel_flat_images", parallel_flat_images, gd.getNextBoolean());
 	}
 
 	/** Return the Universal Near-Unique Id of this project, which may be null for non-FSLoader projects. */
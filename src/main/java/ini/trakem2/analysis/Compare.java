@@ -48,9 +48,9 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Pattern;
 
 import org.scijava.java3d.Transform3D;
@@ -81,6 +81,8 @@ import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Line3D;
 import ini.trakem2.display.Pipe;
 import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.tree.ProjectThing;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
@@ -89,7 +91,6 @@ import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 import ini.trakem2.vector.Editions;
 import ini.trakem2.vector.VectorString3D;
-import mpi.fruitfly.general.MultiThreading;
 import mpicbg.imglib.container.cell.Cell;
 import mpicbg.models.AffineModel3D;
 import mpicbg.models.MovingLeastSquaresTransform;
@@ -892,9 +893,11 @@ public class Compare {
 
 	// Match in all possible ways
 	static private final Object[] matchFwdRev(final VectorString3D vs1, final VectorString3D vs2, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final int distance_type, final double wi, final double wd, final double wm) {
+		return matchFwdRev(vs1, vs1.makeReversedCopy(), vs2, vs2.makeReversedCopy(), delta, skip_ends, max_mut, min_chunk, distance_type, wi, wd, wm);
+	}
 
-		final VectorString3D vs1rev = vs1.makeReversedCopy();
-		final VectorString3D vs2rev = vs2.makeReversedCopy();
+	/** Like {@link #matchFwdRev(VectorString3D, VectorString3D, double, boolean, int, float, int, double, double, double)} but with the reversed copies given. */
+	static private final Object[] matchFwdRev(final VectorString3D vs1, final VectorString3D vs1rev, final VectorString3D vs2, final VectorString3D vs2rev, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final int distance_type, final double wi, final double wd, final double wm) {
 
 		final Editions[] ed = new Editions[4];
 
@@ -1229,7 +1232,7 @@ public class Compare {
 	 * <pre>
 	 * Bureaucrat bu = Compare.compareAllToAll(true, null, null);
 	 * Object result = bu.getWorker().getResult();
-	 * float[][] scores = (float[][])result[0];
+	 * TriangularScores scores = (TriangularScores)result[0];
 	 * ArrayList&lt;Compare.Chain&gt; chains = (ArrayList&lt;Compare.Chain&gt;)result[1];
 	 * </pre>
 	 */
@@ -1301,7 +1304,9 @@ public class Compare {
 		// compare all to all
 		final VectorString3D[] vs = new VectorString3D[n_chains];
 		for (int i=0; i<n_chains; i++) vs[i] = chains.get(i).vs;
-		final float[][] scores = Compare.scoreAllToAll(vs, cp.distance_type, cp.delta, cp.skip_ends, cp.max_mut, cp.min_chunk, cp.direct, cp.substring_matching, this);
+		// When writing to a file, keep the scores next to it until done, so that an interrupted comparison can be resumed
+		final File scores_file = to_file ? new File(dir + filename + ".scores") : null;
+		final TriangularScores scores = Compare.scoreAllToAll(vs, cp.distance_type, cp.delta, cp.skip_ends, cp.max_mut, cp.min_chunk, cp.direct, cp.substring_matching, this, scores_file);
 
 		if (null == scores) {
 			finishedWorking();
@@ -1317,22 +1322,13 @@ public class Compare {
 			return;
 		}
 
+		try {
 		final File f = new File(dir + filename);
 		final OutputStreamWriter dos = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(f)), "8859_1"); // encoding in Latin 1 (for macosx not to mess around
 
 		// Normalize matrix to largest value of 1.0
 		if (cp.normalize) {
-			float max = 0;
-			for (int i=0; i<scores.length; i++) { // traverse half matrix ony: it's mirrored
-				for (int j=i; j<scores[0].length; j++) {
-					if (scores[i][j] > max) max = scores[i][j];
-				}
-			}
-			for (int i=0; i<scores.length; i++) {
-				for (int j=i; j<scores[0].length; j++) {
-					scores[i][j] = scores[j][i] /= max;
-				}
-			}
+			scores.divide(scores.max());
 		}
 
 		// write chain titles, with project prefix
@@ -1355,7 +1351,7 @@ public class Compare {
 				for (int i=0; i<n_chains; i++) {
 					final StringBuffer line = new StringBuffer();
 					line.append(titles[i]);
-					for (int j=0; j<n_chains; j++) line.append(',').append(scores[i][j]);
+					for (int j=0; j<n_chains; j++) line.append(',').append(scores.get(i, j));
 					line.append('\n');
 					dos.write(line.toString());
 				}
@@ -1391,7 +1387,7 @@ public class Compare {
 				for (int i=0; i<n_chains; i++) {
 					for (int j=0; j<n_chains; j++) {
 						if (i == j) continue;
-						sb.append("<record source=\"").append(i+1).append("\" destination=\"").append(j+1).append("\">").append(scores[i][j]).append("</record>\n");
+						sb.append("<record source=\"").append(i+1).append("\" destination=\"").append(j+1).append("\">").append(scores.get(i, j)).append("</record>\n");
 					}
 				}
 				sb.append("</records>\n</data>\n");
@@ -1415,7 +1411,7 @@ public class Compare {
 				}
 				final HashSet names = new HashSet();
 				final StringBuffer sb = new StringBuffer();
-				sb.append(scores.length).append('\n');
+				sb.append(n_chains).append('\n');
 				dos.write(sb.toString());
 
 				// unique ids, since phylip cannot handle long names
@@ -1424,7 +1420,7 @@ public class Compare {
 				final OutputStreamWriter dostags = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(ftags)), "8859_1"); // encoding in Latin 1 (for macosx not to mess around
 
 
-				for (int i=0; i<scores.length; i++) {
+				for (int i=0; i<n_chains; i++) {
 					sb.setLength(0);
 					//String title = chains.get(i).getShortCellTitle().replace(' ', '_').replace('\t', '_').replace('[', '-').replace(']', '-');
 					final int id = ids.incrementAndGet();
@@ -1453,10 +1449,10 @@ public class Compare {
 					sb.append(sid);
 					for (int j=len - sid.length(); j>0; j--) sb.append(' '); // pad with spaces up to len
 					int count = 0;
-					for (int j=0; j<scores[0].length; j++) {
-						sb.append(' ').append(scores[i][j]);
+					for (int j=0; j<n_chains; j++) {
+						sb.append(' ').append(scores.get(i, j));
 						count++;
-						if (7 == count && j < scores[0].length-1) {
+						if (7 == count && j < n_chains-1) {
 							sb.append('\n');
 							count = 0;
 							while (++count < len) sb.append(' ');
@@ -1477,6 +1473,11 @@ public class Compare {
 
 		dos.close();
 
+		} finally {
+			// The results were written: the scores are no longer needed for resuming
+			scores.close();
+			if (!scores_file.delete()) scores_file.deleteOnExit();
+		}
 
 				} catch (final Exception e) {
 					e.printStackTrace();
@@ -1489,66 +1490,141 @@ public class Compare {
 	}
 
 	/** Returns the half matrix of scores, with values copied from one half matrix to the other, and a diagonal of zeros.
+	 * Needs n * n floats; prefer {@link #scoreAllToAll(VectorString3D[], int, double, boolean, int, float, boolean, boolean, Worker, File)}, which needs half as many.
 	 * @param distance_type ranges from 0 to 5, and includes: 0=Levenshtein, 1=Dissimilarity, 2=Average physical distance, 3=Median physical distance, 4=Cummulative physical distance and 5=Standard deviation. */
 	static public float[][] scoreAllToAll(final VectorString3D[] vs, final int distance_type, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final boolean direct, final boolean substring_matching, final Worker worker) {
-		final float[][] scores = new float[vs.length][vs.length];
-
-
-		final AtomicInteger ai = new AtomicInteger(0);
+		final TriangularScores scores = scoreAllToAll(vs, distance_type, delta, skip_ends, max_mut, min_chunk, direct, substring_matching, worker, null);
+		if (null == scores) return null;
+		return scores.toMatrix();
+	}
 
-		final Thread[] threads = MultiThreading.newThreads();
-		for (int ithread=0; ithread<threads.length; ithread++) {
-			threads[ithread] = new Thread() { @Override
-            public void run() {
-				////
-
-		for (int i=ai.getAndIncrement(); i<vs.length; i=ai.getAndIncrement()) {
-			final VectorString3D vs1 = vs[i];
-			for (int j=i+1; j<vs.length; j++) {
-				if (null != worker && worker.hasQuitted()) return;
-				final Object[] ob = findBestMatch(vs[i], vs[j], delta, skip_ends, max_mut, min_chunk, distance_type, direct, substring_matching); // TODO should add 'distance_type' as well for the selection of the best match when not direct.
-				/*
-				switch (distance_type) {
-					case 0: // Levenshtein
-						scores[i][j] = (float)((Editions)ob[0]).getDistance();
-						break;
-					case 1: // dissimilarity
-						scores[i][j] = (float)((Double)ob[1]).doubleValue();
-						break;
-					case 2: // average physical distance between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getPhysicalDistance(skip_ends, max_mut, min_chunk, true);
-						break;
-					case 3: // median physical distance between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getStatistics(skip_ends, max_mut, min_chunk, false)[3]; // 3 is median
-						break;
-					case 4: // cummulative physical distance between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getPhysicalDistance(skip_ends, max_mut, min_chunk, false);
-						break;
-					case 5: // stdDev of distances between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getStdDev(skip_ends, max_mut, min_chunk);
-						break;
+	/** Like {@link #scoreAllToAll(VectorString3D[], int, double, boolean, int, float, boolean, boolean, Worker)},
+	 * but returns only the upper half of the matrix, stored in {@code file} if not null so that, if interrupted,
+	 * calling again with the same arguments resumes from the pairs already scored.
+	 *
+	 * The matrix is split into square tiles whose sides are blocks of consecutive chains of about the same total length,
+	 * so that all tiles take roughly the same time to score; tiles are scored in parallel, the larger first.
+	 * Within a tile, only the chains of its two blocks are read, and each chain is reversed only once.
+	 *
+	 * @return null if the {@code worker} quitted or the file could not be used. */
+	static public TriangularScores scoreAllToAll(final VectorString3D[] vs, final int distance_type, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final boolean direct, final boolean substring_matching, final Worker worker, final File file) {
+		final int n = vs.length;
+		final int n_threads = Runtime.getRuntime().availableProcessors();
+
+		// Split chains into m blocks of about equal total length: the cost of scoring a pair grows with the product of their lengths
+		final int m = Math.max(1, Math.min(n, Math.max((int)Math.ceil(Math.sqrt(8 * n_threads)), (int)Math.ceil(n / 128.0))));
+		final int[] bounds = new int[m + 1];
+		final double[] block_length = new double[m];
+		{
+			double total = 0;
+			for (final VectorString3D v : vs) total += v.length();
+			double sum = 0;
+			int b = 0;
+			for (int i=0; i<n; i++) {
+				// Start a new block when this one reached its share, leaving at least one chain for each block to come
+				if (b < m - 1 && i > bounds[b] && (sum >= total * (b + 1) / m || n - i == m - 1 - b)) {
+					bounds[++b] = i;
 				}
-				*/
+				sum += vs[i].length();
+				block_length[b] += vs[i].length();
+			}
+			bounds[m] = n;
+		}
 
-				final Editions ed = (Editions)ob[0];
-				scores[i][j] = (float)getScore(ed, skip_ends, max_mut, min_chunk, distance_type);
+		// Identify the comparison, to resume only from scores of the same one
+		long key = 1125899906842597L;
+		key = 31 * key + n;
+		key = 31 * key + distance_type;
+		key = 31 * key + Double.doubleToLongBits(delta);
+		key = 31 * key + (skip_ends ? 1 : 0);
+		key = 31 * key + max_mut;
+		key = 31 * key + Float.floatToIntBits(min_chunk);
+		key = 31 * key + (direct ? 1 : 0);
+		key = 31 * key + (substring_matching ? 1 : 0);
+		for (final VectorString3D v : vs) key = 31 * key + v.length();
 
+		final TriangularScores scores;
+		try {
+			scores = null == file ? new TriangularScores(n, m, key) : new TriangularScores(file, n, m, key);
+		} catch (final Exception e) {
+			IJError.print(e);
+			return null;
+		}
 
-				// mirror value
-				scores[j][i] = scores[i][j];
+		// Tiles to score, larger first
+		final ArrayList<int[]> tiles = new ArrayList<int[]>();
+		for (int a=0; a<m; a++) {
+			for (int b=a; b<m; b++) {
+				if (!scores.isDone(scores.tile(a, b))) tiles.add(new int[]{a, b});
 			}
 		}
-
-			////
-			}};
+		if (null != file && tiles.size() < m * (m + 1) / 2) {
+			Utils.log2("Resuming comparison of " + n + " chains: " + tiles.size() + " of " + (m * (m + 1) / 2) + " tiles to go.");
 		}
-		MultiThreading.startAndJoin(threads);
+		Collections.sort(tiles, new Comparator<int[]>() {
+			@Override
+			public int compare(final int[] t1, final int[] t2) {
+				final double c1 = block_length[t1[0]] * block_length[t1[1]] / (t1[0] == t1[1] ? 2 : 1),
+				             c2 = block_length[t2[0]] * block_length[t2[1]] / (t2[0] == t2[1] ? 2 : 1);
+				return c1 < c2 ? 1 : (c1 > c2 ? -1 : 0);
+			}
+		});
+
+		// Reversed copies of each chain, made once when first needed
+		final AtomicReferenceArray<VectorString3D> reversed = new AtomicReferenceArray<VectorString3D>(n);
+
+		final ExecutorService exec = ExecutorProvider.getExecutorService(Scheduler.Priority.BATCH, Math.max(1, Math.min(n_threads, tiles.size())), "Compare-all-to-all");
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+		for (final int[] tile : tiles) {
+			fus.add(exec.submit(new Runnable() {
+				@Override
+				public void run() {
+					final int a = tile[0],
+					          b = tile[1];
+					for (int i=bounds[a]; i<bounds[a+1]; i++) {
+						for (int j=Math.max(i+1, bounds[b]); j<bounds[b+1]; j++) {
+							if (null != worker && worker.hasQuitted()) return; // the tile remains to be done
+							final Object[] ob;
+							if (direct || substring_matching) {
+								ob = findBestMatch(vs[i], vs[j], delta, skip_ends, max_mut, min_chunk, distance_type, direct, substring_matching); // TODO should add 'distance_type' as well for the selection of the best match when not direct.
+							} else {
+								// As done by findBestMatch, but reusing the reversed chains
+								ob = matchFwdRev(vs[i], reversed(vs, reversed, i), vs[j], reversed(vs, reversed, j), delta, skip_ends, max_mut, min_chunk, COMBINED, 1.1, 1.1, 1);
+							}
+							final Editions ed = (Editions)ob[0];
+							scores.set(i, j, (float)getScore(ed, skip_ends, max_mut, min_chunk, distance_type));
+						}
+					}
+					scores.setDone(scores.tile(a, b), bounds[a], bounds[a+1] - 1);
+				}
+			}));
+		}
+		Utils.wait(fus);
+		exec.shutdown();
 
-		if (null != worker && worker.hasQuitted()) return null;
+		try {
+			if (null != worker && worker.hasQuitted()) {
+				scores.close(); // keep what was done, for resuming
+				return null;
+			}
+			scores.flush();
+		} catch (final Exception e) {
+			IJError.print(e);
+			return null;
+		}
 
 		return scores;
 	}
 
+	static private final VectorString3D reversed(final VectorString3D[] vs, final AtomicReferenceArray<VectorString3D> reversed, final int i) {
+		VectorString3D r = reversed.get(i);
+		if (null == r) {
+			r = vs[i].makeReversedCopy();
+			if (!reversed.compareAndSet(i, null, r)) r = reversed.get(i);
+		}
+		return r;
+	}
+
 	/** Creates a transform with the 4 given vectors: X, Y, Z and translation of origin. */
 	static public Transform3D createTransform(final Vector3d[] o) {
 		return new Transform3D(new Matrix4d(
@@ -2018,12 +2094,13 @@ public class Compare {
 		}
 
 		// Else, do neighbor joining
-		final float[][] scores = Compare.scoreAllToAll(vs, cp.distance_type, cp.delta, cp.skip_ends, cp.max_mut, cp.min_chunk, cp.direct, cp.substring_matching, worker);
+		final TriangularScores scores = Compare.scoreAllToAll(vs, cp.distance_type, cp.delta, cp.skip_ends, cp.max_mut, cp.min_chunk, cp.direct, cp.substring_matching, worker, null);
+		if (null == scores) return null;
 		final HashMap<Compare.Cell<VectorString3D>,Float> table = new HashMap<Compare.Cell<VectorString3D>,Float>();
 		// Input the half matrix only into the table, since it's mirrored. And without the diagonal of zeros:
-		for (int i=1; i<scores.length; i++) {
+		for (int i=1; i<vs.length; i++) {
 			for (int j=0; j<i; j++) {
-				table.put(new Cell<VectorString3D>(vs[i], vs[j]), scores[i][j]);
+				table.put(new Cell<VectorString3D>(vs[i], vs[j]), scores.get(i, j));
 			}
 		}
 
@@ -2322,7 +2399,7 @@ public class Compare {
 		//    - score against all other brains in which that pipe name exists,
 		//    - record the score position within that brain.
 		//
-		final ExecutorService exec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		final ExecutorService exec = ExecutorProvider.getExecutorService(Scheduler.Priority.BATCH, Runtime.getRuntime().availableProcessors(), "Compare-lineages");
 
 		// for each individual lineage:
 		final TreeMap<String,ArrayList<Integer>> indices = new TreeMap<String,ArrayList<Integer>>();
@@ -0,0 +1,224 @@
+package ini.trakem2.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** The scores of all pairs i &lt; j of n items, that is, the upper triangle of a symmetric matrix
+ * whose diagonal is all zeros, stored in n * (n -1) / 2 floats.
+ *
+ * The pairs are scored in rectangular tiles of the matrix (see {@link Compare#scoreAllToAll(ini.trakem2.vector.VectorString3D[], int, double, boolean, int, float, boolean, boolean, ini.trakem2.utils.Worker, File)}),
+ * of which this class records which ones are done. When kept in a file, the scores survive an interruption,
+ * and scoring can resume from the tiles not yet done by reopening the file with the same key.
+ *
+ * File layout: the header (magic, n, number of tile blocks, key), one byte per tile (1 when done),
+ * and then the scores in row order, each as a 4-byte float. */
+public final class TriangularScores {
+
+	static private final long MAGIC = 0x54325343524f5231L; // T2SCROR1
+	static private final int HEADER = 8 + 4 + 4 + 8;
+	/** Floats per mapped region of the file, so that files larger than 2 GB can be mapped. */
+	static private final int REGION_BITS = 27;
+	static private final long REGION_MASK = (1L << REGION_BITS) - 1;
+
+	/** The number of items. */
+	public final int n;
+	/** The number of blocks of items along each side of the matrix; there are m * (m + 1) / 2 tiles. */
+	public final int m;
+	/** Identifies the comparison that the scores belong to. */
+	public final long key;
+
+	private final float[] mem;
+	private final byte[] mem_done;
+
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer[] maps;
+	/** Views of the {@link #maps} as floats. */
+	private final FloatBuffer[] regions;
+	private final MappedByteBuffer done;
+
+	/** Keep the scores in memory. */
+	public TriangularScores(final int n, final int m, final long key) {
+		this.n = n;
+		this.m = m;
+		this.key = key;
+		this.mem = new float[(int)size(n)];
+		this.mem_done = new byte[nTiles(m)];
+		this.raf = null;
+		this.maps = null;
+		this.regions = null;
+		this.done = null;
+	}
+
+	/** Keep the scores in {@code file}, reusing the scores and done tiles found in it
+	 * if it was created for the same {@code n}, {@code m} and {@code key}, and starting anew otherwise. */
+	public TriangularScores(final File file, final int n, final int m, final long key) throws IOException {
+		this.n = n;
+		this.m = m;
+		this.key = key;
+		this.mem = null;
+		this.mem_done = null;
+		this.raf = new RandomAccessFile(file, "rw");
+		try {
+			final long data_start = dataStart(m);
+			final long length = data_start + size(n) * 4;
+			boolean reuse = false;
+			if (raf.length() == length) {
+				raf.seek(0);
+				reuse = MAGIC == raf.readLong() && n == raf.readInt() && m == raf.readInt() && key == raf.readLong();
+			}
+			if (!reuse) {
+				raf.setLength(0);
+				raf.setLength(length); // zero-filled: no tile done
+				raf.seek(0);
+				raf.writeLong(MAGIC);
+				raf.writeInt(n);
+				raf.writeInt(m);
+				raf.writeLong(key);
+			}
+			final FileChannel ch = raf.getChannel();
+			this.done = ch.map(FileChannel.MapMode.READ_WRITE, HEADER, nTiles(m));
+			final long size = size(n);
+			final int n_regions = (int)((size + REGION_MASK) >>> REGION_BITS);
+			this.maps = new MappedByteBuffer[n_regions];
+			this.regions = new FloatBuffer[n_regions];
+			for (int i=0; i<n_regions; i++) {
+				final long first = ((long)i) << REGION_BITS;
+				final long count = Math.min(size - first, 1L << REGION_BITS);
+				maps[i] = ch.map(FileChannel.MapMode.READ_WRITE, data_start + first * 4, count * 4);
+				regions[i] = maps[i].asFloatBuffer();
+			}
+		} catch (final IOException ioe) {
+			raf.close();
+			throw ioe;
+		}
+	}
+
+	static private final long size(final int n) {
+		return ((long)n) * (n - 1) / 2;
+	}
+
+	static private final int nTiles(final int m) {
+		return m * (m + 1) / 2;
+	}
+
+	static private final long dataStart(final int m) {
+		// Align the floats to 4 bytes
+		return (HEADER + nTiles(m) + 3) & ~3L;
+	}
+
+	/** Index of the pair i &lt; j in row order. */
+	private final long index(final int i, final int j) {
+		return ((long)i) * n - ((long)i) * (i + 1) / 2 + (j - i - 1);
+	}
+
+	/** Index of the tile of blocks a &lt;= b. */
+	public final int tile(final int a, final int b) {
+		return a * m - a * (a - 1) / 2 + (b - a);
+	}
+
+	/** The score of items {@code i} and {@code j}, in any order; zero when equal. */
+	public final float get(int i, int j) {
+		if (i == j) return 0;
+		if (i > j) {
+			final int k = i;
+			i = j;
+			j = k;
+		}
+		final long k = index(i, j);
+		if (null != mem) return mem[(int)k];
+		return regions[(int)(k >>> REGION_BITS)].get((int)(k & REGION_MASK));
+	}
+
+	/** Set the score of items {@code i} &lt; {@code j}. Each pair must be written by one thread only, as no synchronization is done. */
+	public final void set(final int i, final int j, final float score) {
+		final long k = index(i, j);
+		if (null != mem) mem[(int)k] = score;
+		else regions[(int)(k >>> REGION_BITS)].put((int)(k & REGION_MASK), score);
+	}
+
+	public final boolean isDone(final int tile) {
+		return 0 != (null != mem_done ? mem_done[tile] : done.get(tile));
+	}
+
+	/** Mark the {@code tile} as done, which must be called after setting all its scores, all of which are in the rows
+	 * from {@code first_row} to {@code last_row}. When in a file, those scores are forced to disk first,
+	 * so that after a crash a tile is never found done with scores that were not written. */
+	public final void setDone(final int tile, final int first_row, final int last_row) {
+		if (null != mem_done) {
+			mem_done[tile] = 1;
+			return;
+		}
+		final long size = size(n);
+		if (size > 0 && first_row < n - 1) {
+			final long first = index(first_row, first_row + 1),
+			           last = Math.min(size - 1, index(Math.min(last_row, n - 2), n - 1));
+			for (long r = first >>> REGION_BITS, end = last >>> REGION_BITS; r <= end; r++) {
+				maps[(int)r].force();
+			}
+		}
+		done.put(tile, (byte)1);
+	}
+
+	/** The largest score. */
+	public final float max() {
+		float max = 0;
+		final long size = size(n);
+		for (long k=0; k<size; k++) {
+			final float f = null != mem ? mem[(int)k] : regions[(int)(k >>> REGION_BITS)].get((int)(k & REGION_MASK));
+			if (f > max) max = f;
+		}
+		return max;
+	}
+
+	/** Divide all scores by {@code d}, for example by the {@link #max()} to normalize them. */
+	public final void divide(final float d) {
+		final long size = size(n);
+		for (long k=0; k<size; k++) {
+			if (null != mem) {
+				mem[(int)k] /= d;
+			} else {
+				final FloatBuffer region = regions[(int)(k >>> REGION_BITS)];
+				final int i = (int)(k & REGION_MASK);
+				region.put(i, region.get(i) / d);
+			}
+		}
+	}
+
+	/** The number of tiles not yet done. */
+	public final int countPending() {
+		int count = 0;
+		for (int t=0, len=nTiles(m); t<len; t++) {
+			if (!isDone(t)) ++count;
+		}
+		return count;
+	}
+
+	/** Returns the full matrix of scores, mirrored, with a diagonal of zeros: n * n floats, twice what this holds. */
+	public final float[][] toMatrix() {
+		final float[][] scores = new float[n][n];
+		for (int i=0; i<n; i++) {
+			for (int j=i+1; j<n; j++) {
+				scores[i][j] = scores[j][i] = get(i, j);
+			}
+		}
+		return scores;
+	}
+
+	/** Write to disk the scores and then the done tiles, when in a file. */
+	public final void flush() {
+		if (null == raf) return;
+		for (final MappedByteBuffer map : maps) map.force();
+		done.force();
+	}
+
+	/** Flush and release the file, if any. The scores remain readable. */
+	public final void close() throws IOException {
+		if (null == raf) return;
+		flush();
+		raf.close();
+	}
+}
@@ -22,13 +22,12 @@ Institute of Neuroinformatics, University of Zurich / ETH, Switzerland.
 
 package ini.trakem2.display;
 
-import ini.trakem2.utils.CachingThread;
 import ini.trakem2.utils.IJError;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /** To be used in combination with the AbstractRepaintThread, as a thread to create graphics offscreen.*/
-public abstract class AbstractOffscreenThread extends CachingThread {
+public abstract class AbstractOffscreenThread extends Thread {
 
 	protected volatile RepaintProperties rp = null;
 	private final AtomicBoolean mustRepaint = new AtomicBoolean(false);
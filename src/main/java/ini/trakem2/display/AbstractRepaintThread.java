@@ -22,13 +22,11 @@ Institute of Neuroinformatics, University of Zurich / ETH, Switzerland.
 
 package ini.trakem2.display;
 
-import ini.trakem2.utils.CachingThread;
-
 import java.awt.Component;
 import java.awt.Rectangle;
 import java.util.LinkedList;
 
-public abstract class AbstractRepaintThread extends CachingThread {
+public abstract class AbstractRepaintThread extends Thread {
 
 	final protected AbstractOffscreenThread off;
 	private final java.util.List<PaintEvent> events = new LinkedList<PaintEvent>();
@@ -35,10 +35,17 @@ import java.awt.event.MouseEvent;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -52,8 +59,14 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.scijava.vecmath.Point3f;
 
@@ -76,6 +89,8 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import ini.trakem2.Project;
 import ini.trakem2.display.paint.USHORTPaint;
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.persistence.UndoStore;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.AreaUtils;
 import ini.trakem2.utils.CircularSequence;
@@ -94,9 +109,15 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 	/** Contains the table of layer ids and their associated Area object.*/
 	private HashMap<Long,Area> ht_areas = new HashMap<Long,Area>();
 
+	/** The most recent undo snapshot of the areas, whose unchanged Area instances the next snapshot shares. */
+	private WeakReference<DPAreaList> last_package = null;
+
 	/** Flag to signal dynamic loading from the database for the Area of a given layer id in the ht_areas HashMap. */
 	static private final Area UNLOADED = new Area();
 
+	/** The measurements of the Area of each layer, see {@link #measure()}; reused until the Area of that layer is edited. */
+	private final HashMap<Long,LayerMeasures> measures = new HashMap<Long,LayerMeasures>();
+
 	/** Paint as outlines (false) or as solid areas (true; default, with a default alpha of 0.4f).*/
 	private boolean fill_paint = true;
 
@@ -384,6 +405,8 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 	 */
 	@Override
 	public boolean calculateBoundingBox(final Layer la) {
+		if (null == la) invalidateMeasures();
+		else invalidateMeasures(la.getId());
 		try {
 			// check preconditions
 			if (0 == ht_areas.size()) return false;
@@ -416,7 +439,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 			// Guess if multithreaded processing would help
 			if (ht_areas.size() > 1 && (box.width > 2048 || box.height > 2048 || ht_areas.size() > 10)) {
 				// Multithreaded
-				final ExecutorService exec = Utils.newFixedThreadPool("AreaList-CBB");
+				final ExecutorService exec = Utils.newLane(Runtime.getRuntime().availableProcessors(), "AreaList-CBB", Scheduler.Priority.BATCH);
 				final List<Future<?>> fus = new ArrayList<Future<?>>();
 				for (final Area a : ht_areas.values()) {
 					fus.add(exec.submit(new Runnable() {
@@ -571,6 +594,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		final Area area = (Area) o;
 
 		new AreaWrapper(this, area).fillHoles();
+		invalidateMeasures(la.getId());
 	}
 
 	@Override
@@ -851,6 +875,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 	public void setArea(final long layer_id, final Area area) {
 		if (null == area) return;
 		ht_areas.put(layer_id, area);
+		invalidateMeasures(layer_id);
 		updateInDatabase("points=" + layer_id);
 	}
 
@@ -860,6 +885,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		final Area a = getArea(layer_id);
 		if (null == a) ht_areas.put(layer_id, new Area(area));
 		else a.add(area);
+		invalidateMeasures(layer_id);
 		updateInDatabase("points=" + layer_id);
 	}
 
@@ -1109,7 +1135,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 			labels.put(d, label);
 		}
 
-		final ExecutorService exec = Utils.newFixedThreadPool("labels");
+		final ExecutorService exec = Utils.newLane(Runtime.getRuntime().availableProcessors(), "labels", Scheduler.Priority.BATCH);
 		final Map<Integer,ImageProcessor> slices = Collections.synchronizedMap(new TreeMap<Integer,ImageProcessor>());
 		final List<Future<?>> fus = new ArrayList<Future<?>>();
 		final List<Layer> layers = layer_set.getLayers().subList(first_layer, last_layer+1);
@@ -1319,15 +1345,9 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 	public double[] measure() {
 		if (0 == ht_areas.size()) return new double[6]; // zeros
 
-		// prepare suitable transform
-		final AffineTransform aff = new AffineTransform(this.at);
-		AffineTransform aff2 = new AffineTransform();
-		// remove translation (for no reason other than historical, and that it may
-		//   help avoid numerical overflows)
 		final Rectangle box = getBoundingBox(null);
-		aff2.translate(-box.x, -box.y);
-		aff.preConcatenate(aff2);
-		aff2 = null;
+		final AffineTransform aff = getMeasureTransform(box);
+		final float resampling_delta = project.getProperty("measurement_resampling_delta", 1.0f);
 
 		double volume = 0;
 		double lower_bound_surface_h = 0;
@@ -1343,15 +1363,18 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		final double pixelWidth = cal.pixelWidth;
 		final double pixelHeight = cal.pixelHeight;
 
-		// Put areas in order of their layer index:
-		final TreeMap<Integer,Area> ias = new TreeMap<Integer,Area>();
-		for (final Map.Entry<Long,Area> e : ht_areas.entrySet()) {
-			final int ilayer = layer_set.indexOf(layer_set.getLayer(e.getKey()));
+		// Measure the area and perimeter of each layer, in parallel for those not yet measured since their last edit
+		final HashMap<Long,LayerMeasures> lms = getLayerMeasures(aff, resampling_delta);
+
+		// Put layer ids in order of their layer index:
+		final TreeMap<Integer,Long> ias = new TreeMap<Integer,Long>();
+		for (final Long lid : lms.keySet()) {
+			final int ilayer = layer_set.indexOf(layer_set.getLayer(lid));
 			if (-1 == ilayer) {
-				Utils.log("Could not find a layer with id " + e.getKey());
+				Utils.log("Could not find a layer with id " + lid);
 				continue;
 			}
-			ias.put(ilayer, e.getValue());
+			ias.put(ilayer, lid);
 		}
 
 		final ArrayList<Layer> layers = layer_set.getLayers();
@@ -1359,14 +1382,11 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		int last_layer_index = -1;
 
 		final ArrayList<Point3f> points = new ArrayList<Point3f>();
-		final float[] coords = new float[6];
 		final float fpixelWidth = (float) pixelWidth;
 		final float fpixelHeight = (float) pixelHeight;
 
-		final float resampling_delta = project.getProperty("measurement_resampling_delta", 1.0f);
-
-		// for each area, measure its area and its perimeter, to compute volume and surface
-		for (final Map.Entry<Integer,Area> e : ias.entrySet()) {
+		// for each area, use its area and its perimeter to compute volume and surface
+		for (final Map.Entry<Integer,Long> e : ias.entrySet()) {
 
 			// fetch Layer
 			final int layer_index = e.getKey();
@@ -1376,129 +1396,22 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 			}
 
 			final Layer la = layers.get(layer_index);
+			final LayerMeasures lm = lms.get(e.getValue());
 
-			// fetch Area
-			Area area = e.getValue();
-			if (UNLOADED == area) area = loadLayer(la.getId());
-			// Transform area to world coordinates
-			area = area.createTransformedArea(aff);
-
-			// measure surface
-			final double pixel_area = Math.abs(AreaCalculations.area(area.getPathIterator(null)));
-			final double surface = pixel_area * pixelWidth * pixelHeight;
+			// surface
+			final double surface = lm.pixel_area * pixelWidth * pixelHeight;
 
-			//Utils.log2(layer_index + " pixel_area: " + pixel_area + "  surface " + surface);
+			//Utils.log2(layer_index + " pixel_area: " + lm.pixel_area + "  surface " + surface);
 
-			// measure volume
+			// volume
 			final double thickness = la.getThickness() * pixelWidth;// the last one is NOT pixelDepth because layer thickness and Z are in pixels
 			volume += surface * thickness;
 
-			final double pix_perimeter = AreaCalculations.circumference(area.getPathIterator(null));
-			final double perimeter = pix_perimeter * pixelWidth;
-
-			double smooth_perimeter = 0;
-
-			// smoothed perimeter:
-			{
-				double smooth_pix_perimeter = 0;
-				for (final Polygon pol : M.getPolygons(area)) {
-
-					try {
-						// Should use VectorString2D, but takes for ever -- bug in resample?
-						// And VectorString3D is likely not respecting the 'closed' flag for resampling.
-						// Also, VectorString3D gets stuck in an infinite loop if the sequence is 6 points!
-						//VectorString3D v = new VectorString3D(xp, yp, new double[pol.npoints], true);
-
-
-
-						if (pol.npoints < 5) {
-							// No point in smoothing out such a short polygon:
-							// (Plus can't convolve it with a gaussian that needs 5 points adjacent)
-							smooth_perimeter += new PolygonRoi(pol, PolygonRoi.POLYGON).getLength();
-							continue;
-						}
-						/*
-						// Works but it is not the best smoothing of the Area's countour
-						double[] xp = new double[pol.npoints];
-						double[] yp = new double[pol.npoints];
-						for (int p=0; p<pol.npoints; p++) {
-							xp[p] = pol.xpoints[p];
-							yp[p] = pol.ypoints[p];
-						}
-						VectorString2D v = new VectorString2D(xp, yp, 0, true);
-						v.resample(resampling_delta);
-						smooth_pix_perimeter += v.length() * resampling_delta;
-						*/
-
-						// The best solution I've found:
-						// 1. Run getInterpolatedPolygon with an interval of 1 to get a point at every pixel
-						// 2. convolve with a gaussian
-						// Resample to 1 so that at every one pixel of the contour there is a point
-						FloatPolygon fpol = new FloatPolygon(new float[pol.npoints], new float[pol.npoints], pol.npoints);
-						for (int i=0; i<pol.npoints; ++i) {
-							fpol.xpoints[i] = pol.xpoints[i];
-							fpol.ypoints[i] = pol.ypoints[i];
-						}
-						fpol = M.createInterpolatedPolygon(fpol, 1, false);
-						final FloatPolygon fp;
-						if (fpol.npoints < 5) {
-							smooth_pix_perimeter += fpol.getLength(false);
-							fp = fpol;
-						} else {
-							// Convolve with a sigma of 1 to smooth it out
-							final FloatPolygon gpol = new FloatPolygon(new float[fpol.npoints], new float[fpol.npoints], fpol.npoints);
-							final CircularSequence seq = new CircularSequence(fpol.npoints);
-							M.convolveGaussianSigma1(fpol.xpoints, gpol.xpoints, seq);
-							M.convolveGaussianSigma1(fpol.ypoints, gpol.ypoints, seq);
-							// Resample it to the desired resolution (also facilitates measurement: npoints * resampling_delta)
-							if (gpol.npoints > resampling_delta) {
-								fp = M.createInterpolatedPolygon(gpol, resampling_delta, false);
-							} else {
-								fp = gpol;
-							}
-							// Measure perimeter: last line segment is potentially shorter or longer than resampling_delta
-							smooth_pix_perimeter += (fp.npoints -1) * resampling_delta
-													+ Math.sqrt(  Math.pow(fp.xpoints[0] - fp.xpoints[fp.npoints-1], 2)
-																+ Math.pow(fp.ypoints[0] - fp.ypoints[fp.npoints-1], 2));
-						}
-
-						// TEST:
-						//ij.plugin.frame.RoiManager.getInstance().addRoi(new PolygonRoi(fp, PolygonRoi.POLYGON));
-
-						// TESTING: make a polygon roi and show it
-						// ... just in case to see that resampling works as expected, without weird endings
-						/*
-						int[] x = new int[v.length()];
-						int[] y = new int[x.length];
-						double[] xd = v.getPoints(0);
-						double[] yd = v.getPoints(1);
-						for (int p=0; p<x.length; p++) {
-							x[p] = (int)xd[p];
-							y[p] = (int)yd[p];
-						}
-						PolygonRoi proi = new PolygonRoi(x, y, x.length, PolygonRoi.POLYGON);
-						Rectangle b = proi.getBounds();
-						for (int p=0; p<x.length; p++) {
-							x[p] -= b.x;
-							y[p] -= b.y;
-						}
-						ImagePlus imp = new ImagePlus("test", new ByteProcessor(b.width, b.height));
-						imp.setRoi(new PolygonRoi(x, y, x.length, PolygonRoi.POLYGON));
-						imp.show();
-						*/
-					} catch (final Exception le) { le.printStackTrace(); }
-				}
-
-				smooth_perimeter = smooth_pix_perimeter * pixelWidth;
-			}
+			final double perimeter = lm.pix_perimeter * pixelWidth;
+			final double smooth_perimeter = lm.smooth_pix_perimeter * pixelWidth;
 
 			//Utils.log2("p, sp: " + perimeter + ", " + smooth_perimeter);
 
-			//Utils.log2(layer_index + "  pixelWidth,pixelHeight: " + pixelWidth + ", " + pixelHeight);
-			//Utils.log2(layer_index + "  thickness: " + thickness);
-
-			//Utils.log2(layer_index + "  pix_perimeter: " + pix_perimeter + "   perimeter: " + perimeter);
-
 			if (-1 == last_layer_index) {
 				// Start of the very first continuous set:
 				lower_bound_surface_h += surface;
@@ -1550,17 +1463,8 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 
 			// Iterate points:
 			final float z = (float) la.getZ();
-			for (final PathIterator pit = area.getPathIterator(null); !pit.isDone(); pit.next()) {
-				switch (pit.currentSegment(coords)) {
-					case PathIterator.SEG_MOVETO:
-					case PathIterator.SEG_LINETO:
-					case PathIterator.SEG_CLOSE:
-						points.add(new Point3f(coords[0] * fpixelWidth, coords[1] * fpixelHeight, z * fpixelWidth));
-						break;
-					default:
-						Utils.log2("WARNING: unhandled seg type.");
-						break;
-				}
+			for (int i=0; i<lm.xs.length; i++) {
+				points.add(new Point3f(lm.xs[i] * fpixelWidth, lm.ys[i] * fpixelHeight, z * fpixelWidth));
 			}
 		}
 
@@ -1603,6 +1507,251 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 				c.x, c.y, c.z};
 	}
 
+	/** The measurements of the Area at one layer, in the pixel units of the Area as transformed by {@link #getMeasureTransform(Rectangle)}. */
+	static private final class LayerMeasures {
+		/** Of the local Area, to detect edits done in place, such as by brushing. */
+		final long fingerprint;
+		final AffineTransform aff;
+		final float resampling_delta;
+		final double pixel_area, pix_perimeter, smooth_pix_perimeter;
+		/** The points of the contours, for the center of mass and the maximum diameter. */
+		final float[] xs, ys;
+
+		LayerMeasures(final Area local, final long fingerprint, final AffineTransform aff, final float resampling_delta) {
+			this.fingerprint = fingerprint;
+			this.aff = aff;
+			this.resampling_delta = resampling_delta;
+
+			// Transform area to world coordinates
+			final Area area = local.createTransformedArea(aff);
+
+			this.pixel_area = Math.abs(AreaCalculations.area(area.getPathIterator(null)));
+			this.pix_perimeter = AreaCalculations.circumference(area.getPathIterator(null));
+
+			// smoothed perimeter:
+			double smooth_pix_perimeter = 0;
+			for (final Polygon pol : M.getPolygons(area)) {
+				try {
+					if (pol.npoints < 5) {
+						// No point in smoothing out such a short polygon:
+						// (Plus can't convolve it with a gaussian that needs 5 points adjacent)
+						continue;
+					}
+					// The best solution I've found:
+					// 1. Run getInterpolatedPolygon with an interval of 1 to get a point at every pixel
+					// 2. convolve with a gaussian
+					// Resample to 1 so that at every one pixel of the contour there is a point
+					FloatPolygon fpol = new FloatPolygon(new float[pol.npoints], new float[pol.npoints], pol.npoints);
+					for (int i=0; i<pol.npoints; ++i) {
+						fpol.xpoints[i] = pol.xpoints[i];
+						fpol.ypoints[i] = pol.ypoints[i];
+					}
+					fpol = M.createInterpolatedPolygon(fpol, 1, false);
+					final FloatPolygon fp;
+					if (fpol.npoints < 5) {
+						smooth_pix_perimeter += fpol.getLength(false);
+						fp = fpol;
+					} else {
+						// Convolve with a sigma of 1 to smooth it out
+						final FloatPolygon gpol = new FloatPolygon(new float[fpol.npoints], new float[fpol.npoints], fpol.npoints);
+						final CircularSequence seq = new CircularSequence(fpol.npoints);
+						M.convolveGaussianSigma1(fpol.xpoints, gpol.xpoints, seq);
+						M.convolveGaussianSigma1(fpol.ypoints, gpol.ypoints, seq);
+						// Resample it to the desired resolution (also facilitates measurement: npoints * resampling_delta)
+						if (gpol.npoints > resampling_delta) {
+							fp = M.createInterpolatedPolygon(gpol, resampling_delta, false);
+						} else {
+							fp = gpol;
+						}
+						// Measure perimeter: last line segment is potentially shorter or longer than resampling_delta
+						smooth_pix_perimeter += (fp.npoints -1) * resampling_delta
+												+ Math.sqrt(  Math.pow(fp.xpoints[0] - fp.xpoints[fp.npoints-1], 2)
+															+ Math.pow(fp.ypoints[0] - fp.ypoints[fp.npoints-1], 2));
+					}
+				} catch (final Exception le) { le.printStackTrace(); }
+			}
+			this.smooth_pix_perimeter = smooth_pix_perimeter;
+
+			// Collect points:
+			final float[] coords = new float[6];
+			int n = 0;
+			float[] xs = new float[64],
+			        ys = new float[64];
+			for (final PathIterator pit = area.getPathIterator(null); !pit.isDone(); pit.next()) {
+				switch (pit.currentSegment(coords)) {
+					case PathIterator.SEG_MOVETO:
+					case PathIterator.SEG_LINETO:
+					case PathIterator.SEG_CLOSE:
+						if (n == xs.length) {
+							xs = Arrays.copyOf(xs, n * 2);
+							ys = Arrays.copyOf(ys, n * 2);
+						}
+						xs[n] = coords[0];
+						ys[n] = coords[1];
+						++n;
+						break;
+					default:
+						Utils.log2("WARNING: unhandled seg type.");
+						break;
+				}
+			}
+			this.xs = Arrays.copyOf(xs, n);
+			this.ys = Arrays.copyOf(ys, n);
+		}
+
+		final boolean isValid(final long fingerprint, final AffineTransform aff, final float resampling_delta) {
+			return this.fingerprint == fingerprint && this.aff.equals(aff) && this.resampling_delta == resampling_delta;
+		}
+	}
+
+	/** Hash of the segments of the path of {@code area}. */
+	static private final long fingerprint(final Area area) {
+		long h = 0xcbf29ce484222325L;
+		final double[] coords = new double[6];
+		for (final PathIterator pit = area.getPathIterator(null); !pit.isDone(); pit.next()) {
+			final int type = pit.currentSegment(coords);
+			h = (h ^ type) * 0x100000001b3L;
+			final int n = PathIterator.SEG_CLOSE == type ? 0 : (PathIterator.SEG_CUBICTO == type ? 6 : (PathIterator.SEG_QUADTO == type ? 4 : 2));
+			for (int i=0; i<n; i++) {
+				h = (h ^ Double.doubleToLongBits(coords[i])) * 0x100000001b3L;
+			}
+		}
+		return h;
+	}
+
+	/** The transform that brings the local areas to world coordinates, minus the translation to the top-left of the {@code box}
+	 *  (for no reason other than historical, and that it may help avoid numerical overflows). */
+	private AffineTransform getMeasureTransform(final Rectangle box) {
+		final AffineTransform aff = new AffineTransform(this.at);
+		aff.preConcatenate(new AffineTransform(1, 0, 0, 1, -box.x, -box.y));
+		return aff;
+	}
+
+	/** Forget the measurements of the Area at the layer with id {@code layer_id}. */
+	private void invalidateMeasures(final long layer_id) {
+		synchronized (measures) {
+			measures.remove(layer_id);
+		}
+	}
+
+	/** Forget the measurements of all layers. */
+	private void invalidateMeasures() {
+		synchronized (measures) {
+			measures.clear();
+		}
+	}
+
+	/** Returns the measurements of every non-null Area, reusing those still valid and measuring anew, in parallel, the rest. */
+	private HashMap<Long,LayerMeasures> getLayerMeasures(final AffineTransform aff, final float resampling_delta) {
+		final HashMap<Long,LayerMeasures> lms = new HashMap<Long,LayerMeasures>();
+		final ArrayList<MeasureTask> tasks = new ArrayList<MeasureTask>();
+		addMeasureTasks(aff, resampling_delta, lms, tasks);
+		final List<LayerMeasures> results = runMeasureTasks(tasks);
+		for (int i=0; i<tasks.size(); i++) {
+			final LayerMeasures lm = results.get(i);
+			if (null != lm) lms.put(tasks.get(i).lid, lm);
+		}
+		return lms;
+	}
+
+	/** Put into {@code lms} the valid cached measurements, and add to {@code tasks} one task for measuring each of the other layers. */
+	private void addMeasureTasks(final AffineTransform aff, final float resampling_delta, final Map<Long,LayerMeasures> lms, final List<MeasureTask> tasks) {
+		final HashMap<Long,Area> areas = new HashMap<Long,Area>();
+		synchronized (this) {
+			for (final Map.Entry<Long,Area> e : ht_areas.entrySet()) {
+				Area area = e.getValue();
+				if (UNLOADED == area) area = loadLayer(e.getKey());
+				if (null != area) areas.put(e.getKey(), area);
+			}
+		}
+		for (final Map.Entry<Long,Area> e : areas.entrySet()) {
+			final Long lid = e.getKey();
+			final long fingerprint = fingerprint(e.getValue());
+			synchronized (measures) {
+				final LayerMeasures lm = measures.get(lid);
+				if (null != lm && lm.isValid(fingerprint, aff, resampling_delta)) {
+					lms.put(lid, lm);
+					continue;
+				}
+			}
+			tasks.add(new MeasureTask(lid, e.getValue(), fingerprint, aff, resampling_delta));
+		}
+	}
+
+	/** Measures the Area of one layer, and caches the result. */
+	private final class MeasureTask implements Callable<LayerMeasures> {
+		final Long lid;
+		final Area area;
+		final long fingerprint;
+		final AffineTransform aff;
+		final float resampling_delta;
+
+		MeasureTask(final Long lid, final Area area, final long fingerprint, final AffineTransform aff, final float resampling_delta) {
+			this.lid = lid;
+			this.area = area;
+			this.fingerprint = fingerprint;
+			this.aff = aff;
+			this.resampling_delta = resampling_delta;
+		}
+
+		@Override
+		public LayerMeasures call() {
+			final LayerMeasures lm = new LayerMeasures(area, fingerprint, aff, resampling_delta);
+			synchronized (measures) {
+				measures.put(lid, lm);
+			}
+			return lm;
+		}
+	}
+
+	/** Run the {@code tasks}, in parallel if more than one. Returns their results in the same order, with null for those that failed. */
+	static private List<LayerMeasures> runMeasureTasks(final List<MeasureTask> tasks) {
+		final ArrayList<LayerMeasures> results = new ArrayList<LayerMeasures>(tasks.size());
+		if (tasks.size() < 2) {
+			for (final MeasureTask task : tasks) {
+				try {
+					results.add(task.call());
+				} catch (final Exception e) {
+					IJError.print(e);
+					results.add(null);
+				}
+			}
+			return results;
+		}
+		final ExecutorService exec = Utils.newLane(Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()), "AreaList-measure", Scheduler.Priority.BATCH);
+		try {
+			for (final Future<LayerMeasures> fu : exec.invokeAll(tasks)) {
+				try {
+					results.add(fu.get());
+				} catch (final ExecutionException ee) {
+					IJError.print(ee);
+					results.add(null);
+				}
+			}
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exec.shutdown();
+		}
+		while (results.size() < tasks.size()) results.add(null);
+		return results;
+	}
+
+	/** Measure in parallel the layers of all {@code ds} that are AreaList instances, for those layers not measured since their last edit,
+	 *  so that calling {@link #measure()} or {@link #measureAreas(ResultsTable)} on each of them afterwards reuses the cached measurements. */
+	static public void measureLayers(final Collection<? extends Displayable> ds) {
+		final ArrayList<MeasureTask> tasks = new ArrayList<MeasureTask>();
+		for (final Displayable d : ds) {
+			if (!(d instanceof AreaList)) continue;
+			final AreaList ali = (AreaList)d;
+			if (0 == ali.ht_areas.size()) continue;
+			ali.addMeasureTasks(ali.getMeasureTransform(ali.getBoundingBox(null)),
+					ali.project.getProperty("measurement_resampling_delta", 1.0f),
+					new HashMap<Long,LayerMeasures>(), tasks);
+		}
+		runMeasureTasks(tasks);
+	}
+
 	@Override
 	Class<?> getInternalDataPackageClass() {
 		return DPAreaList.class;
@@ -1615,24 +1764,213 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 	}
 
 	static private final class DPAreaList extends Displayable.DataPackage {
-		final protected HashMap<Long,Area> ht;
+		/** Layer id vs a copy of its Area, or null when compacted into an {@link UndoStore}. */
+		private volatile HashMap<Long,Area> ht;
+		/** The ids of the layers whose Area was copied rather than shared with the previous snapshot. */
+		private final HashSet<Long> changed = new HashSet<Long>();
+		/** The snapshot that unchanged layers share Areas with, from whose store keys they take theirs when compacted. */
+		private final WeakReference<DPAreaList> previous;
+		/** When compacted: layer id vs the key of its encoded Area in the store. */
+		private HashMap<Long,Long> keys = null;
+		private UndoStore store = null;
+		/** Set when the step leaves the history: compacting afterwards would leak its blobs. */
+		private boolean released = false;
+
 		DPAreaList(final AreaList ali) {
 			super(ali);
-			this.ht = new HashMap<Long,Area>();
+			final HashMap<Long,Area> ht = new HashMap<Long,Area>();
+			// Unchanged layers share the immutable copy of the previous snapshot, if not compacted
+			final DPAreaList previous = null == ali.last_package ? null : ali.last_package.get();
+			final HashMap<Long,Area> prev = null == previous ? null : previous.ht;
+			this.previous = null == prev ? null : new WeakReference<DPAreaList>(previous);
 			for (final Map.Entry<Long,Area> e : ali.ht_areas.entrySet()) {
-				this.ht.put(e.getKey(), new Area(e.getValue()));
+				final Area a = null == prev ? null : prev.get(e.getKey());
+				if (null != a && sameOutline(a, e.getValue())) {
+					ht.put(e.getKey(), a);
+				} else {
+					ht.put(e.getKey(), new Area(e.getValue()));
+					changed.add(e.getKey());
+				}
 			}
+			this.ht = ht;
+			ali.last_package = new WeakReference<DPAreaList>(this);
 		}
 		@Override
 		final boolean to2(final Displayable d) {
 			super.to1(d);
 			final AreaList ali = (AreaList)d;
-			ali.ht_areas.clear();
+			final HashMap<Long,Area> ht = this.ht;
+			if (null == ht) {
+				final HashMap<Long,Area> m = new HashMap<Long,Area>();
+				synchronized (this) {
+					if (null == keys) return false;
+					for (final Map.Entry<Long,Long> e : keys.entrySet()) {
+						final Area a = decode(store.get(e.getValue()));
+						if (null == a) {
+							Utils.log("Undo: could not read the area of layer " + e.getKey() + " of " + ali);
+							return false;
+						}
+						m.put(e.getKey(), a);
+					}
+				}
+				ali.ht_areas.clear();
+				ali.ht_areas.putAll(m);
+			} else {
+				ali.ht_areas.clear();
+				for (final Map.Entry<Long,Area> e : ht.entrySet()) {
+					ali.ht_areas.put(e.getKey(), new Area(e.getValue()));
+				}
+			}
+			ali.invalidateMeasures();
+			return true;
+		}
+		/** Encode into the {@code store} the Areas of the changed layers only. The unchanged layers reuse the blobs of
+		 *  the previous snapshot, if compacted into the same store, or are encoded too otherwise. Encodes without holding
+		 *  any lock, so that the step can be applied meanwhile, from its uncompacted Areas. */
+		@Override
+		final boolean compact(final UndoStore store) {
+			final HashMap<Long,Area> ht = this.ht;
+			if (null == ht) return false;
+			final DPAreaList previous = null == this.previous ? null : this.previous.get();
+			final HashMap<Long,Long> keys = new HashMap<Long,Long>();
 			for (final Map.Entry<Long,Area> e : ht.entrySet()) {
-				ali.ht_areas.put(e.getKey(), new Area(e.getValue()));
+				if (null != previous && !changed.contains(e.getKey())) {
+					final long key = previous.retainKey(e.getKey(), store);
+					if (-1 != key) {
+						keys.put(e.getKey(), key);
+						continue;
+					}
+				}
+				final byte[] b = encode(e.getValue());
+				if (null == b) {
+					for (final Long key : keys.values()) store.release(key);
+					return false;
+				}
+				keys.put(e.getKey(), store.put(b));
+			}
+			synchronized (this) {
+				if (released || null == this.ht) {
+					for (final Long key : keys.values()) store.release(key);
+					return false;
+				}
+				this.keys = keys;
+				this.store = store;
+				this.ht = null;
 			}
 			return true;
 		}
+		/** Return the key of the blob of layer {@code lid}, counting one more reference to it; -1 if not compacted into {@code store}. */
+		synchronized private final long retainKey(final Long lid, final UndoStore store) {
+			if (store != this.store || null == keys) return -1;
+			final Long key = keys.get(lid);
+			return null != key && store.retain(key) ? key : -1;
+		}
+		@Override
+		synchronized final void release(final UndoStore store) {
+			released = true;
+			if (null == keys) return;
+			for (final Long key : keys.values()) store.release(key);
+			keys = null;
+		}
+		/** The Areas copied for this snapshot, or their encoding when compacted; shared Areas are counted by the step that copied them. */
+		@Override
+		synchronized final long getBytes(final UndoStore store) {
+			long bytes = 0;
+			final HashMap<Long,Area> ht = this.ht;
+			if (null != ht) {
+				final double[] coords = new double[6];
+				for (final Long lid : changed) {
+					final Area a = ht.get(lid);
+					if (null == a) continue;
+					// A segment is stored as its type and up to three points, of about 40 bytes
+					for (final PathIterator pit = a.getPathIterator(null); !pit.isDone(); pit.next()) {
+						pit.currentSegment(coords);
+						bytes += 40;
+					}
+				}
+			} else if (null != keys) {
+				for (final Long key : keys.values()) bytes += store.getMemoryBytes(key);
+			}
+			return bytes;
+		}
+
+		/** Whether both Areas are made of the exact same segments. */
+		static private final boolean sameOutline(final Area a1, final Area a2) {
+			final PathIterator p1 = a1.getPathIterator(null),
+			                   p2 = a2.getPathIterator(null);
+			if (p1.getWindingRule() != p2.getWindingRule()) return false;
+			final double[] c1 = new double[6],
+			               c2 = new double[6];
+			for (; !p1.isDone() && !p2.isDone(); p1.next(), p2.next()) {
+				final int type = p1.currentSegment(c1);
+				if (type != p2.currentSegment(c2)) return false;
+				for (int i=0, n=nCoords(type); i<n; ++i) {
+					if (c1[i] != c2[i]) return false;
+				}
+			}
+			return p1.isDone() && p2.isDone();
+		}
+
+		/** The winding rule and the segments of the Area, deflated; null on error. */
+		static private final byte[] encode(final Area area) {
+			final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				final DataOutputStream dos = new DataOutputStream(new DeflaterOutputStream(bout, deflater));
+				final PathIterator pit = area.getPathIterator(null);
+				dos.writeByte(pit.getWindingRule());
+				final double[] coords = new double[6];
+				for (; !pit.isDone(); pit.next()) {
+					final int type = pit.currentSegment(coords);
+					dos.writeByte(type);
+					for (int i=0, n=nCoords(type); i<n; ++i) dos.writeDouble(coords[i]);
+				}
+				dos.close();
+				return bout.toByteArray();
+			} catch (final IOException ioe) {
+				IJError.print(ioe);
+				return null;
+			} finally {
+				deflater.end();
+			}
+		}
+
+		/** The Area encoded by {@link #encode(Area)}; null on error. */
+		static private final Area decode(final byte[] b) {
+			if (null == b) return null;
+			final Inflater inflater = new Inflater();
+			try {
+				final DataInputStream dis = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(b), inflater));
+				final Path2D.Double path = new Path2D.Double(dis.readByte());
+				final double[] c = new double[6];
+				for (int type = dis.read(); -1 != type; type = dis.read()) {
+					for (int i=0, n=nCoords(type); i<n; ++i) c[i] = dis.readDouble();
+					switch (type) {
+						case PathIterator.SEG_MOVETO: path.moveTo(c[0], c[1]); break;
+						case PathIterator.SEG_LINETO: path.lineTo(c[0], c[1]); break;
+						case PathIterator.SEG_QUADTO: path.quadTo(c[0], c[1], c[2], c[3]); break;
+						case PathIterator.SEG_CUBICTO: path.curveTo(c[0], c[1], c[2], c[3], c[4], c[5]); break;
+						case PathIterator.SEG_CLOSE: path.closePath(); break;
+					}
+				}
+				return new Area(path);
+			} catch (final IOException ioe) {
+				IJError.print(ioe);
+				return null;
+			} finally {
+				inflater.end();
+			}
+		}
+
+		static private final int nCoords(final int type) {
+			switch (type) {
+				case PathIterator.SEG_MOVETO:
+				case PathIterator.SEG_LINETO: return 2;
+				case PathIterator.SEG_QUADTO: return 4;
+				case PathIterator.SEG_CUBICTO: return 6;
+				default: return 0;
+			}
+		}
 	}
 
 	/** Retain the data within the layer range, and through out all the rest. */
@@ -1705,6 +2043,7 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 	protected boolean layerRemoved(final Layer la) {
 		super.layerRemoved(la);
 		ht_areas.remove(la.getId());
+		invalidateMeasures(la.getId());
 		return true;
 	}
 
@@ -1781,22 +2120,22 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 		final double nameId = getNameId();
 		final Calibration cal = layer_set.getCalibration();
 		final String units = cal.getUnit();
+		final HashMap<Long,LayerMeasures> lms = getLayerMeasures(getMeasureTransform(getBoundingBox(null)), project.getProperty("measurement_resampling_delta", 1.0f));
 		// Sort by Layer
-		final TreeMap<Layer,Area> sm = new TreeMap<Layer, Area>(Layer.COMPARATOR);
-		for (final Map.Entry<Long,Area> e : ht_areas.entrySet()) {
+		final TreeMap<Layer,LayerMeasures> sm = new TreeMap<Layer,LayerMeasures>(Layer.COMPARATOR);
+		for (final Map.Entry<Long,LayerMeasures> e : lms.entrySet()) {
 			sm.put(layer_set.getLayer(e.getKey()), e.getValue());
 		}
-		for (final Map.Entry<Layer,Area> e : sm.entrySet()) {
-			final Area area = e.getValue();
-			if (area.isEmpty()) continue;
+		for (final Map.Entry<Layer,LayerMeasures> e : sm.entrySet()) {
+			final LayerMeasures lm = e.getValue();
+			if (0 == lm.xs.length) continue; // empty area
 			rt.incrementCounter();
 			rt.addLabel("units", units);
 			rt.addValue(0, this.id);
 			rt.addValue(1, nameId);
 			rt.addValue(2, layer_set.indexOf(e.getKey()) + 1); // 1-based
-			// measure surface
-			final double pixel_area = Math.abs(AreaCalculations.area(area.createTransformedArea(this.at).getPathIterator(null)));
-			final double surface = pixel_area * cal.pixelWidth * cal.pixelHeight;
+			// surface
+			final double surface = lm.pixel_area * cal.pixelWidth * cal.pixelHeight;
 			rt.addValue(3, surface);
 		}
 		return rt;
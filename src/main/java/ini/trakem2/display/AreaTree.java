@@ -38,6 +38,7 @@ import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ini.trakem2.Project;
 import ini.trakem2.imaging.Segmentation;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.utils.AreaUtils;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
@@ -113,13 +114,19 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 				this.aw.getArea().reset();
 			} else {
 				if (null != this.aw) this.aw.putData(area);
-				else this.aw = new AreaWrapper(area);
+				else {
+					this.aw = new AreaWrapper(area);
+					changed();
+				}
 			}
 			return true;
 		}
 		@Override
 		public final synchronized Area getData() {
-			if (null == this.aw) this.aw = new AreaWrapper();
+			if (null == this.aw) {
+				this.aw = new AreaWrapper();
+				changed();
+			}
 			return this.aw.getArea();
 		}
 		@Override
@@ -174,6 +181,13 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 			return M.intersects(a, aw.getArea());
 		}
 
+		/** Unbounded when there is an area: it can be edited anywhere without moving the node. */
+		@Override
+		public float getReach() {
+			if (null == aw) return super.getReach();
+			return Float.MAX_VALUE;
+		}
+
 		@Override
 		public boolean isRoughlyInside(final Rectangle localbox) {
 			if (null == aw) return localbox.contains((int)x, (int)y);
@@ -305,7 +319,7 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 						}
 					}
 				} else {
-					final ExecutorService exe = Utils.newFixedThreadPool("AreaTree-CBB");
+					final ExecutorService exe = Utils.newLane(Runtime.getRuntime().availableProcessors(), "AreaTree-CBB", Scheduler.Priority.BATCH);
 					final Collection<Future<?>> fus = new ArrayList<Future<?>>();
 					final float dx = -box.x;
 					final float dy = -box.y;
@@ -557,7 +571,7 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 	public MeshData generateMesh(final double scale, final int resample) {
 		final HashMap<Layer,Area> areas = new HashMap<Layer,Area>();
 		synchronized (node_layer_map) {
-			for (final Map.Entry<Layer,Set<Node<Area>>> e : node_layer_map.entrySet()) {
+			for (final Map.Entry<Layer,NodeIndex<Area>> e : node_layer_map.entrySet()) {
 				final Area a = new Area();
 				for (final AreaNode nd : (Collection<AreaNode>) (Collection) e.getValue()) {
 					if (null != nd.aw) a.add(nd.aw.getArea());
@@ -578,7 +592,7 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 	}
 
 	public void debug() {
-		for (final Map.Entry<Layer,Set<Node<Area>>> e : node_layer_map.entrySet()) {
+		for (final Map.Entry<Layer,NodeIndex<Area>> e : node_layer_map.entrySet()) {
 			for (final Node<Area> nd : e.getValue()) {
 				final Area a = ((AreaNode)nd).aw.getArea();
 				Utils.log2("area: " + a + "  " + (null != a ? a.getBounds() : null));
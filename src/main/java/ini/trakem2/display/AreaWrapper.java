@@ -7,6 +7,7 @@ import ij.gui.Roi;
 import ij.gui.ShapeRoi;
 import ij.process.FloatPolygon;
 import ini.trakem2.imaging.Segmentation;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.OptionPanel;
@@ -164,7 +165,7 @@ public class AreaWrapper {
 			brush_size = ProjectToolbar.getBrushSize();
 			brush = makeBrush(brush_size, mag);
 			if (null == brush) throw new RuntimeException("Can't paint with brush of size 0.");
-			accumulator = Utils.newFixedThreadPool(1, "AreaWrapper-accumulator");
+			accumulator = Utils.newLane(1, "AreaWrapper-accumulator", Scheduler.Priority.INTERACTIVE);
 			composer = Executors.newScheduledThreadPool(1);
 			this.interpolator = new Runnable() {
 				public void run() {
@@ -642,6 +642,75 @@ public class Bucket {
 		Utils.log2("total map buckets: " + getChildren(new ArrayList<Bucket>()).size());
 	}
 
+	/** Create the {@link SpatialIndex} for the {@link Displayable} objects of @param container at @param la,
+	 *  of the kind chosen by the "spatial_index" project property: an {@link RTree} if "rtree",
+	 *  or a grid of {@link Bucket} otherwise. */
+	static public SpatialIndex createIndex(final Bucketable container, final Layer la) {
+		if ("rtree".equals(container.getProject().getProperty("spatial_index"))) {
+			return new RTree(container, la);
+		}
+		return new Index(container, la);
+	}
+
+	/** A root {@link Bucket} and its map of Displayable vs. the buckets that contain it. */
+	static final class Index implements SpatialIndex {
+		final Bucket root;
+		final HashMap<Displayable,HashSet<Bucket>> db_map = new HashMap<Displayable,HashSet<Bucket>>();
+
+		Index(final Bucketable container, final Layer la) {
+			this.root = new Bucket(0, 0, (int)(0.00005 + container.getLayerWidth()), (int)(0.00005 + container.getLayerHeight()), Bucket.getBucketSide(container, la));
+			this.root.populate(container, la, db_map);
+		}
+		@Override
+		public Collection<Displayable> find(final Rectangle srcRect, final Layer layer, final boolean visible_only) {
+			return root.find(srcRect, layer, visible_only);
+		}
+		@Override
+		public Collection<Displayable> roughlyFind(final Rectangle srcRect, final Layer layer, final boolean visible_only) {
+			return root.roughlyFind(srcRect, layer, visible_only);
+		}
+		@Override
+		public Collection<Displayable> find(final Class<?> c, final Rectangle srcRect, final Layer layer, final boolean visible_only, final boolean instance_of) {
+			return root.find(c, srcRect, layer, visible_only, instance_of);
+		}
+		@Override
+		public Collection<Displayable> find(final double px, final double py, final Layer layer, final boolean visible_only) {
+			return root.find(px, py, layer, visible_only);
+		}
+		@Override
+		public Collection<Displayable> find(final Class<?> c, final double px, final double py, final Layer layer, final boolean visible_only, final boolean instance_of) {
+			return root.find(c, px, py, layer, visible_only, instance_of);
+		}
+		@Override
+		public Collection<Displayable> find(final Area area, final Layer layer, final boolean visible_only) {
+			return root.find(area, layer, visible_only);
+		}
+		@Override
+		public Collection<Displayable> find(final Class<?> c, final Area area, final Layer layer, final boolean visible_only, final boolean instance_of) {
+			return root.find(c, area, layer, visible_only, instance_of);
+		}
+		@Override
+		public void put(final int stack_index, final Displayable d, final Layer layer) {
+			root.put(stack_index, d, layer, db_map);
+		}
+		@Override
+		public void updateRange(final Bucketable container, final Displayable d, final int first, final int last) {
+			root.updateRange(container, d, first, last);
+		}
+		@Override
+		public void updatePosition(final Displayable d, final Layer layer) {
+			root.updatePosition(d, layer, db_map);
+		}
+		@Override
+		public boolean isBetter(final Rectangle r, final Bucketable container) {
+			return root.isBetter(r, container);
+		}
+		@Override
+		public void paint(final Graphics2D g, final Rectangle srcRect, final double mag, final Color color) {
+			root.paint(g, srcRect, mag, color);
+		}
+	}
+
 	static public int getBucketSide(final Bucketable container, final Layer la) {
 		if (null != container.getProject().getProperty("bucket_side")) {
 			final int size = (int)container.getProject().getProperty("bucket_side", Bucket.MIN_BUCKET_SIZE);
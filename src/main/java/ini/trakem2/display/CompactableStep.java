@@ -0,0 +1,16 @@
+package ini.trakem2.display;
+
+import ini.trakem2.persistence.UndoStore;
+
+/** A {@link DoStep} whose data can be encoded into an {@link UndoStore} while it waits in the undo history. */
+interface CompactableStep {
+
+	/** Move the data into the store, to be read back when applied. Returns true if anything was moved. */
+	public boolean compact(UndoStore store);
+
+	/** Release the data held in the store, when the step leaves the history for good. */
+	public void release(UndoStore store);
+
+	/** The estimated bytes of data held in memory, or -1 if unknown. */
+	public long getBytes(UndoStore store);
+}
@@ -468,75 +468,15 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		}
 	}
 
-	private final ImagePreloader imagePreloader = new ImagePreloader();
+	private final Prefetcher prefetcher = new Prefetcher(this);
 
-	private final class ImagePreloader extends Thread {
-		private Layer oldLayer, newLayer;
-		private int nLayers;
-		private boolean restart = false;
-
-		ImagePreloader() {
-			setPriority(Thread.NORM_PRIORITY);
-			setDaemon(true);
-			start();
-		}
-
-		final void reset(final Layer oldLayer, final Layer newLayer, final int nLayers) {
-			synchronized (this) {
-				this.restart = true;
-				this.oldLayer = oldLayer;
-				this.newLayer = newLayer;
-				this.nLayers = nLayers;
-				notify();
-			}
-		}
-
-		@Override
-		public void run() {
-			while (!isInterrupted()) {
-				final Layer oldLayer, newLayer;
-				final int nLayers;
-				synchronized (this) {
-					try {
-						if (!restart) wait();
-					} catch (final InterruptedException e) {
-						return;
-					}
-					oldLayer = this.oldLayer;
-					newLayer = this.newLayer;
-					this.oldLayer = null;
-					this.newLayer = null;
-					nLayers = this.nLayers;
-					restart = false;
-				}
-
-				final LayerSet ls = oldLayer.getParent();
-				final int old_layer_index = ls.indexOf(oldLayer);
-				final int new_layer_index = ls.indexOf(newLayer);
-				final int sign = new_layer_index - old_layer_index;
-
-				final Area aroi = new Area(canvas.getSrcRect());
-				final double mag = canvas.getMagnification();
-
-				// Preload from most distant ahead to least.
-				// The assumption being that least distant are already cached.
-				//Utils.log2("-- started");
-				for (final Layer la : ls.getLayers(Math.max(0, Math.min(new_layer_index + sign * nLayers, ls.size() -1)), new_layer_index)) {
-					if (restart) break;
-					for (final Displayable d : la.getDisplayables(Patch.class, aroi, true)) {
-						if (restart) break;
-						if (isInterrupted()) return;
-						project.getLoader().fetchImage((Patch)d, mag);
-						//Utils.log2("preloaded #" + d.getId() + " from layer " + la.getParent().indexOf(la));
-					}
-				}
-				//Utils.log2("-- completed: restart is " + restart);
-			}
-		}
+	/** The prefetcher of images for the views likely to come after the current one. */
+	final Prefetcher getPrefetcher() {
+		return prefetcher;
 	}
 
 	private final void preloadImagesAhead(final Layer oldLayer, final Layer newLayer, final int nLayers) {
-		imagePreloader.reset(oldLayer, newLayer, nLayers);
+		prefetcher.layersAhead(nLayers);
 	}
 
 	final public void clearColumnScreenshots() {
@@ -1617,7 +1557,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		dispatcher.quit();
 		canvas.setReceivesInput(false);
 		slt.quit();
-		imagePreloader.interrupt();
+		prefetcher.destroy();
 
 		// update the coloring in the ProjectTree and LayerTree
 		if (!project.isBeingDestroyed()) {
@@ -5077,7 +5017,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 			gd.addChoice("Directory structure", new String[]{"<section>/<Y>_<X>_<scale_power>.<ext>", "<section>/<scale_power>/<Y>_<X>.<ext>"}, "<section>/<scale_power>/<Y>_<X>.<ext>");
 			final Choice tile_directory_structure = (Choice)gd.getChoices().get(gd.getChoices().size() -1);
 			tile_directory_structure.setEnabled(false);
-			gd.addChoice("Strategy:", new String[]{"Use original images", "Use mipmaps", "Use mipmaps (multi-layer)"}, "Use mipmaps (multi-layer)");
+			gd.addChoice("Strategy:", new String[]{"Use original images", "Use mipmaps", "Use mipmaps (multi-layer)", "Use mipmaps (quadtree)"}, "Use mipmaps (multi-layer)");
 			final Choice cstrategy = (Choice)gd.getChoices().get(gd.getChoices().size() -1);
 			cstrategy.setEnabled(false);
 			gd.addCheckbox("Skip empty tiles", true);
@@ -6383,6 +6323,9 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		gd.addCheckbox("Use red/blue for color cues", layer.getParent().use_color_cue_colors);
 		gd.addCheckbox("Prepaint images", layer.getParent().prepaint);
 		gd.addSlider("Preload ahead from sections: ", 0, layer.getParent().size(), layer.getParent().preload_ahead);
+		final int prefetch_budget = getProject().getProperty("prefetch_budget", -1);
+		gd.addNumericField("Prefetch_budget (-1 for automatic):", prefetch_budget, 0, 6, "MB");
+		gd.addMessage(prefetcher.getStats());
 		// --------
 		gd.showDialog();
 		if (gd.wasCanceled()) return;
@@ -6419,6 +6362,8 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		layer.getParent().use_color_cue_colors = gd.getNextBoolean();
 		layer.getParent().prepaint = gd.getNextBoolean();
 		layer.getParent().preload_ahead = (int) Math.min(gd.getNextNumber(), layer.getParent().size());
+		final int prefetch_budget2 = (int) gd.getNextNumber();
+		if (prefetch_budget2 != prefetch_budget) getProject().setProperty("prefetch_budget", prefetch_budget2 < 0 ? null : Integer.toString(prefetch_budget2));
 		Display.repaint(layer.getParent());
 	}
 
@@ -45,6 +45,7 @@ import ij3d.UniverseListener;
 import ini.trakem2.display.d3d.ControlClickBehavior;
 import ini.trakem2.display.d3d.Display3DGUI;
 import ini.trakem2.imaging.PatchStack;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.tree.ProjectThing;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
@@ -79,10 +80,10 @@ public final class Display3D {
 
 
 	// To fork away from the EventDispatchThread
-	static private ExecutorService launchers = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "Display3D-launchers");
+	static private ExecutorService launchers = Utils.newLane(Runtime.getRuntime().availableProcessors(), "Display3D-launchers", Scheduler.Priority.INTERACTIVE);
 
 	// To build meshes, or edit them
-	private ExecutorService executors = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "Display3D-executors");
+	private ExecutorService executors = Utils.newLane(Runtime.getRuntime().availableProcessors(), "Display3D-executors", Scheduler.Priority.INTERACTIVE);
 
 	/*
 	static private KeyAdapter ka = new KeyAdapter() {
@@ -1186,7 +1187,7 @@ public final class Display3D {
 
 	static public void init() {
 		if (launchers.isShutdown()) {
-			launchers = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "Display3D-launchers");
+			launchers = Utils.newLane(Runtime.getRuntime().availableProcessors(), "Display3D-launchers", Scheduler.Priority.INTERACTIVE);
 		}
 	}
 
@@ -119,6 +119,9 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 
 	private final Object offscreen_lock = new Object();
 
+	/** Paints and caches the images as tiles, when the project property "tiled_rendering" is true. */
+	private final TileRenderer tile_renderer = new TileRenderer();
+
 	private Cursor noCursor;
 
 	private boolean snapping = false;
@@ -1630,6 +1633,7 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 	public void repaint(final Displayable displ, final int extra, final boolean update_graphics) {
 		if (null != displ) {
 			final Rectangle r = displ.getBoundingBox();
+			if (update_graphics) tile_renderer.invalidate(display.getLayer(), r);
 			r.x = (int) ((r.x - srcRect.x) * magnification) - extra;
 			r.y = (int) ((r.y - srcRect.y) * magnification) - extra;
 			r.width = (int) Math.ceil(r.width * magnification) + extra + extra;
@@ -1660,6 +1664,7 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 		}
 		if (null != r) {
 			//repaint(r.x, r.y, r.width, r.height);
+			if (update_graphics) tile_renderer.invalidate(dl, r);
 			invalidateVolatile();
 			RT.paint(r, update_graphics);
 		}
@@ -1677,6 +1682,7 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 			RT.paint(null, update_graphics);
 			return;
 		}
+		if (update_graphics) tile_renderer.invalidate(display.getLayer(), r);
 		// repaint((int) ((r.x - srcRect.x) * magnification) - extra, (int) ((r.y - srcRect.y) * magnification) - extra, (int) Math .ceil(r.width * magnification) + extra + extra, (int) Math.ceil(r.height * magnification) + extra + extra);
 		RT.paint(new Rectangle((int) ((r.x - srcRect.x) * magnification) - extra, (int) ((r.y - srcRect.y) * magnification) - extra, (int) Math.ceil(r.width * magnification) + extra + extra, (int) Math.ceil(r.height * magnification) + extra + extra), update_graphics);
 	}
@@ -1740,6 +1746,7 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 			for (final BufferedImage bi : to_flush) bi.flush();
 			to_flush.clear();
 		}
+		tile_renderer.flush();
 		mouse_moved.quit();
 		try {
 			synchronized (this) { if (null != animator) animator.shutdownNow(); }
@@ -2563,6 +2570,8 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 
 		// preload concurrently as many as possible
 		if (preload_patches) Loader.preload(al_patches, magnification, false); // must be false; a 'true' would incur in an infinite loop.
+		// and anticipate the next views
+		if (preload_patches && null != display) display.getPrefetcher().viewed(layer, srcRect, magnification, al_patches);
 
 		// paint the ZDisplayables here, before the labels and LayerSets, if any
 		while (itzd.hasNext()) {
@@ -2668,7 +2677,19 @@ public final class DisplayCanvas extends ImageCanvas implements KeyListener/*, F
 				} else {
 					// Direct painting mode, with prePaint abilities
 					int i = 0;
+					final boolean tiled = prepaint && first_non_patch > 0 && paintables == al_paint
+					  && display.getMode().getClass() == DefaultMode.class
+					  && display.getProject().getBooleanProperty("tiled_rendering");
+					if (tiled) {
+						// Paint the images from cached tiles, in parallel
+						tile_renderer.paint(g, getGraphicsConfiguration(), active_layer, layers, al_paint, first_non_patch,
+								srcRect, magnification, active, c_alphas, g_width, g_height);
+					}
 					for (final Paintable d : paintables) {
+						if (tiled && i < first_non_patch) {
+							i++;
+							continue;
+						}
 						if (i == first_non_patch) {
 							//Object antialias = g.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
 							g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,  RenderingHints.VALUE_ANTIALIAS_ON); // to smooth edges of the images
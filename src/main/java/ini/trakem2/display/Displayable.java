@@ -31,6 +31,7 @@ import ini.trakem2.display.graphics.DifferenceARGBComposite;
 import ini.trakem2.display.graphics.MultiplyARGBComposite;
 import ini.trakem2.display.graphics.SubtractARGBComposite;
 import ini.trakem2.persistence.DBObject;
+import ini.trakem2.persistence.UndoStore;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
@@ -1811,7 +1812,7 @@ public abstract class Displayable extends DBObject implements Paintable  {
 
 	// UNDO machinery
 	
-	static protected class DoEdits implements DoStep {
+	static protected class DoEdits implements DoStep, CompactableStep {
 		final HashSet<DoEdit> edits = new HashSet<DoEdit>();
 		HashSet<DoStep> dependents = null;
 		DoEdits(final Set<? extends Displayable> col) {
@@ -1863,11 +1864,33 @@ public abstract class Displayable extends DBObject implements Paintable  {
 			if (null == this.dependents) this.dependents = new HashSet<DoStep>();
 			this.dependents.addAll(dep);
 		}
+		@Override
+		public boolean compact(final UndoStore store) {
+			boolean compacted = false;
+			for (final DoEdit edit : edits) {
+				if (edit.compact(store)) compacted = true;
+			}
+			return compacted;
+		}
+		@Override
+		public void release(final UndoStore store) {
+			for (final DoEdit edit : edits) edit.release(store);
+		}
+		@Override
+		public long getBytes(final UndoStore store) {
+			long bytes = 0;
+			for (final DoEdit edit : edits) {
+				final long b = edit.getBytes(store);
+				if (b < 0) return -1;
+				bytes += b;
+			}
+			return bytes;
+		}
 	}
 
 	/** For any Displayable data, including: title, visible, locked, color, alpha,
 	 *  and a 'data' type which includes the actual data (points, areas, etc.) and the links,width,height, and transformation (since all the latter are correlated).*/
-	static protected class DoEdit implements DoStep {
+	static protected class DoEdit implements DoStep, CompactableStep {
 		private final HashMap<String,Object> content = new HashMap<String,Object>();
 		private ArrayList<DoStep> dependents = null;
 		private final Displayable d;
@@ -2025,6 +2048,21 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		public boolean isEmpty() {
 			return null == d || (content.isEmpty() && (null == dependents || dependents.isEmpty()));
 		}
+		@Override
+		public boolean compact(final UndoStore store) {
+			final Object dp = content.get("data");
+			return dp instanceof DataPackage && ((DataPackage)dp).compact(store);
+		}
+		@Override
+		public void release(final UndoStore store) {
+			final Object dp = content.get("data");
+			if (dp instanceof DataPackage) ((DataPackage)dp).release(store);
+		}
+		@Override
+		public long getBytes(final UndoStore store) {
+			final Object dp = content.get("data");
+			return dp instanceof DataPackage ? ((DataPackage)dp).getBytes(store) : 0;
+		}
 	}
 
 	static protected class DoTransforms implements DoStep {
@@ -2148,6 +2186,16 @@ public abstract class Displayable extends DBObject implements Paintable  {
 		// subclass' one! I call it "defensive programming"
 		/** Set the subclass specific data fields. */
 		abstract boolean to2(final Displayable d);
+
+		/** Move the subclass specific data into the {@code store}, for {@link #to2(Displayable)} to read it back.
+		 *  Returns true if anything was moved; by default, nothing is. */
+		boolean compact(final UndoStore store) { return false; }
+
+		/** Release what {@link #compact(UndoStore)} put in the {@code store}. */
+		void release(final UndoStore store) {}
+
+		/** The estimated bytes of the subclass specific data held in memory, or -1 if unknown. */
+		long getBytes(final UndoStore store) { return -1; }
 	}
 
 	/** Returns true if any Displayable objects of different layers in sublist are linked to each other.
@@ -0,0 +1,415 @@
+/**
+
+TrakEM2 plugin for ImageJ(C).
+Copyright (C) 2007-2009 Albert Cardona and Rodney Douglas.
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+You may contact Albert Cardona at acardona at ini.phys.ethz.ch
+Institute of Neuroinformatics, University of Zurich / ETH, Switzerland.
+**/
+
+package ini.trakem2.display;
+
+import ij.ImagePlus;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.ArrayPool;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** Paints {@link Patch} instances into a flat image as {@link Patch#paintOffscreen} does with AWT,
+ *  but resampling their mipmaps directly into the pixel array of the flat image,
+ *  which is split into stripes of rows painted in parallel.
+ *
+ *  The mipmaps already include any coordinate transform and alpha mask of each Patch,
+ *  so only its affine transform is left to apply. Mipmaps are sampled with bicubic interpolation,
+ *  as with the rendering hints of the flat images painted with AWT. Color images and composite modes other than normal
+ *  are painted only into RGB flat images, and the color YCbCr mode not at all;
+ *  see {@link #canRender(Displayable, BufferedImage)}.
+ *
+ *  The pixels are not bit-exact with those painted by AWT, and may differ by a few gray levels;
+ *  so it is only used when the project property "parallel_flat_images" is set. */
+public final class FlatImageRenderer
+{
+	private FlatImageRenderer() {}
+
+	/** Minimum number of rows of a stripe. */
+	static private final int MIN_STRIPE_HEIGHT = 16;
+
+	/** Whether {@code d} can be painted into {@code target}, which must be
+	 *  a {@link BufferedImage#TYPE_BYTE_INDEXED} with the {@link Loader#GRAY_LUT}
+	 *  or a {@link BufferedImage#TYPE_INT_ARGB}. */
+	static public boolean canRender(final Displayable d, final BufferedImage target) {
+		if (!(d instanceof Patch)) return false;
+		final Patch p = (Patch) d;
+		switch (target.getType()) {
+			case BufferedImage.TYPE_BYTE_INDEXED:
+				if (Loader.GRAY_LUT != target.getColorModel()) return false;
+				return Displayable.COMPOSITE_NORMAL == p.getCompositeMode()
+					&& ImagePlus.COLOR_RGB != p.getType() && ImagePlus.COLOR_256 != p.getType();
+			case BufferedImage.TYPE_INT_ARGB:
+				return p.getCompositeMode() <= Displayable.COMPOSITE_DIFFERENCE;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Paint {@code patches}, in order, into {@code target}.
+	 *
+	 * @param target A flat image for which {@link #canRender(Displayable, BufferedImage)} is true for every Patch.
+	 * @param patches The Patch instances to paint, in painting order.
+	 * @param to_target The transform from world coordinates to the pixels of {@code target}.
+	 * @param magnification The scale at which the mipmaps are fetched, as in {@link Patch#paintOffscreen}.
+	 * @param channels The color channels to include for RGB Patch instances.
+	 */
+	static public void render(final BufferedImage target, final List<Patch> patches, final AffineTransform to_target,
+			final double magnification, final int channels) throws InterruptedException, ExecutionException
+	{
+		final int width = target.getWidth(),
+		          height = target.getHeight();
+		if (0 == patches.size() || 0 == width || 0 == height) return;
+
+		// The bounds of each Patch in the target, and its channels set before painting in parallel
+		final Rectangle bounds = new Rectangle(0, 0, width, height);
+		final Rectangle[] boxes = new Rectangle[patches.size()];
+		for (int i=0; i<boxes.length; ++i) {
+			final Patch p = patches.get(i);
+			p.checkChannels(channels, magnification);
+			final Rectangle box = to_target.createTransformedShape(p.getPerimeter()).getBounds();
+			box.grow(1, 1);
+			boxes[i] = box.intersection(bounds);
+		}
+
+		final int n_threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		final int stripe_height = Math.max(MIN_STRIPE_HEIGHT, (height + 4 * n_threads - 1) / (4 * n_threads));
+		final ExecutorService exec = ExecutorProvider.getExecutorService(Scheduler.Priority.BATCH, n_threads, "flat-image-stripes");
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+		try {
+			for (int y0 = 0; y0 < height; y0 += stripe_height) {
+				final Stripe stripe = new Stripe(target, y0, Math.min(height, y0 + stripe_height));
+				fus.add(exec.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						for (int i=0; i<boxes.length; ++i) {
+							if (Thread.currentThread().isInterrupted()) return null;
+							if (boxes[i].y >= stripe.y1 || boxes[i].y + boxes[i].height <= stripe.y0 || boxes[i].isEmpty()) continue;
+							stripe.paint(patches.get(i), boxes[i], to_target, magnification, channels);
+						}
+						return null;
+					}
+				}));
+			}
+		} finally {
+			exec.shutdown();
+		}
+		try {
+			for (final Future<?> fu : fus) fu.get();
+		} catch (final InterruptedException ie) {
+			for (final Future<?> fu : fus) fu.cancel(true);
+			throw ie;
+		}
+	}
+
+	/** The rows y0 &lt;= y &lt; y1 of the target image, painted by one thread. */
+	static private final class Stripe
+	{
+		final int y0, y1, width;
+		/** The pixels of the target image, when 8-bit gray. */
+		final byte[] gray;
+		/** The pixels of the target image, when ARGB. */
+		final int[] argb;
+		/** The interpolation weights of the current sample along x and y, reused for all pixels of the stripe. */
+		final float[] wx = new float[4],
+		              wy = new float[4];
+
+		Stripe(final BufferedImage target, final int y0, final int y1) {
+			this.y0 = y0;
+			this.y1 = y1;
+			this.width = target.getWidth();
+			if (BufferedImage.TYPE_BYTE_INDEXED == target.getType()) {
+				this.gray = ((DataBufferByte)target.getRaster().getDataBuffer()).getData();
+				this.argb = null;
+			} else {
+				this.gray = null;
+				this.argb = ((DataBufferInt)target.getRaster().getDataBuffer()).getData();
+			}
+		}
+
+		final void paint(final Patch patch, final Rectangle box, final AffineTransform to_target, final double magnification, final int channels) {
+			final MipMapImage mipMap = patch.fetchOffscreenImage(magnification, channels);
+			final AffineTransform at = new AffineTransform(to_target);
+			at.concatenate(patch.createPaintTransform(mipMap));
+			final AffineTransform inv;
+			try {
+				inv = at.createInverse();
+			} catch (final NoninvertibleTransformException e) {
+				return; // nothing to paint
+			}
+
+			// The rows and columns of the target to paint
+			final int ty0 = Math.max(y0, box.y),
+			          ty1 = Math.min(y1, box.y + box.height),
+			          tx0 = Math.max(0, box.x),
+			          tx1 = Math.min(width, box.x + box.width);
+			if (ty0 >= ty1 || tx0 >= tx1) return;
+
+			final Source src = Source.create(mipMap.image, inv, tx0, ty0, tx1, ty1);
+			if (null == src) return;
+
+			final float alpha = patch.getAlpha();
+			final byte mode = patch.getCompositeMode();
+			final double m00 = inv.getScaleX(),
+			             m10 = inv.getShearY();
+			final Point2D.Double s = new Point2D.Double();
+			final float[] sample = new float[4]; // alpha, red, green, blue
+
+			try {
+				for (int y = ty0; y < ty1; ++y) {
+					s.setLocation(tx0 + 0.5, y + 0.5);
+					inv.transform(s, s);
+					double sx = s.x,
+					       sy = s.y;
+					int k = y * width + tx0;
+					for (int x = tx0; x < tx1; ++x, ++k, sx += m00, sy += m10) {
+						// Paint only where the center of the target pixel falls within the mipmap
+						if (sx < 0 || sy < 0 || sx >= src.image_width || sy >= src.image_height) continue;
+						src.sample(sx - 0.5, sy - 0.5, sample, wx, wy);
+						final float a = sample[0] * alpha;
+						if (a <= 0) continue;
+						if (null != gray) {
+							final int d = gray[k] & 0xff;
+							// Gray sources have equal channels, also when ARGB for having an alpha mask
+							final float v = null == src.gray ? (sample[1] + sample[2] + sample[3]) / 3 : sample[1];
+							gray[k] = (byte)(int)(v * a + d * (1 - a) + 0.5f);
+						} else {
+							argb[k] = compose(mode, a, sample, argb[k]);
+						}
+					}
+				}
+			} finally {
+				src.release();
+			}
+		}
+	}
+
+	/** Compose a source pixel of {@code a} opacity (0..1) and channels {@code s[1..3]} (0..255) over the ARGB pixel {@code d},
+	 *  with the same formulas as the AWT {@link java.awt.Composite} of each composite mode. */
+	static private final int compose(final byte mode, final float a, final float[] s, final int d) {
+		final int dr = (d >> 16) & 0xff,
+		          dg = (d >> 8) & 0xff,
+		          db = d & 0xff;
+		final int r, g, b;
+		switch (mode) {
+			case Displayable.COMPOSITE_ADD:
+				r = Math.min(255, round(s[1] * a + dr));
+				g = Math.min(255, round(s[2] * a + dg));
+				b = Math.min(255, round(s[3] * a + db));
+				return 0xff000000 | (r << 16) | (g << 8) | b;
+			case Displayable.COMPOSITE_SUBTRACT:
+				r = Math.max(0, round(dr - s[1] * a));
+				g = Math.max(0, round(dg - s[2] * a));
+				b = Math.max(0, round(db - s[3] * a));
+				return 0xff000000 | (r << 16) | (g << 8) | b;
+			case Displayable.COMPOSITE_MULTIPLY:
+				r = clamp(round((a * s[1] * dr) / 255.0f + dr * (1 - a)));
+				g = clamp(round((a * s[2] * dg) / 255.0f + dg * (1 - a)));
+				b = clamp(round((a * s[3] * db) / 255.0f + db * (1 - a)));
+				return 0xff000000 | (r << 16) | (g << 8) | b;
+			case Displayable.COMPOSITE_DIFFERENCE:
+				r = clamp(round(Math.abs(dr - s[1] * a)));
+				g = clamp(round(Math.abs(dg - s[2] * a)));
+				b = clamp(round(Math.abs(db - s[3] * a)));
+				return 0xff000000 | (r << 16) | (g << 8) | b;
+			default:
+				// Source over, non-premultiplied
+				final float da = ((d >>> 24) / 255.0f) * (1 - a),
+				            oa = a + da;
+				if (oa <= 0) return 0;
+				r = clamp(round((s[1] * a + dr * da) / oa));
+				g = clamp(round((s[2] * a + dg * da) / oa));
+				b = clamp(round((s[3] * a + db * da) / oa));
+				return (clamp(round(oa * 255)) << 24) | (r << 16) | (g << 8) | b;
+		}
+	}
+
+	static private final int round(final float f) {
+		return (int)Math.floor(f + 0.5f);
+	}
+
+	static private final int clamp(final int i) {
+		return i < 0 ? 0 : (i > 255 ? 255 : i);
+	}
+
+	/** A copy of the region of a mipmap needed to paint part of a stripe. */
+	static private final class Source
+	{
+		final int image_width, image_height;
+		/** The copied region, within the image. */
+		final int rx, ry, rw, rh;
+		final byte[] gray;
+		final int[] argb;
+		final boolean has_alpha;
+
+		private Source(final int image_width, final int image_height, final int rx, final int ry, final int rw, final int rh,
+				final byte[] gray, final int[] argb, final boolean has_alpha) {
+			this.image_width = image_width;
+			this.image_height = image_height;
+			this.rx = rx;
+			this.ry = ry;
+			this.rw = rw;
+			this.rh = rh;
+			this.gray = gray;
+			this.argb = argb;
+			this.has_alpha = has_alpha;
+		}
+
+		/** Copy the region of {@code image} that maps into the target rectangle tx0,ty0 - tx1,ty1 by {@code inv}.
+		 *  The pixels are copied rather than accessed directly so that cached mipmaps remain accelerated for the Display. */
+		static final Source create(final java.awt.Image image, final AffineTransform inv, final int tx0, final int ty0, final int tx1, final int ty1) {
+			BufferedImage bi = image instanceof BufferedImage ? (BufferedImage)image : null;
+			final int w = image.getWidth(null),
+			          h = image.getHeight(null);
+			if (w <= 0 || h <= 0) return null;
+			final Rectangle r = inv.createTransformedShape(new Rectangle(tx0, ty0, tx1 - tx0, ty1 - ty0)).getBounds();
+			r.grow(3, 3);
+			final Rectangle region = r.intersection(new Rectangle(0, 0, w, h));
+			if (region.isEmpty()) return null;
+
+			if (null != bi) {
+				switch (bi.getType()) {
+					case BufferedImage.TYPE_BYTE_GRAY:
+						return new Source(w, h, region.x, region.y, region.width, region.height, copyBytes(bi, region), null, false);
+					case BufferedImage.TYPE_BYTE_INDEXED:
+						if (isGray((IndexColorModel)bi.getColorModel())) {
+							return new Source(w, h, region.x, region.y, region.width, region.height, copyBytes(bi, region), null, false);
+						}
+						break;
+					case BufferedImage.TYPE_INT_ARGB:
+						return new Source(w, h, region.x, region.y, region.width, region.height, null, copyInts(bi, region), true);
+					case BufferedImage.TYPE_INT_RGB:
+						return new Source(w, h, region.x, region.y, region.width, region.height, null, copyInts(bi, region), false);
+				}
+			}
+			// Any other kind of image: draw the region into an ARGB image
+			bi = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+			final Graphics2D g = bi.createGraphics();
+			g.drawImage(image, -region.x, -region.y, null);
+			g.dispose();
+			return new Source(w, h, region.x, region.y, region.width, region.height, null,
+					((DataBufferInt)bi.getRaster().getDataBuffer()).getData(), true);
+		}
+
+		static private final boolean isGray(final IndexColorModel icm) {
+			if (Loader.GRAY_LUT == icm) return true;
+			if (256 != icm.getMapSize() || Transparency.OPAQUE != icm.getTransparency()) return false;
+			for (int i=0; i<256; ++i) {
+				if (icm.getRed(i) != i || icm.getGreen(i) != i || icm.getBlue(i) != i) return false;
+			}
+			return true;
+		}
+
+		static private final byte[] copyBytes(final BufferedImage bi, final Rectangle r) {
+			return (byte[]) bi.getRaster().getDataElements(r.x, r.y, r.width, r.height, ArrayPool.takeBytesAtLeast(r.width * r.height));
+		}
+
+		static private final int[] copyInts(final BufferedImage bi, final Rectangle r) {
+			return (int[]) bi.getRaster().getDataElements(r.x, r.y, r.width, r.height, ArrayPool.takeIntsAtLeast(r.width * r.height));
+		}
+
+		/** Bicubic interpolation at image pixel coordinates u, v (pixel centers at integers), as AWT does with
+		 *  {@link java.awt.RenderingHints#VALUE_INTERPOLATION_BICUBIC}: with a kernel of a = -0.5, edge pixels repeated
+		 *  beyond the image, and colors premultiplied by alpha.
+		 *  Sets {@code out} to the alpha (0..1) and the red, green and blue (0..255),
+		 *  using {@code wx} and {@code wy} of length 4 to hold the weights of the kernel. */
+		final void sample(final double u, final double v, final float[] out, final float[] wx, final float[] wy) {
+			final int x = (int)Math.floor(u),
+			          y = (int)Math.floor(v);
+			kernel((float)(u - x), wx);
+			kernel((float)(v - y), wy);
+			float sa = 0, sr = 0, sg = 0, sb = 0;
+			for (int j=0; j<4; ++j) {
+				// Clamp to the image, relative to the copied region
+				final int row = cy(Math.max(0, Math.min(image_height - 1, y - 1 + j)) - ry) * rw;
+				for (int i=0; i<4; ++i) {
+					final float w = wx[i] * wy[j];
+					final int k = row + cx(Math.max(0, Math.min(image_width - 1, x - 1 + i)) - rx);
+					if (null != gray) {
+						sr += (gray[k] & 0xff) * w;
+						continue;
+					}
+					final int p = argb[k];
+					final float pa = has_alpha ? (p >>> 24) / 255.0f : 1;
+					sa += pa * w;
+					sr += ((p >> 16) & 0xff) * pa * w;
+					sg += ((p >> 8) & 0xff) * pa * w;
+					sb += (p & 0xff) * pa * w;
+				}
+			}
+			if (null != gray) {
+				out[0] = 1;
+				out[1] = out[2] = out[3] = Math.max(0, Math.min(255, sr));
+				return;
+			}
+			sa = Math.max(0, Math.min(1, sa));
+			out[0] = sa;
+			if (sa <= 0) return;
+			// Premultiplied colors can not exceed alpha
+			out[1] = Math.max(0, Math.min(255 * sa, sr)) / sa;
+			out[2] = Math.max(0, Math.min(255 * sa, sg)) / sa;
+			out[3] = Math.max(0, Math.min(255 * sa, sb)) / sa;
+		}
+
+		/** The four weights of the cubic convolution kernel with a = -0.5 for a fractional offset f. */
+		static private final void kernel(final float f, final float[] w) {
+			final float f2 = f * f,
+			            f3 = f2 * f;
+			w[0] = -0.5f * f3 + f2 - 0.5f * f;
+			w[1] = 1.5f * f3 - 2.5f * f2 + 1;
+			w[2] = -1.5f * f3 + 2 * f2 + 0.5f * f;
+			w[3] = 0.5f * f3 - 0.5f * f2;
+		}
+
+		private final int cx(final int x) {
+			return x < 0 ? 0 : (x >= rw ? rw - 1 : x);
+		}
+
+		private final int cy(final int y) {
+			return y < 0 ? 0 : (y >= rh ? rh - 1 : y);
+		}
+
+		/** Return the copied pixels to the {@link ArrayPool}. */
+		final void release() {
+			if (null != gray) ArrayPool.give(gray);
+			else ArrayPool.give(argb);
+		}
+	}
+}
@@ -55,8 +55,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 	private final ArrayList<Displayable> al_displayables = new ArrayList<Displayable>();
 	/** For fast search. */
-	Bucket root = null;
-	private HashMap<Displayable,HashSet<Bucket>> db_map = null;
+	SpatialIndex root = null;
 
 	private double z = 0;
 	private double thickness = 0;
@@ -283,10 +282,10 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 		if (null != root) {
 			if (d.length == stack_index) {
 				// append at the end
-				root.put(stack_index, displ, this, db_map);
+				root.put(stack_index, displ, this);
 			} else {
 				// add as last first, then update
-				root.put(d.length, displ, this, db_map);
+				root.put(d.length, displ, this);
 				// find and update the range of affected Displayable objects
 				root.updateRange(this, displ, stack_index, d.length); // first to last indices affected
 			}
@@ -299,7 +298,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 
 	@Override
 	public HashMap<Displayable, HashSet<Bucket>> getBucketMap(final Layer layer) { // ignore layer
-		return db_map;
+		return root instanceof Bucket.Index ? ((Bucket.Index)root).db_map : null;
 	}
 
 	/** Used for reconstruction purposes. Assumes the displ are given in the proper order! */
@@ -1062,20 +1061,17 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	synchronized public void recreateBuckets() {
-		this.root = new Bucket(0, 0, (int)(0.00005 + getLayerWidth()), (int)(0.00005 + getLayerHeight()), Bucket.getBucketSide(this, this));
-		this.db_map = new HashMap<Displayable,HashSet<Bucket>>();
-		this.root.populate(this, this, db_map);
-		//root.debug();
+		this.root = Bucket.createIndex(this, this);
 	}
 
 	/** Update buckets of a position change for the given Displayable. */
 	@Override
 	public void updateBucket(final Displayable d, final Layer layer) { // ignore layer
-		if (null != root) root.updatePosition(d, this, db_map);
+		if (null != root) root.updatePosition(d, this);
 	}
 
 	public void checkBuckets() {
-		if (use_buckets && (null == root || null == db_map)) recreateBuckets();
+		if (use_buckets && null == root) recreateBuckets();
 	}
 
 	private boolean use_buckets = true;
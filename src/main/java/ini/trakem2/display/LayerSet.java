@@ -30,9 +30,12 @@ import ij.measure.Calibration;
 import ini.trakem2.ControlWindow;
 import ini.trakem2.Project;
 import ini.trakem2.imaging.LayerStack;
+import ini.trakem2.parallel.ExecutorProvider;
 import ini.trakem2.parallel.Process;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.parallel.TaskFactory;
 import ini.trakem2.persistence.DBObject;
+import ini.trakem2.persistence.UndoStore;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.tree.LayerThing;
 import ini.trakem2.tree.ProjectThing;
@@ -64,6 +67,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -1309,6 +1314,10 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		synchronized (IDLAYERS_WRITE_LOCK) { this.idlayers = new HashMap<Long,Layer>(); } // like .clear()
 		synchronized (layerindices) { this.layerindices.clear(); }
 		this.offscreens.clear();
+		synchronized (edit_history) {
+			if (null != undo_compactor) undo_compactor.shutdownNow();
+			if (null != undo_store) undo_store.clear();
+		}
 	}
 
 	/** Used by the Layer.setZ method. */
@@ -1705,14 +1714,12 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		return al;
 	}
 
-	/** A Bucket for the ZDisplayable parts that show in every Layer. */
+	/** A spatial index for the ZDisplayable parts that show in every Layer. */
 	protected final class LayerBucket {
-		protected final Bucket root;
-		protected final HashMap<Displayable,HashSet<Bucket>> db_map = new HashMap<Displayable,HashSet<Bucket>>();
+		protected final SpatialIndex root;
 
 		LayerBucket(final Layer la) {
-			this.root = new Bucket(0, 0, (int)(0.00005 + getLayerWidth()), (int)(0.00005 + getLayerHeight()), Bucket.getBucketSide(LayerSet.this, la));
-			this.root.populate(LayerSet.this, la, this.db_map);
+			this.root = Bucket.createIndex(LayerSet.this, la);
 		}
 	}
 
@@ -1729,7 +1736,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 					nbmsg(la);
 					continue;
 				}
-				lb.root.put(i, zd, la, lb.db_map);
+				lb.root.put(i, zd, la);
 			}
 		}
 	}
@@ -1778,9 +1785,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 					nbmsg(la);
 					continue;
 				}
-				for (final Bucket bu : lb.db_map.get(zd)) {
-					bu.updateRange(this, zd, i, j);
-				}
+				lb.root.updateRange(this, zd, i, j);
 			}
 		}
 	}
@@ -1801,14 +1806,14 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 				nbmsg(la);
 				return null;
 			}
-			return lb.db_map;
+			return lb.root instanceof Bucket.Index ? ((Bucket.Index)lb.root).db_map : null;
 		}
 	}
 
 	public void updateBucket(final Displayable d, final Layer layer) {
 		synchronized (lbucks) {
 			final LayerBucket lb = lbucks.get(layer);
-			if (null != lb) lb.root.updatePosition(d, layer, lb.db_map);
+			if (null != lb) lb.root.updatePosition(d, layer);
 		}
 	}
 
@@ -1889,6 +1894,11 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	/** Time vs DoStep; as steps are removed from the end of edit_history, they are put here. */
 	final private TreeMap<Long,DoStep> redo = new TreeMap<Long,DoStep>();
 
+	/** Holds the compacted data of the older steps in edit_history; created when first needed. */
+	private UndoStore undo_store = null;
+	/** Compacts steps into the undo_store one at a time, away from the editing thread; created when first needed. */
+	private ExecutorService undo_compactor = null;
+
 	/** Whether an initial step should be added or not. */
 	final boolean prepareStep(final Object ob) {
 		synchronized (edit_history) {
@@ -2050,14 +2060,10 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 				// prune if too large
 				while (edit_history.size() > project.getProperty("n_undo_steps", 32)) {
-					long t = edit_history.firstKey();
-					DoStep st = edit_history.remove(t);
-					if (null != st.getD()) {
-						TreeMap<Long,DoStep> m = dedits.get(st.getD());
-						m.remove(t);
-						if (0 == m.size()) dedits.remove(st.getD());
-					}
+					removeOldestStep();
 				}
+
+				compactHistory();
 			}
 
 			// Set step as current
@@ -2065,12 +2071,98 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			current_edit_step = step;
 
 			// Bye bye redo! Can't branch.
+			for (final DoStep st : redo.values()) releaseStep(st);
 			redo.clear();
 		}
 
 		return true;
 	}
 
+	/** Remove the oldest step from edit_history, releasing its compacted data. Call while synchronized on edit_history. */
+	private void removeOldestStep() {
+		final long t = edit_history.firstKey();
+		final DoStep st = edit_history.remove(t);
+		if (null != st.getD()) {
+			final TreeMap<Long,DoStep> m = dedits.get(st.getD());
+			m.remove(t);
+			if (0 == m.size()) dedits.remove(st.getD());
+		}
+		releaseStep(st);
+	}
+
+	private void releaseStep(final DoStep st) {
+		if (null != undo_store && st instanceof CompactableStep) ((CompactableStep)st).release(undo_store);
+	}
+
+	/** Compact the data of all steps but the most recent "n_undo_steps_in_memory" into the undo store, in the background,
+	 *  and then drop the oldest steps while the store is over its disk budget. Call while synchronized on edit_history. */
+	private void compactHistory() {
+		final int n_in_memory = Math.max(0, project.getProperty("n_undo_steps_in_memory", 8));
+		if (edit_history.size() <= n_in_memory) return;
+		final long memory_budget = Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 64);
+		final long disk_budget = Math.max(0, project.getProperty("undo_disk_mb", 1024)) * 1024L * 1024L;
+		if (null == undo_store) {
+			undo_store = new UndoStore(Long.toString(getId()), memory_budget, disk_budget);
+			undo_compactor = ExecutorProvider.getExecutorService(Scheduler.Priority.BATCH, 1, "undo-compaction");
+		} else {
+			undo_store.setBudgets(memory_budget, disk_budget);
+		}
+		// Oldest first, so that each step can reuse the blobs of the one before
+		final ArrayList<DoStep> steps = new ArrayList<DoStep>();
+		int n = edit_history.size() - n_in_memory;
+		for (final DoStep st : edit_history.values()) {
+			if (n-- <= 0) break;
+			if (st instanceof CompactableStep) steps.add(st);
+		}
+		if (steps.isEmpty()) return;
+		final UndoStore store = undo_store;
+		try {
+			undo_compactor.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (final DoStep st : steps) {
+						if (Thread.currentThread().isInterrupted()) return;
+						final CompactableStep cs = (CompactableStep)st;
+						final long before = cs.getBytes(store);
+						if (cs.compact(store)) {
+							Utils.log2("Undo: compacted " + st.getClass().getSimpleName() + " from " + (before < 0 ? "?" : before / 1024)
+									+ " KB to " + cs.getBytes(store) / 1024 + " KB in memory");
+						}
+					}
+					synchronized (edit_history) {
+						while (edit_history.size() > 1 && store.isOverBudget()) {
+							removeOldestStep();
+						}
+					}
+				}
+			});
+		} catch (final RejectedExecutionException ree) {
+			// Destroyed
+		}
+	}
+
+	/** The estimated bytes in memory of each step in the undo history, the oldest first, and of the undo store. */
+	public String getUndoMemoryReport() {
+		synchronized (edit_history) {
+			final StringBuilder sb = new StringBuilder("Undo history of ").append(this).append(':');
+			long total = 0;
+			int i = 0;
+			for (final DoStep st : edit_history.values()) {
+				sb.append("\n  ").append(++i).append(": ").append(st.getClass().getSimpleName()).append(' ');
+				final long bytes = st instanceof CompactableStep ? ((CompactableStep)st).getBytes(undo_store) : -1;
+				if (bytes < 0) {
+					sb.append("? KB");
+				} else {
+					sb.append(bytes / 1024).append(" KB");
+					total += bytes;
+				}
+			}
+			sb.append("\n  total: ").append(total / 1024).append(" KB");
+			if (null != undo_store) sb.append("\n  ").append(undo_store.getStats());
+			return sb.toString();
+		}
+	}
+
 	public boolean canUndo() {
 		return edit_history.size() > 0;
 	}
@@ -2120,6 +2212,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			final long time = edit_history.lastKey();
 			final DoStep step = edit_history.remove(time);
 			if (null != step.getD()) dedits.get(step.getD()).remove(time);
+			releaseStep(step);
 			// shift current
 			if (step == current_edit_step) {
 				current_edit_time = edit_history.lastKey();
@@ -50,11 +50,36 @@ public abstract class Node<T> implements Taggable {
 	public void setPosition(final float x, final float y) {
 		this.x = x;
 		this.y = y;
+		changed();
 	}
 	/** Expects two dimensions. */
 	public void setPosition(final float[] p) {
 		this.x = p[0];
 		this.y = p[1];
+		changed();
+	}
+
+	/** The {@link NodeIndex} that contains this node, if any. */
+	NodeIndex<T> index = null;
+
+	/** Subclasses must call this method when the position or the painted extent of this node changes,
+	 * so that the {@link NodeIndex} that contains it, if any, remains in synch. */
+	protected final void changed() {
+		final NodeIndex<T> index = this.index;
+		if (null != index) index.update(this);
+	}
+
+	/** The distance from x,y beyond which nothing of this node is painted, in local coordinates:
+	 * here, the length of the longest edge to the parent or a child. */
+	public float getReach() {
+		float r = 0;
+		if (null != parent) r = (float)Math.sqrt(Math.pow(parent.x - x, 2) + Math.pow(parent.y - y, 2));
+		if (null != children) {
+			for (final Node<T> child : children) {
+				r = Math.max(r, (float)Math.sqrt(Math.pow(child.x - x, 2) + Math.pow(child.y - y, 2)));
+			}
+		}
+		return r;
 	}
 
 	/** The confidence value of the edge towards the parent;
@@ -138,6 +163,7 @@ public abstract class Node<T> implements Taggable {
 		this.children[children.length-1] = child;
 		child.confidence = conf;
 		child.parent = this;
+		child.changed(); // a new edge
 		return children.length -1;
 	}
 	synchronized public final boolean remove(final Node<T> child) {
@@ -450,6 +476,7 @@ public abstract class Node<T> implements Taggable {
 	final public void translate(final float dx, final float dy) {
 		x += dx;
 		y += dy;
+		changed();
 	}
 
 	/** Returns a recursive copy of this Node subtree, where the copy of this Node is the root.
@@ -901,6 +928,7 @@ public abstract class Node<T> implements Taggable {
 		ct.applyInPlace(fp);
 		this.x = (float)fp[0];
 		this.y = (float)fp[1];
+		changed();
 	}
 	public void apply(final VectorDataTransform vlocal) {
 		for (final VectorDataTransform.ROITransform rt : vlocal.transforms) {
@@ -910,6 +938,7 @@ public abstract class Node<T> implements Taggable {
 				rt.ct.applyInPlace(fp);
 				x = (float)fp[0];
 				y = (float)fp[1];
+				changed();
 				break;
 			}
 		}
@@ -0,0 +1,282 @@
+package ini.trakem2.display;
+
+import java.awt.Rectangle;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/** The {@link java.util.Set} of the {@link Node} instances of a {@link Tree} at one {@link Layer},
+ * with the nodes also arranged in a grid of square cells by their local x,y coordinates,
+ * so that finding the nodes near a point or within a rectangle looks only at a few cells
+ * rather than at all nodes of the layer.
+ *
+ * A {@link Node} reports changes to its position to the NodeIndex that contains it (see {@link Node#changed()}).
+ * The index also keeps an upper bound on how far from its x,y a node paints itself (its edges, its radius...),
+ * see {@link Node#getReach()}, which is used as the margin for finding the nodes to paint within a rectangle.
+ *
+ * Membership changes are expected to be done under the lock of the {@link Tree#node_layer_map}, like for any other {@link java.util.Set};
+ * the grid itself is guarded by this instance, so that nodes may be moved from any thread. */
+public final class NodeIndex<T> extends AbstractSet<Node<T>> {
+
+	/** Side of a grid cell, in local pixel coordinates. */
+	static private final int CELL = 256;
+
+	/** Each node vs. the key of the cell it is in. */
+	private final HashMap<Node<T>,Long> nodes = new HashMap<Node<T>,Long>();
+	private final HashMap<Long,ArrayList<Node<T>>> cells = new HashMap<Long,ArrayList<Node<T>>>();
+	/** The range of cell coordinates ever used; only grows, until {@link #clear()}. */
+	private int min_cx = Integer.MAX_VALUE, min_cy = Integer.MAX_VALUE,
+	            max_cx = Integer.MIN_VALUE, max_cy = Integer.MIN_VALUE;
+	/** Upper bound of {@link Node#getReach()} for all nodes. */
+	private float max_reach = 0;
+
+	public NodeIndex() {}
+
+	static private final int cell(final float c) {
+		return (int)Math.floor(c / CELL);
+	}
+
+	static private final long key(final int cx, final int cy) {
+		return (((long)cx) << 32) | (cy & 0xffffffffL);
+	}
+
+	private final long place(final Node<T> nd) {
+		final int cx = cell(nd.x),
+		          cy = cell(nd.y);
+		if (cx < min_cx) min_cx = cx;
+		if (cx > max_cx) max_cx = cx;
+		if (cy < min_cy) min_cy = cy;
+		if (cy > max_cy) max_cy = cy;
+		final long key = key(cx, cy);
+		ArrayList<Node<T>> a = cells.get(key);
+		if (null == a) {
+			a = new ArrayList<Node<T>>(4);
+			cells.put(key, a);
+		}
+		a.add(nd);
+		return key;
+	}
+
+	private final void unplace(final Node<T> nd, final long key) {
+		final ArrayList<Node<T>> a = cells.get(key);
+		if (null == a) return;
+		a.remove(nd);
+		if (a.isEmpty()) cells.remove(key);
+	}
+
+	@Override
+	public int size() {
+		return nodes.size();
+	}
+
+	@Override
+	public boolean contains(final Object ob) {
+		return nodes.containsKey(ob);
+	}
+
+	@Override
+	public boolean add(final Node<T> nd) {
+		final float reach;
+		synchronized (this) {
+			if (nodes.containsKey(nd)) return false;
+			nodes.put(nd, place(nd));
+			nd.index = this;
+			reach = nd.getReach();
+			if (reach > max_reach) max_reach = reach;
+		}
+		grow(nd.parent, reach);
+		return true;
+	}
+
+	@Override
+	public boolean remove(final Object ob) {
+		synchronized (this) {
+			final Long key = nodes.remove(ob);
+			if (null == key) return false;
+			@SuppressWarnings("unchecked")
+			final Node<T> nd = (Node<T>)ob;
+			unplace(nd, key);
+			if (this == nd.index) nd.index = null;
+			return true;
+		}
+	}
+
+	@Override
+	public void clear() {
+		synchronized (this) {
+			for (final Node<T> nd : nodes.keySet()) {
+				if (this == nd.index) nd.index = null;
+			}
+			nodes.clear();
+			cells.clear();
+			min_cx = min_cy = Integer.MAX_VALUE;
+			max_cx = max_cy = Integer.MIN_VALUE;
+			max_reach = 0;
+		}
+	}
+
+	@Override
+	public Iterator<Node<T>> iterator() {
+		final Iterator<Map.Entry<Node<T>,Long>> it = nodes.entrySet().iterator();
+		return new Iterator<Node<T>>() {
+			private Map.Entry<Node<T>,Long> last = null;
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+			@Override
+			public Node<T> next() {
+				last = it.next();
+				return last.getKey();
+			}
+			@Override
+			public void remove() {
+				synchronized (NodeIndex.this) {
+					it.remove();
+					unplace(last.getKey(), last.getValue());
+					if (NodeIndex.this == last.getKey().index) last.getKey().index = null;
+				}
+			}
+		};
+	}
+
+	/** Called by {@code nd} when its position or its painted extent changed. */
+	void update(final Node<T> nd) {
+		final float reach;
+		synchronized (this) {
+			final Long key = nodes.get(nd);
+			if (null == key) return;
+			final long k = key(cell(nd.x), cell(nd.y));
+			if (k != key) {
+				unplace(nd, key);
+				nodes.put(nd, place(nd)); // not a structural modification
+			}
+			reach = nd.getReach();
+			if (reach > max_reach) max_reach = reach;
+		}
+		// Edges are shared with the parent and the children, which may be in other layers.
+		// Not within the synchronized block, to avoid locking two indices at once.
+		grow(nd.parent, reach);
+		if (null != nd.children) {
+			for (final Node<T> child : nd.children) grow(child, reach);
+		}
+	}
+
+	static private final <T> void grow(final Node<T> nd, final float reach) {
+		if (null == nd) return;
+		final NodeIndex<T> index = nd.index;
+		if (null == index) return;
+		synchronized (index) {
+			if (reach > index.max_reach) index.max_reach = reach;
+		}
+	}
+
+	/** Recompute the margin for painting from the current reach of all nodes, which may have shrunk after edits. */
+	public void updateReach() {
+		synchronized (this) {
+			float reach = 0;
+			for (final Node<T> nd : nodes.keySet()) {
+				reach = Math.max(reach, nd.getReach());
+			}
+			max_reach = reach;
+		}
+	}
+
+	/** Returns the nodes whose x,y lay within the rectangle {@code x, y, w, h}, in local coordinates. */
+	public Collection<Node<T>> find(final float x, final float y, final float w, final float h) {
+		final ArrayList<Node<T>> a = new ArrayList<Node<T>>();
+		synchronized (this) {
+			if (nodes.isEmpty()) return a;
+			final int cx0 = Math.max(min_cx, cell(x)),
+			          cy0 = Math.max(min_cy, cell(y)),
+			          cx1 = Math.min(max_cx, cell(x + w)),
+			          cy1 = Math.min(max_cy, cell(y + h));
+			if ((long)(cx1 - cx0 + 1) * (cy1 - cy0 + 1) > cells.size()) {
+				// Fewer cells in use than cells to look at
+				for (final ArrayList<Node<T>> c : cells.values()) collect(c, x, y, w, h, a);
+			} else {
+				for (int cy=cy0; cy<=cy1; ++cy) {
+					for (int cx=cx0; cx<=cx1; ++cx) {
+						final ArrayList<Node<T>> c = cells.get(key(cx, cy));
+						if (null != c) collect(c, x, y, w, h, a);
+					}
+				}
+			}
+		}
+		return a;
+	}
+
+	static private final <T> void collect(final ArrayList<Node<T>> c, final float x, final float y, final float w, final float h, final ArrayList<Node<T>> a) {
+		for (final Node<T> nd : c) {
+			if (nd.x >= x && nd.y >= y && nd.x <= x + w && nd.y <= y + h) a.add(nd);
+		}
+	}
+
+	/** Returns the nodes that may paint something within {@code localbox}: those whose x,y lay within
+	 * the box enlarged by the reach of the farthest-reaching node. May include nodes that don't. */
+	public Collection<Node<T>> findRoughly(final Rectangle localbox) {
+		final float margin;
+		synchronized (this) {
+			margin = max_reach;
+		}
+		if (margin > Integer.MAX_VALUE / 4) return new ArrayList<Node<T>>(this);
+		return find(localbox.x - margin, localbox.y - margin, localbox.width + 2 * margin, localbox.height + 2 * margin);
+	}
+
+	/** Returns the node closest to {@code lx, ly}, with distances along X and Y scaled by {@code pw} and {@code ph},
+	 * or null if empty. Looks at rings of cells of increasing distance until no closer node can be found. */
+	public Node<T> findNearest(final float lx, final float ly, final float pw, final float ph) {
+		synchronized (this) {
+			if (nodes.isEmpty()) return null;
+			final int cx = cell(lx),
+			          cy = cell(ly);
+			final int max_ring = Math.max(Math.max(Math.abs(cx - min_cx), Math.abs(cx - max_cx)),
+			                              Math.max(Math.abs(cy - min_cy), Math.abs(cy - max_cy)));
+			final float pmin = Math.min(Math.abs(pw), Math.abs(ph));
+			Node<T> nearest = null;
+			float sqdist = Float.MAX_VALUE;
+			if ((long)(max_cx - min_cx + 1) * (max_cy - min_cy + 1) > 4L * nodes.size()) {
+				// Sparse: cheaper to look at every node than at every cell
+				for (final Node<T> nd : nodes.keySet()) {
+					final float dx = pw * (nd.x - lx),
+					            dy = ph * (nd.y - ly),
+					            d = dx * dx + dy * dy;
+					if (d < sqdist) {
+						sqdist = d;
+						nearest = nd;
+					}
+				}
+				return nearest;
+			}
+			for (int ring=0; ring<=max_ring; ++ring) {
+				// Any node in this ring or beyond is at least (ring -1) cells away
+				if (null != nearest) {
+					final float min = Math.max(0, ring - 1) * CELL * pmin;
+					if (min * min > sqdist) break;
+				}
+				for (int y=cy-ring; y<=cy+ring; ++y) {
+					final boolean edge_row = y == cy - ring || y == cy + ring;
+					for (int x=cx-ring; x<=cx+ring; x += (edge_row ? 1 : 2 * ring)) {
+						final ArrayList<Node<T>> c = cells.get(key(x, y));
+						if (null != c) {
+							for (final Node<T> nd : c) {
+								final float dx = pw * (nd.x - lx),
+								            dy = ph * (nd.y - ly),
+								            d = dx * dx + dy * dy;
+								if (d < sqdist) {
+									sqdist = d;
+									nearest = nd;
+								}
+							}
+						}
+						if (0 == ring) break;
+					}
+				}
+			}
+			return nearest;
+		}
+	}
+}
@@ -59,6 +59,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -83,10 +84,10 @@ import ini.trakem2.Project;
 import ini.trakem2.imaging.PatchStack;
 import ini.trakem2.imaging.filters.FilterEditor;
 import ini.trakem2.imaging.filters.IFilter;
-import ini.trakem2.io.CoordinateTransformXML;
 import ini.trakem2.io.ImageSaver;
 import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.persistence.Loader;
+import ini.trakem2.persistence.TransformCache;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
@@ -105,9 +106,9 @@ import mpicbg.trakem2.transform.CoordinateTransform;
 import mpicbg.trakem2.transform.CoordinateTransformList;
 import mpicbg.trakem2.transform.ExportBestFlatImage;
 import mpicbg.trakem2.transform.ExportUnsignedShort;
+import mpicbg.trakem2.transform.TiledTransformMeshMapping;
 import mpicbg.trakem2.transform.TransformMesh;
 import mpicbg.trakem2.transform.TransformMeshMapping;
-import mpicbg.trakem2.transform.TransformMeshMappingWithMasks.ImageProcessorWithMasks;
 
 public final class Patch extends Displayable implements ImageData {
 
@@ -514,7 +515,7 @@ public final class Patch extends Displayable implements ImageData {
 	static final public DirectColorModel DCM = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
 
 	/** Just throws the cached image away if the alpha of the channels has changed. */
-	private final void checkChannels(final int channels, final double magnification) {
+	final void checkChannels(final int channels, final double magnification) {
 		if (this.channels != channels && (ImagePlus.COLOR_RGB == this.type || ImagePlus.COLOR_256 == this.type)) {
 			final int old_channels = this.channels;
 			this.channels = channels; // before, so if any gets recreated it's done right
@@ -570,19 +571,29 @@ public final class Patch extends Displayable implements ImageData {
 
 	private final MipMapImage fetchImage(final double magnification, final int channels, final boolean wait_for_image) {
 		checkChannels(channels, magnification);
-
-		// Consider all possible scaling components: m00, m01
-		//                                           m10, m11
-		double sc = magnification * Math.max(Math.abs(at.getScaleX()),
-				                     Math.max(Math.abs(at.getScaleY()),
-							      Math.max(Math.abs(at.getShearX()),
-								       Math.abs(at.getShearY()))));
-		if (sc < 0) sc = magnification;
+		final double sc = paintingScale(magnification);
 		return wait_for_image ?
 			  project.getLoader().fetchDataImage(this, sc)
 			: project.getLoader().fetchImage(this, sc);
 	}
 
+	/** The scale at which the image has to be fetched to be painted at @param magnification. */
+	private final double paintingScale(final double magnification) {
+		// Consider all possible scaling components: m00, m01
+		//                                           m10, m11
+		final double sc = magnification * Math.max(Math.abs(at.getScaleX()),
+				                           Math.max(Math.abs(at.getScaleY()),
+							    Math.max(Math.abs(at.getShearX()),
+								     Math.abs(at.getShearY()))));
+		return sc < 0 ? magnification : sc;
+	}
+
+	/** Returns the cached mipmap that {@link #prePaint} would paint at @param magnification without having to load anything,
+	 *  or null if none is cached at a resolution equal or higher than necessary. */
+	final MipMapImage getCachedPaintImage(final double magnification) {
+		return project.getLoader().getCachedClosestAboveImage(this, paintingScale(magnification));
+	}
+
 	private void paint( final Graphics2D g, final Image image, final Rectangle srcRect )
 	{
 		/*
@@ -595,6 +606,17 @@ public final class Patch extends Displayable implements ImageData {
 	}
 
 	private void paint(final Graphics2D g, final MipMapImage mipMap, final Rectangle srcRect ) {
+		paintMipMap(g, mipMap, createPaintTransform(mipMap), srcRect);
+	}
+
+	/** The image that {@link #paintOffscreen} paints at @param magnification, waiting for it to load if necessary. */
+	final MipMapImage fetchOffscreenImage(final double magnification, final int channels) {
+		return fetchImage(magnification, channels, true);
+	}
+
+	/** The transform with which the pixels of @param mipMap are painted into world coordinates,
+	 *  in AWT's convention of pixel coordinates at pixel corners. */
+	final AffineTransform createPaintTransform(final MipMapImage mipMap) {
 
 		final AffineTransform atp = new AffineTransform();
 
@@ -620,7 +642,7 @@ public final class Patch extends Displayable implements ImageData {
 			atp.translate( -0.5 / mipMap.scaleX, -0.5 / mipMap.scaleY );
 		}
 
-		paintMipMap(g, mipMap, atp, srcRect);
+		return atp;
 	}
 
 	/** Paint first whatever is available, then request that the proper image be loaded and painted. */
@@ -638,14 +660,7 @@ public final class Patch extends Displayable implements ImageData {
 		atp.concatenate( this.at );
 
 		checkChannels(channels, magnification);
-
-		// Consider all possible scaling components: m00, m01
-		//                                           m10, m11
-		double sc = magnification * Math.max(Math.abs(at.getScaleX()),
-				                     Math.max(Math.abs(at.getScaleY()),
-							      Math.max(Math.abs(at.getShearX()),
-								       Math.abs(at.getShearY()))));
-		if (sc < 0) sc = magnification;
+		final double sc = paintingScale(magnification);
 
 		MipMapImage mipMap = project.getLoader().getCachedClosestAboveImage(this, sc); // above or equal
 		if (null == mipMap) {
@@ -1255,14 +1270,14 @@ public final class Patch extends Displayable implements ImageData {
 
 		if (null != this_ct) {
 			// restore image without the transform
-			final TransformMesh mesh = new TransformMesh(this_ct, meshResolution, o_width, o_height);
-			final Rectangle box = mesh.getBoundingBox();
+			final Rectangle box = getCTBoundingBox(this_ct);
 			this.at.translate(-box.x, -box.y);
 			updateInDatabase("transform+dimensions");
 		}
 
+		final boolean written;
 		try {
-			setNewCoordinateTransform(ct);
+			written = setNewCoordinateTransform(ct);
 		} catch (final Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -1279,8 +1294,9 @@ public final class Patch extends Displayable implements ImageData {
 
 		// Adjust the AffineTransform to correct for bounding box displacement
 
-		final TransformMesh mesh = new TransformMesh(this_ct, meshResolution, o_width, o_height);
-		final Rectangle box = mesh.getBoundingBox();
+		final Rectangle box = written ?
+			  getCTBoundingBox(this_ct)
+			: new TransformMesh(this_ct, meshResolution, o_width, o_height).getBoundingBox();
 		this.at.translate(box.x, box.y);
 		width = box.width;
 		height = box.height;
@@ -1343,11 +1359,8 @@ public final class Patch extends Displayable implements ImageData {
 	 * Get the bounding rectangle of the transformed image relative to the
 	 * original image.
 	 *
-	 * TODO
-	 *   Currently, this is done in a very expensive way.  The
-	 *   {@linkplain TransformMesh} is built and its bounding rectangle is
-	 *   returned.  Think about just storing this rectangle in the
-	 *   {@linkplain Patch} instance.
+	 * The {@linkplain TransformMesh} is built once and then kept, together
+	 * with its bounding rectangle, in the {@link TransformCache}.
 	 *
 	 * @return
 	 */
@@ -1367,8 +1380,29 @@ public final class Patch extends Displayable implements ImageData {
 	protected static final Rectangle getCoordinateTransformBoundingBox(final Patch p, final CoordinateTransform ct) {
 		if (!p.hasCoordinateTransform())
 			return new Rectangle(0,0,p.o_width,p.o_height);
-		final TransformMesh mesh = new TransformMesh(ct, p.meshResolution, p.o_width, p.o_height);
-		return mesh.getBoundingBox();
+		return p.getCTBoundingBox(ct);
+	}
+
+	/** The {@link TransformMesh} of the {@link CoordinateTransform} of this Patch, shared through the {@link TransformCache}:
+	 * do not modify it.
+	 * @param ct the {@link CoordinateTransform} of this Patch if already at hand, or null to have it read when the mesh is not cached. */
+	private final TransformMesh getCTMesh(final CoordinateTransform ct) {
+		try {
+			return TransformCache.getMesh(createCTFilePath(this.ct_id), ct, meshResolution, o_width, o_height);
+		} catch (final Exception e) {
+			IJError.print(e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** The bounding box of the {@link TransformMesh} returned by {@link #getCTMesh(CoordinateTransform)}. */
+	private final Rectangle getCTBoundingBox(final CoordinateTransform ct) {
+		try {
+			return TransformCache.getBoundingBox(createCTFilePath(this.ct_id), ct, meshResolution, o_width, o_height);
+		} catch (final Exception e) {
+			IJError.print(e);
+			throw new RuntimeException(e);
+		}
 	}
 
 	/** Obtain a copy of the {@link CoordinateTransform} that transfers image data to mipmap image data.
@@ -1414,35 +1448,49 @@ public final class Patch extends Displayable implements ImageData {
 	}
 
 
+	/** Render the image of this Patch, and its alpha mask if any, through its {@link CoordinateTransform}, in parallel tiles.
+	 * The memory used is as before the tiling: the target and its masks are allocated whole at full resolution,
+	 * given that the mipmaps are made from them as a whole; see {@link TiledTransformMeshMapping}.
+	 * @return null if there isn't a {@link CoordinateTransform}, or if the image could not be rendered. */
 	public final Patch.PatchImage createCoordinateTransformedImage() {
 		if (!hasCoordinateTransform()) return null;
 
-		final CoordinateTransform ct = getCoordinateTransform();
-
 		final ImageProcessor source = getImageProcessor();
 
 		if (null == source) return null; // some error occurred
 
 		//Utils.log2("source image dimensions: " + source.getWidth() + ", " + source.getHeight());
 
-		final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
-		final Rectangle box = mesh.getBoundingBox();
+		final TransformMesh mesh = getCTMesh(null);
+		final Rectangle box = getCTBoundingBox(null);
+
+		final ByteProcessor alpha = getAlphaMask();
 
-		/* We can calculate the exact size of the image to be rendered, so let's do it */
-//		project.getLoader().releaseToFit(o_width, o_height, type, 5);
-		final long b =
-			  2 * o_width * o_height		// outside and mask source
-			+ 2 * box.width * box.height	// outside and mask target
-			+ 5 * o_width * o_height		// image source
-			+ 5 * box.width * box.height;	// image target
+		/* We can calculate the exact size of the image to be rendered, so let's do it:
+		 * the source and its alpha mask are loaded already, and the tiles are mapped straight into the target. */
+		final int bytes_per_pixel = 24 == source.getBitDepth() ? 4 : source.getBitDepth() / 8;
+		final long b = (long)box.width * box.height
+			* (bytes_per_pixel			// image target
+			   + 1						// outside target
+			   + (null == alpha ? 0 : 1));	// mask target
 		project.getLoader().releaseToFit( b );
 
-		final TransformMeshMapping mapping = new TransformMeshMapping( mesh );
+		final ImageProcessor target = source.createProcessor( box.width, box.height );
+		final ByteProcessor target_mask = null == alpha ? null : new ByteProcessor( box.width, box.height );
+		final ByteProcessor target_outside = new ByteProcessor( box.width, box.height );
 
-		final ImageProcessorWithMasks target = mapping.createMappedMaskedImageInterpolated( source, getAlphaMask() );
+		try {
+			TiledTransformMeshMapping.mapInterpolated( mesh, source, alpha, target, target_mask, target_outside, Runtime.getRuntime().availableProcessors() );
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (final ExecutionException ee) {
+			IJError.print(ee);
+			return null;
+		}
 
 		// Set the LUT
-		target.ip.setColorModel(source.getColorModel());
+		target.setColorModel(source.getColorModel());
 
 //		// Set all non-white pixels to zero
 //		final byte[] pix = (byte[])target.outside.getPixels();
@@ -1452,7 +1500,7 @@ public final class Patch extends Displayable implements ImageData {
 		//Utils.log2("New image dimensions: " + target.getWidth() + ", " + target.getHeight());
 		//Utils.log2("box: " + box);
 
-		return new PatchImage( target.ip, ( ByteProcessor )target.mask, target.outside, box, true );
+		return new PatchImage( target, target_mask, target_outside, box, true );
 	}
 
 	static final public class PatchImage {
@@ -1902,7 +1950,7 @@ public final class Patch extends Displayable implements ImageData {
 
 		if (hasCoordinateTransform()) {
 			// inverse the coordinate transform
-			final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+			final TransformMesh mesh = getCTMesh(ct);
 			final TransformMeshMapping mapping = new TransformMeshMapping( mesh );
 			rmask = (ByteProcessor) mapping.createInverseMappedImageInterpolated(rmask);
 		}
@@ -1942,8 +1990,7 @@ public final class Patch extends Displayable implements ImageData {
 			} else {
 				if (hasCoordinateTransform()) {
 					// must transform it
-					ct = getCoordinateTransform();
-					final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
+					final TransformMesh mesh = getCTMesh(null);
 					final TransformMeshMapping mapping = new TransformMeshMapping( mesh );
 					alpha_mask = mapping.createMappedImage( alpha_mask ); // Without interpolation
 					// Keep in mind the affine of the Patch already contains the translation specified by the mesh bounds.
@@ -1991,8 +2038,7 @@ public final class Patch extends Displayable implements ImageData {
 		if (null != ct) {
 			final CoordinateTransformList<CoordinateTransform> t = new CoordinateTransformList<CoordinateTransform>();
 			t.add(ct);
-			final TransformMesh mesh = new TransformMesh(ct, meshResolution, o_width, o_height);
-			final Rectangle box = mesh.getBoundingBox();
+			final Rectangle box = getCTBoundingBox(ct);
 			final AffineTransform aff = new AffineTransform(this.at);
 			// Must correct for the inverse of the mesh translation, because the affine also includes the translation.
 			aff.translate(-box.x, -box.y);
@@ -2322,12 +2368,14 @@ public final class Patch extends Displayable implements ImageData {
 	 * Read in the {@link CoordinateTransform} from a file whose name is crafted
 	 * from the {@link #ct_id} and this {@link Patch}'s {@link #id}.
 	 *
+	 * The parsed file is kept in the {@link TransformCache}, and a copy of it returned.
+	 *
 	 * @return A new instance of the {@link CoordinateTransform} of this {@link Patch}, or null if none.
 	 * @throws Exception if the file could not be found or parsed or read.
 	 */
 	synchronized public CoordinateTransform fetchCoordinateTransform() throws Exception {
 		return hasCoordinateTransform() ?
-			CoordinateTransformXML.parse(createCTFilePath(this.ct_id))
+			TransformCache.getCoordinateTransform(createCTFilePath(this.ct_id)).copy()
 			: null;
 	}
 
@@ -2358,6 +2406,8 @@ public final class Patch extends Displayable implements ImageData {
 	 * @throws Exception if the new file could not be written.
 	 */
 	synchronized protected boolean setNewCoordinateTransform(final CoordinateTransform ct) throws Exception {
+		// The transform and meshes of the current id are not needed anymore
+		if (0 != this.ct_id) TransformCache.invalidate(createCTFilePath(this.ct_id));
 		// If the new CoordinateTransform is null, set the id to 0
 		if (null == ct) {
 			this.ct_id = 0;
@@ -2383,10 +2433,17 @@ public final class Patch extends Displayable implements ImageData {
 	synchronized private boolean writeNewCoordinateTransform(final CoordinateTransform ct, final long ctID) throws Exception {
 		RandomAccessFile ra = null;
 		try {
-			final File f = new File(createCTFilePath(ctID));
+			final String path = createCTFilePath(ctID);
+			final File f = new File(path);
 			Utils.ensure(f);
 			ra = new RandomAccessFile(f, "rw");
-			ra.write(ct.toXML("\t\t\t\t").getBytes());
+			final String xml = ct.toXML("\t\t\t\t");
+			final byte[] bytes = xml.getBytes();
+			ra.write(bytes);
+			// Drop the tail of a longer transform previously written to the same file
+			ra.setLength(bytes.length);
+			// Keep the transform as if it had been read back from the file, replacing whatever was cached for it
+			TransformCache.putCoordinateTransform(path, ct.copy(), xml.length());
 			return true;
 		} finally {
 			if (null != ra) try { ra.close(); } catch (final Exception e) { IJError.print(e); }
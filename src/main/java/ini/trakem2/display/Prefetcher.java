@@ -0,0 +1,338 @@
+package ini.trakem2.display;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+/** Anticipates the next viewports of a {@link Display} and loads the mipmaps of the images in them
+ * into the cache, in parallel and at low priority, before they are painted.
+ *
+ * Every time the canvas gathers the images to paint (see {@link DisplayCanvas}), the view is compared to the previous one
+ * to follow the direction of panning, the trend of zooming and the direction and rate of stepping through layers.
+ * From these, a new round of prefetching is planned, which cancels whatever was left of the previous round:
+ * first the viewport next to the current one along the panning direction, then the same viewport
+ * in the layers ahead, and then the next zoom level.
+ *
+ * Prefetched images that have not been painted yet are tracked apart from the rest of the cache, and together
+ * may not exceed the prefetch budget: to make room for another, the oldest of them are removed from the cache.
+ * An image is only prefetched when the cache can take it without evicting any other, so that prefetching
+ * never pushes out the mipmaps on screen. Once painted, a prefetched image is like any other in the cache.
+ *
+ * The budget is the project property "prefetch_budget", in megabytes; zero disables prefetching,
+ * and when not set it is a sixteenth of the maximum heap. */
+final class Prefetcher {
+
+	/** Shared by all Display instances. */
+	static private ExecutorService exec = null;
+
+	static private final synchronized ExecutorService getExecutor() {
+		if (null == exec) {
+			exec = ExecutorProvider.getExecutorService(Scheduler.Priority.PREFETCH, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), "prefetcher");
+		}
+		return exec;
+	}
+
+	/** Milliseconds after the last layer step within which stepping is considered to continue. */
+	static private final long STEPPING_WINDOW = 2000;
+	/** Maximum number of layers to look ahead when stepping fast, unless more are requested. */
+	static private final int MAX_AHEAD = 8;
+
+	private final Display display;
+
+	/** The last view. */
+	private Layer layer = null;
+	private Rectangle srcRect = null;
+	private double mag = 0;
+
+	/** Smoothed panning, in pixels per view change. */
+	private double vx = 0, vy = 0;
+	/** 1 when zooming in, -1 when zooming out, 0 otherwise. */
+	private int zoom_trend = 0;
+	/** 1 or -1 for the direction of layer stepping; and its rate, in layers per second. */
+	private int step_dir = 0;
+	private double step_rate = 0;
+	private long last_step_time = 0;
+	/** Layers to look ahead at least when stepping, as set with {@link #layersAhead(int)}. */
+	private int n_ahead = 0;
+
+	/** Identifies the current round; tasks of previous rounds do nothing. */
+	private final AtomicInteger round = new AtomicInteger(0);
+	private final ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+
+	/** Prefetched images not yet painted, as patch id and mipmap level, with their estimated bytes, in order of prefetching. */
+	private final LinkedHashMap<Long,Long> prefetched = new LinkedHashMap<Long,Long>();
+	/** The sum of the bytes of the {@link #prefetched} images. */
+	private long prefetched_bytes = 0;
+	private long n_fetched = 0, n_hits = 0, n_misses = 0, n_unused = 0;
+
+	Prefetcher(final Display display) {
+		this.display = display;
+	}
+
+	private final long getBudget() {
+		final int mb = display.getProject().getProperty("prefetch_budget", -1);
+		if (mb < 0) return Math.max(16L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16); // automatic
+		return mb * 1024L * 1024L;
+	}
+
+	static private final long key(final Patch p, final int level) {
+		return (p.getId() << 8) | level;
+	}
+
+	/** Called by the canvas with the images about to be painted at {@code srcRect} and {@code mag} in {@code layer}. */
+	void viewed(final Layer layer, final Rectangle srcRect, final double mag, final Collection<Patch> patches) {
+		final Loader loader = display.getProject().getLoader();
+		synchronized (this) {
+			final boolean same_view = layer == this.layer && mag == this.mag && srcRect.equals(this.srcRect);
+			// Count which images were prefetched in time; on a repaint of the same view, only those that arrived since,
+			// which are on screen now and so no longer for makeRoom to remove
+			for (final Patch p : patches) {
+				final Long b = prefetched.remove(key(p, Loader.getMipMapLevel(mag, Loader.maxDim(p))));
+				if (null != b) {
+					prefetched_bytes -= b;
+					++n_hits;
+				}
+				else if (!same_view && !loader.isCached(p, mag)) ++n_misses;
+			}
+			if (same_view) return;
+			if (null != this.layer) {
+				if (layer != this.layer) {
+					final LayerSet ls = layer.getParent();
+					if (ls == this.layer.getParent()) {
+						final int step = ls.indexOf(layer) - ls.indexOf(this.layer);
+						final long now = System.currentTimeMillis();
+						final double rate = Math.abs(step) * 1000.0 / Math.max(1, now - last_step_time);
+						step_rate = Integer.signum(step) == step_dir ? 0.5 * step_rate + 0.5 * rate : rate;
+						step_dir = Integer.signum(step);
+						last_step_time = now;
+					}
+				} else if (mag != this.mag) {
+					zoom_trend = mag > this.mag ? 1 : -1;
+					vx = vy = 0;
+				} else {
+					vx = 0.5 * vx + 0.5 * (srcRect.x - this.srcRect.x);
+					vy = 0.5 * vy + 0.5 * (srcRect.y - this.srcRect.y);
+					zoom_trend = 0;
+				}
+			}
+			this.layer = layer;
+			this.srcRect = new Rectangle(srcRect);
+			this.mag = mag;
+		}
+		plan();
+	}
+
+	/** Called when the Display jumps to another layer, to prefetch up to {@code n} layers ahead. */
+	void layersAhead(final int n) {
+		synchronized (this) {
+			n_ahead = Math.max(0, n);
+		}
+	}
+
+	/** Cancel the current round, and plan and start a new one from the last view. */
+	private void plan() {
+		final int r = round.incrementAndGet();
+		cancelPending();
+		if (Loader.isLowMemory() || getBudget() <= 0) return;
+		final Layer layer;
+		final Rectangle srcRect;
+		final double mag;
+		final double vx, vy;
+		final int zoom_trend, n_ahead;
+		final int step_dir;
+		final double step_rate;
+		synchronized (this) {
+			layer = this.layer;
+			srcRect = this.srcRect;
+			mag = this.mag;
+			vx = this.vx;
+			vy = this.vy;
+			zoom_trend = this.zoom_trend;
+			n_ahead = this.n_ahead;
+			final boolean stepping = System.currentTimeMillis() - last_step_time < STEPPING_WINDOW;
+			step_dir = stepping ? this.step_dir : 0;
+			step_rate = stepping ? this.step_rate : 0;
+		}
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					schedule(r, layer, srcRect, mag, vx, vy, zoom_trend, step_dir, step_rate, n_ahead);
+				} catch (final Throwable t) {
+					IJError.print(t);
+				}
+			}
+		});
+	}
+
+	private void schedule(final int r, final Layer layer, final Rectangle srcRect, final double mag,
+			final double vx, final double vy, final int zoom_trend, final int step_dir, final double step_rate, final int n_ahead) {
+		final LayerSet ls = layer.getParent();
+		final Loader loader = display.getProject().getLoader();
+		final long budget = getBudget();
+		long bytes = 0;
+		// The next viewports, in order of likelihood
+		final ArrayList<Layer> layers = new ArrayList<Layer>();
+		final ArrayList<Rectangle> regions = new ArrayList<Rectangle>();
+		final ArrayList<Double> mags = new ArrayList<Double>();
+		// 1. Panning: the viewport next to this one along the direction of panning
+		if (Math.abs(vx) >= 1 || Math.abs(vy) >= 1) {
+			final Rectangle next = new Rectangle(srcRect);
+			next.translate((int)(Math.signum(vx) * srcRect.width * Math.min(1, 4 * Math.abs(vx) / srcRect.width)),
+			               (int)(Math.signum(vy) * srcRect.height * Math.min(1, 4 * Math.abs(vy) / srcRect.height)));
+			layers.add(layer);
+			regions.add(next);
+			mags.add(mag);
+		}
+		// 2. Layers ahead: as many as would be stepped through in one second, when stepping; otherwise the adjacent ones
+		final int index = ls.indexOf(layer);
+		if (0 != step_dir) {
+			final int n = Math.max(n_ahead, Math.min(MAX_AHEAD, Math.max(1, (int)Math.ceil(step_rate))));
+			for (int i=1; i<=n; ++i) addLayer(ls, index + step_dir * i, srcRect, mag, layers, regions, mags);
+		} else {
+			addLayer(ls, index + 1, srcRect, mag, layers, regions, mags);
+			addLayer(ls, index - 1, srcRect, mag, layers, regions, mags);
+		}
+		// 3. Zooming: the next zoom level around the center of the viewport
+		if (0 != zoom_trend) {
+			final double f = zoom_trend > 0 ? 0.5 : 2;
+			final int w = (int)(srcRect.width * f),
+			          h = (int)(srcRect.height * f);
+			layers.add(layer);
+			regions.add(new Rectangle(srcRect.x + (srcRect.width - w) / 2, srcRect.y + (srcRect.height - h) / 2, w, h));
+			mags.add(zoom_trend > 0 ? mag * 2 : mag / 2);
+		}
+
+		final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+		final HashSet<Long> seen = new HashSet<Long>();
+		for (int i=0; i<layers.size() && bytes < budget; ++i) {
+			if (r != round.get()) return;
+			final double m = mags.get(i);
+			for (final Displayable d : layers.get(i).find(Patch.class, regions.get(i), true)) {
+				final Patch p = (Patch)d;
+				final int level = Loader.getMipMapLevel(m, Loader.maxDim(p));
+				if (!seen.add(key(p, level)) || loader.isCached(p, m) || loader.isUnloadable(p)) continue;
+				bytes += estimateBytes(p, level);
+				if (bytes > budget) break;
+				tasks.add(makeTask(r, p, m, level));
+			}
+		}
+		synchronized (pending) {
+			if (r != round.get()) return;
+			for (final Runnable task : tasks) pending.add(submit(task));
+		}
+	}
+
+	static private final void addLayer(final LayerSet ls, final int index, final Rectangle srcRect, final double mag,
+			final List<Layer> layers, final List<Rectangle> regions, final List<Double> mags) {
+		if (index < 0 || index >= ls.size()) return;
+		layers.add(ls.getLayer(index));
+		regions.add(srcRect);
+		mags.add(mag);
+	}
+
+	/** The size of the mipmap at {@code level}, in bytes. */
+	static private final long estimateBytes(final Patch p, final int level) {
+		final long w = Math.max(1, p.getOWidth() >> level),
+		           h = Math.max(1, p.getOHeight() >> level);
+		switch (p.getType()) {
+			case ij.ImagePlus.GRAY8:
+			case ij.ImagePlus.COLOR_256:
+				return w * h;
+			default:
+				return w * h * 4;
+		}
+	}
+
+	private Runnable makeTask(final int r, final Patch p, final double mag, final int level) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				if (r != round.get()) return;
+				try {
+					final Loader loader = p.getProject().getLoader();
+					if (loader.isCached(p, mag)) return;
+					final long bytes = estimateBytes(p, level);
+					if (!makeRoom(loader, bytes)) return;
+					loader.fetchImage(p, mag);
+					synchronized (Prefetcher.this) {
+						++n_fetched;
+						// The view may have reached this image while it was loading: then it is on screen, not ahead of it
+						if (inView(p, level)) return;
+						final Long old = prefetched.put(key(p, level), bytes);
+						prefetched_bytes += bytes - (null == old ? 0 : old);
+					}
+				} catch (final Throwable e) {
+					IJError.print(e);
+				}
+			}
+		};
+	}
+
+	/** Whether the mipmap of {@code p} at {@code level} is that of the last view. */
+	private synchronized boolean inView(final Patch p, final int level) {
+		return p.getLayer() == layer
+			&& level == Loader.getMipMapLevel(mag, Loader.maxDim(p))
+			&& p.getBoundingBox(null).intersects(srcRect);
+	}
+
+	/** Remove from the cache the oldest prefetched images not yet painted, until there is room for {@code bytes} more
+	 * both within the prefetch budget and in the cache without evicting other images. Returns whether there is. */
+	private synchronized boolean makeRoom(final Loader loader, final long bytes) {
+		final long budget = getBudget();
+		for (final Iterator<Map.Entry<Long,Long>> it = prefetched.entrySet().iterator();
+				it.hasNext() && (prefetched_bytes + bytes > budget || loader.getFreeCacheBytes() < bytes); ) {
+			final Map.Entry<Long,Long> e = it.next();
+			loader.removeCached(e.getKey() >> 8, (int)(e.getKey() & 0xff));
+			prefetched_bytes -= e.getValue();
+			it.remove();
+			++n_unused;
+		}
+		return prefetched_bytes + bytes <= budget && loader.getFreeCacheBytes() >= bytes;
+	}
+
+	private Future<?> submit(final Runnable task) {
+		return getExecutor().submit(task);
+	}
+
+	private void cancelPending() {
+		synchronized (pending) {
+			for (final Iterator<Future<?>> it = pending.iterator(); it.hasNext(); ) {
+				it.next().cancel(false);
+			}
+			pending.clear();
+		}
+	}
+
+	/** Stop prefetching for this Display. */
+	void destroy() {
+		round.incrementAndGet();
+		cancelPending();
+	}
+
+	/** Counts of prefetched images and of how many of them were painted, and the hit rate. */
+	synchronized String getStats() {
+		final long n = n_hits + n_misses;
+		return new StringBuilder("Prefetched: ").append(n_fetched)
+			.append(", painted: ").append(n_hits)
+			.append(", never painted: ").append(n_unused)
+			.append(", held: ").append(prefetched.size()).append(" (").append(prefetched_bytes / 1024).append(" KB)")
+			.append(", not cached when painted: ").append(n_misses)
+			.append(", hit rate: ").append(0 == n ? "--" : Utils.cutNumber(100.0 * n_hits / n, 1) + "%")
+			.toString();
+	}
+}
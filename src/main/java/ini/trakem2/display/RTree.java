@@ -0,0 +1,539 @@
+package ini.trakem2.display;
+
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.M;
+import ini.trakem2.utils.Utils;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** An R-tree of the bounding boxes of the {@link Displayable} objects of a {@link Bucketable} container at one {@link Layer},
+ * as an alternative {@link SpatialIndex} to the grid of {@link Bucket}, for layers whose objects have very different sizes
+ * (such as large AreaList instances together with many small images), for which no single bucket side fits all.
+ *
+ * The tree is bulk-loaded with the Sort-Tile-Recursive method. Objects added later or whose position changes
+ * are inserted incrementally, descending into the child that needs the least enlargement and splitting
+ * overfull nodes in halves along their longest side.
+ *
+ * Searches take a read lock, so that any number of them may run concurrently. Only the traversal of the tree
+ * happens under the lock; candidates are then tested against their areas, as in {@link Bucket}, outside of it.
+ */
+public final class RTree implements SpatialIndex {
+
+	/** Maximum number of children of a node. */
+	static private final int MAX_CHILDREN = 16;
+
+	/** A bounding box, with the x1,y1 corner included. */
+	static private class Box {
+		int x0 = Integer.MAX_VALUE,
+		    y0 = Integer.MAX_VALUE,
+		    x1 = Integer.MIN_VALUE,
+		    y1 = Integer.MIN_VALUE;
+		Node parent = null;
+
+		final void set(final Rectangle r) {
+			x0 = r.x;
+			y0 = r.y;
+			x1 = r.x + r.width;
+			y1 = r.y + r.height;
+		}
+		final boolean is(final Rectangle r) {
+			return x0 == r.x && y0 == r.y && x1 == r.x + r.width && y1 == r.y + r.height;
+		}
+		final void expand(final Box b) {
+			if (b.x0 < x0) x0 = b.x0;
+			if (b.y0 < y0) y0 = b.y0;
+			if (b.x1 > x1) x1 = b.x1;
+			if (b.y1 > y1) y1 = b.y1;
+		}
+		final boolean intersects(final Rectangle r) {
+			return x0 <= r.x + r.width && r.x <= x1 && y0 <= r.y + r.height && r.y <= y1;
+		}
+		final double area() {
+			return (double)(x1 - x0) * (y1 - y0);
+		}
+		/** The area of the union of this box with @param b. */
+		final double area(final Box b) {
+			return (double)(Math.max(x1, b.x1) - Math.min(x0, b.x0)) * (Math.max(y1, b.y1) - Math.min(y0, b.y0));
+		}
+	}
+
+	static private final class Entry extends Box {
+		final Displayable d;
+		int stack_index;
+		Entry(final Displayable d, final int stack_index, final Rectangle r) {
+			this.d = d;
+			this.stack_index = stack_index;
+			set(r);
+		}
+	}
+
+	static private final class Node extends Box {
+		final boolean leaf;
+		final ArrayList<Box> children = new ArrayList<Box>(MAX_CHILDREN + 1);
+		Node(final boolean leaf) {
+			this.leaf = leaf;
+		}
+		final void add(final Box b) {
+			children.add(b);
+			b.parent = this;
+			expand(b);
+		}
+		final void recompute() {
+			x0 = y0 = Integer.MAX_VALUE;
+			x1 = y1 = Integer.MIN_VALUE;
+			for (final Box b : children) expand(b);
+		}
+	}
+
+	static private final Comparator<Box> BY_X = new Comparator<Box>() {
+		@Override
+		public int compare(final Box a, final Box b) {
+			final long ca = (long)a.x0 + a.x1,
+			           cb = (long)b.x0 + b.x1;
+			return ca < cb ? -1 : (ca == cb ? 0 : 1);
+		}
+	};
+
+	static private final Comparator<Box> BY_Y = new Comparator<Box>() {
+		@Override
+		public int compare(final Box a, final Box b) {
+			final long ca = (long)a.y0 + a.y1,
+			           cb = (long)b.y0 + b.y1;
+			return ca < cb ? -1 : (ca == cb ? 0 : 1);
+		}
+	};
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final HashMap<Displayable,Entry> entries = new HashMap<Displayable,Entry>();
+	private Node root;
+
+	/** Index all {@link Displayable} objects of the @param container that have data at @param layer. */
+	public RTree(final Bucketable container, final Layer layer) {
+		final ArrayList<? extends Displayable> list = container.getDisplayableList();
+		final ArrayList<Box> es = new ArrayList<Box>(list.size());
+		int i = 0;
+		for (final Displayable d : list) {
+			final Area a = d.getAreaForBucket(layer);
+			if (null != a) {
+				final Entry e = new Entry(d, i, a.getBounds());
+				entries.put(d, e);
+				es.add(e);
+			}
+			++i;
+		}
+		this.root = bulkLoad(es);
+	}
+
+	/** Sort-Tile-Recursive packing, level by level from the leaves up. */
+	static private final Node bulkLoad(ArrayList<Box> boxes) {
+		if (boxes.isEmpty()) return new Node(true);
+		boolean leaf = true;
+		while (true) {
+			final ArrayList<Box> nodes = pack(boxes, leaf);
+			if (1 == nodes.size()) return (Node)nodes.get(0);
+			boxes = nodes;
+			leaf = false;
+		}
+	}
+
+	static private final ArrayList<Box> pack(final ArrayList<Box> boxes, final boolean leaf) {
+		final int n = boxes.size();
+		final int n_nodes = (n + MAX_CHILDREN - 1) / MAX_CHILDREN;
+		final int slice_size = (int)Math.ceil(Math.sqrt(n_nodes)) * MAX_CHILDREN;
+		Collections.sort(boxes, BY_X);
+		final ArrayList<Box> nodes = new ArrayList<Box>(n_nodes);
+		for (int s=0; s<n; s+=slice_size) {
+			final List<Box> slice = boxes.subList(s, Math.min(n, s + slice_size));
+			Collections.sort(slice, BY_Y);
+			for (int k=0; k<slice.size(); k+=MAX_CHILDREN) {
+				final Node node = new Node(leaf);
+				for (final Box b : slice.subList(k, Math.min(slice.size(), k + MAX_CHILDREN))) node.add(b);
+				nodes.add(node);
+			}
+		}
+		return nodes;
+	}
+
+	/** Must be called under the write lock. */
+	private final void insert(final Entry e) {
+		Node node = root;
+		while (!node.leaf) {
+			// Descend into the child that needs the least enlargement, or the smallest one on ties
+			Node best = null;
+			double best_growth = Double.MAX_VALUE,
+			       best_area = Double.MAX_VALUE;
+			for (final Box b : node.children) {
+				final double area = b.area();
+				final double growth = b.area(e) - area;
+				if (growth < best_growth || (growth == best_growth && area < best_area)) {
+					best = (Node)b;
+					best_growth = growth;
+					best_area = area;
+				}
+			}
+			node = best;
+		}
+		node.add(e);
+		for (Node n = node; null != n; n = n.parent) {
+			if (n.children.size() > MAX_CHILDREN) {
+				final Node sibling = split(n);
+				if (null == n.parent) {
+					final Node r = new Node(false);
+					r.add(n);
+					r.add(sibling);
+					root = r;
+					return;
+				}
+				n.parent.add(sibling);
+			}
+			if (null != n.parent) n.parent.expand(e);
+		}
+	}
+
+	/** Move the second half of the children of @param n, sorted along its longest side, to a new node. */
+	static private final Node split(final Node n) {
+		Collections.sort(n.children, (n.x1 - n.x0) > (n.y1 - n.y0) ? BY_X : BY_Y);
+		final Node sibling = new Node(n.leaf);
+		final List<Box> second = n.children.subList(n.children.size() / 2, n.children.size());
+		for (final Box b : second) sibling.add(b);
+		second.clear();
+		n.recompute();
+		return sibling;
+	}
+
+	/** Must be called under the write lock. Empty nodes are removed, but underfull ones are not merged. */
+	private final void remove(final Entry e) {
+		Node n = e.parent;
+		n.children.remove(e);
+		e.parent = null;
+		while (null != n) {
+			final Node parent = n.parent;
+			if (n.children.isEmpty() && null != parent) {
+				parent.children.remove(n);
+				n.parent = null;
+			} else {
+				n.recompute();
+			}
+			n = parent;
+		}
+		while (!root.leaf && 1 == root.children.size()) {
+			root = (Node)root.children.get(0);
+			root.parent = null;
+		}
+		if (!root.leaf && root.children.isEmpty()) root = new Node(true);
+	}
+
+	/** Accumulate, by stack index, the objects whose bounding box intersects @param r. */
+	static private final void collect(final Node node, final Rectangle r, final TreeMap<Integer,Displayable> accum) {
+		for (final Box b : node.children) {
+			if (!b.intersects(r)) continue;
+			if (node.leaf) {
+				final Entry e = (Entry)b;
+				accum.put(e.stack_index, e.d);
+			} else {
+				collect((Node)b, r, accum);
+			}
+		}
+	}
+
+	static private abstract class Test {
+		abstract boolean accept(Displayable d);
+	}
+
+	/** Find the objects whose bounding box intersects @param box and that pass the class and visibility filters and the @param test, if any. */
+	private final Collection<Displayable> search(final Rectangle box, final Class<?> c, final boolean instance_of, final boolean visible_only, final Test test) {
+		final TreeMap<Integer,Displayable> accum = new TreeMap<Integer,Displayable>();
+		if (box.width <= 0 || box.height <= 0) return accum.values();
+		lock.readLock().lock();
+		try {
+			collect(root, box, accum);
+		} finally {
+			lock.readLock().unlock();
+		}
+		for (final Iterator<Displayable> it = accum.values().iterator(); it.hasNext(); ) {
+			final Displayable d = it.next();
+			if ((visible_only && !d.isVisible())
+			 || (null != c && (instance_of ? !c.isAssignableFrom(d.getClass()) : d.getClass() != c))
+			 || (null != test && !test.accept(d))) {
+				it.remove();
+			}
+		}
+		return accum.values(); // sorted by integer key
+	}
+
+	private final Test intersecting(final Rectangle srcRect, final Layer layer) {
+		final Area asrc = new Area(srcRect);
+		return new Test() {
+			@Override
+			boolean accept(final Displayable d) {
+				final Area a = d.getAreaForBucket(layer);
+				return null != a && M.intersects(asrc, a);
+			}
+		};
+	}
+
+	private final Test containing(final double px, final double py, final Layer layer) {
+		return new Test() {
+			@Override
+			boolean accept(final Displayable d) {
+				return d.contains(layer, px, py);
+			}
+		};
+	}
+
+	private final Test intersecting(final Area area, final Layer layer) {
+		return new Test() {
+			@Override
+			boolean accept(final Displayable d) {
+				return d.intersects(layer, area);
+			}
+		};
+	}
+
+	static private final Rectangle pointBox(final double px, final double py) {
+		return new Rectangle((int)Math.floor(px), (int)Math.floor(py), 1, 1);
+	}
+
+	@Override
+	public Collection<Displayable> find(final Rectangle srcRect, final Layer layer, final boolean visible_only) {
+		return search(srcRect, null, false, visible_only, intersecting(srcRect, layer));
+	}
+
+	/** Fast and dirty: returns the objects whose bounding box intersects @param srcRect. */
+	@Override
+	public Collection<Displayable> roughlyFind(final Rectangle srcRect, final Layer layer, final boolean visible_only) {
+		return search(srcRect, null, false, visible_only, null);
+	}
+
+	@Override
+	public Collection<Displayable> find(final Class<?> c, final Rectangle srcRect, final Layer layer, final boolean visible_only, final boolean instance_of) {
+		return search(srcRect, c, instance_of, visible_only, intersecting(srcRect, layer));
+	}
+
+	@Override
+	public Collection<Displayable> find(final double px, final double py, final Layer layer, final boolean visible_only) {
+		return search(pointBox(px, py), null, false, visible_only, containing(px, py, layer));
+	}
+
+	@Override
+	public Collection<Displayable> find(final Class<?> c, final double px, final double py, final Layer layer, final boolean visible_only, final boolean instance_of) {
+		return search(pointBox(px, py), c, instance_of, visible_only, containing(px, py, layer));
+	}
+
+	@Override
+	public Collection<Displayable> find(final Area area, final Layer layer, final boolean visible_only) {
+		return search(area.getBounds(), null, false, visible_only, intersecting(area, layer));
+	}
+
+	@Override
+	public Collection<Displayable> find(final Class<?> c, final Area area, final Layer layer, final boolean visible_only, final boolean instance_of) {
+		return search(area.getBounds(), c, instance_of, visible_only, intersecting(area, layer));
+	}
+
+	@Override
+	public void put(final int stack_index, final Displayable d, final Layer layer) {
+		final Area a = d.getAreaForBucket(layer);
+		if (null == a) return;
+		final Rectangle r = a.getBounds();
+		lock.writeLock().lock();
+		try {
+			Entry e = entries.get(d);
+			if (null != e) {
+				remove(e);
+				e.set(r);
+				e.stack_index = stack_index;
+			} else {
+				e = new Entry(d, stack_index, r);
+				entries.put(d, e);
+			}
+			insert(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void updateRange(final Bucketable container, final Displayable d, final int first, final int last) {
+		final ArrayList<? extends Displayable> list = container.getDisplayableList();
+		lock.writeLock().lock();
+		try {
+			for (int i=first, n=Math.min(last, list.size()-1); i<=n; ++i) {
+				final Entry e = entries.get(list.get(i));
+				if (null != e) e.stack_index = i;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Reinserts @param d only if its bounding box changed. */
+	@Override
+	public void updatePosition(final Displayable d, final Layer layer) {
+		final Area a = d.getAreaForBucket(layer);
+		final Rectangle r = null == a ? null : a.getBounds();
+		lock.writeLock().lock();
+		try {
+			Entry e = entries.get(d);
+			if (null != e) {
+				if (null != r && e.is(r)) return;
+				remove(e);
+				if (null == r) {
+					entries.remove(d);
+					return;
+				}
+				e.set(r);
+			} else {
+				if (null == r) return;
+				e = new Entry(d, d.getBucketable().getDisplayableList().indexOf(d), r);
+				entries.put(d, e);
+			}
+			insert(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean isBetter(final Rectangle r, final Bucketable container) {
+		return (double)r.width * r.height < (double)container.getLayerWidth() * container.getLayerHeight();
+	}
+
+	@Override
+	public void paint(final Graphics2D g, final Rectangle srcRect, final double mag, final Color color) {
+		final Stroke original_stroke = g.getStroke();
+		final AffineTransform original = g.getTransform();
+		g.setTransform(new AffineTransform());
+		g.setStroke(new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER));
+		g.setColor(color);
+		lock.readLock().lock();
+		try {
+			paint(g, root, srcRect, mag);
+		} finally {
+			lock.readLock().unlock();
+		}
+		g.setStroke(original_stroke);
+		g.setTransform(original);
+	}
+
+	static private final void paint(final Graphics2D g, final Node node, final Rectangle srcRect, final double mag) {
+		if (!node.intersects(srcRect)) return;
+		if (node.leaf) {
+			g.drawRect((int)((node.x0 - srcRect.x) * mag), (int)((node.y0 - srcRect.y) * mag), (int)((node.x1 - node.x0) * mag), (int)((node.y1 - node.y0) * mag));
+			g.drawString(Integer.toString(node.children.size()), (int)(((node.x0 + node.x1) / 2 - srcRect.x) * mag), (int)(((node.y0 + node.y1) / 2 - srcRect.y) * mag));
+			return;
+		}
+		for (final Box b : node.children) paint(g, (Node)b, srcRect, mag);
+	}
+
+	/** Compare a grid of {@link Bucket} with an {@link RTree} for the {@link Displayable} objects of @param container at @param layer:
+	 * the time to build each index, to run @param n_queries random rectangle and point searches both from a single thread
+	 * and from as many threads as CPUs, and to update the position of every object. Also counts how many searches
+	 * returned different objects. The results are written to the log. For example, from a script:
+	 * {@code RTree.benchmark(layer, layer, 10000)} for the images of a layer, or
+	 * {@code RTree.benchmark(layer.getParent(), layer, 10000)} for the ZDisplayable objects at that layer. */
+	static public void benchmark(final Bucketable container, final Layer layer, final int n_queries) {
+		final int w = (int)container.getLayerWidth(),
+		          h = (int)container.getLayerHeight();
+		if (w < 1 || h < 1 || n_queries < 1) return;
+		// Random rectangles with sides spanning from 64 pixels to a quarter of the layer, and random points
+		final Random rnd = new Random(69997);
+		final Rectangle[] rs = new Rectangle[n_queries];
+		final double[] ps = new double[n_queries * 2];
+		final double max_side = Math.max(64, Math.max(w, h) / 4.0);
+		for (int i=0; i<n_queries; ++i) {
+			final int rw = (int)Math.exp(Math.log(64) + rnd.nextDouble() * (Math.log(max_side) - Math.log(64))),
+			          rh = (int)Math.exp(Math.log(64) + rnd.nextDouble() * (Math.log(max_side) - Math.log(64)));
+			rs[i] = new Rectangle(rnd.nextInt(Math.max(1, w - rw)), rnd.nextInt(Math.max(1, h - rh)), rw, rh);
+			ps[i*2] = rnd.nextDouble() * w;
+			ps[i*2 + 1] = rnd.nextDouble() * h;
+		}
+
+		long t0 = System.nanoTime();
+		final SpatialIndex buckets = new Bucket.Index(container, layer);
+		long t1 = System.nanoTime();
+		final SpatialIndex rtree = new RTree(container, layer);
+		long t2 = System.nanoTime();
+		final StringBuilder sb = new StringBuilder("Spatial index benchmark for ").append(container.getDisplayableList().size())
+			.append(" objects at ").append(layer).append(", ").append(n_queries).append(" queries:\n")
+			.append("  build:       buckets ").append(ms(t1 - t0)).append(" ms, R-tree ").append(ms(t2 - t1)).append(" ms\n");
+
+		int n_differ = 0;
+		for (int i=0; i<n_queries; ++i) {
+			if (!new ArrayList<Displayable>(buckets.find(rs[i], layer, false)).equals(new ArrayList<Displayable>(rtree.find(rs[i], layer, false)))) ++n_differ;
+			if (!new ArrayList<Displayable>(buckets.find(ps[i*2], ps[i*2+1], layer, false)).equals(new ArrayList<Displayable>(rtree.find(ps[i*2], ps[i*2+1], layer, false)))) ++n_differ;
+		}
+
+		final long[] single = new long[2],
+		             parallel = new long[2],
+		             update = new long[2];
+		final SpatialIndex[] indices = new SpatialIndex[]{buckets, rtree};
+		final int n_threads = Runtime.getRuntime().availableProcessors();
+		final ExecutorService exec = Utils.newLane(n_threads, "RTree-benchmark", Scheduler.Priority.BATCH);
+		try {
+			for (int k=0; k<2; ++k) {
+				final SpatialIndex index = indices[k];
+				t0 = System.nanoTime();
+				for (int i=0; i<n_queries; ++i) {
+					index.find(rs[i], layer, false);
+					index.find(ps[i*2], ps[i*2+1], layer, false);
+				}
+				t1 = System.nanoTime();
+				single[k] = t1 - t0;
+				final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+				for (int t=0; t<n_threads; ++t) {
+					final int offset = t;
+					fus.add(exec.submit(new Callable<Object>() {
+						@Override
+						public Object call() {
+							for (int i=offset; i<n_queries; i+=n_threads) {
+								index.find(rs[i], layer, false);
+								index.find(ps[i*2], ps[i*2+1], layer, false);
+							}
+							return null;
+						}
+					}));
+				}
+				Utils.wait(fus);
+				t2 = System.nanoTime();
+				parallel[k] = t2 - t1;
+				for (final Displayable d : container.getDisplayableList()) {
+					index.updatePosition(d, layer);
+				}
+				update[k] = System.nanoTime() - t2;
+			}
+		} catch (final Exception e) {
+			IJError.print(e);
+		} finally {
+			exec.shutdown();
+		}
+		sb.append("  find:        buckets ").append(ms(single[0])).append(" ms, R-tree ").append(ms(single[1])).append(" ms\n")
+		  .append("  find with ").append(n_threads).append(" threads: buckets ").append(ms(parallel[0])).append(" ms, R-tree ").append(ms(parallel[1])).append(" ms\n")
+		  .append("  updatePosition of all: buckets ").append(ms(update[0])).append(" ms, R-tree ").append(ms(update[1])).append(" ms\n")
+		  .append("  searches with different results: ").append(n_differ).append(" of ").append(2 * n_queries);
+		Utils.log(sb.toString());
+	}
+
+	static private final String ms(final long nanos) {
+		return Utils.cutNumber(nanos / 1000000.0, 2);
+	}
+}
@@ -869,7 +869,9 @@ public class Selection {
 	public void measure() {
 		Utils.log2("Selection.measure");
 		final HashMap<Class<?>,ResultsTable> rts = new HashMap<Class<?>,ResultsTable>();
-		for (final Displayable d : getSelected()) {
+		final Collection<Displayable> selected = getSelected();
+		AreaList.measureLayers(selected);
+		for (final Displayable d : selected) {
 			Utils.log2("measured " + d);
 			ResultsTable rt1 = rts.get(d.getClass());
 			ResultsTable rt2 = d.measure(rt1);
@@ -0,0 +1,47 @@
+package ini.trakem2.display;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.util.Collection;
+
+/** A spatial index of the {@link Displayable} objects of a {@link Bucketable} container as seen at one {@link Layer}.
+ * All find methods return the objects ordered by stack index, and, if visible_only is true, ignore hidden objects.
+ * Implemented by the {@link Bucket} grid and by the {@link RTree}; see {@link Bucket#createIndex(Bucketable, Layer)}. */
+public interface SpatialIndex {
+
+	/** Find all Displayable objects whose area intersects @param srcRect. */
+	public Collection<Displayable> find(Rectangle srcRect, Layer layer, boolean visible_only);
+
+	/** Like {@link #find(Rectangle, Layer, boolean)} but may return false positives, never false negatives. */
+	public Collection<Displayable> roughlyFind(Rectangle srcRect, Layer layer, boolean visible_only);
+
+	/** Find all Displayable objects of class @param c whose area intersects @param srcRect; class identity is checked with instanceof when @param instance_of is true. */
+	public Collection<Displayable> find(Class<?> c, Rectangle srcRect, Layer layer, boolean visible_only, boolean instance_of);
+
+	/** Find all Displayable objects that contain the point @param px, @param py. */
+	public Collection<Displayable> find(double px, double py, Layer layer, boolean visible_only);
+
+	public Collection<Displayable> find(Class<?> c, double px, double py, Layer layer, boolean visible_only, boolean instance_of);
+
+	/** Find all Displayable objects that intersect @param area. */
+	public Collection<Displayable> find(Area area, Layer layer, boolean visible_only);
+
+	public Collection<Displayable> find(Class<?> c, Area area, Layer layer, boolean visible_only, boolean instance_of);
+
+	/** Add @param d, at @param stack_index. */
+	public void put(int stack_index, Displayable d, Layer layer);
+
+	/** Read anew the stack index of the Displayable objects from @param first to @param last, inclusive, from the list of the @param container. */
+	public void updateRange(Bucketable container, Displayable d, int first, int last);
+
+	/** Reindex @param d after a change of its position or dimensions; adds it if not yet there. */
+	public void updatePosition(Displayable d, Layer layer);
+
+	/** Whether searching in the index for @param r is worth it relative to a linear search over all objects of the @param container. */
+	public boolean isBetter(Rectangle r, Bucketable container);
+
+	/** For debugging: outline the cells of the index. */
+	public void paint(Graphics2D g, Rectangle srcRect, double mag, Color color);
+}
@@ -0,0 +1,322 @@
+/**
+
+TrakEM2 plugin for ImageJ(C).
+Copyright (C) 2007-2009 Albert Cardona and Rodney Douglas.
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+You may contact Albert Cardona at acardona at ini.phys.ethz.ch
+Institute of Neuroinformatics, University of Zurich / ETH, Switzerland.
+**/
+
+package ini.trakem2.display;
+
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/** Paints the images of a {@link Layer} as a grid of fixed-size screen tiles,
+ * rendered in parallel and cached so that panning only renders the newly exposed tiles.
+ *
+ * The grid is anchored at the world origin, so a tile is identified by the layer,
+ * the magnification (which determines the mipmap level) and its column and row,
+ * and it remains valid across changes of the srcRect.
+ * Each cached tile carries a fingerprint of the Patch instances painted into it:
+ * their order, transform, min and max, alpha, composite mode and the identity of the
+ * cached mipmap used. A tile whose fingerprint differs is painted anew, and tiles are
+ * also dropped explicitly with {@link #invalidate(Layer, Rectangle)} when
+ * a Displayable within them changes.
+ *
+ * Tiles are painted with {@link Patch#prePaint}, that is, from the closest cached mipmap;
+ * a tile painted from a lower-resolution mipmap will not match its fingerprint
+ * once the proper mipmap is loaded, and will then be painted again.
+ */
+public final class TileRenderer
+{
+	/** Side of a tile, in screen pixels. */
+	static public final int TILE_SIDE = 256;
+
+	static private ExecutorService exec = null;
+
+	static private final synchronized ExecutorService getExecutor() {
+		if (null == exec) {
+			exec = Utils.newLane(Math.max(1, Runtime.getRuntime().availableProcessors()), "T2-Tile-Renderer", Scheduler.Priority.INTERACTIVE);
+		}
+		return exec;
+	}
+
+	/** Stop the threads used for painting tiles, for all open canvases; called when the last project is closed,
+	 * and any later painting starts them anew. */
+	static public final synchronized void destroy() {
+		if (null != exec) {
+			exec.shutdownNow();
+			exec = null;
+		}
+	}
+
+	static private final class TileKey {
+		final long layer_id;
+		final double mag;
+		final int col, row, c_alphas;
+		private final int hash;
+
+		TileKey(final long layer_id, final double mag, final int col, final int row, final int c_alphas) {
+			this.layer_id = layer_id;
+			this.mag = mag;
+			this.col = col;
+			this.row = row;
+			this.c_alphas = c_alphas;
+			final long m = Double.doubleToLongBits(mag);
+			int h = (int)(layer_id ^ (layer_id >>> 32));
+			h = 31 * h + (int)(m ^ (m >>> 32));
+			h = 31 * h + col;
+			h = 31 * h + row;
+			this.hash = 31 * h + c_alphas;
+		}
+
+		@Override
+		public final int hashCode() { return hash; }
+
+		@Override
+		public final boolean equals(final Object o) {
+			if (!(o instanceof TileKey)) return false;
+			final TileKey k = (TileKey)o;
+			return k.layer_id == layer_id && k.mag == mag && k.col == col && k.row == row && k.c_alphas == c_alphas;
+		}
+	}
+
+	static private final class Tile {
+		final BufferedImage image;
+		final long fingerprint;
+		Tile(final BufferedImage image, final long fingerprint) {
+			this.image = image;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	/** Least-recently used tiles first. */
+	private final LinkedHashMap<TileKey,Tile> tiles = new LinkedHashMap<TileKey,Tile>(64, 0.75f, true);
+
+	/** Maximum number of tiles to keep. */
+	private final int max_tiles;
+
+	public TileRenderer() {
+		// At most 1/32th of the heap, and never more than 512 tiles (128 Mb)
+		final long bytes_per_tile = 4L * TILE_SIDE * TILE_SIDE;
+		this.max_tiles = (int) Math.max(16, Math.min(512, Runtime.getRuntime().maxMemory() / 32 / bytes_per_tile));
+	}
+
+	/** Paint the first @param n_patches Patch instances of @param al_paint into @param g,
+	 * which paints in screen coordinates onto an image of dimensions @param g_width, @param g_height.
+	 * The Patch instances must be in the order in which they are to be painted. */
+	public void paint(final Graphics2D g, final GraphicsConfiguration gc, final Layer layer, final List<Layer> layers,
+			final List<Displayable> al_paint, final int n_patches,
+			final Rectangle srcRect, final double magnification,
+			final Displayable active, final int c_alphas, final int g_width, final int g_height) {
+
+		final int T = TILE_SIDE;
+		// Screen coordinates of the srcRect origin, relative to the world origin
+		final double ox = srcRect.x * magnification,
+		             oy = srcRect.y * magnification;
+		final int col0 = (int) Math.floor(ox / T),
+		          row0 = (int) Math.floor(oy / T),
+		          col1 = (int) Math.floor((ox + g_width - 1) / T),
+		          row1 = (int) Math.floor((oy + g_height - 1) / T);
+		final int n_cols = col1 - col0 + 1,
+		          n_rows = row1 - row0 + 1;
+		if (n_cols < 1 || n_rows < 1) return;
+
+		// Bin the patches into the tiles that their bounding boxes intersect, preserving their order
+		@SuppressWarnings("unchecked")
+		final ArrayList<Patch>[] bins = new ArrayList[n_cols * n_rows];
+		final Rectangle box = new Rectangle();
+		for (int i=0; i<n_patches; i++) {
+			final Patch p = (Patch) al_paint.get(i);
+			p.getBoundingBox(box);
+			final int c0 = Math.max(col0, (int) Math.floor(box.x * magnification / T)),
+			          r0 = Math.max(row0, (int) Math.floor(box.y * magnification / T)),
+			          c1 = Math.min(col1, (int) Math.floor((box.x + box.width) * magnification / T)),
+			          r1 = Math.min(row1, (int) Math.floor((box.y + box.height) * magnification / T));
+			for (int row=r0; row<=r1; row++) {
+				for (int col=c0; col<=c1; col++) {
+					final int k = (row - row0) * n_cols + (col - col0);
+					if (null == bins[k]) bins[k] = new ArrayList<Patch>();
+					bins[k].add(p);
+				}
+			}
+		}
+
+		// Find the tiles that are cached and still valid, and paint the rest in parallel
+		final Tile[] found = new Tile[bins.length];
+		final ArrayList<Future<Tile>> fus = new ArrayList<Future<Tile>>();
+		final ArrayList<Integer> indices = new ArrayList<Integer>();
+		for (int row=row0; row<=row1; row++) {
+			for (int col=col0; col<=col1; col++) {
+				final int k = (row - row0) * n_cols + (col - col0);
+				final List<Patch> patches = bins[k];
+				if (null == patches) continue; // empty: the background is already black
+				final TileKey key = new TileKey(layer.getId(), magnification, col, row, c_alphas);
+				final long fingerprint = fingerprint(patches, magnification);
+				final Tile tile;
+				synchronized (tiles) {
+					tile = tiles.get(key);
+				}
+				if (null != tile && tile.fingerprint == fingerprint) {
+					found[k] = tile;
+					continue;
+				}
+				final int col_ = col,
+				          row_ = row;
+				fus.add(getExecutor().submit(new Callable<Tile>() {
+					@Override
+					public Tile call() {
+						final Tile t = new Tile(paintTile(gc, patches, layer, layers, col_, row_, magnification, active, c_alphas), fingerprint);
+						store(key, t);
+						return t;
+					}
+				}));
+				indices.add(k);
+			}
+		}
+		for (int i=0; i<fus.size(); i++) {
+			try {
+				found[indices.get(i)] = fus.get(i).get();
+			} catch (final InterruptedException ie) {
+				return;
+			} catch (final Throwable t) {
+				IJError.print(t);
+			}
+		}
+
+		// Composite the tiles onto the screen, at their fractional offsets so that they register with the non-tiled painting
+		final AffineTransform original = g.getTransform();
+		g.setTransform(new AffineTransform());
+		final AffineTransform at = new AffineTransform();
+		for (int row=row0; row<=row1; row++) {
+			for (int col=col0; col<=col1; col++) {
+				final Tile tile = found[(row - row0) * n_cols + (col - col0)];
+				if (null == tile) continue;
+				at.setToTranslation(col * T - ox, row * T - oy);
+				g.drawImage(tile.image, at, null);
+			}
+		}
+		g.setTransform(original);
+	}
+
+	/** Paint the @param patches onto a new tile image. */
+	private final BufferedImage paintTile(final GraphicsConfiguration gc, final List<Patch> patches, final Layer layer, final List<Layer> layers,
+			final int col, final int row, final double magnification, final Displayable active, final int c_alphas) {
+		final int T = TILE_SIDE;
+		final BufferedImage bi = gc.createCompatibleImage(T, T, Transparency.OPAQUE);
+		final Graphics2D g = bi.createGraphics();
+		try {
+			g.setColor(Color.black);
+			g.fillRect(0, 0, T, T);
+			// The world area covered by this tile
+			final double wx = col * T / magnification,
+			             wy = row * T / magnification;
+			final Rectangle tileRect = new Rectangle((int) Math.floor(wx), (int) Math.floor(wy), (int) Math.ceil(T / magnification) + 1, (int) Math.ceil(T / magnification) + 1);
+			final AffineTransform at = new AffineTransform();
+			at.scale(magnification, magnification);
+			at.translate(-wx, -wy);
+			g.setTransform(at);
+			for (final Patch p : patches) {
+				p.prePaint(g, tileRect, magnification, p == active, c_alphas, layer, layers);
+			}
+		} finally {
+			g.dispose();
+		}
+		return bi;
+	}
+
+	private final void store(final TileKey key, final Tile tile) {
+		synchronized (tiles) {
+			final Tile old = tiles.put(key, tile);
+			if (null != old && old.image != tile.image) old.image.flush();
+			if (tiles.size() > max_tiles) {
+				final Iterator<Tile> it = tiles.values().iterator();
+				while (tiles.size() > max_tiles && it.hasNext()) {
+					it.next().image.flush();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/** Combine into one number the properties of each Patch that determine what a tile looks like. */
+	static private final long fingerprint(final List<Patch> patches, final double magnification) {
+		long h = 1125899906842597L;
+		final double[] m = new double[6];
+		for (final Patch p : patches) {
+			h = 31 * h + p.getId();
+			p.getAffineTransform().getMatrix(m);
+			for (int i=0; i<6; i++) h = 31 * h + Double.doubleToLongBits(m[i]);
+			h = 31 * h + Double.doubleToLongBits(p.getWidth());
+			h = 31 * h + Double.doubleToLongBits(p.getHeight());
+			h = 31 * h + Double.doubleToLongBits(p.getMin());
+			h = 31 * h + Double.doubleToLongBits(p.getMax());
+			h = 31 * h + Float.floatToIntBits(p.getAlpha());
+			h = 31 * h + p.getCompositeMode();
+			// Changes when the mipmap is loaded, regenerated or thrown out of the cache
+			final MipMapImage mipMap = p.getCachedPaintImage(magnification);
+			h = 31 * h + (null == mipMap ? 0 : System.identityHashCode(mipMap.image));
+		}
+		return h;
+	}
+
+	/** Remove all cached tiles of @param layer that intersect the world rectangle @param r,
+	 * or all tiles of the @param layer when @param r is null. */
+	public void invalidate(final Layer layer, final Rectangle r) {
+		final long id = layer.getId();
+		synchronized (tiles) {
+			for (final Iterator<Map.Entry<TileKey,Tile>> it = tiles.entrySet().iterator(); it.hasNext(); ) {
+				final Map.Entry<TileKey,Tile> e = it.next();
+				final TileKey k = e.getKey();
+				if (k.layer_id != id) continue;
+				if (null != r) {
+					final double side = TILE_SIDE / k.mag;
+					final double x = k.col * side,
+					             y = k.row * side;
+					if (x > r.x + r.width || y > r.y + r.height || x + side < r.x || y + side < r.y) continue;
+				}
+				e.getValue().image.flush();
+				it.remove();
+			}
+		}
+	}
+
+	/** Remove all cached tiles. */
+	public void flush() {
+		synchronized (tiles) {
+			for (final Tile tile : tiles.values()) tile.image.flush();
+			tiles.clear();
+		}
+	}
+}
@@ -116,7 +116,8 @@ import ini.trakem2.utils.Worker;
 /** A sequence of points ordered in a set of connected branches. */
 public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
-	protected final Map<Layer,Set<Node<T>>> node_layer_map = new HashMap<Layer,Set<Node<T>>>();
+	/** The nodes at each layer, each set with a spatial index of the nodes' local coordinates. */
+	protected final Map<Layer,NodeIndex<T>> node_layer_map = new HashMap<Layer,NodeIndex<T>>();
 
 	protected final Set<Node<T>> end_nodes = new HashSet<Node<T>>();
 
@@ -148,11 +149,45 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		}
 	}
 
+	/** Get the {@link Node} instances at {@code layer} whose position falls within {@code world_box}, which is in world coordinates;
+	 * found with the spatial index of the layer, without looking at all nodes. */
+	public Set<Node<T>> getNodesAt(final Layer layer, final Rectangle world_box) {
+		final Rectangle box;
+		try {
+			box = this.at.createInverse().createTransformedShape(world_box).getBounds();
+		} catch (final NoninvertibleTransformException nite) {
+			IJError.print(nite);
+			return new HashSet<Node<T>>();
+		}
+		synchronized (node_layer_map) {
+			final NodeIndex<T> s = node_layer_map.get(layer);
+			final HashSet<Node<T>> nodes = new HashSet<Node<T>>();
+			if (null == s) return nodes;
+			final Area a = new Area(world_box);
+			final float[] fp = new float[2];
+			for (final Node<T> nd : s.find(box.x, box.y, box.width, box.height)) {
+				fp[0] = nd.x;
+				fp[1] = nd.y;
+				this.at.transform(fp, 0, fp, 0, 1);
+				if (a.contains(fp[0], fp[1])) nodes.add(nd);
+			}
+			return nodes;
+		}
+	}
+
 	final protected Set<Node<T>> getNodesToPaint(final Layer active_layer) {
 		return getNodesToPaint(active_layer, active_layer.getParent().getColorCueLayerRange(active_layer));
 	}
 
 	final protected Set<Node<T>> getNodesToPaint(final Layer active_layer, final List<Layer> color_cue_layers) {
+		return getNodesToPaint(active_layer, color_cue_layers, null, true);
+	}
+
+	/** Like {@link #getNodesToPaint(Layer, List)} but only for nodes near {@code localbox}, when not null, as found with the {@link NodeIndex} of each layer.
+	 * @param localbox The rectangle of interest, in local coordinates.
+	 * @param roughly Whether to include any node that may paint something within {@code localbox}, such as an edge or a radius,
+	 * rather than only nodes whose position falls within it. */
+	final protected Set<Node<T>> getNodesToPaint(final Layer active_layer, final List<Layer> color_cue_layers, final Rectangle localbox, final boolean roughly) {
 		synchronized (node_layer_map) {
 			// Determine which layers to paint
 			if (layer_set.color_cues) {
@@ -160,24 +195,37 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				if (-1 == layer_set.n_layers_color_cue) {
 					// All layers
 					nodes = new HashSet<Node<T>>();
-					for (final Set<Node<T>> ns : node_layer_map.values()) nodes.addAll(ns);
+					for (final NodeIndex<T> ns : node_layer_map.values()) nodes.addAll(near(ns, localbox, roughly));
 				} else {
 					for (final Layer la : color_cue_layers) {
-						final Set<Node<T>> ns = node_layer_map.get(la);
+						final NodeIndex<T> ns = node_layer_map.get(la);
 						if (null != ns) {
 							if (null == nodes) nodes = new HashSet<Node<T>>();
-							nodes.addAll(ns);
+							nodes.addAll(near(ns, localbox, roughly));
 						}
 					}
 				}
 				return nodes;
 			}
 			// Else, just the active layer, if any
-			final Set<Node<T>> nodeSet = node_layer_map.get(active_layer);
-			return null == nodeSet? null : new HashSet<Node<T>>(nodeSet);
+			final NodeIndex<T> nodeSet = node_layer_map.get(active_layer);
+			return null == nodeSet? null : new HashSet<Node<T>>(near(nodeSet, localbox, roughly));
 		}
 	}
 
+	static private final <T> Collection<Node<T>> near(final NodeIndex<T> nodes, final Rectangle localbox, final boolean roughly) {
+		if (null == localbox) return nodes;
+		if (roughly) return nodes.findRoughly(localbox);
+		return nodes.find(localbox.x, localbox.y, localbox.width, localbox.height);
+	}
+
+	/** A square of side 2 * {@code d} around {@code lx, ly}. */
+	static private final Rectangle around(final float lx, final float ly, final double d) {
+		final int x0 = (int)Math.floor(lx - d),
+		          y0 = (int)Math.floor(ly - d);
+		return new Rectangle(x0, y0, (int)Math.ceil(lx + d) - x0 + 1, (int)Math.ceil(ly + d) - y0 + 1);
+	}
+
 	@Override
 	final public void paint(final Graphics2D g, final Rectangle srcRect, final double magnification, final boolean active, final int channels, final Layer active_layer, final List<Layer> layers) {
 		paint(g, srcRect, magnification, active, channels, active_layer, layers, layer_set.paint_arrows, layer_set.paint_tags);
@@ -202,24 +250,28 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		}
 
 		synchronized (node_layer_map) {
-			// Determine which layers to paint
-			final Set<Node<T>> nodes = getNodesToPaint(active_layer, layers);
+			// Filter nodes outside the srcRect
+			// The DisplayNavigator and the snapshot panels call paint with the full srcRect
+			// so avoid filtering for them:
+			Rectangle localRect = null;
+			if (srcRect.x > 0 && srcRect.y > 0
+			 && srcRect.width < (int)layer_set.getLayerWidth()
+			 && srcRect.height < (int)layer_set.getLayerHeight()) {
+				try {
+					localRect = this.at.createInverse().createTransformedShape(srcRect).getBounds();
+				} catch (final NoninvertibleTransformException nite) {
+					IJError.print(nite);
+				}
+			}
+			// Determine which layers to paint, and which nodes are near the srcRect
+			final Set<Node<T>> nodes = getNodesToPaint(active_layer, layers, localRect, true);
 			if (null != nodes) {
-				// Filter nodes outside the srcRect
-				// The DisplayNavigator and the snapshot panels call paint with the full srcRect
-				// so avoid filtering for them:
-				if (srcRect.x > 0 && srcRect.y > 0
-				 && srcRect.width < (int)layer_set.getLayerWidth()
-				 && srcRect.height < (int)layer_set.getLayerHeight()) {
-					try {
-						final Rectangle localRect = this.at.createInverse().createTransformedShape(srcRect).getBounds();
-						for (final Iterator<Node<T>> it = nodes.iterator(); it.hasNext(); ) {
-							final Node<T> nd = it.next();
-							if (nd.isRoughlyInside(localRect)) continue;
-							it.remove();
-						}
-					} catch (final NoninvertibleTransformException nite) {
-						IJError.print(nite);
+				if (null != localRect) {
+					// Remove nodes near but not within the srcRect
+					for (final Iterator<Node<T>> it = nodes.iterator(); it.hasNext(); ) {
+						final Node<T> nd = it.next();
+						if (nd.isRoughlyInside(localRect)) continue;
+						it.remove();
 					}
 				}
 				// Arrange transparency
@@ -282,7 +334,9 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	protected Rectangle getPaintingBounds() {
 		Rectangle box = null;
 		synchronized (node_layer_map) {
-			for (final Collection<Node<T>> nodes : node_layer_map.values()) {
+			for (final NodeIndex<T> nodes : node_layer_map.values()) {
+				// Edits may have shortened edges: tighten the margin for painting
+				nodes.updateReach();
 				final Rectangle b = getBounds(nodes);
 				if (null == box) box = b;
 				else if (null != b) box.add(b);
@@ -378,7 +432,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			try {
 				final Area a = area.createTransformedArea(this.at.createInverse());
 				// find layers between z_first and z_last
-				for (final Map.Entry<Layer,Set<Node<T>>> e : node_layer_map.entrySet()) {
+				for (final Map.Entry<Layer,NodeIndex<T>> e : node_layer_map.entrySet()) {
 					final double z = e.getKey().getZ();
 					if (z >= z_first && z <= z_last) {
 						for (final Node<T> nd : e.getValue()) {
@@ -837,12 +891,12 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	}
 
 	/** Take @param nodes and add them to @param end_nodes and @param node_layer_map as appropriate. */
-	private final void cache(final Iterable<Node<T>> nodes, final Collection<Node<T>> end_nodes, final Map<Layer,Set<Node<T>>> node_layer_map) {
+	private final void cache(final Iterable<Node<T>> nodes, final Collection<Node<T>> end_nodes, final Map<Layer,NodeIndex<T>> node_layer_map) {
 		for (final Node<T> child : nodes) {
 			if (null == child.children) end_nodes.add(child);
-			Set<Node<T>> nds = node_layer_map.get(child.la);
+			NodeIndex<T> nds = node_layer_map.get(child.la);
 			if (null == nds) {
-				nds = new HashSet<Node<T>>();
+				nds = new NodeIndex<T>();
 				node_layer_map.put(child.la, nds);
 			}
 			nds.add(child);
@@ -982,8 +1036,8 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 	/** Find the node whose confidence box for the parent edge is closest to x,y,layer, if any.  */
 	private Node<T> findNodeConfidenceBox(float x, float y, final Layer layer, final double magnification) {
-		final Set<Node<T>> nodes = node_layer_map.get(layer);
-		if (null == nodes) return null;
+		final NodeIndex<T> index = node_layer_map.get(layer);
+		if (null == index) return null;
 
 		final Point2D.Double po = inverseTransformPoint(x, y);
 		x = (float)po.x;
@@ -991,6 +1045,8 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 		float radius = (float)(10 / magnification);
 		if (radius < 2) radius = 2;
+		// Nodes whose edge midpoint may be within radius
+		final Collection<Node<T>> nodes = index.findRoughly(around(x, y, radius));
 		radius *= radius; // squared
 
 		float min_sq_dist = Float.MAX_VALUE;
@@ -1037,7 +1093,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 	/** Also sets the last visited and the receiver node. This is a GUI method. */
 	protected Layer toClosestPaintedNode(final Layer active_layer, final float wx, final float wy, final double magnification) {
-		final Node<T> nd = findClosestNodeW(getNodesToPaint(active_layer), wx, wy, magnification);
+		final Node<T> nd = findClosestPaintedNodeW(active_layer, wx, wy, magnification);
 		if (null != nd) {
 			setLastVisited(nd);
 			return nd.la;
@@ -1045,6 +1101,20 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		return null;
 	}
 
+	/** Like {@link #findClosestNodeW(Collection, float, float, double)} for the nodes painted at {@code active_layer},
+	 * but looking only at those near {@code wx, wy}. Expects world coords. */
+	protected Node<T> findClosestPaintedNodeW(final Layer active_layer, final float wx, final float wy, final double magnification) {
+		float lx = wx,
+		      ly = wy;
+		if (!this.at.isIdentity()) {
+			final Point2D.Double po = inverseTransformPoint(wx, wy);
+			lx = (float)po.x;
+			ly = (float)po.y;
+		}
+		final double d = Math.max(2, 10.0D / magnification);
+		return findClosestNode(getNodesToPaint(active_layer, active_layer.getParent().getColorCueLayerRange(active_layer), around(lx, ly, d), false), lx, ly, magnification);
+	}
+
 	/** Expects local coords; with precision depending on magnification. */
 	public Node<T> findClosestNode(final Collection<Node<T>> nodes, final float lx, final float ly, final double magnification) {
 		if (null == nodes || nodes.isEmpty()) return null;
@@ -1052,7 +1122,11 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		if (d < 2) d = 2;
 		float min_dist = Float.MAX_VALUE;
 		Node<T> nd = null;
-		for (final Node<T> node : nodes) {
+		// Look only at the nodes within distance d, when indexed
+		final Collection<Node<T>> candidates = nodes instanceof NodeIndex ?
+			((NodeIndex<T>)nodes).find((float)(lx - d), (float)(ly - d), (float)(2 * d), (float)(2 * d))
+			: nodes;
+		for (final Node<T> node : candidates) {
 			final float dist = Math.abs(node.x - lx) + Math.abs(node.y - ly);
 			if (dist < min_dist) {
 				min_dist = dist;
@@ -1073,9 +1147,12 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 	private final Node<T> findNearestNode(final float lx, final float ly, final float lz, final Calibration cal, final Collection<Node<T>> nodes) {
 		if (null == nodes) return null;
-		// A distance map would help here
 		final float pixelWidth = (float) cal.pixelWidth;
 		final float pixelHeight = (float) cal.pixelHeight;
+		if (nodes instanceof NodeIndex) {
+			// All in the same layer: the Z distance is the same for all
+			return ((NodeIndex<T>)nodes).findNearest(lx, ly, pixelWidth, pixelHeight);
+		}
 		Node<T> nearest = null;
 		float sqdist = Float.MAX_VALUE;
 		for (final Node<T> nd : nodes) {
@@ -1118,12 +1195,13 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	 *  @return null if none of the edges is close enough, or an array of parent and child describing the edge. */
 	public Node<T>[] findNearestEdge(final float x_pl, final float y_pl, final Layer layer, final double magnification) {
 		if (null == root) return null;
-		// Don't traverse all, just look into nodes currently being painted according to layer_set.n_layers_color_cue
-		final Collection<Node<T>> nodes = getNodesToPaint(layer);
-		if (null == nodes) return null;
-		//
 		double d = (10.0D / magnification);
 		if (d < 2) d = 2;
+		// Don't traverse all, just look into nodes currently being painted according to layer_set.n_layers_color_cue,
+		// and only those with an edge that may come within distance d
+		final Collection<Node<T>> nodes = getNodesToPaint(layer, layer.getParent().getColorCueLayerRange(layer), around(x_pl, y_pl, d), true);
+		if (null == nodes) return null;
+		//
 		double min_dist = Double.MAX_VALUE;
 		final Node<T>[] ns = new Node[2]; // parent and child
 		//
@@ -1172,9 +1250,9 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		boolean added = false;
 		Collection<Node<T>> subtree = null;
 		synchronized (node_layer_map) {
-			Set<Node<T>> nodes = node_layer_map.get(child.la);
+			NodeIndex<T> nodes = node_layer_map.get(child.la);
 			if (null == nodes) {
-				nodes = new HashSet<Node<T>>();
+				nodes = new NodeIndex<T>();
 				node_layer_map.put(child.la, nodes);
 			}
 			if (nodes.add(child)) {
@@ -1231,6 +1309,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				} else {
 					node.parent.children[node.parent.indexOf(node)] = node.children[0];
 					node.children[0].parent = node.parent;
+					node.children[0].changed(); // a longer edge
 					if (node == last_visited) setLastVisited(node.parent);
 				}
 				synchronized (node_layer_map) {
@@ -1381,7 +1460,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		}
 		synchronized (node_layer_map) {
 			// Search within the nodes in layer
-			final Set<Node<T>> nodes = node_layer_map.get(layer);
+			final NodeIndex<T> nodes = node_layer_map.get(layer);
 			if (null == nodes || nodes.isEmpty()) {
 				Utils.log("No nodes at " + x + ", " + y + ", " + layer);
 				return null;
@@ -1400,7 +1479,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 					return null;
 				}
 				int count = 0;
-				for (final Node<T> node : nodes) {
+				for (final Node<T> node : nodes.findRoughly(a.getBounds())) {
 					if (node.intersects(a)) {
 						nd = node;
 						count++;
@@ -1899,7 +1978,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 					ke.consume();
 					return;
 				case KeyEvent.VK_G:
-					nd = findClosestNodeW(getNodesToPaint(layer), po.x, po.y, dc.getMagnification());
+					nd = findClosestPaintedNodeW(layer, po.x, po.y, dc.getMagnification());
 					if (null != nd) {
 						display.toLayer(nd.la);
 						if (nd != last_visited) {
@@ -1913,7 +1992,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			}
 		}
 		if (ProjectToolbar.PEN == ProjectToolbar.getToolId() && 0 == (modifiers ^ Event.SHIFT_MASK) && KeyEvent.VK_C == keyCode) {
-			nd = findClosestNodeW(getNodesToPaint(layer), po.x, po.y, dc.getMagnification());
+			nd = findClosestPaintedNodeW(layer, po.x, po.y, dc.getMagnification());
 			if (null == nd) {
 				final Node<T> last = getLastVisited();
 				if (null != last && layer == last.getLayer()) nd = last;
@@ -2173,7 +2252,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	@Override
 	void removeTag(final Tag tag) {
 		synchronized (node_layer_map) {
-			for (final Map.Entry<Layer,Set<Node<T>>> e : node_layer_map.entrySet()) {
+			for (final Map.Entry<Layer,NodeIndex<T>> e : node_layer_map.entrySet()) {
 				for (final Node<T> nd : e.getValue()) {
 					nd.removeTag(tag);
 				}
@@ -2932,8 +3011,8 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		synchronized (node_layer_map) {
 			// Iterate nodes and when a node sits on a Layer that doesn't belong to the range, then remove it and give its children, if any, to the parent node.
 			final HashSet<Layer> keep = new HashSet<Layer>(range);
-			for (final Iterator<Map.Entry<Layer,Set<Node<T>>>> it = node_layer_map.entrySet().iterator(); it.hasNext(); ) {
-				final Map.Entry<Layer,Set<Node<T>>> e = it.next();
+			for (final Iterator<Map.Entry<Layer,NodeIndex<T>>> it = node_layer_map.entrySet().iterator(); it.hasNext(); ) {
+				final Map.Entry<Layer,NodeIndex<T>> e = it.next();
 				if (keep.contains(e.getKey())) continue;
 				else {
 					// Else, remove the set of nodes for that layer
@@ -3169,7 +3248,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		// Remove all review tags
 		// Remove all .zip stacks for this Treeline
 		boolean success = true;
-		for (final Map.Entry<Layer,Set<Node<T>>> e : node_layer_map.entrySet()) {
+		for (final Map.Entry<Layer,NodeIndex<T>> e : node_layer_map.entrySet()) {
 			for (final Node<T> nd : e.getValue()) {
 				if (Thread.currentThread().isInterrupted()) return;
 				success = success && removeReview(nd);
@@ -225,6 +225,7 @@ public class Treeline extends Tree<Float> {
 		@Override
         public final boolean setData(final Float radius) {
 			this.r = radius > 0 ? radius : 0;
+			changed();
 			return true;
 		}
 		@Override
@@ -233,6 +234,17 @@ public class Treeline extends Tree<Float> {
 		@Override
         public final Float getDataCopy() { return this.r; }
 
+		/** The longest edge plus the largest radius among this node, its parent and its children. */
+		@Override
+		public float getReach() {
+			float max_r = r;
+			if (null != parent) max_r = Math.max(max_r, ((RadiusNode)parent).r);
+			if (null != children) {
+				for (final Node<Float> child : children) max_r = Math.max(max_r, ((RadiusNode)child).r);
+			}
+			return super.getReach() + max_r;
+		}
+
 		@Override
 		public boolean isRoughlyInside(final Rectangle localbox) {
 			if (0 == this.r) {
@@ -372,6 +384,7 @@ public class Treeline extends Tree<Float> {
 				final double[] fp = new double[]{ox + r, oy};
 				ct.applyInPlace(fp);
 				r = ( float )Math.abs(fp[0] - this.x);
+				changed();
 			}
 		}
 		@Override
@@ -394,6 +407,7 @@ public class Treeline extends Tree<Float> {
 						rt.ct.applyInPlace(fp);
 						r = ( float )Math.abs(fp[0] - this.x);
 					}
+					changed();
 					break;
 				}
 			}
@@ -411,6 +425,7 @@ public class Treeline extends Tree<Float> {
 					final double[] fp = new double[]{x, y, x + r, y};
 					aff.transform(fp, 0, fp, 0, 2);
 					r = (float)Math.sqrt(Math.pow(fp[2] - fp[0], 2) + Math.pow(fp[3] - fp[1], 2));
+					changed();
 			}
 		}
 	}
@@ -14,6 +14,7 @@ import ini.trakem2.display.Patch;
 import ini.trakem2.imaging.filters.EqualizeHistogram;
 import ini.trakem2.imaging.filters.IFilter;
 import ini.trakem2.parallel.Process;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.parallel.TaskFactory;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
@@ -43,7 +44,7 @@ public class ContrastEnhancerWrapper {
 	private boolean from_existing_min_and_max = false;
 	private boolean visible_only = true;
 
-	final ExecutorService waiter = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "contrast-enhancer-waiter");
+	final ExecutorService waiter = Utils.newLane(Runtime.getRuntime().availableProcessors(), "contrast-enhancer-waiter", Scheduler.Priority.BATCH);
 
 	public ContrastEnhancerWrapper() {
 		this(null);
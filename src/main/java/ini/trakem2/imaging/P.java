@@ -1,11 +1,13 @@
 package ini.trakem2.imaging;
 
-import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.ArrayPool;
 
+/** The int[] returned by the blend methods is taken from the {@link ArrayPool} and may be longer than
+ * the channels: use it only with the width and height of the image, as {@link ini.trakem2.io.ImageSaver} does. */
 public final class P {
 	public static final int[] blend(final byte[] pi, final byte[] pm) {
-		final int[] p = CachingThread.getOrCreateIntArray(pi.length); // new int[pi.length];
-		for (int i=0; i<p.length; ++i) {
+		final int[] p = ArrayPool.takeIntsAtLeast(pi.length); // new int[pi.length];
+		for (int i=0; i<pi.length; ++i) {
 			final int c = (pi[i]&0xff);
 			p[i] = ((pm[i]&0xff) << 24) | (c << 16) | (c << 8) | c;
 		}
@@ -16,8 +18,8 @@ public final class P {
 	 * after having multiplied them by the {@code pm} (the alpha channel); the alpha channel gets inserted into
 	 * the int[] as well. */
 	public static final int[] blendPre(final byte[] pi, final byte[] pm) {
-		final int[] p = CachingThread.getOrCreateIntArray(pi.length); // new int[pi.length];
-		for (int i=0; i<p.length; ++i) {
+		final int[] p = ArrayPool.takeIntsAtLeast(pi.length); // new int[pi.length];
+		for (int i=0; i<pi.length; ++i) {
 			final int a = (pm[i]&0xff);
 			final double K = a / 255.0;
 			final int c = (int)((pi[i]&0xff) * K + 0.5);
@@ -27,8 +29,8 @@ public final class P {
 	}
 	
 	public static final int[] blend(final byte[] r, final byte[] g, final byte[] b, final byte[] a) {
-		final int[] p = CachingThread.getOrCreateIntArray(r.length); // new int[r.length];
-		for (int i=0; i<p.length; ++i) {
+		final int[] p = ArrayPool.takeIntsAtLeast(r.length); // new int[r.length];
+		for (int i=0; i<r.length; ++i) {
 			p[i] = ((a[i]&0xff) << 24) | ((r[i]&0xff) << 16) | ((g[i]&0xff) << 8) | (b[i]&0xff);
 		}
 		return p;
@@ -36,8 +38,8 @@ public final class P {
 
 	/** Pre-multiplies alpha. */
 	public static final int[] blendPre(final byte[] r, final byte[] g, final byte[] b, final byte[] alpha) {
-		final int[] p = CachingThread.getOrCreateIntArray(r.length); // new int[r.length];
-		for (int i=0; i<p.length; ++i) {
+		final int[] p = ArrayPool.takeIntsAtLeast(r.length); // new int[r.length];
+		for (int i=0; i<r.length; ++i) {
 			final int a = (alpha[i]&0xff);
 			final double K = a / 255.0;
 			p[i] = (a << 24)
@@ -49,8 +51,8 @@ public final class P {
 	}
 	
 	public static final int[] blend(final byte[] r, final byte[] g, final byte[] b) {
-		final int[] p = CachingThread.getOrCreateIntArray(r.length); // new int[r.length];
-		for (int i=0; i<p.length; ++i) {
+		final int[] p = ArrayPool.takeIntsAtLeast(r.length); // new int[r.length];
+		for (int i=0; i<r.length; ++i) {
 			p[i] = ((r[i]&0xff) << 16) | ((g[i]&0xff) << 8) | (b[i]&0xff);
 		}
 		return p;
@@ -68,9 +70,9 @@ public final class P {
 
 	static public final byte[][] asRGBABytes(final int[] pixels, final byte[] alpha, byte[] outside) {
 		merge(alpha, outside); // into alpha
-		final byte[] r = CachingThread.getOrCreateByteArray(pixels.length), // new byte[pixels.length],
-		             g = CachingThread.getOrCreateByteArray(pixels.length), // new byte[pixels.length],
-		             b = CachingThread.getOrCreateByteArray(pixels.length); // new byte[pixels.length];
+		final byte[] r = ArrayPool.takeBytes(pixels.length), // new byte[pixels.length],
+		             g = ArrayPool.takeBytes(pixels.length), // new byte[pixels.length],
+		             b = ArrayPool.takeBytes(pixels.length); // new byte[pixels.length];
 		for (int i=0; i<pixels.length; ++i) {
 			final int x = pixels[i];
 			r[i] = (byte)((x >> 16)&0xff);
@@ -81,9 +83,9 @@ public final class P {
 	}
 
 	static public byte[][] asRGBBytes(final int[] pix) {
-		final byte[] r = CachingThread.getOrCreateByteArray(pix.length), // new byte[pix.length],
-	                 g = CachingThread.getOrCreateByteArray(pix.length), // new byte[pix.length],
-	                 b = CachingThread.getOrCreateByteArray(pix
+		final byte[] r = ArrayPool.takeBytes(pix.length), // new byte[pix.length],
+	                 g = ArrayPool.takeBytes(pix.length), // new byte[pix.length],
+	                 b = ArrayPool.takeBytes(pix
 	                		 .length); // new byte[pix.length];
 		for (int i=0; i<pix.length; ++i) {
 			final int x = pix[i];
@@ -30,6 +30,8 @@ import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
@@ -40,10 +42,19 @@ import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import mpi.fruitfly.math.datastructures.FloatArray2D;
 import mpi.fruitfly.registration.CrossCorrelation2D;
@@ -88,6 +99,11 @@ public class StitchingTEM {
 
 	static public final float DEFAULT_MIN_R = 0.4f;
 
+	/** The memory that the correlations running in parallel may need together is counted in units of this many bytes. */
+	static private final long MEMORY_UNIT = 1024 * 1024;
+	/** Half of the memory available to the JVM. */
+	static private final int MEMORY_BUDGET_UNITS = (int)Math.max(1, Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / MEMORY_UNIT));
+
 
 	/** Returns the same Patch instances with their coordinates modified; the top-left image is assumed to be the first one, and thus serves as reference; so, after the first image, coordinates are ignored for each specific Patch.
 	 *
@@ -394,6 +410,136 @@ public class StitchingTEM {
 		return makeStripe(p, roi, scale, false);
 	}
 
+	static private ImageProcessor makeStripe(final Patch p, final Roi roi, final double scale, final StripeCache stripes) {
+		return null == stripes ? makeStripe(p, roi, scale) : stripes.get(p, roi, scale);
+	}
+
+	/** The stripes of whole Patches at each scale, from which to crop those of every pair that a Patch takes part in,
+	 * instead of making them anew for each pair. The stripes of a Patch are dropped once all its pairs are done.
+	 * Only stripes read from mipmaps are cached, given that {@link StitchingTEM#makeStripe(Patch, Roi, double, boolean)}
+	 * crops those after scaling them anyway; otherwise it crops before scaling, which is cheaper than blurring the whole
+	 * Patch and gives slightly different pixels, so those stripes are made for each pair as before.
+	 * The cached stripes are charged to the memory budget of the correlations while they are held;
+	 * when the budget has no room for one, the stripe is not cached. */
+	static private final class StripeCache {
+		static private final class Stripes {
+			final HashMap<Double,ImageProcessor> by_scale = new HashMap<Double,ImageProcessor>();
+			int pending = 0;
+			/** Units of the memory budget held by the cached stripes. */
+			int units = 0;
+		}
+		private final HashMap<Patch,Stripes> map = new HashMap<Patch,Stripes>();
+		private final Semaphore memory;
+
+		StripeCache(final Semaphore memory) {
+			this.memory = memory;
+		}
+
+		/** Count one more pair that will need the stripes of {@code p}. */
+		synchronized void register(final Patch p) {
+			Stripes s = map.get(p);
+			if (null == s) {
+				s = new Stripes();
+				map.put(p, s);
+			}
+			s.pending++;
+		}
+
+		/** One pair that needed the stripes of {@code p} is done. */
+		void done(final Patch p) {
+			final Stripes s;
+			synchronized (this) {
+				s = map.get(p);
+				if (null == s || --s.pending > 0) return;
+				map.remove(p);
+			}
+			synchronized (s) {
+				s.by_scale.clear();
+				memory.release(s.units);
+				s.units = 0;
+			}
+		}
+
+		/** A copy of the part of the stripe of the whole {@code p} at {@code scale} that corresponds to {@code roi},
+		 * cropped from the scaled stripe like {@link StitchingTEM#makeStripe(Patch, Roi, double, boolean)} does when reading mipmaps. */
+		ImageProcessor get(final Patch p, final Roi roi, final double scale) {
+			final Stripes s;
+			synchronized (this) {
+				s = map.get(p);
+			}
+			if (null == s) return makeStripe(p, roi, scale);
+			final Loader loader = p.getProject().getLoader();
+			if (!loader.isMipMapsRegenerationEnabled() || !loader.checkMipMapFileExists(p, scale)) return makeStripe(p, roi, scale);
+			// Threads that need the same Patch wait for the one making its stripe
+			synchronized (s) {
+				ImageProcessor whole = s.by_scale.get(scale);
+				if (null == whole) {
+					final long bytes = (long)(p.getWidth() * scale) * (long)(p.getHeight() * scale) * 4;
+					final int units = (int)Math.min(MEMORY_BUDGET_UNITS, Math.max(1, (bytes + MEMORY_UNIT - 1) / MEMORY_UNIT));
+					if (!memory.tryAcquire(units)) return makeStripe(p, roi, scale);
+					s.units += units;
+					whole = makeStripe(p, null, scale);
+					s.by_scale.put(scale, whole);
+				}
+				final Rectangle rb = roi.getBounds();
+				whole.setRoi(new Roi((int)(rb.x * scale), (int)(rb.y * scale), (int)(rb.width * scale), (int)(rb.height * scale)));
+				final ImageProcessor ip = whole.crop();
+				whole.resetRoi();
+				return ip;
+			}
+		}
+	}
+
+	/** Find the pairs i &lt; j of {@code boxes} that intersect, in order of i and then of j,
+	 * by filing the boxes in a grid of cells of their mean size instead of testing every pair. */
+	static public ArrayList<int[]> findOverlappingPairs(final Rectangle[] boxes) {
+		final ArrayList<int[]> pairs = new ArrayList<int[]>();
+		if (0 == boxes.length) return pairs;
+		double mw = 0, mh = 0;
+		int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE;
+		for (final Rectangle r : boxes) {
+			mw += r.width;
+			mh += r.height;
+			x0 = Math.min(x0, r.x);
+			y0 = Math.min(y0, r.y);
+		}
+		final int cw = Math.max(1, (int)Math.ceil(mw / boxes.length)),
+		          ch = Math.max(1, (int)Math.ceil(mh / boxes.length));
+		final HashMap<Long,ArrayList<Integer>> grid = new HashMap<Long,ArrayList<Integer>>();
+		// The last box paired with each box, to pair them only once when they share more than one cell
+		final int[] paired_with = new int[boxes.length];
+		Arrays.fill(paired_with, -1);
+		for (int j=0; j<boxes.length; j++) {
+			final Rectangle r = boxes[j];
+			if (r.isEmpty()) continue;
+			final int cx1 = (int)(((long)r.x + r.width - 1 - x0) / cw),
+			          cy1 = (int)(((long)r.y + r.height - 1 - y0) / ch);
+			for (int cy = (r.y - y0) / ch; cy <= cy1; cy++) {
+				for (int cx = (r.x - x0) / cw; cx <= cx1; cx++) {
+					final Long key = (((long)cx) << 32) | (cy & 0xffffffffL);
+					ArrayList<Integer> cell = grid.get(key);
+					if (null == cell) {
+						cell = new ArrayList<Integer>();
+						grid.put(key, cell);
+					}
+					for (final int i : cell) {
+						if (paired_with[i] == j) continue;
+						paired_with[i] = j;
+						if (boxes[i].intersects(r)) pairs.add(new int[]{i, j});
+					}
+					cell.add(j);
+				}
+			}
+		}
+		Collections.sort(pairs, new Comparator<int[]>() {
+			@Override
+			public int compare(final int[] a, final int[] b) {
+				return a[0] != b[0] ? a[0] - b[0] : a[1] - b[1];
+			}
+		});
+		return pairs;
+	}
+
 //	static public ImageProcessor makeStripe(final Patch p, final double scale, final boolean ignore_patch_transform) {
 //		return makeStripe(p, null, scale, ignore_patch_transform);
 //	}
@@ -497,6 +643,11 @@ public class StitchingTEM {
 	 * </ul>
 	 */
 	static public double[] correlate(final Patch base, final Patch moving, final float percent_overlap, final double scale, final int direction, final double default_dx, final double default_dy, final double min_R) {
+		return correlate(base, moving, percent_overlap, scale, direction, default_dx, default_dy, min_R, null);
+	}
+
+	/** As {@link #correlate(Patch, Patch, float, double, int, double, double, double)}, cropping the stripes from those in {@code stripes} if not null. */
+	static private double[] correlate(final Patch base, final Patch moving, final float percent_overlap, final double scale, final int direction, final double default_dx, final double default_dy, final double min_R, final StripeCache stripes) {
 		//PhaseCorrelation2D pc = null;
 		final double R = -2;
 		//final int limit = 5; // number of peaks to check in the PhaseCorrelation results
@@ -531,8 +682,8 @@ public class StitchingTEM {
 			}
 			//Utils.log2("roi1: " + roi1);
 			//Utils.log2("roi2: " + roi2);
-			ip1 = makeStripe(base, roi1, scale); // will apply the transform if necessary
-			ip2 = makeStripe(moving, roi2, scale);
+			ip1 = makeStripe(base, roi1, scale, stripes); // will apply the transform if necessary
+			ip2 = makeStripe(moving, roi2, scale, stripes);
 			//new ImagePlus("roi1", ip1).show();
 			//new ImagePlus("roi2", ip2).show();
 			ip1.setPixels(ImageFilter.computeGaussianFastMirror(new FloatArray2D((float[])ip1.getPixels(), ip1.getWidth(), ip1.getHeight()), 1.0).data);
@@ -596,8 +747,8 @@ public class StitchingTEM {
 		}
 		// use one third of the size used for phase-correlation though! Otherwise, it may take FOREVER
 		final double scale_cc = scale / 3.0f;
-		ip1 = makeStripe(base, roi1, scale_cc);
-		ip2 = makeStripe(moving, roi2, scale_cc);
+		ip1 = makeStripe(base, roi1, scale_cc, stripes);
+		ip2 = makeStripe(moving, roi2, scale_cc, stripes);
 
 		// gaussian blur them before cross-correlation
 		ip1.setPixels(ImageFilter.computeGaussianFastMirror(new FloatArray2D((float[])ip1.getPixels(), ip1.getWidth(), ip1.getHeight()), 1f).data);
@@ -847,65 +998,104 @@ public class StitchingTEM {
 
 
 
-		for (int i=0; i<al.size(); i++) {
-			final Patch p1 = al.get(i);
-			final Rectangle r1 = p1.getBoundingBox();
-			// find overlapping, add as connections
-			for (int j=i+1; j<al.size(); j++) {
-				if (Thread.currentThread().isInterrupted()) return;
-				final Patch p2 = al.get(j);
-				final Rectangle r2 = p2.getBoundingBox();
-				if (r1.intersects(r2)) {
-					// Skip if it's a diagonal overlap
-					final int dx = Math.abs(r1.x - r2.x);
-					final int dy = Math.abs(r1.y - r2.y);
-					if (dx > r1.width/2 && dy > r1.height/2) {
-						// skip diagonal match
-						Utils.log2("Skipping diagonal overlap between " + p1 + " and " + p2);
-						continue;
-					}
-
-					p1.getProject().getLoader().releaseToFit((long)(p1.getWidth() * p1.getHeight() * 25));
+		// Find overlapping pairs, skipping diagonal overlaps
+		final Rectangle[] boxes = new Rectangle[al.size()];
+		for (int i=0; i<boxes.length; i++) boxes[i] = al.get(i).getBoundingBox();
+		final ArrayList<int[]> pairs = new ArrayList<int[]>();
+		for (final int[] pair : findOverlappingPairs(boxes)) {
+			final Rectangle r1 = boxes[pair[0]],
+			                r2 = boxes[pair[1]];
+			final int dx = Math.abs(r1.x - r2.x);
+			final int dy = Math.abs(r1.y - r2.y);
+			if (dx > r1.width/2 && dy > r1.height/2) {
+				// skip diagonal match
+				Utils.log2("Skipping diagonal overlap between " + al.get(pair[0]) + " and " + al.get(pair[1]));
+				continue;
+			}
+			pairs.add(pair);
+		}
 
-					final double[] R;
-					if (1 == overlap) {
-						R = correlate(p1, p2, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R );
-						if (SUCCESS == R[2]) {
-							addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-						}
-					} else {
-						switch (getClosestOverlapLocation(p1, p2)) {
-							case 0: // p1 overlaps p2 from the left
-								R = correlate(p1, p2, overlap, cc_scale, LEFT_RIGHT, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-								}
-								break;
-							case 1: // p1 overlaps p2 from the top
-								R = correlate(p1, p2, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-								}
-								break;
-							case 2: // p1 overlaps p2 from the right
-								R = correlate(p2, p1, overlap, cc_scale, LEFT_RIGHT, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(j), tiles.get(i), R[0], R[1]);
-								}
-								break;
-							case 3: // p1 overlaps p2 from the bottom
-								R = correlate(p2, p1, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(j), tiles.get(i), R[0], R[1]);
+		// Correlate all pairs in parallel, each once the memory it needs fits within the budget,
+		// cropping the stripes of each Patch from one scaled image of it shared by all its pairs
+		final Semaphore memory = new Semaphore(MEMORY_BUDGET_UNITS, true);
+		final StripeCache stripes = new StripeCache(memory);
+		for (final int[] pair : pairs) {
+			stripes.register(al.get(pair[0]));
+			stripes.register(al.get(pair[1]));
+		}
+		final double[][] results = new double[pairs.size()][];
+		final boolean[] swapped = new boolean[pairs.size()];
+		final ExecutorService exec = ExecutorProvider.getExecutorService(Scheduler.Priority.BATCH, Runtime.getRuntime().availableProcessors(), "phase-correlation");
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+		try {
+			for (int k=0; k<pairs.size(); k++) {
+				final int index = k;
+				final Patch p1 = al.get(pairs.get(k)[0]),
+				            p2 = al.get(pairs.get(k)[1]);
+				final float ov = overlap;
+				final double sc = cc_scale;
+				fus.add(exec.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						final long bytes = (long)(p1.getWidth() * p1.getHeight() * 25);
+						final int units = (int)Math.min(MEMORY_BUDGET_UNITS, Math.max(1, bytes / MEMORY_UNIT));
+						Scheduler.acquire(memory, units);
+						try {
+							p1.getProject().getLoader().releaseToFit(bytes);
+							if (1 == ov) {
+								results[index] = correlate(p1, p2, ov, sc, TOP_BOTTOM, 0, 0, param.min_R, stripes);
+							} else {
+								switch (getClosestOverlapLocation(p1, p2)) {
+									case 0: // p1 overlaps p2 from the left
+										results[index] = correlate(p1, p2, ov, sc, LEFT_RIGHT, 0, 0, param.min_R, stripes);
+										break;
+									case 1: // p1 overlaps p2 from the top
+										results[index] = correlate(p1, p2, ov, sc, TOP_BOTTOM, 0, 0, param.min_R, stripes);
+										break;
+									case 2: // p1 overlaps p2 from the right
+										results[index] = correlate(p2, p1, ov, sc, LEFT_RIGHT, 0, 0, param.min_R, stripes);
+										swapped[index] = true;
+										break;
+									case 3: // p1 overlaps p2 from the bottom
+										results[index] = correlate(p2, p1, ov, sc, TOP_BOTTOM, 0, 0, param.min_R, stripes);
+										swapped[index] = true;
+										break;
+									default:
+										Utils.log("Unknown overlap direction!");
+										break;
 								}
-								break;
-							default:
-								Utils.log("Unknown overlap direction!");
-								continue;
+							}
+						} finally {
+							memory.release(units);
+							stripes.done(p1);
+							stripes.done(p2);
 						}
+						return null;
 					}
-				}
+				}));
 			}
+		} finally {
+			exec.shutdown();
+		}
+		try {
+			for (final Future<?> fu : fus) fu.get();
+		} catch (final InterruptedException ie) {
+			for (final Future<?> fu : fus) fu.cancel(true);
+			return;
+		} catch (final ExecutionException ee) {
+			for (final Future<?> fu : fus) fu.cancel(true);
+			IJError.print(ee);
+			return;
+		}
+
+		// Link the tiles of each successful correlation, in the order of the pairs
+		for (int k=0; k<pairs.size(); k++) {
+			final double[] R = results[k];
+			if (null == R || SUCCESS != R[2]) continue;
+			final int i = pairs.get(k)[0],
+			          j = pairs.get(k)[1];
+			if (swapped[k]) addMatches(tiles.get(j), tiles.get(i), R[0], R[1]);
+			else addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
 		}
 
 		if (param.remove_disconnected || param.hide_disconnected) {
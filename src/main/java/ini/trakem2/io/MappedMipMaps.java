@@ -0,0 +1,197 @@
+package ini.trakem2.io;
+
+import ini.trakem2.utils.ArrayPool;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/** Reads mipmap files in the {@link RawMipMaps} and {@link RagMipMaps} formats by memory-mapping them,
+ * so that the file contents are cached by the operating system's page cache rather than copied
+ * into intermediate byte arrays on the heap. Each channel is read straight from the mapped file
+ * into the pixel array of the returned image; only the alpha channel, if any, goes through
+ * a temporary array (recycled via {@link ArrayPool}), to be decompressed and premultiplied.
+ *
+ * The on-disk formats are unchanged, and files can be written with {@link RawMipMaps#save(String, byte[][], int, int)}
+ * and {@link RagMipMaps#save(String, byte[][], int, int)} as usual.
+ */
+public final class MappedMipMaps
+{
+	/** The header and the mapped contents of a mipmap file. */
+	static public final class Mapped
+	{
+		public final int width, height, nCh;
+		/** Whether the alpha channel, if any, is compressed, as in the {@link RagMipMaps} format. */
+		public final boolean compressed_alpha;
+		/** The whole file, header included. */
+		public final MappedByteBuffer buffer;
+
+		private Mapped(final MappedByteBuffer buffer, final boolean compressed_alpha) {
+			this.buffer = buffer;
+			this.compressed_alpha = compressed_alpha;
+			this.width = buffer.getInt(0);
+			this.height = buffer.getInt(4);
+			this.nCh = buffer.get(8);
+		}
+
+		/** Offset in bytes of the start of channel @param c. */
+		public final int offset(final int c) {
+			return RawMipMaps.HEADER_SIZE + c * width * height;
+		}
+
+		/** Whether the file is at least as long as the header says it must be. */
+		final boolean isComplete() {
+			if (nCh < 1 || nCh > 4 || width < 0 || height < 0) return false;
+			final int n = compressed_alpha && 0 == nCh % 2 ? nCh -1 : nCh;
+			return buffer.capacity() >= offset(n);
+		}
+	}
+
+	/** Memory-map the file at @param path, a {@link RawMipMaps} file if @param compressed_alpha is false
+	 * or a {@link RagMipMaps} file if true.
+	 * Returns null if the file does not exist or could not be read. */
+	static public final Mapped map(final String path, final boolean compressed_alpha) {
+		return map(path, compressed_alpha, 0);
+	}
+
+	static private final Mapped map(final String path, final boolean compressed_alpha, final int retry) {
+		RandomAccessFile ra = null;
+		try {
+			final File f = new File(path);
+			ra = new RandomAccessFile(f, "r");
+			final FileChannel fc = ra.getChannel();
+			// The mapping remains valid after closing the channel
+			final Mapped m = new Mapped(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()), compressed_alpha);
+			if (m.isComplete()) return m;
+			throw new IOException("Incomplete mipmap file: " + path);
+		} catch (FileNotFoundException fnfe) {
+			Utils.log2("File not found: " + path);
+		} catch (Exception e) {
+			// Possible: IOException, IndexOutOfBoundsException
+			// ... all meaning that the file exists but hasn't yet been fully written
+			// Rather than going fancy with file locks, just wait 100 ms and retry
+			if (retry < 2) {
+				// Wait for image to be fully written
+				try { Thread.sleep(100); } catch (InterruptedException ie) {}
+				return map(path, compressed_alpha, retry + 1);
+			}
+			// Else the error is for real
+			else IJError.print(e);
+		} finally {
+			if (null != ra) try { ra.close(); } catch (Exception e) { IJError.print(e); }
+		}
+		return null;
+	}
+
+	/** Read a {@link RawMipMaps} file (when @param compressed_alpha is false)
+	 * or a {@link RagMipMaps} file (when true) into a new image. */
+	static public final BufferedImage read(final String path, final boolean compressed_alpha) {
+		try {
+			final Mapped m = map(path, compressed_alpha);
+			if (null == m) return null;
+			return read(m);
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return null;
+	}
+
+	static public final BufferedImage read(final Mapped m) throws DataFormatException {
+		final int len = m.width * m.height;
+		final ByteBuffer b = m.buffer;
+		switch (m.nCh) {
+			case RawMipMaps.GREY: {
+				final byte[] pix = ArrayPool.takeBytesAtLeast(len);
+				final ByteBuffer src = b.duplicate();
+				src.position(m.offset(0));
+				src.get(pix, 0, len);
+				return ImageSaver.createGrayImage(pix, m.width, m.height);
+			}
+			case RawMipMaps.RGB: {
+				final int[] pix = ArrayPool.takeIntsAtLeast(len);
+				final int r = m.offset(0),
+				          g = m.offset(1),
+				          bl = m.offset(2);
+				for (int i=0; i<len; ++i) {
+					pix[i] = ((b.get(r + i)&0xff) << 16) | ((b.get(g + i)&0xff) << 8) | (b.get(bl + i)&0xff);
+				}
+				return ImageSaver.createRGBImage(pix, m.width, m.height);
+			}
+			case RawMipMaps.GREY_ALPHA: {
+				final byte[] alpha = alpha(m, 1);
+				try {
+					final int[] pix = ArrayPool.takeIntsAtLeast(len);
+					final int o = m.offset(0);
+					for (int i=0; i<len; ++i) {
+						final int a = (alpha[i]&0xff);
+						final double K = a / 255.0;
+						final int c = (int)((b.get(o + i)&0xff) * K + 0.5);
+						pix[i] = (a << 24) | (c << 16) | (c << 8) | c;
+					}
+					return ImageSaver.createARGBImagePre(pix, m.width, m.height);
+				} finally {
+					ArrayPool.give(alpha);
+				}
+			}
+			case RawMipMaps.RGBA: {
+				final byte[] alpha = alpha(m, 3);
+				try {
+					final int[] pix = ArrayPool.takeIntsAtLeast(len);
+					final int r = m.offset(0),
+					          g = m.offset(1),
+					          bl = m.offset(2);
+					for (int i=0; i<len; ++i) {
+						final int a = (alpha[i]&0xff);
+						final double K = a / 255.0;
+						pix[i] = (a << 24)
+						       | (((int)((b.get(r + i)&0xff) * K + 0.5)) << 16)
+						       | (((int)((b.get(g + i)&0xff) * K + 0.5)) <<  8)
+						       |  ((int)((b.get(bl + i)&0xff) * K + 0.5));
+					}
+					return ImageSaver.createARGBImagePre(pix, m.width, m.height);
+				} finally {
+					ArrayPool.give(alpha);
+				}
+			}
+		}
+		return null;
+	}
+
+	/** Returns the alpha channel, decompressing it if necessary. */
+	static private final byte[] alpha(final Mapped m, final int c) throws DataFormatException {
+		final int len = m.width * m.height;
+		final ByteBuffer src = m.buffer.duplicate();
+		src.position(m.offset(c));
+		if (!m.compressed_alpha) {
+			final byte[] a = ArrayPool.takeBytesAtLeast(len);
+			src.get(a, 0, len);
+			return a;
+		}
+		// The compressed alpha channel runs until the end of the file
+		final byte[] compressed = new byte[src.remaining()];
+		src.get(compressed);
+		final byte[] a = ArrayPool.takeBytesAtLeast(len);
+		final Inflater inf = new Inflater(false);
+		try {
+			inf.setInput(compressed);
+			int sum = 0;
+			while (sum < len) {
+				final int r = inf.inflate(a, sum, len - sum);
+				if (0 == r && (inf.finished() || inf.needsInput())) break;
+				sum += r;
+			}
+		} finally {
+			inf.end();
+		}
+		return a;
+	}
+}
@@ -0,0 +1,480 @@
+package ini.trakem2.io;
+
+import ini.trakem2.imaging.P;
+import ini.trakem2.persistence.ImageBytes;
+import ini.trakem2.utils.ArrayPool;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/** Stores all mipmap levels of many images in a single, append-only container file,
+ * so that many Patch instances need one file instead of one file per Patch and level.
+ * Which images share a container is up to the caller: the {@link ini.trakem2.persistence.FSLoader}
+ * keys its containers by buckets of 1024 consecutive Patch ids, not by Layer, given that ids never change
+ * whereas a Patch may be moved to another Layer.
+ *
+ * The container file starts with an 8-byte magic number, followed by records:
+ *
+ * <pre>
+ * long id, int level, int width, int height, byte nCh, int length, byte[length]
+ * </pre>
+ *
+ * where the bytes are the {@code nCh} channels (as in {@link RawMipMaps}) concatenated and compressed with {@link Deflater}.
+ * A record with a negative length is a tombstone: it removes the mipmap for that id and level.
+ * Writing a mipmap again appends a new record, which supersedes the previous one.
+ *
+ * Next to the container, an index file (same name plus {@link #INDEX_EXTENSION}) holds one
+ * {@code long id, int level, long offset} entry per record, so that opening a container
+ * does not require scanning it. If the index is missing or inconsistent, it is rebuilt from the container.
+ * The index of every container is kept in memory once opened, for random access by id and level.
+ *
+ * Superseded records and tombstones are garbage until {@link #compact(String)} rewrites the container.
+ * Reading takes only the read lock of the container, so that many threads read at once;
+ * compacting swaps in the rewritten file and its offsets under the write lock, once no reader is using the old ones.
+ *
+ * A mipmap is addressed by a path of the form {@code container_path#id:level}; see {@link #createPath(String, long, int)}.
+ */
+public final class PackedMipMaps
+{
+	static public final String EXTENSION = ".t2pack";
+	static public final String INDEX_EXTENSION = ".idx";
+	static private final long MAGIC = 0x54325041434B3031L; // "T2PACK01"
+	/** long id, int level, int width, int height, byte nCh, int length */
+	static private final int RECORD_HEADER_SIZE = 8 + 4 + 4 + 4 + 1 + 4;
+	/** long id, int level, long offset */
+	static private final int INDEX_ENTRY_SIZE = 8 + 4 + 8;
+
+	static private final class Container {
+		final File file, index;
+		/** Map of id vs. offsets of the records for each level; -1 means none. */
+		final Map<Long,long[]> offsets = new ConcurrentHashMap<Long,long[]>();
+		/** Number of records in the file, live or not. */
+		int n_records = 0;
+		/** Held for reading by readers, and for writing while the file and its offsets are replaced.
+		 *  Appending needs only the monitor of the container: readers never look past the offsets already indexed. */
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		Container(final String path) {
+			this.file = new File(path);
+			this.index = new File(path + INDEX_EXTENSION);
+		}
+
+		final void put(final long id, final int level, final long offset) {
+			long[] o = offsets.get(id);
+			if (null == o) {
+				if (offset < 0) return;
+				o = new long[level + 1];
+				Arrays.fill(o, -1);
+			} else if (o.length <= level) {
+				if (offset < 0) return;
+				final int len = o.length;
+				o = Arrays.copyOf(o, level + 1);
+				Arrays.fill(o, len, o.length, -1);
+			} else {
+				o = o.clone(); // readers may be using the old one
+			}
+			o[level] = offset;
+			offsets.put(id, o);
+		}
+
+		final long get(final long id, final int level) {
+			final long[] o = offsets.get(id);
+			if (null == o || o.length <= level) return -1;
+			return o[level];
+		}
+
+		/** Whether there is a live record for @param id at @param level. */
+		final boolean has(final long id, final int level) {
+			lock.readLock().lock();
+			try {
+				return -1 != get(id, level);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/** Read the index, or rebuild it from the container if missing or inconsistent. */
+		final void open() throws IOException {
+			if (!file.exists()) {
+				if (index.exists()) index.delete(); // stale
+				return;
+			}
+			final long data_length = file.length();
+			if (index.exists() && 0 == index.length() % INDEX_ENTRY_SIZE) {
+				final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(index), 65536));
+				boolean valid = true;
+				try {
+					final long n = index.length() / INDEX_ENTRY_SIZE;
+					for (long i=0; i<n; ++i) {
+						final long id = dis.readLong();
+						final int level = dis.readInt();
+						final long offset = dis.readLong();
+						if (offset >= data_length) {
+							valid = false;
+							break;
+						}
+						put(id, level, offset);
+						++n_records;
+					}
+				} finally {
+					dis.close();
+				}
+				if (valid) return;
+				offsets.clear();
+				n_records = 0;
+			}
+			rebuildIndex();
+		}
+
+		/** Scan the container and write a new index file. */
+		final void rebuildIndex() throws IOException {
+			Utils.log2("Rebuilding index for mipmaps container " + file);
+			final RandomAccessFile ra = new RandomAccessFile(file, "r");
+			final RandomAccessFile ri = new RandomAccessFile(index, "rw");
+			try {
+				ri.setLength(0);
+				final long length = ra.length();
+				if (length < 8 || MAGIC != ra.readLong()) throw new IOException("Not a mipmaps container: " + file);
+				final byte[] e = new byte[INDEX_ENTRY_SIZE];
+				final ByteBuffer be = ByteBuffer.wrap(e);
+				long offset = 8;
+				while (offset + RECORD_HEADER_SIZE <= length) {
+					ra.seek(offset);
+					final long id = ra.readLong();
+					final int level = ra.readInt();
+					ra.skipBytes(9);
+					final int len = ra.readInt();
+					final long next = offset + RECORD_HEADER_SIZE + Math.max(0, len);
+					if (next > length) break; // truncated record, from an interrupted write
+					final long o = len < 0 ? -1 : offset;
+					put(id, level, o);
+					++n_records;
+					be.clear();
+					be.putLong(id).putInt(level).putLong(o);
+					ri.write(e);
+					offset = next;
+				}
+			} finally {
+				ra.close();
+				ri.close();
+			}
+		}
+
+		/** Append a record, or a tombstone if @param b is null. */
+		synchronized final boolean append(final long id, final int level, final byte[][] b, final int width, final int height) throws IOException {
+			byte[] compressed = null;
+			int len = -1;
+			if (null != b) {
+				final ByteArrayOutputStream ba = new ByteArrayOutputStream(width * height * b.length / 2 + 64);
+				final Deflater deflater = new Deflater(Deflater.BEST_SPEED, false);
+				try {
+					final DeflaterOutputStream def = new DeflaterOutputStream(ba, deflater, 65536);
+					for (int i=0; i<b.length; ++i) def.write(b[i], 0, width * height);
+					def.finish();
+					def.close();
+				} finally {
+					deflater.end();
+				}
+				compressed = ba.toByteArray();
+				len = compressed.length;
+			} else if (-1 == get(id, level)) {
+				return true; // nothing to remove
+			}
+			if (!ImageSaver.checkPath(file.getAbsolutePath())) return false;
+			final RandomAccessFile ra = new RandomAccessFile(file, "rw");
+			final long offset;
+			try {
+				if (0 == ra.length()) ra.writeLong(MAGIC);
+				offset = ra.length();
+				ra.seek(offset);
+				final byte[] h = new byte[RECORD_HEADER_SIZE];
+				ByteBuffer.wrap(h).putLong(id).putInt(level).putInt(width).putInt(height).put((byte)(null == b ? 0 : b.length)).putInt(len);
+				ra.write(h);
+				if (null != compressed) ra.write(compressed, 0, len);
+			} finally {
+				ra.close();
+			}
+			// Index entry after the record: an index never points to a record that isn't fully written
+			final long o = null == b ? -1 : offset;
+			final RandomAccessFile ri = new RandomAccessFile(index, "rw");
+			try {
+				ri.seek(ri.length());
+				final byte[] e = new byte[INDEX_ENTRY_SIZE];
+				ByteBuffer.wrap(e).putLong(id).putInt(level).putLong(o);
+				ri.write(e);
+			} finally {
+				ri.close();
+			}
+			put(id, level, o);
+			++n_records;
+			return true;
+		}
+
+		final ImageBytes read(final long id, final int level) throws IOException, DataFormatException {
+			lock.readLock().lock();
+			try {
+				return readLocked(id, level);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		private final ImageBytes readLocked(final long id, final int level) throws IOException, DataFormatException {
+			final long offset = get(id, level);
+			if (-1 == offset) return null;
+			final RandomAccessFile ra = new RandomAccessFile(file, "r");
+			try {
+				final FileChannel fc = ra.getChannel();
+				final ByteBuffer h = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+				readFully(fc, h, offset);
+				h.flip();
+				if (id != h.getLong() || level != h.getInt()) throw new IOException("Corrupted mipmaps container index for " + file);
+				final int width = h.getInt(),
+				          height = h.getInt(),
+				          nCh = h.get(),
+				          len = h.getInt();
+				final ByteBuffer cb = ByteBuffer.allocate(len);
+				readFully(fc, cb, offset + RECORD_HEADER_SIZE);
+				final int chLength = width * height;
+				final byte[][] ch = ArrayPool.takeBytes(nCh, chLength);
+				final Inflater inf = new Inflater(false);
+				try {
+					inf.setInput(cb.array(), 0, len);
+					for (int i=0; i<nCh; ++i) {
+						int sum = 0;
+						while (sum < chLength) {
+							final int r = inf.inflate(ch[i], sum, chLength - sum);
+							if (0 == r && (inf.finished() || inf.needsInput())) break;
+							sum += r;
+						}
+					}
+				} finally {
+					inf.end();
+				}
+				return new ImageBytes(ch, width, height);
+			} finally {
+				ra.close();
+			}
+		}
+
+		/** Fraction of records that are superseded or tombstones. */
+		final double garbage() {
+			if (0 == n_records) return 0;
+			int live = 0;
+			for (final long[] o : offsets.values()) {
+				for (int i=0; i<o.length; ++i) if (-1 != o[i]) ++live;
+			}
+			return 1 - live / (double)n_records;
+		}
+	}
+
+	static private final void readFully(final FileChannel fc, final ByteBuffer b, long position) throws IOException {
+		while (b.hasRemaining()) {
+			final int r = fc.read(b, position);
+			if (-1 == r) throw new EOFException();
+			position += r;
+		}
+	}
+
+	/** Open containers, by file path. Read without locking; opened while synchronized on it. */
+	static private final Map<String,Container> containers = new ConcurrentHashMap<String,Container>();
+
+	static private final Container getContainer(final String container_path) throws IOException {
+		final Container open = containers.get(container_path);
+		if (null != open) return open;
+		synchronized (containers) {
+			Container c = containers.get(container_path);
+			if (null == c) {
+				c = new Container(container_path);
+				c.open();
+				containers.put(container_path, c);
+			}
+			return c;
+		}
+	}
+
+	/** Forget the in-memory index of the container, if open. */
+	static public final void close(final String container_path) {
+		synchronized (containers) {
+			containers.remove(container_path);
+		}
+	}
+
+	/** Returns the path that addresses the mipmap at @param level for @param id within the container at @param container_path. */
+	static public final String createPath(final String container_path, final long id, final int level) {
+		return new StringBuilder(container_path).append('#').append(id).append(':').append(level).toString();
+	}
+
+	static private final String containerPath(final String path) {
+		return path.substring(0, path.lastIndexOf('#'));
+	}
+
+	static private final long id(final String path) {
+		return Long.parseLong(path.substring(path.lastIndexOf('#') + 1, path.lastIndexOf(':')));
+	}
+
+	static private final int level(final String path) {
+		return Integer.parseInt(path.substring(path.lastIndexOf(':') + 1));
+	}
+
+	/** @param path as created by {@link #createPath(String, long, int)}. */
+	static public final boolean save(final String path, final byte[][] b, final int width, final int height) {
+		try {
+			return getContainer(containerPath(path)).append(id(path), level(path), b, width, height);
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return false;
+	}
+
+	/** Returns true if the mipmap addressed by @param path exists. */
+	static public final boolean exists(final String path) {
+		try {
+			return getContainer(containerPath(path)).has(id(path), level(path));
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return false;
+	}
+
+	/** Remove the mipmap addressed by @param path, by appending a tombstone. */
+	static public final boolean remove(final String path) {
+		try {
+			return getContainer(containerPath(path)).append(id(path), level(path), null, 0, 0);
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return false;
+	}
+
+	/** Remove all levels of @param id from the container at @param container_path. */
+	static public final boolean removeAll(final String container_path, final long id) {
+		try {
+			final Container c = getContainer(container_path);
+			synchronized (c) {
+				final long[] o = c.offsets.get(id);
+				if (null == o) return true;
+				boolean ok = true;
+				for (int level=0; level<o.length; ++level) {
+					if (-1 != o[level]) ok = c.append(id, level, null, 0, 0) && ok;
+				}
+				return ok;
+			}
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return false;
+	}
+
+	static public final ImageBytes load(final String path) {
+		try {
+			return getContainer(containerPath(path)).read(id(path), level(path));
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return null;
+	}
+
+	static public final BufferedImage read(final String path) {
+		try {
+			final ImageBytes ib = load(path);
+			if (null == ib) return null;
+			final byte[][] ch = ib.c;
+			// Channel length also specifies the type
+			switch (ch.length) {
+				case RawMipMaps.GREY:
+					return ImageSaver.createGrayImage(ch[0], ib.width, ib.height);
+			}
+			try {
+				// Given that the BufferedImage is created with an int[], store the byte[] arrays for reuse
+				switch (ch.length) {
+					case RawMipMaps.GREY_ALPHA:
+						return ImageSaver.createARGBImagePre(P.blendPre(ch[0], ch[1]), ib.width, ib.height);
+					case RawMipMaps.RGB:
+						return ImageSaver.createRGBImage(P.blend(ch[0], ch[1], ch[2]), ib.width, ib.height);
+					case RawMipMaps.RGBA:
+						return ImageSaver.createARGBImagePre(P.blendPre(ch[0], ch[1], ch[2], ch[3]), ib.width, ib.height);
+				}
+			} finally {
+				ArrayPool.give(ch);
+			}
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return null;
+	}
+
+	/** Rewrite the container at @param container_path with only its live records,
+	 * if at least @param min_garbage (a fraction from 0 to 1) of its records are superseded or tombstones.
+	 * Appending waits until done, whereas reading goes on from the old file until the new one is swapped in.
+	 * Returns true if the container was rewritten. */
+	static public final boolean compact(final String container_path, final double min_garbage) {
+		try {
+			final Container c = getContainer(container_path);
+			synchronized (c) {
+				if (!c.file.exists() || c.garbage() < min_garbage) return false;
+				final String tmp_path = container_path + ".compacting";
+				final Container t = new Container(tmp_path);
+				t.file.delete();
+				t.index.delete();
+				for (final Map.Entry<Long,long[]> e : c.offsets.entrySet()) {
+					final long[] o = e.getValue();
+					for (int level=0; level<o.length; ++level) {
+						if (-1 == o[level]) continue;
+						final ImageBytes ib = c.read(e.getKey(), level);
+						t.append(e.getKey(), level, ib.c, ib.width, ib.height);
+						ArrayPool.give(ib.c);
+					}
+				}
+				c.lock.writeLock().lock();
+				try {
+					if (!t.file.exists()) {
+						// All records were garbage
+						c.file.delete();
+						c.index.delete();
+					} else {
+						if (!(c.file.delete() && t.file.renameTo(c.file))) {
+							throw new IOException("Could not replace " + c.file + " with its compacted version " + t.file);
+						}
+						c.index.delete();
+						t.index.renameTo(c.index);
+					}
+					// The offsets of the new generation, now that no reader uses the old ones
+					c.offsets.clear();
+					c.offsets.putAll(t.offsets);
+					c.n_records = t.n_records;
+				} finally {
+					c.lock.writeLock().unlock();
+				}
+				return true;
+			}
+		} catch (Exception e) {
+			IJError.print(e);
+		}
+		return false;
+	}
+
+	/** Calls {@link #compact(String, double)} with a minimum garbage fraction of zero, that is, always. */
+	static public final boolean compact(final String container_path) {
+		return compact(container_path, 0);
+	}
+}
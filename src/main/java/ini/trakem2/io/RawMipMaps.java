@@ -2,7 +2,7 @@ package ini.trakem2.io;
 
 import ini.trakem2.imaging.P;
 import ini.trakem2.persistence.ImageBytes;
-import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.ArrayPool;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 
@@ -68,7 +68,7 @@ public final class RawMipMaps {
 			final int height = ((h[4]&0xff) << 24) | ((h[5]&0xff) << 16) | ((h[6]&0xff) << 8) | (h[7]&0xff);
 			final int nCh = h[8];
 			final int chLength = (((int)f.length()) - HEADER_SIZE) / nCh;
-			final byte[][] ch = CachingThread.getOrCreateByteArray(nCh, chLength); // new byte[nCh][chLength];
+			final byte[][] ch = ArrayPool.takeBytes(nCh, chLength); // new byte[nCh][chLength];
 			for (int i=0; i<nCh; ++i) {
 				read(ra, ch[i]);
 			}
@@ -117,7 +117,7 @@ public final class RawMipMaps {
 						return ImageSaver.createARGBImagePre(P.blendPre(ch[0], ch[1], ch[2], ch[3]), ib.width, ib.height);
 				}
 			} finally {
-				CachingThread.storeForReuse(ch);
+				ArrayPool.give(ch);
 			}
 		} catch (Exception e) {
 			IJError.print(e);
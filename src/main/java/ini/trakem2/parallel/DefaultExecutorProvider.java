@@ -1,10 +1,10 @@
 package ini.trakem2.parallel;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
- * Default Executor Provider, which creates ExecutorServices from java.util.concurrent.Executors
+ * Default Executor Provider, which creates ExecutorServices as lanes of batch priority of the {@link Scheduler},
+ * so that they share the threads of all other TrakEM2 background work.
  *
  * @author Larry Lindsey
  */
@@ -15,7 +15,7 @@ public class DefaultExecutorProvider extends ExecutorProvider
     {
         int nCpu = Runtime.getRuntime().availableProcessors();
         int poolSize = nCpu / nThreads;
-        return Executors.newFixedThreadPool(poolSize < 1 ? 1 : poolSize);
+        return getService(Scheduler.Priority.BATCH, poolSize < 1 ? 1 : poolSize, "ExecutorProvider");
     }
 
     public ExecutorService getService(float fractionThreads)
@@ -37,6 +37,20 @@ public abstract class ExecutorProvider
         return provider.getService(fractionThreads);
     }
 
+    /**
+     * Returns an ExecutorService that runs at most maxThreads of its tasks at a time, as tasks of the
+     * given priority class.
+     * @param priority the class of the tasks, which determines which tasks run first when threads are scarce.
+     * @param maxThreads the maximum number of tasks of the returned ExecutorService to run at the same time.
+     * @param name the name given to the threads while they run its tasks.
+     * @return by default, a lane of the {@link Scheduler}, which shares the threads of all TrakEM2 background work
+     * within a global thread budget. Shut it down like any other ExecutorService when done.
+     */
+    public static ExecutorService getExecutorService(final Scheduler.Priority priority, final int maxThreads, final String name)
+    {
+        return provider.getService(priority, maxThreads, name);
+    }
+
     public static void setProvider(final ExecutorProvider ep)
     {
         provider = ep;
@@ -51,4 +65,12 @@ public abstract class ExecutorProvider
 
     public abstract ExecutorService getService(float fractionThreads);
 
+    /**
+     * Unless overriden, returns a lane of the {@link Scheduler}.
+     */
+    public ExecutorService getService(final Scheduler.Priority priority, final int maxThreads, final String name)
+    {
+        return Scheduler.getInstance().newLane(priority, maxThreads, name);
+    }
+
 }
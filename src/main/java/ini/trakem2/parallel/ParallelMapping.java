@@ -54,7 +54,7 @@ public final class ParallelMapping<I,O> implements Iterable<O>
 		// Check whether the inputs where already consumed
 		if (!in.hasNext()) return null;
 		
-		final ExecutorService exec = Utils.newFixedThreadPool(n_proc, ParallelMapping.class.getSimpleName());
+		final ExecutorService exec = Utils.newLane(n_proc, ParallelMapping.class.getSimpleName(), Scheduler.Priority.BATCH);
 		final LinkedList<Future<O>> futures = new LinkedList<Future<O>>();
 		
 		return new Iterator<O>() {
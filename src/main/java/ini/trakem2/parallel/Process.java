@@ -38,7 +38,7 @@ public class Process {
 
 	static private final <I,O> void process(final Iterable<I> inputs, final TaskFactory<I,O> generator, final Collection<O> outputs, final int n_proc, final boolean bound) throws Exception {
 		final int nproc = sensible(n_proc);
-		final ExecutorService exec = Utils.newFixedThreadPool(nproc, "Process." + (bound ? "progressive" : "unbound"));
+		final ExecutorService exec = Utils.newLane(nproc, "Process." + (bound ? "progressive" : "unbound"), Scheduler.Priority.BATCH);
 		try {
 			final LinkedList<Future<O>> fus = new LinkedList<Future<O>>();
 			final int ahead = Math.max(nproc + nproc, MIN_AHEAD);
@@ -77,7 +77,7 @@ public class Process {
 	}
 	static private final <I,O> void process(final Iterable<I> inputs, final TaskFactory<I,O> generator, final int n_proc, final boolean bound) throws Exception {
 		final int nproc = sensible(n_proc);
-		final ExecutorService exec = Utils.newFixedThreadPool(nproc, "Process." + (bound ? "progressive" : "unbound"));
+		final ExecutorService exec = Utils.newLane(nproc, "Process." + (bound ? "progressive" : "unbound"), Scheduler.Priority.BATCH);
 		try {
 			final LinkedList<Future<O>> fus = new LinkedList<Future<O>>();
 			final int ahead = Math.max(nproc + nproc, MIN_AHEAD);
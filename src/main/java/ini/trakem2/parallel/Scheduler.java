@@ -0,0 +1,460 @@
+package ini.trakem2.parallel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs all background work of TrakEM2 on one set of threads, bounded by a global thread budget,
+ * giving each task a {@link Priority} class.
+ *
+ * Work is submitted to lanes (see {@link #newLane(Priority, int, String)}): each lane is an {@link ExecutorService}
+ * that runs at most a given number of its tasks at a time, in the order submitted, and that can be shut down
+ * on its own like any thread pool. Whenever a thread is free, it runs the next task of the highest class that has any.
+ * Classes other than {@link Priority#INTERACTIVE} may not use all threads of the budget, so that painting
+ * is never stuck behind a long batch of work.
+ *
+ * A task that waits on the {@link java.util.concurrent.Future} of another task either runs that task itself,
+ * when not yet started, or gives up its thread of the budget while waiting; the same is done by {@link #acquire(Semaphore)}.
+ * This way, tasks that wait on other tasks can't exhaust the budget and deadlock.
+ *
+ * The threads are in a group of their own, so interrupting the group of the thread that submits work doesn't reach them:
+ * instead, {@link #interrupt(ThreadGroup)} cancels the tasks of all lanes created from that group, as {@link ini.trakem2.utils.Bureaucrat#quit()} does.
+ */
+public final class Scheduler
+{
+	/** In order of decreasing priority. */
+	public enum Priority {
+		/** Work that the user is waiting for to see the screen updated. */
+		INTERACTIVE(Thread.NORM_PRIORITY),
+		/** Loading images that may be needed soon. */
+		PREFETCH(Thread.NORM_PRIORITY - 1),
+		/** Generating and removing mipmaps. */
+		MIPMAPS(Thread.NORM_PRIORITY - 1),
+		/** Long computations such as alignment, import, export and analysis. */
+		BATCH(Thread.MIN_PRIORITY);
+
+		final int thread_priority;
+
+		Priority(final int thread_priority) {
+			this.thread_priority = thread_priority;
+		}
+	}
+
+	static private final Scheduler instance = new Scheduler(Runtime.getRuntime().availableProcessors());
+
+	/** The scheduler of all TrakEM2 background work. */
+	static public final Scheduler getInstance() {
+		return instance;
+	}
+
+	/** The task run by the current thread, if it is a thread of the scheduler. */
+	static private final ThreadLocal<Task<?>> current = new ThreadLocal<Task<?>>();
+
+	private final ThreadPoolExecutor threads;
+	private int budget;
+	/** Number of tasks holding a thread of the budget, in total and per class. */
+	private int running = 0;
+	private final int[] class_running = new int[Priority.values().length];
+	/** For each class, the lanes with tasks waiting and below their own limit, served in turn. */
+	private final ArrayList<ArrayDeque<Lane>> ready = new ArrayList<ArrayDeque<Lane>>();
+	private final Metrics[] metrics = new Metrics[Priority.values().length];
+	/** All lanes that may have tasks, to cancel them by {@link ThreadGroup}; lanes no longer referenced are dropped. */
+	private final WeakHashMap<Lane,Boolean> all_lanes = new WeakHashMap<Lane,Boolean>();
+
+	private Scheduler(final int budget) {
+		this.budget = Math.max(1, budget);
+		for (final Priority p : Priority.values()) {
+			ready.add(new ArrayDeque<Lane>());
+			metrics[p.ordinal()] = new Metrics();
+		}
+		// In a group of their own, not within the group of whichever thread first submits a task,
+		// so that interrupting a group of threads (see Bureaucrat#quit) doesn't reach them.
+		ThreadGroup root = Thread.currentThread().getThreadGroup();
+		while (null != root.getParent()) root = root.getParent();
+		final ThreadGroup group = new ThreadGroup(root, "T2-scheduler");
+		this.threads = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			final AtomicInteger ai = new AtomicInteger(0);
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(group, r, "T2-scheduler-" + ai.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/** Set the maximum number of tasks to run at the same time, over all lanes. */
+	public void setThreadBudget(final int n) {
+		synchronized (this) {
+			budget = Math.max(1, n);
+			dispatch();
+		}
+	}
+
+	public synchronized int getThreadBudget() {
+		return budget;
+	}
+
+	/** How many threads of the budget may be used by tasks of class {@code p}. */
+	private final int cap(final Priority p) {
+		switch (p) {
+			case INTERACTIVE: return budget;
+			case PREFETCH: return Math.max(1, budget / 2);
+			default: return Math.max(1, budget - 1);
+		}
+	}
+
+	/** Returns a new lane for tasks of class {@code priority}, of which at most {@code max_threads} run at the same time.
+	 * The {@code name} is given to the threads while they run the tasks of the lane. */
+	public Lane newLane(final Priority priority, final int max_threads, final String name) {
+		// A lane created by a task belongs to the same group as the lane of that task
+		final Task<?> task = current.get();
+		final Lane lane = new Lane(priority, Math.max(1, max_threads), name, null == task ? Thread.currentThread().getThreadGroup() : task.lane.group);
+		synchronized (this) {
+			all_lanes.put(lane, Boolean.TRUE);
+		}
+		return lane;
+	}
+
+	/** Cancel the tasks of all lanes created by the threads of {@code group} or of its subgroups, or by their tasks:
+	 * those waiting to run are cancelled, and the threads running the others are interrupted, like the threads of
+	 * a thread pool of the group would be by {@link ThreadGroup#interrupt()}. The lanes are not shut down. */
+	public void interrupt(final ThreadGroup group) {
+		synchronized (this) {
+			for (final Lane lane : all_lanes.keySet()) {
+				if (!group.parentOf(lane.group)) continue;
+				for (final Task<?> task : lane.queue) task.cancel(false);
+				lane.queue.clear();
+				for (final Thread t : lane.threads) t.interrupt();
+				if (lane.isTerminated()) notifyAll();
+			}
+		}
+	}
+
+	/** Acquire a permit of {@code semaphore}, giving up the thread of the budget while waiting if called from a task. */
+	static public void acquire(final Semaphore semaphore) throws InterruptedException {
+		acquire(semaphore, 1);
+	}
+
+	/** Acquire {@code permits} of {@code semaphore}, giving up the thread of the budget while waiting if called from a task. */
+	static public void acquire(final Semaphore semaphore, final int permits) throws InterruptedException {
+		if (semaphore.tryAcquire(permits)) return;
+		final Task<?> task = current.get();
+		if (null == task) {
+			semaphore.acquire(permits);
+			return;
+		}
+		instance.release(task);
+		try {
+			semaphore.acquire(permits);
+		} finally {
+			instance.reacquire(task);
+		}
+	}
+
+	/** Start as many tasks as the budget allows, highest classes first. Must be called under the lock. */
+	private void dispatch() {
+		for (final Priority p : Priority.values()) {
+			final int c = p.ordinal();
+			final ArrayDeque<Lane> lanes = ready.get(c);
+			while (running < budget && class_running[c] < cap(p) && !lanes.isEmpty()) {
+				final Lane lane = lanes.poll();
+				final Task<?> task = lane.queue.poll();
+				if (null == task) {
+					lane.is_ready = false;
+					continue;
+				}
+				++lane.running;
+				++running;
+				++class_running[c];
+				task.holds_slot = true;
+				if (!lane.queue.isEmpty() && lane.running < lane.max_threads) lanes.add(lane); // at the end: take turns
+				else lane.is_ready = false;
+				final Task<?> t = task;
+				threads.execute(new Runnable() {
+					@Override
+					public void run() {
+						runTask(t);
+					}
+				});
+			}
+			if (running >= budget) return;
+		}
+	}
+
+	private void runTask(final Task<?> task) {
+		final Lane lane = task.lane;
+		final Thread thread = Thread.currentThread();
+		final String name = thread.getName();
+		synchronized (this) {
+			lane.threads.add(thread);
+		}
+		thread.setName(lane.name + "-" + name);
+		thread.setPriority(lane.priority.thread_priority);
+		final long start = System.nanoTime();
+		current.set(task);
+		try {
+			task.run();
+		} finally {
+			current.remove();
+			thread.setName(name);
+			metrics[lane.priority.ordinal()].done(start - task.created, System.nanoTime() - start);
+			synchronized (this) {
+				lane.threads.remove(thread);
+				Thread.interrupted(); // don't carry an interruption from shutdownNow over to the next task
+				--lane.running;
+				if (task.holds_slot) {
+					task.holds_slot = false;
+					--running;
+					--class_running[lane.priority.ordinal()];
+				}
+				lane.makeReady();
+				if (lane.isTerminated()) notifyAll();
+				dispatch();
+			}
+		}
+	}
+
+	/** Give up the thread of the budget held by {@code task}, which is about to wait. */
+	private synchronized void release(final Task<?> task) {
+		if (!task.holds_slot) return;
+		task.holds_slot = false;
+		--running;
+		--class_running[task.lane.priority.ordinal()];
+		dispatch();
+	}
+
+	/** Take back a thread of the budget for {@code task}, even if above the budget: the task is running already. */
+	private synchronized void reacquire(final Task<?> task) {
+		if (task.holds_slot) return;
+		task.holds_slot = true;
+		++running;
+		++class_running[task.lane.priority.ordinal()];
+	}
+
+	/** Counts of one class of tasks. */
+	static private final class Metrics {
+		private long submitted = 0, completed = 0, stolen = 0, wait_ns = 0, run_ns = 0;
+
+		synchronized void submitted() { ++submitted; }
+		synchronized void stolen() { ++stolen; }
+		synchronized void done(final long wait, final long run) {
+			++completed;
+			wait_ns += wait;
+			run_ns += run;
+		}
+		synchronized void append(final StringBuilder sb) {
+			sb.append("submitted: ").append(submitted)
+			  .append(", completed: ").append(completed)
+			  .append(", run by a waiting task: ").append(stolen);
+			if (completed > 0) {
+				sb.append(", mean wait: ").append(wait_ns / completed / 1000000).append(" ms")
+				  .append(", mean run: ").append(run_ns / completed / 1000000).append(" ms");
+			}
+		}
+	}
+
+	/** The per-class counts of tasks, and the current use of the budget. */
+	public String getMetrics() {
+		final StringBuilder sb = new StringBuilder();
+		synchronized (this) {
+			sb.append("Scheduler: ").append(running).append(" running of a budget of ").append(budget).append(" threads\n");
+		}
+		for (final Priority p : Priority.values()) {
+			final int c = p.ordinal();
+			synchronized (this) {
+				int queued = 0;
+				for (final Lane lane : ready.get(c)) queued += lane.queue.size();
+				sb.append("  ").append(p).append(": running ").append(class_running[c]).append(", queued in ready lanes ").append(queued).append(", ");
+			}
+			metrics[c].append(sb);
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	private final class Task<T> extends FutureTask<T> {
+		final Lane lane;
+		final long created = System.nanoTime();
+		/** Whether it holds a thread of the budget; guarded by the Scheduler. */
+		boolean holds_slot = false;
+
+		Task(final Lane lane, final Callable<T> callable) {
+			super(callable);
+			this.lane = lane;
+		}
+
+		Task(final Lane lane, final Runnable runnable, final T result) {
+			super(runnable, result);
+			this.lane = lane;
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			final Task<?> waiting = current.get();
+			if (null == waiting || isDone()) return super.get();
+			if (lane.steal(this)) {
+				metrics[lane.priority.ordinal()].stolen();
+				run();
+				return super.get();
+			}
+			release(waiting);
+			try {
+				return super.get();
+			} finally {
+				reacquire(waiting);
+			}
+		}
+
+		@Override
+		public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			final Task<?> waiting = current.get();
+			if (null == waiting || isDone()) return super.get(timeout, unit);
+			release(waiting);
+			try {
+				return super.get(timeout, unit);
+			} finally {
+				reacquire(waiting);
+			}
+		}
+	}
+
+	/** An {@link ExecutorService} for tasks of one {@link Priority} class, see {@link Scheduler#newLane(Priority, int, String)}. */
+	public final class Lane extends AbstractExecutorService {
+		final Priority priority;
+		final int max_threads;
+		final String name;
+		/** The group of the thread that created it, see {@link Scheduler#interrupt(ThreadGroup)}. */
+		final ThreadGroup group;
+		// All guarded by the Scheduler:
+		final ArrayDeque<Task<?>> queue = new ArrayDeque<Task<?>>();
+		final HashSet<Thread> threads = new HashSet<Thread>();
+		int running = 0;
+		boolean is_ready = false;
+		boolean shutdown = false;
+
+		private Lane(final Priority priority, final int max_threads, final String name, final ThreadGroup group) {
+			this.priority = priority;
+			this.max_threads = max_threads;
+			this.name = name;
+			this.group = group;
+		}
+
+		/** The number of tasks waiting to run. */
+		public int getQueueSize() {
+			synchronized (Scheduler.this) {
+				return queue.size();
+			}
+		}
+
+		/** Add to the ready lanes if it has tasks to run and can run more. Under the lock. */
+		void makeReady() {
+			if (!is_ready && !queue.isEmpty() && running < max_threads) {
+				is_ready = true;
+				ready.get(priority.ordinal()).add(this);
+			}
+		}
+
+		/** Remove {@code task} from the queue, to be run by the caller; false if already started. */
+		boolean steal(final Task<?> task) {
+			synchronized (Scheduler.this) {
+				return queue.remove(task);
+			}
+		}
+
+		@Override
+		protected <T> FutureTask<T> newTaskFor(final Callable<T> callable) {
+			return new Task<T>(this, callable);
+		}
+
+		@Override
+		protected <T> FutureTask<T> newTaskFor(final Runnable runnable, final T value) {
+			return new Task<T>(this, runnable, value);
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			final Task<?> task = command instanceof Task && this == ((Task<?>)command).lane
+					? (Task<?>)command
+					: new Task<Object>(this, command, null);
+			synchronized (Scheduler.this) {
+				if (shutdown) throw new RejectedExecutionException("Lane " + name + " is shut down");
+				queue.add(task);
+				makeReady();
+				dispatch();
+			}
+			metrics[priority.ordinal()].submitted();
+		}
+
+		@Override
+		public void shutdown() {
+			synchronized (Scheduler.this) {
+				shutdown = true;
+				if (isTerminated()) Scheduler.this.notifyAll();
+			}
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			synchronized (Scheduler.this) {
+				shutdown = true;
+				final ArrayList<Runnable> pending = new ArrayList<Runnable>(queue);
+				queue.clear();
+				for (final Thread t : threads) t.interrupt();
+				if (isTerminated()) Scheduler.this.notifyAll();
+				return pending;
+			}
+		}
+
+		@Override
+		public boolean isShutdown() {
+			synchronized (Scheduler.this) {
+				return shutdown;
+			}
+		}
+
+		@Override
+		public boolean isTerminated() {
+			synchronized (Scheduler.this) {
+				return shutdown && 0 == running && queue.isEmpty();
+			}
+		}
+
+		@Override
+		public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+			final long end = System.nanoTime() + unit.toNanos(timeout);
+			// Like waiting on a Future: a task gives up its thread of the budget while waiting
+			final Task<?> waiting = current.get();
+			synchronized (Scheduler.this) {
+				if (isTerminated()) return true;
+				if (null != waiting) release(waiting);
+				try {
+					while (!isTerminated()) {
+						final long left = end - System.nanoTime();
+						if (left <= 0) return false;
+						TimeUnit.NANOSECONDS.timedWait(Scheduler.this, left);
+					}
+					return true;
+				} finally {
+					if (null != waiting) reacquire(waiting);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,751 @@
+/**
+
+TrakEM2 plugin for ImageJ(C).
+Copyright (C) 2005-2009 Albert Cardona and Rodney Douglas.
+
+This program is free software; you can redistribute it and/or
+modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+
+You may contact Albert Cardona at acardona at ini.phys.ethz.ch
+Institute of Neuroinformatics, University of Zurich / ETH, Switzerland.
+**/
+
+package ini.trakem2.persistence;
+
+import ini.trakem2.Project;
+import ini.trakem2.tree.DTDParser;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/** A compact binary encoding of the XML of a project, for files with the {@link #EXTENSION} extension.
+ *
+ * The file stores the same sequence of elements, attributes and text as the XML file would,
+ * so that reading it means replaying the very same SAX events into the {@link TMLHandler},
+ * and the semantics are exactly those of the XML. What changes is the encoding:
+ * <ul>
+ * <li>element names, attribute names and short attribute values are written once into
+ * a string table that both writer and reader build as they go, and thereafter as an index;</li>
+ * <li>numeric attribute values are written as binary longs or doubles whenever doing so
+ * reproduces exactly the same text;</li>
+ * <li>whitespace between elements is omitted;</li>
+ * <li>the whole is deflated with the fastest compression level.</li>
+ * </ul>
+ *
+ * The file starts with the {@link #MAGIC} bytes, followed by the deflated stream that contains
+ * the document type, the DTD and then the records. See {@link #convertXMLToBinary(String, String)}
+ * and {@link #convertBinaryToXML(String, String)} for converting files in both directions.
+ */
+public final class BinaryProject
+{
+	static public final String EXTENSION = ".t2b";
+
+	static private final byte[] MAGIC = new byte[]{'T', '2', 'B', 'I', 'N', 0, 0, 1};
+
+	// Record types
+	static private final int EOF = 0,
+	                         START = 1,
+	                         END = 2,
+	                         TEXT = 3;
+
+	// String and attribute value codes
+	static private final int REF = 0,     // index into the string table
+	                         NEW = 1,     // a new entry of the string table
+	                         LITERAL = 2, // a string not worth adding to the table
+	                         LONG = 3,
+	                         DOUBLE = 4;
+
+	/** Strings longer than this are not added to the string table. */
+	static private final int MAX_INTERNED_LENGTH = 48;
+	/** Limit the size of the string table. */
+	static private final int MAX_TABLE_SIZE = 1 << 20;
+
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+
+	private BinaryProject() {}
+
+	static public final boolean isBinary(final String path) {
+		return null != path && path.toLowerCase().endsWith(EXTENSION);
+	}
+
+	/** A SAX handler that writes the events it receives in the binary format. */
+	static private final class Encoder extends DefaultHandler {
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final DeflaterOutputStream dfos;
+		private final DataOutputStream dos;
+		private final HashMap<String,Integer> table = new HashMap<String,Integer>();
+		private final StringBuilder text = new StringBuilder();
+		private final byte[] buf = new byte[10];
+
+		Encoder(final OutputStream os, final String doctype, final String dtd) throws IOException {
+			os.write(MAGIC);
+			this.dfos = new DeflaterOutputStream(os, deflater, 65536);
+			this.dos = new DataOutputStream(new BufferedOutputStream(dfos, 65536));
+			writeLiteral(doctype);
+			writeLiteral(dtd);
+		}
+
+		private final void writeVarLong(long v) throws IOException {
+			int i = 0;
+			while (0 != (v & ~0x7FL)) {
+				buf[i++] = (byte)((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[i++] = (byte)v;
+			dos.write(buf, 0, i);
+		}
+
+		private final void writeLiteral(final String s) throws IOException {
+			final byte[] b = s.getBytes(UTF8);
+			writeVarLong(b.length);
+			dos.write(b);
+		}
+
+		/** Write a name or a value that is expected to repeat. */
+		private final void writeString(final String s) throws IOException {
+			final Integer index = table.get(s);
+			if (null != index) {
+				dos.write(REF);
+				writeVarLong(index);
+			} else if (s.length() <= MAX_INTERNED_LENGTH && table.size() < MAX_TABLE_SIZE) {
+				dos.write(NEW);
+				writeLiteral(s);
+				table.put(s, table.size());
+			} else {
+				dos.write(LITERAL);
+				writeLiteral(s);
+			}
+		}
+
+		private final void writeValue(final String s) throws IOException {
+			final int len = s.length();
+			if (len > 0 && len < 25) {
+				final char c = s.charAt(0);
+				if ('-' == c || (c >= '0' && c <= '9')) {
+					try {
+						if (-1 == s.indexOf('.') && -1 == s.indexOf('E')) {
+							final long v = Long.parseLong(s);
+							if (Long.toString(v).equals(s)) {
+								dos.write(LONG);
+								writeVarLong((v << 1) ^ (v >> 63)); // zig-zag
+								return;
+							}
+						} else {
+							final double v = Double.parseDouble(s);
+							if (Double.toString(v).equals(s)) {
+								dos.write(DOUBLE);
+								dos.writeDouble(v);
+								return;
+							}
+						}
+					} catch (NumberFormatException nfe) {}
+				}
+			}
+			writeString(s);
+		}
+
+		private final void flushText() throws IOException {
+			if (0 == text.length()) return;
+			// Whitespace between elements carries no meaning for the TMLHandler
+			for (int i=0; i<text.length(); i++) {
+				if (!Character.isWhitespace(text.charAt(i))) {
+					dos.write(TEXT);
+					writeLiteral(text.toString());
+					break;
+				}
+			}
+			text.setLength(0);
+		}
+
+		/** Write the start of an element, with @param attributes holding names and values in alternation. */
+		final void start(final String name, final ArrayList<String> attributes) throws IOException {
+			flushText();
+			dos.write(START);
+			writeString(name);
+			final int n = attributes.size() / 2;
+			writeVarLong(n);
+			for (int i=0; i<attributes.size(); i+=2) {
+				writeString(attributes.get(i));
+				writeValue(attributes.get(i+1));
+			}
+		}
+
+		final void end() throws IOException {
+			flushText();
+			dos.write(END);
+		}
+
+		@Override
+		public void startElement(final String uri, final String local_name, final String qualified_name, final Attributes attributes) throws SAXException {
+			try {
+				flushText();
+				dos.write(START);
+				writeString(qualified_name);
+				final int n = attributes.getLength();
+				writeVarLong(n);
+				for (int i=0; i<n; i++) {
+					writeString(attributes.getQName(i));
+					writeValue(attributes.getValue(i));
+				}
+			} catch (IOException ioe) {
+				throw new SAXException(ioe);
+			}
+		}
+
+		@Override
+		public void endElement(final String uri, final String local_name, final String qualified_name) throws SAXException {
+			try {
+				end();
+			} catch (IOException ioe) {
+				throw new SAXException(ioe);
+			}
+		}
+
+		@Override
+		public void characters(final char[] c, final int start, final int length) {
+			text.append(c, start, length);
+		}
+
+		/** Write the end of the records and complete the compressed stream, without closing the underlying stream. */
+		final void finish() throws IOException {
+			try {
+				flushText();
+				dos.write(EOF);
+				dos.flush();
+				dfos.finish();
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	/** Reads the records of a binary file. */
+	static private final class Decoder {
+		private final Inflater inflater = new Inflater();
+		private final DataInputStream dis;
+		private final ArrayList<String> table = new ArrayList<String>();
+		private byte[] bytes = new byte[256];
+		final String doctype, dtd;
+
+		Decoder(final InputStream is) throws IOException {
+			final byte[] magic = new byte[MAGIC.length];
+			new DataInputStream(is).readFully(magic);
+			for (int i=0; i<MAGIC.length; i++) {
+				if (magic[i] != MAGIC[i]) throw new IOException("Not a TrakEM2 binary project file.");
+			}
+			this.dis = new DataInputStream(new BufferedInputStream(new InflaterInputStream(is, inflater, 65536), 65536));
+			this.doctype = readLiteral();
+			this.dtd = readLiteral();
+		}
+
+		private final long readVarLong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				final int b = dis.readUnsignedByte();
+				v |= ((long)(b & 0x7F)) << shift;
+				if (0 == (b & 0x80)) return v;
+			}
+			throw new IOException("Malformed number.");
+		}
+
+		private final String readLiteral() throws IOException {
+			final int len = (int) readVarLong();
+			if (bytes.length < len) bytes = new byte[Math.max(len, bytes.length * 2)];
+			dis.readFully(bytes, 0, len);
+			return new String(bytes, 0, len, UTF8);
+		}
+
+		private final String readString(final int code) throws IOException {
+			switch (code) {
+				case REF:
+					return table.get((int) readVarLong());
+				case NEW:
+					final String s = readLiteral();
+					table.add(s);
+					return s;
+				case LITERAL:
+					return readLiteral();
+				case LONG:
+					final long v = readVarLong();
+					return Long.toString((v >>> 1) ^ -(v & 1));
+				case DOUBLE:
+					return Double.toString(dis.readDouble());
+			}
+			throw new IOException("Unknown string code: " + code);
+		}
+
+		/** Send all records as SAX events to @param handler. */
+		final void replay(final ContentHandler handler) throws IOException, SAXException {
+			final ArrayList<String> open = new ArrayList<String>();
+			final AttributesImpl attributes = new AttributesImpl();
+			char[] chars = new char[256];
+			handler.startDocument();
+			try {
+				while (true) {
+					final int record = dis.read();
+					switch (record) {
+						case START:
+							final String name = readString(dis.readUnsignedByte());
+							final int n = (int) readVarLong();
+							attributes.clear();
+							for (int i=0; i<n; i++) {
+								final String key = readString(dis.readUnsignedByte());
+								attributes.addAttribute("", key, key, "CDATA", readString(dis.readUnsignedByte()));
+							}
+							open.add(name);
+							handler.startElement("", name, name, attributes);
+							break;
+						case END:
+							final String closing = open.remove(open.size() -1);
+							handler.endElement("", closing, closing);
+							break;
+						case TEXT:
+							final String text = readLiteral();
+							if (chars.length < text.length()) chars = new char[text.length()];
+							text.getChars(0, text.length(), chars, 0);
+							handler.characters(chars, 0, text.length());
+							break;
+						case EOF:
+							if (!open.isEmpty()) throw new EOFException("Truncated binary project file.");
+							handler.endDocument();
+							return;
+						default:
+							// Includes -1 for the end of the stream
+							throw new EOFException("Truncated or corrupted binary project file.");
+					}
+				}
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+
+	/** Writes the SAX events it receives as indented XML text. */
+	static private final class XMLWriter extends DefaultHandler {
+		private final Writer w;
+		private int depth = 0;
+		/** Whether the last start tag has not been closed with '&gt;' yet. */
+		private boolean pending = false;
+		private boolean had_text = false;
+
+		XMLWriter(final Writer w, final String doctype, final String dtd) throws IOException {
+			this.w = w;
+			w.write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<!DOCTYPE ");
+			w.write(doctype);
+			w.write(" [\n");
+			w.write(dtd);
+			w.write("] >\n\n");
+		}
+
+		private final void indent() throws IOException {
+			for (int i=0; i<depth; i++) w.write('\t');
+		}
+
+		private final void escape(final String s, final boolean attribute) throws IOException {
+			for (int i=0; i<s.length(); i++) {
+				final char c = s.charAt(i);
+				switch (c) {
+					case '&': w.write("&amp;"); break;
+					case '<': w.write("&lt;"); break;
+					case '>': w.write("&gt;"); break;
+					case '"': if (attribute) w.write("&quot;"); else w.write(c); break;
+					case '\n': if (attribute) w.write("&#10;"); else w.write(c); break;
+					case '\r': if (attribute) w.write("&#13;"); else w.write(c); break;
+					case '\t': if (attribute) w.write("&#9;"); else w.write(c); break;
+					default: w.write(c);
+				}
+			}
+		}
+
+		@Override
+		public void startElement(final String uri, final String local_name, final String qualified_name, final Attributes attributes) throws SAXException {
+			try {
+				if (pending) w.write(">\n");
+				indent();
+				w.write('<');
+				w.write(qualified_name);
+				for (int i=0; i<attributes.getLength(); i++) {
+					w.write('\n');
+					indent();
+					w.write('\t');
+					w.write(attributes.getQName(i));
+					w.write("=\"");
+					escape(attributes.getValue(i), true);
+					w.write('"');
+				}
+				pending = true;
+				had_text = false;
+				depth++;
+			} catch (IOException ioe) {
+				throw new SAXException(ioe);
+			}
+		}
+
+		@Override
+		public void endElement(final String uri, final String local_name, final String qualified_name) throws SAXException {
+			try {
+				depth--;
+				if (pending) {
+					w.write(" />\n");
+					pending = false;
+					return;
+				}
+				if (!had_text) indent();
+				w.write("</");
+				w.write(qualified_name);
+				w.write(">\n");
+				had_text = false;
+			} catch (IOException ioe) {
+				throw new SAXException(ioe);
+			}
+		}
+
+		@Override
+		public void characters(final char[] c, final int start, final int length) throws SAXException {
+			try {
+				if (pending) {
+					w.write('>');
+					pending = false;
+				}
+				escape(new String(c, start, length), false);
+				had_text = true;
+			} catch (IOException ioe) {
+				throw new SAXException(ioe);
+			}
+		}
+	}
+
+	/** Encodes the XML text written into it as records, as it is written: a tokenizer for the well-formed XML
+	 * that the exportXML methods emit, so that saving in the binary format runs in the saving thread without
+	 * parsing the XML again. Entities are decoded, and line ends and whitespace in attribute values are
+	 * normalized, as an XML parser would. Processing instructions, comments and declarations are skipped. */
+	static private final class RecordWriter extends Writer {
+		static private final int TEXT = 0,
+		                         ENTITY = 1,
+		                         TAG = 2,
+		                         NAME = 3,
+		                         IN_TAG = 4,
+		                         ATTRIBUTE_NAME = 5,
+		                         EQUALS = 6,
+		                         ATTRIBUTE_VALUE = 7,
+		                         EMPTY_TAG = 8,
+		                         END_TAG = 9,
+		                         INSTRUCTION = 10,
+		                         DECLARATION = 11;
+
+		private final Encoder encoder;
+		private final StringBuilder token = new StringBuilder(),
+		                            entity = new StringBuilder();
+		private final ArrayList<String> attributes = new ArrayList<String>();
+		private String name = null;
+		private int state = TEXT,
+		            entity_state = TEXT,
+		            depth = 0;
+		private char quote = '"',
+		             last = 0;
+		private boolean cr = false;
+
+		RecordWriter(final Encoder encoder) {
+			this.encoder = encoder;
+		}
+
+		@Override
+		public void write(final int c) throws IOException {
+			put((char)c);
+		}
+
+		@Override
+		public void write(final char[] c, final int off, final int len) throws IOException {
+			for (int i=off, end=off+len; i<end; i++) put(c[i]);
+		}
+
+		@Override
+		public void write(final String s, final int off, final int len) throws IOException {
+			for (int i=off, end=off+len; i<end; i++) put(s.charAt(i));
+		}
+
+		@Override
+		public void flush() {}
+
+		/** Check that the XML ended outside of any tag. */
+		@Override
+		public void close() throws IOException {
+			if (TEXT != state) throw new IOException("Incomplete XML: ended within a tag");
+		}
+
+		private final void put(final char c) throws IOException {
+			// Line ends are read as a single '\n'
+			if ('\n' == c && cr) {
+				cr = false;
+				return;
+			}
+			cr = '\r' == c;
+			step(cr ? '\n' : c);
+		}
+
+		private final void step(final char c) throws IOException {
+			switch (state) {
+				case TEXT:
+					if ('<' == c) state = TAG;
+					else if ('&' == c) openEntity();
+					else encoder.text.append(c);
+					break;
+				case ENTITY:
+					if (';' == c) {
+						decodeEntity(TEXT == entity_state ? encoder.text : token);
+						state = entity_state;
+					} else entity.append(c);
+					break;
+				case TAG:
+					if ('/' == c) state = END_TAG;
+					else if ('?' == c) state = INSTRUCTION;
+					else if ('!' == c) {
+						token.setLength(0);
+						depth = 0;
+						state = DECLARATION;
+					} else {
+						token.setLength(0);
+						token.append(c);
+						state = NAME;
+					}
+					break;
+				case NAME:
+					if ('>' == c || '/' == c || isSpace(c)) {
+						name = token.toString();
+						attributes.clear();
+						state = IN_TAG;
+						step(c);
+					} else token.append(c);
+					break;
+				case IN_TAG:
+					if ('>' == c) {
+						encoder.start(name, attributes);
+						state = TEXT;
+					} else if ('/' == c) state = EMPTY_TAG;
+					else if (!isSpace(c)) {
+						token.setLength(0);
+						token.append(c);
+						state = ATTRIBUTE_NAME;
+					}
+					break;
+				case ATTRIBUTE_NAME:
+					if ('=' == c) {
+						attributes.add(token.toString());
+						state = EQUALS;
+					} else if (!isSpace(c)) token.append(c);
+					break;
+				case EQUALS:
+					if ('"' == c || '\'' == c) {
+						quote = c;
+						token.setLength(0);
+						state = ATTRIBUTE_VALUE;
+					}
+					break;
+				case ATTRIBUTE_VALUE:
+					if (quote == c) {
+						attributes.add(token.toString());
+						state = IN_TAG;
+					} else if ('&' == c) openEntity();
+					else token.append(isSpace(c) ? ' ' : c);
+					break;
+				case EMPTY_TAG:
+					if ('>' == c) {
+						encoder.start(name, attributes);
+						encoder.end();
+						state = TEXT;
+					}
+					break;
+				case END_TAG:
+					if ('>' == c) {
+						encoder.end();
+						state = TEXT;
+					}
+					break;
+				case INSTRUCTION:
+					if ('>' == c && '?' == last) state = TEXT;
+					break;
+				case DECLARATION:
+					// A comment, or a document type with its DTD in brackets
+					token.append(c);
+					if (token.length() > 1 && '-' == token.charAt(0) && '-' == token.charAt(1)) {
+						if ('>' == c && token.length() > 4 && '-' == last && '-' == token.charAt(token.length() - 3)) state = TEXT;
+					} else if ('[' == c) depth++;
+					else if (']' == c) depth--;
+					else if ('>' == c && 0 == depth) state = TEXT;
+					break;
+			}
+			last = c;
+		}
+
+		static private final boolean isSpace(final char c) {
+			return ' ' == c || '\n' == c || '\t' == c;
+		}
+
+		private final void openEntity() {
+			entity.setLength(0);
+			entity_state = state;
+			state = ENTITY;
+		}
+
+		private final void decodeEntity(final StringBuilder target) throws IOException {
+			final String e = entity.toString();
+			if ("amp".equals(e)) target.append('&');
+			else if ("lt".equals(e)) target.append('<');
+			else if ("gt".equals(e)) target.append('>');
+			else if ("quot".equals(e)) target.append('"');
+			else if ("apos".equals(e)) target.append('\'');
+			else if (e.length() > 1 && '#' == e.charAt(0)) {
+				try {
+					target.appendCodePoint('x' == e.charAt(1) ? Integer.parseInt(e.substring(2), 16) : Integer.parseInt(e.substring(1)));
+				} catch (IllegalArgumentException iae) {
+					throw new IOException("Invalid character reference: &" + e + ";");
+				}
+			} else throw new IOException("Unknown entity: &" + e + ";");
+		}
+	}
+
+	static private final SAXParser newParser() throws Exception {
+		final SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setValidating(false);
+		factory.setXIncludeAware(false);
+		return factory.newSAXParser();
+	}
+
+	/** Write the @param project into @param os in the binary format.
+	 * The records are encoded from the XML text as {@link Project#exportXML(Writer, String, XMLOptions)} emits it,
+	 * in the calling thread, so that the binary file has precisely the same content as the XML file would.
+	 * The @param os is not closed. */
+	static public final void write(final Project project, final OutputStream os, final XMLOptions options) throws Exception {
+		final StringBuilder dtd = new StringBuilder(30000);
+		project.exportDTD(dtd, new HashSet<String>(), "\t");
+		final Encoder encoder = new Encoder(os, project.getDocType(), dtd.toString());
+		final RecordWriter writer = new RecordWriter(encoder);
+		project.exportXML(writer, "", options);
+		writer.close();
+		encoder.finish();
+		os.flush();
+	}
+
+	/** Replay the content of the binary file in @param is as SAX events into @param handler,
+	 * as if an XML file were being parsed. */
+	static public final void read(final InputStream is, final ContentHandler handler) throws Exception {
+		new Decoder(is).replay(handler);
+	}
+
+	/** Returns the DTD stored in the binary file at @param path, or null if it can't be read. */
+	static public final StringBuilder readDTD(final String path) {
+		InputStream is = null;
+		try {
+			is = FSLoader.isURL(path) ? new java.net.URL(path).openStream() : new FileInputStream(path);
+			return new StringBuilder(new Decoder(new BufferedInputStream(is)).dtd);
+		} catch (Exception e) {
+			IJError.print(e);
+		} finally {
+			if (null != is) try { is.close(); } catch (Exception e) { IJError.print(e); }
+		}
+		return null;
+	}
+
+	/** Convert the XML file at @param xml_path, which may be gzipped, into a binary file at @param t2b_path. */
+	static public final boolean convertXMLToBinary(final String xml_path, final String t2b_path) {
+		final StringBuilder dtd = DTDParser.extractDTD(xml_path);
+		if (null == dtd) {
+			Utils.log("Could not read the DTD of " + xml_path);
+			return false;
+		}
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = new BufferedInputStream(new FileInputStream(xml_path), 65536);
+			if (xml_path.endsWith(".gz")) is = new GZIPInputStream(is);
+			os = new BufferedOutputStream(new FileOutputStream(t2b_path), 65536);
+			// The SAX parser doesn't report the document type
+			final String doctype = DTDParser.extractDocType(xml_path);
+			final Encoder encoder = new Encoder(os, doctype, dtd.toString());
+			newParser().parse(new InputSource(is), encoder);
+			encoder.finish();
+			return true;
+		} catch (Exception e) {
+			IJError.print(e);
+		} finally {
+			if (null != is) try { is.close(); } catch (Exception e) { IJError.print(e); }
+			if (null != os) try { os.close(); } catch (Exception e) { IJError.print(e); }
+		}
+		return false;
+	}
+
+	/** Convert the binary file at @param t2b_path into an XML file at @param xml_path,
+	 * gzipped if the latter ends with ".gz". */
+	static public final boolean convertBinaryToXML(final String t2b_path, final String xml_path) {
+		InputStream is = null;
+		Writer w = null;
+		try {
+			is = new BufferedInputStream(new FileInputStream(t2b_path), 65536);
+			final Decoder decoder = new Decoder(is);
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(xml_path), 65536);
+			if (xml_path.endsWith(".gz")) os = new GZIPOutputStream(os);
+			w = new OutputStreamWriter(os, "8859_1");
+			decoder.replay(new XMLWriter(w, decoder.doctype, decoder.dtd));
+			return true;
+		} catch (Exception e) {
+			IJError.print(e);
+		} finally {
+			if (null != is) try { is.close(); } catch (Exception e) { IJError.print(e); }
+			if (null != w) try { w.close(); } catch (Exception e) { IJError.print(e); }
+		}
+		return false;
+	}
+
+	/** Convert between formats from the command line: the direction is determined by the extension of the first file. */
+	static public void main(final String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: BinaryProject <source .xml, .xml.gz or .t2b> <target .t2b, .xml or .xml.gz>");
+			return;
+		}
+		final long t0 = System.currentTimeMillis();
+		final boolean ok = isBinary(args[0]) ? convertBinaryToXML(args[0], args[1]) : convertXMLToBinary(args[0], args[1]);
+		System.out.println((ok ? "Converted " : "FAILED to convert ") + args[0] + " to " + args[1] + " in " + (System.currentTimeMillis() - t0) / 1000.0 + " s");
+	}
+}
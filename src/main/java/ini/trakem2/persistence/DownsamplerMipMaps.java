@@ -10,7 +10,7 @@ import ij.process.ShortProcessor;
 import ini.trakem2.display.Patch;
 import ini.trakem2.imaging.FastIntegralImage;
 import ini.trakem2.imaging.P;
-import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.ArrayPool;
 import ini.trakem2.utils.Utils;
 import mpicbg.trakem2.util.Downsampler;
 import mpicbg.trakem2.util.Downsampler.Pair;
@@ -70,7 +70,7 @@ public final class DownsamplerMipMaps
 		else if (1 == first_level) {
 			// Skip only the 100% mipmap: speedier to merely downsample it and nullify it
 			final ImageBytes[] p = DownsamplerMipMaps.create(patch, type, Loader.getHighestMipMapLevel(patch) + 1, ip, alpha, outside);
-			CachingThread.storeForReuse(p[0].c);
+			ArrayPool.give(p[0].c);
 			p[0] = null;
 			return p;
 		}
@@ -20,9 +20,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.ImagePlus;
@@ -36,6 +39,8 @@ import ij.process.ImageProcessor;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
@@ -175,7 +180,7 @@ public class ExportMultilevelTiles
 	 * Best results obtained when the srcRect approaches or is a square. Black space will pad the right and bottom edges when the srcRect is not exactly a square.
 	 * Only the area within the srcRect is ever included, even if actual data exists beyond.
 	 * 
-	 * @param strategy 0 (original images), 1 (mipmaps) or 2 (mipmaps, with multi-layer threading)
+	 * @param strategy 0 (original images), 1 (mipmaps), 2 (mipmaps, with multi-layer threading) or 3 (quadtree: only the finest level from mipmaps, the others from it)
 	 * @param directory_structure_type 0 or 1. See above.
 	 * @param skip_empty_tiles Entirely black tiles will not be written to disk.
 	 * @param use_layer_indices The folder for each layer will be that of its index in the LayerSet, which is guaranteed to be unique.
@@ -310,6 +315,10 @@ public class ExportMultilevelTiles
 				worker = exportFromMipMapsLayerWise(indices, smallestIndex, dir, saver, srcRect, c_alphas, type, clazz, tileSide,
 						directory_structure_type, use_layer_indices, skip_empty_tiles, Math.max(1, n_threads));
 				break;
+			case 3:
+				worker = exportQuadtree(indices, smallestIndex, dir, saver, srcRect, c_alphas, type, clazz, tileSide,
+						directory_structure_type, use_layer_indices, skip_empty_tiles, Math.max(1, n_threads));
+				break;
 			default:
 				Utils.log("Unknown strategy: " + strategy);
 				return null;
@@ -350,7 +359,7 @@ public class ExportMultilevelTiles
 				startedWorking();
 				
 				final int n_procs = Math.max(1, n_threads);
-				final ExecutorService exec = Utils.newFixedThreadPool(Math.max(1, n_threads), "export-for-web::mipmaps");
+				final ExecutorService exec = Utils.newLane(Math.max(1, n_threads), "export-for-web::mipmaps", Scheduler.Priority.BATCH);
 				final LinkedList<Future<?>> futures = new LinkedList<Future<?>>();
 				
 				try {
@@ -458,6 +467,346 @@ public class ExportMultilevelTiles
 		};
 	}
 	
+	/** Export all levels of the tile pyramid in a single pass over each layer: only the tiles of the finest level are rendered
+	 * from the images, in parallel, whereas each tile of a coarser level is made by averaging the four tiles it covers
+	 * as soon as these are ready. Tiles are rendered in the order of a quadtree walk, so that sibling tiles are done close in time
+	 * and can be released soon after being written by a separate pool of writer threads.
+	 * The number of finest-level tiles in memory is bounded by the project property "export_tiles_in_flight". */
+	static public Worker exportQuadtree(
+			final TreeMap<Integer, Layer> indices,
+			final int smallestIndex,
+			final String dir,
+			final Saver saver,
+			final Rectangle srcRect,
+			final int c_alphas,
+			final int type, final Class<?> clazz,
+			final int tileSide,
+			final int directory_structure_type,
+			final boolean use_layer_indices,
+			final boolean skip_empty_tiles,
+			final int n_threads)
+	{
+		return new Worker("Creating prescaled tiles as a quadtree")
+		{
+			@Override
+			public void run() {
+				startedWorking();
+
+				final Layer first = indices.get(indices.firstKey());
+				final int max_in_flight = Math.max(4 + n_threads, first.getProject().getProperty("export_tiles_in_flight", 64));
+				final ExecutorService renderer = ExecutorProvider.getExecutorService(Scheduler.Priority.BATCH, n_threads, "export-for-web::quadtree");
+				final ExecutorService writers = ExecutorProvider.getExecutorService(Scheduler.Priority.BATCH, Math.max(1, n_threads / 2), "export-for-web::writers");
+
+				try {
+					final int[] best = determineClosestPowerOfTwo(srcRect.width > srcRect.height ? srcRect.width : srcRect.height);
+					final int edge_length = best[0];
+					final int n_edge_tiles = edge_length / tileSide;
+					Utils.log2("srcRect: " + srcRect);
+					Utils.log2("edge_length, n_edge_tiles, best[1] " + best[0] + ", " + n_edge_tiles + ", " + best[1]);
+
+					// thumbnail dimensions
+					final double thumb_scale = 192.0 / Math.max(srcRect.width, srcRect.height);
+
+					for (final Map.Entry<Integer,Layer> entry : indices.entrySet()) {
+						if (this.quit) return;
+						final Layer layer = entry.getValue();
+						final int index = use_layer_indices ? layer.getParent().indexOf(layer) : entry.getKey() - smallestIndex;
+
+						if (!Utils.ensure(dir + index)) {
+							Utils.log("Cannot write to the desired directory: " + dir + index + "/");
+							return;
+						}
+
+						if (edge_length < tileSide) {
+							// create single tile per layer
+							makeTileRunnable(layer, srcRect, 1.0, c_alphas, type, clazz, makeTilePath(directory_structure_type, dir, index, 0, 0, 0), saver, tileSide, tileSide, skip_empty_tiles, true).run();
+						} else {
+							final QuadtreeExport qe = new QuadtreeExport(this, layer, index, dir, saver, srcRect, c_alphas, type, clazz, tileSide,
+									directory_structure_type, skip_empty_tiles, n_edge_tiles, best[1], renderer, writers, max_in_flight);
+							if (!qe.run()) return;
+							// Create layer thumbnail, max 192x192
+							makeTileRunnable(layer, srcRect, thumb_scale, c_alphas, type, clazz, dir + index + "/small", saver, 192, 192, false, false).run();
+						}
+					}
+				} catch (final Throwable t) {
+					IJError.print(t);
+				} finally {
+					renderer.shutdownNow();
+					writers.shutdown();
+					try {
+						writers.awaitTermination(1, TimeUnit.MINUTES);
+					} catch (final InterruptedException ie) {}
+					Utils.showProgress(1);
+					finishedWorking();
+				}
+			}
+		};
+	}
+
+	/** The tiles of all levels of one layer; see {@link #exportQuadtree(TreeMap, int, String, Saver, Rectangle, int, int, Class, int, int, boolean, boolean, int)}. */
+	static private final class QuadtreeExport {
+		private final Worker worker;
+		private final Layer layer;
+		private final int index;
+		private final String dir;
+		private final Saver saver;
+		private final Rectangle srcRect;
+		private final int c_alphas, type;
+		private final Class<?> clazz;
+		private final int tileSide, directory_structure_type;
+		private final boolean skip_empty_tiles;
+		private final ExecutorService renderer, writers;
+		/** Number of tiles along each side, for each level. */
+		private final int[] n_tiles;
+		/** Permits for rendering tiles of the finest level, released when written and merged into their parent tile. */
+		private final Semaphore in_flight;
+		private final CountDownLatch remaining;
+		private final int total;
+
+		/** A tile at level 0 is rendered from the images; a tile at any other level is made from its four children. */
+		private final class Tile {
+			final int level, row, col;
+			final Tile parent;
+			final Tile[] children;
+			final AtomicInteger pending_children = new AtomicInteger(4);
+			/** For level 0 only: tiles with a parent have to be written and merged into it before releasing their permit. */
+			final AtomicInteger holds;
+			/** The byte[] or int[] of tileSide * tileSide pixels, or null when empty, until merged into the parent. */
+			volatile Object pixels = null;
+
+			Tile(final int level, final int row, final int col, final Tile parent) {
+				this.level = level;
+				this.row = row;
+				this.col = col;
+				this.parent = parent;
+				this.children = 0 == level ? null : new Tile[4];
+				this.holds = new AtomicInteger(null == parent ? 1 : 2);
+			}
+		}
+
+		QuadtreeExport(final Worker worker, final Layer layer, final int index, final String dir, final Saver saver, final Rectangle srcRect,
+				final int c_alphas, final int type, final Class<?> clazz, final int tileSide, final int directory_structure_type,
+				final boolean skip_empty_tiles, final int n_edge_tiles, final int min_edge_tiles,
+				final ExecutorService renderer, final ExecutorService writers, final int max_in_flight) {
+			this.worker = worker;
+			this.layer = layer;
+			this.index = index;
+			this.dir = dir;
+			this.saver = saver;
+			this.srcRect = srcRect;
+			this.c_alphas = c_alphas;
+			this.type = type;
+			this.clazz = clazz;
+			this.tileSide = tileSide;
+			this.directory_structure_type = directory_structure_type;
+			this.skip_empty_tiles = skip_empty_tiles;
+			this.renderer = renderer;
+			this.writers = writers;
+			this.in_flight = new Semaphore(max_in_flight);
+			// Same levels as in exportFromMipMaps
+			int n_levels = 0;
+			for (int n_et = n_edge_tiles; n_et >= min_edge_tiles; n_et /= 2) ++n_levels;
+			this.n_tiles = new int[n_levels];
+			int count = 0;
+			for (int level=0, n_et=n_edge_tiles; level<n_levels; ++level, n_et /= 2) {
+				n_tiles[level] = n_et;
+				count += n_et * n_et;
+			}
+			this.total = count;
+			this.remaining = new CountDownLatch(count);
+		}
+
+		/** Returns false if the worker quitted. */
+		boolean run() throws InterruptedException {
+			final int top = n_tiles.length - 1;
+			// Every tile of the coarsest level is a root, and so are the tiles of the last row or column
+			// of a level with an odd number of tiles per side, which have no parent.
+			for (int level=top; level>-1; --level) {
+				final int n = n_tiles[level];
+				final int n_parented = level == top ? 0 : 2 * n_tiles[level + 1];
+				for (int row=0; row<n; ++row) {
+					for (int col=0; col<n; ++col) {
+						if (row < n_parented && col < n_parented) continue;
+						if (!visit(new Tile(level, row, col, null))) return false;
+					}
+				}
+			}
+			while (!remaining.await(1, TimeUnit.SECONDS)) {
+				if (worker.hasQuitted()) return false;
+				Utils.showProgress(1 - remaining.getCount() / (double)total);
+			}
+			return true;
+		}
+
+		/** Submit the rendering of all level-0 tiles under {@code tile}, in Z order. */
+		private boolean visit(final Tile tile) throws InterruptedException {
+			if (0 == tile.level) {
+				while (!in_flight.tryAcquire(1, TimeUnit.SECONDS)) {
+					if (worker.hasQuitted()) return false;
+				}
+				renderer.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							done(tile, render(tile));
+						} catch (final Throwable t) {
+							IJError.print(t);
+							done(tile, null);
+						}
+					}
+				});
+				return true;
+			}
+			for (int q=0; q<4; ++q) {
+				tile.children[q] = new Tile(tile.level - 1, 2 * tile.row + (q >> 1), 2 * tile.col + (q & 1), tile);
+				if (!visit(tile.children[q])) return false;
+			}
+			return true;
+		}
+
+		/** Returns the pixel array of a level-0 tile, or null if there is nothing in it. */
+		private Object render(final Tile tile) {
+			final Rectangle tile_src = new Rectangle(srcRect.x + tileSide * tile.col,
+					srcRect.y + tileSide * tile.row,
+					tileSide,
+					tileSide);
+			// crop bounds; tiles beyond the edges of srcRect are empty
+			if (tile_src.x + tile_src.width > srcRect.x + srcRect.width) tile_src.width = srcRect.x + srcRect.width - tile_src.x;
+			if (tile_src.y + tile_src.height > srcRect.y + srcRect.height) tile_src.height = srcRect.y + srcRect.height - tile_src.y;
+			if (tile_src.width <= 0 || tile_src.height <= 0 || layer.find(tile_src, true).isEmpty()) return null;
+
+			final ImagePlus imp = layer.getProject().getLoader().getFlatImage(layer, tile_src, 1.0, c_alphas, type, clazz, null, true);
+			final ImageProcessor ip = imp.getProcessor();
+			if (isEmptyTile(ip)) {
+				imp.flush();
+				return null;
+			}
+			// pad the outside with black
+			final int w = Math.min(tileSide, ip.getWidth()),
+			          h = Math.min(tileSide, ip.getHeight());
+			final Object pixels;
+			if (ImagePlus.GRAY8 == type) {
+				pixels = new byte[tileSide * tileSide];
+				final byte[] src = (byte[])ip.convertToByte(true).getPixels();
+				for (int y=0; y<h; ++y) System.arraycopy(src, y * ip.getWidth(), pixels, y * tileSide, w);
+			} else {
+				pixels = new int[tileSide * tileSide];
+				final int[] src = (int[])ip.convertToRGB().getPixels();
+				for (int y=0; y<h; ++y) System.arraycopy(src, y * ip.getWidth(), pixels, y * tileSide, w);
+			}
+			imp.flush();
+			return pixels;
+		}
+
+		/** Write the {@code tile} and hand its pixels over to its parent, which is made once all four children are done. */
+		private void done(final Tile tile, final Object pixels) {
+			tile.pixels = pixels;
+			writers.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						write(tile, pixels);
+					} catch (final Throwable t) {
+						IJError.print(t);
+					} finally {
+						remaining.countDown();
+						release(tile);
+					}
+				}
+			});
+			final Tile parent = tile.parent;
+			if (null != parent && 0 == parent.pending_children.decrementAndGet()) {
+				renderer.submit(new Runnable() {
+					@Override
+					public void run() {
+						Object merged = null;
+						try {
+							merged = merge(parent);
+						} catch (final Throwable t) {
+							IJError.print(t);
+						}
+						for (final Tile child : parent.children) {
+							child.pixels = null;
+							release(child);
+						}
+						done(parent, merged);
+					}
+				});
+			}
+		}
+
+		private void release(final Tile tile) {
+			if (0 == tile.level && 0 == tile.holds.decrementAndGet()) in_flight.release();
+		}
+
+		private void write(final Tile tile, final Object pixels) {
+			final ImageProcessor ip;
+			if (null == pixels) {
+				if (skip_empty_tiles) return;
+				ip = new ByteProcessor(tileSide, tileSide); // black tile
+			} else if (pixels instanceof byte[]) {
+				ip = new ByteProcessor(tileSide, tileSide, (byte[])pixels, null);
+			} else {
+				ip = new ColorProcessor(tileSide, tileSide, (int[])pixels);
+			}
+			final String path = makeTilePath(directory_structure_type, dir, index, tile.row, tile.col, tile.level);
+			saver.save(new ImagePlus(path, ip), path);
+		}
+
+		/** Average each 2x2 block of pixels of the four children; returns null if all children are empty. */
+		private Object merge(final Tile tile) {
+			boolean empty = true;
+			for (final Tile child : tile.children) {
+				if (null != child.pixels) {
+					empty = false;
+					break;
+				}
+			}
+			if (empty) return null;
+			final int half = tileSide / 2;
+			if (ImagePlus.GRAY8 == type) {
+				final byte[] target = new byte[tileSide * tileSide];
+				for (int q=0; q<4; ++q) {
+					final byte[] src = (byte[])tile.children[q].pixels;
+					if (null == src) continue;
+					final int offset = (q >> 1) * half * tileSide + (q & 1) * half;
+					for (int y=0; y<half; ++y) {
+						final int i0 = 2 * y * tileSide,
+						          i1 = i0 + tileSide;
+						for (int x=0, t=offset + y * tileSide; x<half; ++x, ++t) {
+							final int k = 2 * x;
+							target[t] = (byte)(((src[i0 + k] & 0xff) + (src[i0 + k + 1] & 0xff)
+							                  + (src[i1 + k] & 0xff) + (src[i1 + k + 1] & 0xff)) / 4);
+						}
+					}
+				}
+				return target;
+			}
+			final int[] target = new int[tileSide * tileSide];
+			for (int q=0; q<4; ++q) {
+				final int[] src = (int[])tile.children[q].pixels;
+				if (null == src) continue;
+				final int offset = (q >> 1) * half * tileSide + (q & 1) * half;
+				for (int y=0; y<half; ++y) {
+					final int i0 = 2 * y * tileSide,
+					          i1 = i0 + tileSide;
+					for (int x=0, t=offset + y * tileSide; x<half; ++x, ++t) {
+						final int k = 2 * x;
+						final int p1 = src[i0 + k],
+						          p2 = src[i0 + k + 1],
+						          p3 = src[i1 + k],
+						          p4 = src[i1 + k + 1];
+						final int r = (((p1 >> 16) & 0xff) + ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff) + ((p4 >> 16) & 0xff)) / 4,
+						          g = (((p1 >> 8) & 0xff) + ((p2 >> 8) & 0xff) + ((p3 >> 8) & 0xff) + ((p4 >> 8) & 0xff)) / 4,
+						          b = ((p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff) + (p4 & 0xff)) / 4;
+						target[t] = (r << 16) | (g << 8) | b;
+					}
+				}
+			}
+			return target;
+		}
+	}
+
 	static private class ExportLayerTiles implements Runnable {
 
 		private Layer layer;
@@ -746,7 +1095,7 @@ public class ExportMultilevelTiles
 				try {
 					// When using mipmaps, run in parallel (uses same number of threads as for generating mipmaps)
 					final int n_procs = Math.max(1, n_threads);
-					final ExecutorService exec = Utils.newFixedThreadPool(Math.max(1, n_threads), "export-for-web::mipmaps-layer-wise", false);
+					final ExecutorService exec = Utils.newLane(Math.max(1, n_threads), "export-for-web::mipmaps-layer-wise", Scheduler.Priority.BATCH);
 					final LinkedList<Future<?>> futures = new LinkedList<Future<?>>();
 
 					// Dimensions by number of tiles at scale 1.0
@@ -935,7 +1284,7 @@ public class ExportMultilevelTiles
 
 							int scale_pow = 0;
 							int n_et = n_edge_tiles;
-							final ExecutorService exe = Utils.newFixedThreadPool(Math.max(1, n_threads), "export-for-web::original-images");
+							final ExecutorService exe = Utils.newLane(Math.max(1, n_threads), "export-for-web::original-images", Scheduler.Priority.BATCH);
 							final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
 							try {
 								while (n_et >= best[1]) {
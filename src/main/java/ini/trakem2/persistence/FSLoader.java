@@ -49,10 +49,14 @@ import ini.trakem2.display.Stack;
 import ini.trakem2.imaging.FloatProcessorT2;
 import ini.trakem2.imaging.P;
 import ini.trakem2.io.ImageSaver;
+import ini.trakem2.io.MappedMipMaps;
+import ini.trakem2.io.PackedMipMaps;
 import ini.trakem2.io.RagMipMaps;
 import ini.trakem2.io.RawMipMaps;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.utils.Bureaucrat;
-import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.ArrayPool;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
@@ -83,10 +87,14 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 
@@ -105,6 +113,7 @@ import net.imglib2.type.numeric.real.FloatType;
 
 import org.janelia.intensity.LinearIntensityMap;
 import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
 
 
 /** A class to rely on memory only; except images which are rolled from a folder or their original location and flushed when memory is needed for more. Ideally there would be a given folder for storing items temporarily of permanently as the "project folder", but I haven't implemented it. */
@@ -121,6 +130,8 @@ public final class FSLoader extends Loader {
 	private final Map<Long,String> ht_paths = Collections.synchronizedMap(new HashMap<Long,String>());
 	/** For saving and overwriting. */
 	private String project_file_path = null;
+	/** Tracks the changes made since the project file was last saved, for journaled saving. Null until the project is saved or opened from a file. */
+	private ProjectJournal journal = null;
 	/** Path to the directory hosting the file image pyramids. */
 	private String dir_mipmaps = null;
 	/** Path to the directory hosting the file image pyramids after mipmaps have been disabled. */
@@ -277,27 +288,35 @@ public final class FSLoader extends Loader {
 
 		// parse file, according to expected format as indicated by the extension:
 		final String lcFilePath = this.project_file_path.toLowerCase();
-		if (lcFilePath.matches(".*(\\.xml|\\.xml\\.gz)")) {
+		if (lcFilePath.matches(".*(\\.xml|\\.xml\\.gz)") || BinaryProject.isBinary(lcFilePath)) {
 			InputStream i_stream = null;
+			final long t0 = System.currentTimeMillis();
 			TMLHandler handler = new TMLHandler(this.project_file_path, this);
 			if (handler.isUnreadable()) {
 				handler = null;
 			} else {
+				// replace the objects edited since the last full save with their journaled version, if any
+				final Map<Long,String> journaled = isURL(this.project_file_path) ? null : ProjectJournal.read(this.project_file_path);
+				final DefaultHandler h = null == journaled || journaled.isEmpty() ? handler : ProjectJournal.filter(journaled, handler);
 				try {
-					SAXParserFactory factory = SAXParserFactory.newInstance();
-					factory.setValidating(false);
-					factory.setXIncludeAware(false);
-					SAXParser parser = factory.newSAXParser();
 					if (isURL(this.project_file_path)) {
 						i_stream = new java.net.URL(this.project_file_path).openStream();
 					} else {
 						i_stream = new BufferedInputStream(new FileInputStream(this.project_file_path));
 					}
-					if (lcFilePath.endsWith(".gz")) {
-						i_stream  = new GZIPInputStream(i_stream);
+					if (BinaryProject.isBinary(lcFilePath)) {
+						BinaryProject.read(i_stream, h);
+					} else {
+						SAXParserFactory factory = SAXParserFactory.newInstance();
+						factory.setValidating(false);
+						factory.setXIncludeAware(false);
+						SAXParser parser = factory.newSAXParser();
+						if (lcFilePath.endsWith(".gz")) {
+							i_stream  = new GZIPInputStream(i_stream);
+						}
+						InputSource input_source = new InputSource(i_stream);
+						parser.parse(input_source, h);
 					}
-					InputSource input_source = new InputSource(i_stream);
-					parser.parse(input_source, handler);
 				} catch (java.io.FileNotFoundException fnfe) {
 					Utils.log("ERROR: File not found: " + path);
 					handler = null;
@@ -320,6 +339,19 @@ public final class FSLoader extends Loader {
 			}
 
 			data = handler.getProjectData(open_displays);
+			if (null != data && !isURL(this.project_file_path)) {
+				journal = new ProjectJournal(this.project_file_path);
+			}
+
+			// Report the opening time relative to the size of the project
+			final long t1 = System.currentTimeMillis();
+			final long n_bytes = isURL(this.project_file_path) ? -1 : new File(this.project_file_path).length();
+			Utils.log2(new StringBuilder("Opened ").append(this.project_file_path)
+					.append(" (").append(n_bytes < 0 ? "?" : Long.toString(n_bytes / 1024)).append(" kb, ")
+					.append(handler.getElementCount()).append(" XML elements) in ")
+					.append((t1 - t0) / 1000.0).append(" s with ")
+					.append(handler.getConstructionThreadCount()).append(" construction threads: ")
+					.append(Math.round(handler.getElementCount() / Math.max(0.001, (t1 - t0) / 1000.0))).append(" elements/s").toString());
 		}
 
 		if (null == data) {
@@ -365,23 +397,23 @@ public final class FSLoader extends Loader {
 		if (null != regenerator && !regenerator.isShutdown()) {
 			regenerator.shutdown();
 		}
-		regenerator = Utils.newFixedThreadPool(Math.max(1, n_threads), "regenerator");
+		regenerator = ExecutorProvider.getExecutorService(Scheduler.Priority.MIPMAPS, Math.max(1, n_threads), "regenerator");
 		Utils.logAll("Restarted mipmap Executor Service for all projects with " + n_threads + " threads.");
 	}
 
 	static private void startStaticServices() {
 		// Up to nStaticServiceThreads for regenerator and repainter
 		if (null == regenerator || regenerator.isShutdown()) {
-			regenerator = Utils.newFixedThreadPool(1, "regenerator");
+			regenerator = ExecutorProvider.getExecutorService(Scheduler.Priority.MIPMAPS, 1, "regenerator");
 		}
 		if (null == repainter || repainter.isShutdown()) {
-			repainter = Utils.newFixedThreadPool(nStaticServiceThreads, "repainter"); // for SnapshotPanel
+			repainter = ExecutorProvider.getExecutorService(Scheduler.Priority.INTERACTIVE, nStaticServiceThreads, "repainter"); // for SnapshotPanel
 		}
 		// Maximum 2 threads for removing files
 		if (null == remover || remover.isShutdown()) {
-			remover = Utils.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), "mipmap remover");
+			remover = ExecutorProvider.getExecutorService(Scheduler.Priority.MIPMAPS, Math.max(2, Runtime.getRuntime().availableProcessors()), "mipmap remover");
 		}
-		// Just one thread for autosaver
+		// Just one thread for autosaver, which is a timer: saving runs in a Bureaucrat of its own
 		if (null == autosaver || autosaver.isShutdown()) autosaver = Executors.newScheduledThreadPool(1);
 	}
 
@@ -437,6 +469,7 @@ public final class FSLoader extends Loader {
 		if (null == ControlWindow.getProjects() || 1 == ControlWindow.getProjects().size()) {
 			destroyStaticServices();
 		}
+		FeatureStore.close(this);
 		// remove unuid dir if xml_path is empty (i.e. never saved and not opened from an .xml file)
 		if (null == project_file_path) {
 			Utils.log2("Removing unuid dir, since project was never saved.");
@@ -445,6 +478,7 @@ public final class FSLoader extends Loader {
 			if (null != dir_masks) Utils.removePrefixedFiles(f, "trakem2.masks", null);
 			Utils.removePrefixedFiles(f, "features.ser", null);
 			Utils.removePrefixedFiles(f, "pointmatches.ser", null);
+			Utils.removePrefixedFiles(f, FeatureStore.NAME, null);
 			// Only if empty:
 			if (f.isDirectory()) {
 				try {
@@ -726,6 +760,7 @@ public final class FSLoader extends Loader {
 	public boolean addToDatabase(final DBObject ob) {
 		synchronized (db_lock) {
 			setChanged(true);
+			if (null != journal) journal.structuralChange();
 			final long id = ob.getId();
 			if (id > max_id) {
 				max_id = id;
@@ -746,6 +781,7 @@ public final class FSLoader extends Loader {
 	public boolean updateInDatabase(final DBObject ob, final String key) {
 		// Should only be GUI-driven
 		setChanged(true);
+		if (null != journal) journal.changed(ob);
 		//
 		if (ob.getClass() == Patch.class) {
 			Patch p = (Patch)ob;
@@ -757,6 +793,7 @@ public final class FSLoader extends Loader {
 	public boolean updateInDatabase(final DBObject ob, final Set<String> keys) {
 		// Should only be GUI-driven
 		setChanged(true);
+		if (null != journal) journal.changed(ob);
 		if (ob.getClass() == Patch.class) {
 			Patch p = (Patch)ob;
 			if (keys.contains("tiff_working")) return null != setImageFile(p, fetchImagePlus(p));
@@ -767,6 +804,7 @@ public final class FSLoader extends Loader {
 	public boolean removeFromDatabase(final DBObject ob) {
 		synchronized (db_lock) {
 			setChanged(true);
+			if (null != journal) journal.structuralChange();
 			// remove from the hashtable
 			final long loid = ob.getId();
 			Utils.log2("removing " + Project.getName(ob.getClass()) + " " + ob);
@@ -1012,7 +1050,9 @@ public final class FSLoader extends Loader {
 		return name.trim().replace('/', '-').replace(' ', '_').replace('\\','-');
 	}
 
-	/** Overwrites the XML file. If some images do not exist in the file system, a directory with the same name of the XML file plus an "_images" tag appended will be created and images saved there. */
+	/** Overwrites the XML file. If some images do not exist in the file system, a directory with the same name of the XML file plus an "_images" tag appended will be created and images saved there.
+	 *  With the "journaled_save" project property, only the objects that changed since the last save are written, appended to a journal file (see {@link ProjectJournal}),
+	 *  unless there were structural changes or the journal has grown too large, in which case the XML file is overwritten as usual. */
 	@Override
 	public String save(final Project project, XMLOptions options) {
 		String result = null;
@@ -1023,10 +1063,22 @@ public final class FSLoader extends Loader {
 				this.project_file_path = xml_path;
 				ControlWindow.updateTitle(project);
 				result = this.project_file_path;
+				resetJournal();
+			}
+		} else if (null != journal && project.getBooleanProperty("journaled_save") && journal.canAppend()) {
+			if (journal.append(options)) {
+				result = project_file_path;
+				setChanged(false);
+				if (journal.needsCompaction()) compactLater(project);
 			}
 		} else {
 			File fxml = new File(project_file_path);
+			final Collection<Displayable> pending = null == journal ? null : journal.startFullSave();
 			result = super.export(project, fxml, options);
+			if (null != journal) {
+				if (null != result) journal.reset();
+				else journal.failedFullSave(pending);
+			}
 		}
 		if (null != result) {
 			Utils.logAll(Utils.now() + " Saved " + project);
@@ -1035,6 +1087,32 @@ public final class FSLoader extends Loader {
 		return result;
 	}
 
+	/** Start a new journal for the project file just written in full at project_file_path, deleting any journal left there. */
+	private void resetJournal() {
+		journal = new ProjectJournal(project_file_path);
+		journal.reset();
+	}
+
+	/** Fold the journal into the project file, with a full save in the background. */
+	private void compactLater(final Project project) {
+		journal.requestCompaction();
+		autosaver.submit(new Runnable() {
+			public void run() {
+				try {
+					Bureaucrat.createAndStart(new Worker.Task("Compacting journal") {
+						@Override
+						public void exec() {
+							project.save();
+						}
+					}, project).join();
+				} catch (Throwable e) {
+					Utils.log("*** Journal compaction failed:");
+					IJError.print(e);
+				}
+			}
+		});
+	}
+
 	/** The saveAs called from menus via saveTask. */
 	@Override
 	public String saveAs(Project project, XMLOptions options) {
@@ -1042,6 +1120,7 @@ public final class FSLoader extends Loader {
 		if (null != path) {
 			// update the xml path to point to the new one
 			this.project_file_path = path;
+			resetJournal();
 			Utils.log2("After saveAs, new xml path is: " + path);
 			touched_mipmaps.clear();
 		}
@@ -1061,6 +1140,7 @@ public final class FSLoader extends Loader {
 		String extension = ".xml";
 		if (path2.endsWith(extension)) {} // all fine
 		else if (path2.endsWith(".xml.gz")) extension = ".xml.gz";
+		else if (BinaryProject.isBinary(path2)) extension = BinaryProject.EXTENSION;
 		else {
 			// neither matches, add the default ".xml"
 			path2 += extension;
@@ -1090,6 +1170,7 @@ public final class FSLoader extends Loader {
 		path2 = super.saveAs(project, path2, options);
 		if (null != path2) {
 			project_file_path = path2;
+			resetJournal();
 			Utils.logAll("After saveAs, new xml path is: " + path2);
 			ControlWindow.updateTitle(project);
 			touched_mipmaps.clear();
@@ -1374,6 +1455,10 @@ public final class FSLoader extends Loader {
 			int n_threads = Math.max(1, Integer.parseInt(ob));
 			FSLoader.restartMipMapThreads(n_threads);
 		}
+		ob = ht_attributes.get("mipmaps_mmap");
+		if (null != ob) {
+			this.mipmaps_mmap = Boolean.parseBoolean(ob);
+		}
 
 		// parse the unuid before attempting to create any folders
 		this.unuid = ht_attributes.remove("unuid");
@@ -1469,8 +1554,19 @@ public final class FSLoader extends Loader {
 	}
 	*/
 
-	/** Returns the array of pixels, whose type depends on the bi.getType(); for example, for a BufferedImage.TYPE_BYTE_INDEXED, returns a byte[]. */
+	/** Returns the array of pixels, whose type depends on the bi.getType(); for example, for a BufferedImage.TYPE_BYTE_INDEXED, returns a byte[].
+	 *  For 8-bit and RGB images, the array is taken from the {@link ArrayPool}, to which it may be given back when no longer in use. */
 	static public final Object grabPixels(final BufferedImage bi) {
+		final int w = bi.getWidth(),
+		          h = bi.getHeight();
+		switch (bi.getType()) {
+			case BufferedImage.TYPE_BYTE_INDEXED:
+			case BufferedImage.TYPE_BYTE_GRAY:
+				return bi.getRaster().getDataElements(0, 0, w, h, ArrayPool.takeBytes(w * h));
+			case BufferedImage.TYPE_INT_ARGB:
+			case BufferedImage.TYPE_INT_RGB:
+				return bi.getRaster().getDataElements(0, 0, w, h, ArrayPool.takeInts(w * h));
+		}
 		final PixelGrabber pg = new PixelGrabber(bi, 0, 0, bi.getWidth(), bi.getHeight(), false);
 		try {
 			pg.grabPixels();
@@ -1507,6 +1603,8 @@ public final class FSLoader extends Loader {
 		// Put the pixels back into an image:
 		final BufferedImage thresholded = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, Loader.GRAY_LUT);
 		thresholded.getRaster().setDataElements(0, 0, width, height, a);
+		ArrayPool.give(o);
+		if (a != o) ArrayPool.give(a);
 
 		return thresholded;
 	}
@@ -1549,6 +1647,35 @@ public final class FSLoader extends Loader {
 	 * </p>
 	 */
 	protected boolean generateMipMaps(final Patch patch) {
+		final long alpha_mask_id = patch.getAlphaMaskId();
+		try {
+			return generateMipMaps(patch, direct_writer);
+		} finally {
+			mipMapsGenerated(patch, alpha_mask_id);
+		}
+	}
+
+	/** Receives the mipmap levels as {@link #generateMipMaps(Patch, MipMapWriter)} creates them. */
+	private interface MipMapWriter {
+		boolean save(String path, byte[][] b, int width, int height, float quality);
+		boolean save(ColorProcessor cp, String path, float quality);
+	}
+
+	/** Writes each mipmap level right away, in the calling thread. */
+	private final MipMapWriter direct_writer = new MipMapWriter() {
+		@Override
+		public boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
+			return mmio.save(path, b, width, height, quality);
+		}
+		@Override
+		public boolean save(final ColorProcessor cp, final String path, final float quality) {
+			return mmio.save(cp, path, quality, false);
+		}
+	};
+
+	/** Create the mipmap levels of {@code patch} and hand each to the {@code writer}.
+	 * The caller must call {@link #mipMapsGenerated(Patch, long)} once all levels have been written. */
+	private boolean generateMipMaps(final Patch patch, final MipMapWriter writer) {
 		Utils.log2("mipmaps for " + patch);
 		final String path = getAbsolutePath(patch);
 		if (null == path) {
@@ -1578,9 +1705,6 @@ public final class FSLoader extends Loader {
 		/** Remove serialized pointmatches, if any */
 		removeSerializedPointMatches(patch);
 
-		/** Alpha mask: setup to check if it was modified while regenerating. */
-		final long alpha_mask_id = patch.getAlphaMaskId();
-
 		final int resizing_mode = patch.getProject().getMipMapsMode();
 
 		try {
@@ -1674,9 +1798,9 @@ public final class FSLoader extends Loader {
 				for (int i=0; i<b.length; ++i) {
 					if (i < first_mipmap_level_saved) {
 						// Ignore level i
-						if (null != b[i]) CachingThread.storeForReuse(b[i].c);
+						if (null != b[i]) ArrayPool.give(b[i].c);
 					} else {
-						boolean written = mmio.save(getLevelDir(dir_mipmaps, i) + filename, b[i].c, b[i].width, b[i].height, 0.85f);
+						boolean written = writer.save(getMipMapTarget(patch, i, filename), b[i].c, b[i].width, b[i].height, 0.85f);
 						if (!written) {
 							Utils.log("Failed to save mipmap with area downsampling at level=" + i + " for patch " + patch);
 							cannot_regenerate.add(patch);
@@ -1711,7 +1835,7 @@ public final class FSLoader extends Loader {
 						outside = null;
 					}
 
-					final String target_dir0 = getLevelDir(dir_mipmaps, 0);
+					final String target0 = getMipMapTarget(patch, 0, filename);
 
 					if (Thread.currentThread().isInterrupted()) return false;
 
@@ -1719,9 +1843,9 @@ public final class FSLoader extends Loader {
 					if (0 == first_mipmap_level_saved) {
 						boolean written;
 						if (null == alpha) {
-							written = mmio.save(cp, target_dir0 + filename, 0.85f, false);
+							written = writer.save(cp, target0, 0.85f);
 						} else {
-							written = mmio.save(target_dir0 + filename,
+							written = writer.save(target0,
 									P.asRGBABytes((int[])cp.getPixels(),
 									(byte[])alpha_mask.getPixels(),
 									null == outside ? null : (byte[])outside_mask.getPixels()),
@@ -1740,8 +1864,8 @@ public final class FSLoader extends Loader {
 						// 1 - Prepare values for the next scaled image
 						k++;
 						// 2 - Check that the target folder for the desired scale exists
-						final String target_dir = getLevelDir(dir_mipmaps, k);
-						if (null == target_dir) break;
+						final String target = getMipMapTarget(patch, k, filename);
+						if (null == target) break;
 						// 3 - Blur the previous image to 0.75 sigma, and scale it
 						final byte[] r = gaussianBlurResizeInHalf(red);   // will resize 'red' FloatProcessor in place.
 						final byte[] g = gaussianBlurResizeInHalf(green); // idem
@@ -1770,13 +1894,13 @@ public final class FSLoader extends Loader {
 						}
 						if (null == alpha) {
 							// 5 - Save as jpeg
-							if (!mmio.save(target_dir + filename, new byte[][]{r, g, b}, w, h, 0.85f)) {
+							if (!writer.save(target, new byte[][]{r, g, b}, w, h, 0.85f)) {
 								Utils.log("Failed to save mipmap for COLOR_RGB, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
 								cannot_regenerate.add(patch);
 								break;
 							}
 						} else {
-							if (!mmio.save(target_dir + filename, new byte[][]{r, g, b, a}, w, h, 0.85f)) {
+							if (!writer.save(target, new byte[][]{r, g, b, a}, w, h, 0.85f)) {
 								Utils.log("Failed to save mipmap for COLOR_RGB, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
 								cannot_regenerate.add(patch);
 								break;
@@ -1833,8 +1957,8 @@ public final class FSLoader extends Loader {
 						h = fp.getHeight();
 
 						// 1 - check that the target folder for the desired scale exists
-						final String target_dir = getLevelDir(dir_mipmaps, k);
-						if (null == target_dir) break;
+						final String target = getMipMapTarget(patch, k, filename);
+						if (null == target) break;
 
 						if (k < first_mipmap_level_saved) {
 							// Skip saving this mipmap level
@@ -1845,14 +1969,14 @@ public final class FSLoader extends Loader {
 							// 3 - save as jpeg with alpha
 							// Remove all not completely inside pixels from the alpha mask
 							// If there was no alpha mask, alpha is the outside itself
-							if (!mmio.save(target_dir + filename, new byte[][]{fp.getScaledBytePixels(), P.merge(alpha.getBytePixels(), null == outside ? null : outside.getBytePixels())}, w, h, 0.85f)) {
+							if (!writer.save(target, new byte[][]{fp.getScaledBytePixels(), P.merge(alpha.getBytePixels(), null == outside ? null : outside.getBytePixels())}, w, h, 0.85f)) {
 								Utils.log("Failed to save mipmap for GRAY8, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
 								cannot_regenerate.add(patch);
 								break;
 							}
 						} else {
 							// 3 - save as 8-bit jpeg
-							if (!mmio.save(target_dir + filename, new byte[][]{fp.getScaledBytePixels()}, w, h, 0.85f)) {
+							if (!writer.save(target, new byte[][]{fp.getScaledBytePixels()}, w, h, 0.85f)) {
 								Utils.log("Failed to save mipmap for GRAY8, 'alpha = " + alpha + "', level = " + k  + " for  patch " + patch);
 								cannot_regenerate.add(patch);
 								break;
@@ -1876,33 +2000,37 @@ public final class FSLoader extends Loader {
 			IJError.print(e);
 			cannot_regenerate.add(patch);
 			return false;
-		} finally {
+		}
+	}
 
-			// flush any cached tiles
-			flushMipMaps(patch.getId());
+	/** Flush cached images of {@code patch} once its mipmaps are written, and resubmit it if its alpha mask changed meanwhile.
+	 * @param alpha_mask_id The alpha mask id of the patch when its mipmap generation started. */
+	private void mipMapsGenerated(final Patch patch, final long alpha_mask_id) {
+		// flush any cached tiles
+		flushMipMaps(patch.getId());
 
-			// flush any cached layer screenshots
-			if (null != patch.getLayer()) {
-				try { patch.getLayer().getParent().removeFromOffscreens(patch.getLayer()); } catch (Exception e) { IJError.print(e); }
-			}
+		// flush any cached layer screenshots
+		if (null != patch.getLayer()) {
+			try { patch.getLayer().getParent().removeFromOffscreens(patch.getLayer()); } catch (Exception e) { IJError.print(e); }
+		}
 
-			// gets executed even when returning from the catch statement or within the try/catch block
-			synchronized (gm_lock) {
-				regenerating_mipmaps.remove(patch);
-			}
+		synchronized (gm_lock) {
+			regenerating_mipmaps.remove(patch);
+		}
 
-			// Has the alpha mask changed?
-			if (patch.getAlphaMaskId() != alpha_mask_id) {
-				Utils.log2("Alpha mask changed: resubmitting mipmap regeneration for " + patch);
-				regenerateMipMaps(patch);
-			}
+		// Has the alpha mask changed?
+		if (patch.getAlphaMaskId() != alpha_mask_id) {
+			Utils.log2("Alpha mask changed: resubmitting mipmap regeneration for " + patch);
+			regenerateMipMaps(patch);
 		}
 	}
 
 
-	/** Remove the file, if it exists, with serialized features for patch.
+	/** Remove the file, if it exists, with serialized features for patch,
+	 * and the features and point matches of patch in the {@link FeatureStore}.
 	 * Returns true when no such file or on success; false otherwise. */
 	public boolean removeSerializedFeatures(final Patch patch) {
+		FeatureStore.remove(this, patch.getId());
 		final File f = new File(new StringBuilder(getUNUIdFolder()).append("features.ser/").append(FSLoader.createIdPath(Long.toString(patch.getId()), "features", ".ser")).toString());
 		if (f.exists()) {
 			try {
@@ -1917,6 +2045,7 @@ public final class FSLoader extends Loader {
 	/** Remove the file, if it exists, with serialized point matches for patch.
 	 * Returns true when no such file or on success; false otherwise. */
 	public boolean removeSerializedPointMatches(final Patch patch) {
+		FeatureStore.remove(this, patch.getId());
 		final String ser = new StringBuilder(getUNUIdFolder()).append("pointmatches.ser/").toString();
 		final File fser = new File(ser);
 
@@ -2009,11 +2138,29 @@ public final class FSLoader extends Loader {
 	}
 
 	/** Generate image pyramids and store them into files under the dir_mipmaps for each Patch object in the Project. The method is multithreaded, using as many processors as available to the JVM.
+	 * Runs as a pipeline with two threads reading images, as many threads as CPUs creating the mipmaps, and two threads writing them;
+	 * see {@link #generateMipMaps(Collection, boolean, int, int, int)}.
 	 *
 	 * @param patches : the list of Patch instances to generate mipmaps for.
 	 * @param overwrite : whether to overwrite any existing mipmaps, or save only those that don't exist yet for whatever reason. This flag provides the means for minimal effort mipmap regeneration.)
 	 * */
 	public Bureaucrat generateMipMaps(final Collection<Displayable> patches, final boolean overwrite) {
+		return generateMipMaps(patches, overwrite, 2, Runtime.getRuntime().availableProcessors(), 2);
+	}
+
+	/** Generate image pyramids for each Patch in {@code patches} as a pipeline of three stages, each with its own threads,
+	 * connected by bounded queues: reading the original images, creating the transformed image and its mipmaps,
+	 * and encoding and writing the mipmap files. Disk and CPUs are then busy at the same time, rather than taking turns
+	 * as when each patch is done start to end by a single thread. Throughput and queue lengths are logged every few seconds,
+	 * revealing which stage is the bottleneck.
+	 *
+	 * @param patches : the list of Patch instances to generate mipmaps for.
+	 * @param overwrite : whether to overwrite any existing mipmaps, or save only those that don't exist yet for whatever reason.
+	 * @param n_readers : number of threads reading original images.
+	 * @param n_workers : number of threads transforming and downsampling images.
+	 * @param n_writers : number of threads encoding and writing mipmap files.
+	 * */
+	public Bureaucrat generateMipMaps(final Collection<Displayable> patches, final boolean overwrite, final int n_readers, final int n_workers, final int n_writers) {
 		if (null == patches || 0 == patches.size()) return null;
 		if (null == dir_mipmaps) createMipMapsDir(null);
 		if (isURL(dir_mipmaps)) {
@@ -2024,6 +2171,7 @@ public final class FSLoader extends Loader {
 			public void exec() {
 				this.setAsBackground(true);
 				Utils.log2("starting mipmap generation ..");
+				MipMapPipeline pipeline = null;
 				try {
 					final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
 					for (final Displayable displ : patches) {
@@ -2040,25 +2188,233 @@ public final class FSLoader extends Loader {
 								w /= 2;
 								h /= 2;
 								level++;
-								if (!new File(dir_mipmaps + level + "/" + filename).exists()) {
+								if (MIPMAP_PACKED == mipmaps_format ? !packedMipMapExists(pa, level) : !new File(dir_mipmaps + level + "/" + filename).exists()) {
 									ow = true;
 									break;
 								}
 							} while (w >= 32 && h >= 32);
 						}
 						if (!ow) continue;
-						fus.add(regenerateMipMaps(pa));
+						if (!isMipMapsRegenerationEnabled()) {
+							fus.add(regenerateMipMaps(pa));
+							continue;
+						}
+						synchronized (gm_lock) {
+							final Future<Boolean> fu = regenerating_mipmaps.get(pa);
+							if (null != fu) {
+								// Already being regenerated
+								fus.add(fu);
+								continue;
+							}
+						}
+						if (null == pipeline) pipeline = new MipMapPipeline(Math.max(1, n_readers), Math.max(1, n_workers), Math.max(1, n_writers));
+						fus.add(pipeline.submit(pa));
 					}
 
+					if (null != pipeline) pipeline.finish();
+
 					Utils.wait(fus);
 
+					// Regenerated mipmaps superseded older records in the containers
+					if (MIPMAP_PACKED == mipmaps_format) compactPackedMipMaps(patches, 0.5);
+
 				} catch (Exception e) {
 					IJError.print(e);
+				} finally {
+					if (null != pipeline) pipeline.shutdown();
 				}
 			}
 		}, ((Displayable)patches.iterator().next()).getProject());
 	}
 
+	/** The stages of {@link #generateMipMaps(Collection, boolean, int, int, int)}.
+	 * Each stage blocks when the queue of the next stage is full, so that at most a few images
+	 * per thread are held in memory between stages. */
+	private final class MipMapPipeline {
+		private final Scheduler.Lane readers, workers, writers;
+		/** Bounds on the number of patches or levels waiting for or being processed by each stage. */
+		private final Semaphore to_read, to_work, to_write;
+		private final AtomicInteger n_submitted = new AtomicInteger(0),
+		                            n_read = new AtomicInteger(0),
+		                            n_generated = new AtomicInteger(0),
+		                            n_done = new AtomicInteger(0),
+		                            n_files = new AtomicInteger(0);
+		private final AtomicLong n_bytes = new AtomicLong(0);
+		private final long start = System.currentTimeMillis();
+		private long last_report = start;
+		private final ArrayList<Writer> submitted = new ArrayList<Writer>();
+
+		MipMapPipeline(final int n_readers, final int n_workers, final int n_writers) {
+			final Scheduler scheduler = Scheduler.getInstance();
+			this.readers = scheduler.newLane(Scheduler.Priority.MIPMAPS, n_readers, "mipmaps-read");
+			this.workers = scheduler.newLane(Scheduler.Priority.MIPMAPS, n_workers, "mipmaps-generate");
+			this.writers = scheduler.newLane(Scheduler.Priority.MIPMAPS, n_writers, "mipmaps-write");
+			this.to_read = new Semaphore(2 * n_readers);
+			this.to_work = new Semaphore(2 * n_workers);
+			this.to_write = new Semaphore(4 * n_writers);
+		}
+
+		/** The levels of one patch, waiting to be written. */
+		private final class Writer implements MipMapWriter {
+			final Patch patch;
+			final long alpha_mask_id;
+			/** One for each level being written, plus one until all levels have been created. */
+			final AtomicInteger pending = new AtomicInteger(1);
+			/** Set once, either when all levels are written or when abandoned by {@link MipMapPipeline#shutdown()}. */
+			final AtomicBoolean closed = new AtomicBoolean(false);
+			final Callable<Boolean> done = new Callable<Boolean>() { public Boolean call() { return !cannot_regenerate.contains(Writer.this.patch); }};
+			final FutureTask<Boolean> result = new FutureTask<Boolean>(done);
+
+			Writer(final Patch patch) {
+				this.patch = patch;
+				this.alpha_mask_id = patch.getAlphaMaskId();
+			}
+			@Override
+			public boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
+				return enqueue(new Callable<Boolean>() { public Boolean call() {
+					final boolean written = mmio.save(path, b, width, height, quality);
+					if (written) n_bytes.addAndGet(b.length * (long)width * height);
+					return written;
+				}});
+			}
+			@Override
+			public boolean save(final ColorProcessor cp, final String path, final float quality) {
+				return enqueue(new Callable<Boolean>() { public Boolean call() {
+					final boolean written = mmio.save(cp, path, quality, false);
+					if (written) n_bytes.addAndGet(4L * cp.getWidth() * cp.getHeight());
+					return written;
+				}});
+			}
+			private boolean enqueue(final Callable<Boolean> task) {
+				try {
+					Scheduler.acquire(to_write);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				pending.incrementAndGet();
+				writers.submit(new Runnable() { public void run() {
+					try {
+						if (task.call()) n_files.incrementAndGet();
+						else {
+							Utils.log("Failed to save a mipmap for patch " + patch);
+							cannot_regenerate.add(patch);
+						}
+					} catch (Throwable t) {
+						IJError.print(t);
+						cannot_regenerate.add(patch);
+					} finally {
+						to_write.release();
+						release();
+					}
+				}});
+				return true;
+			}
+			/** Called once for each written level and once when all levels have been created. */
+			void release() {
+				if (0 != pending.decrementAndGet()) return;
+				if (!closed.compareAndSet(false, true)) return; // abandoned already
+				try {
+					mipMapsGenerated(patch, alpha_mask_id);
+					Display.repaint(patch.getLayer());
+					Display.updatePanel(patch.getLayer(), patch);
+				} finally {
+					n_done.incrementAndGet();
+					n_regenerating.decrementAndGet();
+					result.run();
+				}
+			}
+		}
+
+		/** Queue {@code patch} for reading; blocks while the readers are busy. Returns a Future that completes when all its mipmaps are written. */
+		Future<Boolean> submit(final Patch patch) throws InterruptedException {
+			final Writer writer = new Writer(patch);
+			submitted.add(writer);
+			synchronized (gm_lock) {
+				regenerating_mipmaps.put(patch, writer.result);
+			}
+			n_regenerating.incrementAndGet();
+			n_submitted.incrementAndGet();
+			to_read.acquire();
+			readers.submit(new Runnable() { public void run() {
+				try {
+					// Remove existing mipmaps, and load the original image into the cache
+					final Future<Boolean> removing = removeMipMaps(patch);
+					if (null != removing) removing.get();
+					patch.getImageProcessor();
+					n_read.incrementAndGet();
+					Scheduler.acquire(to_work);
+				} catch (Throwable t) {
+					IJError.print(t);
+					cannot_regenerate.add(patch); // so that its Future completes with false
+					writer.release();
+					return;
+				} finally {
+					to_read.release();
+				}
+				workers.submit(new Runnable() { public void run() {
+					try {
+						generateMipMaps(patch, writer);
+						n_generated.incrementAndGet();
+					} catch (Throwable t) {
+						IJError.print(t);
+						cannot_regenerate.add(patch);
+					} finally {
+						to_work.release();
+						writer.release();
+					}
+				}});
+			}});
+			report(false);
+			return writer.result;
+		}
+
+		/** Block until all submitted patches have been written, reporting progress. */
+		void finish() throws InterruptedException {
+			while (n_done.get() < n_submitted.get()) {
+				Thread.sleep(500);
+				report(false);
+			}
+			report(true);
+		}
+
+		private void report(final boolean last) {
+			final long now = System.currentTimeMillis();
+			if (!last && now - last_report < 10000) return;
+			last_report = now;
+			final double seconds = Math.max(1, now - start) / 1000.0;
+			final int done = n_done.get();
+			Utils.log(new StringBuilder("Mipmaps: ").append(done).append('/').append(n_submitted.get()).append(" patches done in ")
+					.append(Utils.cutNumber(seconds, 1)).append(" s: ")
+					.append(Utils.cutNumber(done / seconds, 2)).append(" patches/s, ")
+					.append(Utils.cutNumber(n_bytes.get() / (seconds * 1024 * 1024), 2)).append(" MB/s of pixels in ")
+					.append(n_files.get()).append(" files")
+					.append(last ? "" : new StringBuilder("\n  queued for reading: ").append(readers.getQueueSize())
+							.append(", read: ").append(n_read.get())
+							.append(", queued for mipmaps: ").append(workers.getQueueSize())
+							.append(", generated: ").append(n_generated.get())
+							.append(", levels queued for writing: ").append(writers.getQueueSize()))
+					.toString());
+			Utils.showStatus(new StringBuilder("Regenerating mipmaps (").append(n_submitted.get() - done).append(" to go)").toString());
+		}
+
+		void shutdown() {
+			readers.shutdownNow();
+			workers.shutdownNow();
+			writers.shutdownNow();
+			// Release any patches that will never be written
+			synchronized (gm_lock) {
+				for (final Writer writer : submitted) {
+					// A task interrupted by the shutdown may still get to release() its writer: count each patch only once
+					if (!writer.closed.compareAndSet(false, true)) continue;
+					writer.result.cancel(false);
+					n_regenerating.decrementAndGet();
+					if (writer.result == regenerating_mipmaps.get(writer.patch)) regenerating_mipmaps.remove(writer.patch);
+				}
+			}
+		}
+	}
+
 	static private final Object FSLOCK = new Object();
 
 	private final String getLevelDir(final String dir_mipmaps, final int level) {
@@ -2237,9 +2593,15 @@ public final class FSLoader extends Loader {
 		// cache values before they are changed:
 		final int width = (int)p.getWidth();
 		final int height = (int)p.getHeight();
+		final String container = PackedMipMaps.EXTENSION.equals(extension) ? getPackedMipMapsContainer(p.getId()) : null;
 		return remover.submit(new Callable<Boolean>() {
 			public Boolean call() {
 				try {
+					if (null != container) {
+						PackedMipMaps.removeAll(container, p.getId());
+						flushMipMaps(p.getId());
+						return true;
+					}
 					final String path = getAbsolutePath(p);
 					if (null == path) {
 						// missing file
@@ -2299,6 +2661,14 @@ public final class FSLoader extends Loader {
 				// find max level that keeps dim over 32 pixels
 				if (level > max_level) return max_level;
 				return level;
+			} else if (MIPMAP_PACKED == mipmaps_format) {
+				do {
+					if (packedMipMapExists(patch, level)) {
+						return level;
+					}
+					// try the next level
+					level--;
+				} while (level >= 0);
 			} else {
 				do {
 					final File f = new File(new StringBuilder(dir_mipmaps).append(level).append('/').append(filename).toString());
@@ -2327,6 +2697,7 @@ public final class FSLoader extends Loader {
 		if (null == dir_mipmaps) return false;
 		final int level = getMipMapLevel(magnification, maxDim(p));
 		if (isURL(dir_mipmaps)) return true; // just assume that it does
+		if (MIPMAP_PACKED == mipmaps_format) return packedMipMapExists(p, level);
 		if (new File(dir_mipmaps + level + "/" + new File(getAbsolutePath(p)).getName() + "." + p.getId() + mExt).exists()) return true;
 		return false;
 	}
@@ -2358,7 +2729,9 @@ public final class FSLoader extends Loader {
 		}
 
 		// New style:
-		final String path = new StringBuilder(dir_mipmaps).append(  level ).append('/').append(createIdPath(Long.toString(patch.getId()), filename, mExt)).toString();
+		final String path = MIPMAP_PACKED == mipmaps_format ?
+			PackedMipMaps.createPath(getPackedMipMapsContainer(patch.getId()), patch.getId(), level)
+			: new StringBuilder(dir_mipmaps).append(  level ).append('/').append(createIdPath(Long.toString(patch.getId()), filename, mExt)).toString();
 
 		//releaseToFit(n_bytes * 8); // eight times, for the jpeg decoder alloc/dealloc at least 2 copies, and with alpha even one more
 		// TODO the x8 is overly exaggerated
@@ -2844,19 +3217,34 @@ public final class FSLoader extends Loader {
 	////////////////////
 
 
-	static final public String[] MIPMAP_FORMATS = new String[]{".jpg", ".png", ".tif", ".raw", ".rag"};
+	static final public String[] MIPMAP_FORMATS = new String[]{".jpg", ".png", ".tif", ".raw", ".rag", PackedMipMaps.EXTENSION};
 	static public final int MIPMAP_JPEG = 0;
 	static public final int MIPMAP_PNG = 1;
 	static public final int MIPMAP_TIFF = 2;
 	static public final int MIPMAP_RAW = 3;
 	static public final int MIPMAP_RAG = 4;
+	/** All mipmap levels of all Patch instances whose ids fall in the same bucket in a single container file; see {@link PackedMipMaps}. */
+	static public final int MIPMAP_PACKED = 5;
 
-	static private final int MIPMAP_HIGHEST = MIPMAP_RAG; // WARNING: update this value if other formats are added
+	static private final int MIPMAP_HIGHEST = MIPMAP_PACKED; // WARNING: update this value if other formats are added
 
 	// Default: RAG
 	private int mipmaps_format = MIPMAP_RAG;
 	private String mExt = MIPMAP_FORMATS[mipmaps_format]; // the extension currently in use
 	private RWImage mmio = new RWImageRag();
+	/** Whether to read .raw and .rag mipmaps by memory-mapping the files. */
+	private volatile boolean mipmaps_mmap = false;
+
+	@Override
+	public void setMemoryMappedMipMaps(final boolean b) {
+		this.mipmaps_mmap = b;
+	}
+
+	/** Whether .raw and .rag mipmap files are read by memory-mapping them; see {@link MappedMipMaps}. */
+	@Override
+	public boolean isMemoryMappedMipMaps() {
+		return mipmaps_mmap;
+	}
 
 	private RWImage newMipMapRWImage() {
 		switch (this.mipmaps_format) {
@@ -2870,13 +3258,15 @@ public final class FSLoader extends Loader {
 				return new RWImageRaw();
 			case MIPMAP_RAG:
 				return new RWImageRag();
+			case MIPMAP_PACKED:
+				return new RWImagePacked();
 			// WARNING add here another one
 		}
 		return null;
 	}
 
 	/** Any of: {@link #MIPMAP_JPEG}, {@link #MIPMAP_PNG}, {@link #MIPMAP_TIFF}, {@link #MIPMAP_RAW},
-	 * {@link #MIPMAP_RAG}. */
+	 * {@link #MIPMAP_RAG}, {@link #MIPMAP_PACKED}. */
 	@Override
 	public final int getMipMapFormat() {
 		return mipmaps_format;
@@ -2890,6 +3280,7 @@ public final class FSLoader extends Loader {
 			case MIPMAP_TIFF:
 			case MIPMAP_RAW:
 			case MIPMAP_RAG:
+			case MIPMAP_PACKED:
 				this.mipmaps_format = format;
 				this.mExt = MIPMAP_FORMATS[mipmaps_format];
 				this.mmio = newMipMapRWImage();
@@ -2931,6 +3322,11 @@ public final class FSLoader extends Loader {
 						}
 					}
 					Utils.wait(fus);
+					if (MIPMAP_PACKED == old_format || MIPMAP_PACKED == new_format) {
+						final ArrayList<Displayable> all = new ArrayList<Displayable>();
+						for (final Layer la : project.getRootLayerSet().getLayers()) all.addAll(la.getDisplayables(Patch.class));
+						compactPackedMipMaps(all, 0);
+					}
 				} catch (Exception e) {
 					IJError.print(e);
 				}
@@ -3045,7 +3441,7 @@ public final class FSLoader extends Loader {
 			} finally {
 				if (null != bi) {
 					bi.flush();
-					CachingThread.storeArrayForReuse(bi);
+					ArrayPool.give(bi);
 				}
 			}
 			return false;
@@ -3086,40 +3482,96 @@ public final class FSLoader extends Loader {
 	private final class RWImageRaw extends RWImage {
 		@Override
 		final BufferedImage open(final String path) {
-			return RawMipMaps.read(path);
+			return mipmaps_mmap ? MappedMipMaps.read(path, false) : RawMipMaps.read(path);
 		}
 		@Override
 		final BufferedImage openGrey(final String path) {
-			return ImageSaver.asGrey(RawMipMaps.read(path)); // TODO may not need the asGrey if all is correct
+			return ImageSaver.asGrey(open(path)); // TODO may not need the asGrey if all is correct
 		}
 		@Override
 		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
 			try {
 				return RawMipMaps.save(path, b, width, height);
 			} finally {
-				CachingThread.storeForReuse(b);
+				ArrayPool.give(b);
 			}
 		}
 	}
 	private final class RWImageRag extends RWImage {
 		@Override
 		final BufferedImage open(final String path) {
-			return RagMipMaps.read(path);
+			return mipmaps_mmap ? MappedMipMaps.read(path, true) : RagMipMaps.read(path);
 		}
 		@Override
 		final BufferedImage openGrey(final String path) {
-			return ImageSaver.asGrey(RagMipMaps.read(path)); // TODO may not need the asGrey if all is correct
+			return ImageSaver.asGrey(open(path)); // TODO may not need the asGrey if all is correct
 		}
 		@Override
 		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
 			try {
 				return RagMipMaps.save(path, b, width, height);
 			} finally {
-				CachingThread.storeForReuse(b);
+				ArrayPool.give(b);
 			}
 		}
 	}
 	
+	/** The paths are as created by {@link PackedMipMaps#createPath(String, long, int)}; see {@link #getMipMapTarget(Patch, int, String)}. */
+	private final class RWImagePacked extends RWImage {
+		@Override
+		final BufferedImage open(final String path) {
+			return PackedMipMaps.read(path);
+		}
+		@Override
+		final BufferedImage openGrey(final String path) {
+			return ImageSaver.asGrey(PackedMipMaps.read(path)); // TODO may not need the asGrey if all is correct
+		}
+		@Override
+		final boolean save(final String path, final byte[][] b, final int width, final int height, final float quality) {
+			try {
+				return PackedMipMaps.save(path, b, width, height);
+			} finally {
+				ArrayPool.give(b);
+			}
+		}
+	}
+
+	/** Number of consecutive ids whose Patch instances share a packed mipmaps container. */
+	static private final long PACKED_MIPMAPS_BUCKET = 1024;
+
+	/** Returns the path to the container file that holds the mipmaps of the Patch with id {@code patch_id}.
+	 *  Containers are keyed by buckets of ids, which never change, unlike the Layer of a Patch:
+	 *  Patch instances imported together get consecutive ids and share a container. */
+	private final String getPackedMipMapsContainer(final long patch_id) {
+		return new StringBuilder(dir_mipmaps).append("packed/").append(patch_id / PACKED_MIPMAPS_BUCKET).append(PackedMipMaps.EXTENSION).toString();
+	}
+
+	/** Returns the path for writing the mipmap of {@code patch} at {@code level}, creating the folder for the level if necessary,
+	 *  or null if the folder could not be created. For {@link #MIPMAP_PACKED}, returns a path into the container of the Patch's id bucket. */
+	private final String getMipMapTarget(final Patch patch, final int level, final String filename) {
+		if (MIPMAP_PACKED == mipmaps_format) {
+			return PackedMipMaps.createPath(getPackedMipMapsContainer(patch.getId()), patch.getId(), level);
+		}
+		final String dir = getLevelDir(dir_mipmaps, level);
+		return null == dir ? null : dir + filename;
+	}
+
+	/** Whether the packed mipmap of {@code patch} at {@code level} exists. */
+	private final boolean packedMipMapExists(final Patch patch, final int level) {
+		return PackedMipMaps.exists(PackedMipMaps.createPath(getPackedMipMapsContainer(patch.getId()), patch.getId(), level));
+	}
+
+	/** Rewrite the mipmap containers of the given patches if at least {@code min_garbage} (from 0 to 1)
+	 *  of their records are superseded or removed mipmaps. Containers whose records were all removed are deleted. */
+	public void compactPackedMipMaps(final Collection<? extends Displayable> patches, final double min_garbage) {
+		if (null == dir_mipmaps || isURL(dir_mipmaps)) return;
+		final HashSet<String> containers = new HashSet<String>();
+		for (final Displayable p : patches) containers.add(getPackedMipMapsContainer(p.getId()));
+		for (final String container : containers) {
+			PackedMipMaps.compact(container, min_garbage);
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	protected boolean mapIntensities(final Patch p, final ImagePlus imp) {
@@ -0,0 +1,473 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/** A single-file cache of SIFT {@link Feature} sets and {@link PointMatch} sets, as an alternative to
+ * one Java-serialized file per image (in "features.ser/") and two per pair of images (in "pointmatches.ser/").
+ * The file lives at "features.store" in the project's {@link Loader#getUNUIdFolder()}.
+ *
+ * Each set is stored in binary form: feature locations, scales and orientations as doubles and descriptors as
+ * fixed-width arrays of floats; point matches as the local and world coordinates of both points, the weights and the strength.
+ * Sets are indexed by prefix (e.g. "layer", or none for images), object id(s) and a hash of the Java-serialized key,
+ * e.g. the SIFT parameters, so that sets extracted with different parameters coexist. A set is returned only if its key
+ * serializes to exactly the same bytes as the key requested. Point matches are stored once per pair and flipped as necessary on reading.
+ *
+ * The file is append-only: a record starts with its length and ends with the CRC32 of its contents, so that
+ * a partially written record at the end is detected and truncated away. On opening, only the headers of the records
+ * are read to build the index; records superseded or removed are skipped, and the file is compacted when more than half of it is obsolete.
+ */
+public final class FeatureStore
+{
+	static public final String NAME = "features.store";
+
+	static private final byte[] MAGIC = new byte[]{'T', '2', 'F', 'E', 'A', 'T', 0, 1};
+	static private final byte FEATURES = 1,
+	                          POINTMATCHES = 2,
+	                          REMOVAL = 3;
+
+	/** One store per UNUId folder. */
+	static private final HashMap<String,FeatureStore> stores = new HashMap<String,FeatureStore>();
+
+	private final File file;
+	private RandomAccessFile ra;
+	/** Length of the valid part of the file, where the next record will be appended. */
+	private long end;
+	/** Bytes taken by records that have been superseded or removed. */
+	private long obsolete = 0;
+	/** Index key vs. offset of the record. */
+	private final HashMap<String,Long> index = new HashMap<String,Long>();
+	/** Object id vs. the index keys of the records that refer to it. */
+	private final HashMap<Long,HashSet<String>> by_id = new HashMap<Long,HashSet<String>>();
+
+	/** Returns the store for the project of @param loader, opening it if necessary. */
+	static public final FeatureStore get(final Loader loader) {
+		final String folder = loader.getUNUIdFolder();
+		synchronized (stores) {
+			FeatureStore store = stores.get(folder);
+			if (null == store) {
+				try {
+					store = new FeatureStore(new File(folder + NAME));
+					stores.put(folder, store);
+				} catch (final Exception e) {
+					Utils.log("Could not open the feature store in " + folder);
+					IJError.print(e);
+					return null;
+				}
+			}
+			return store;
+		}
+	}
+
+	/** Remove all features and point matches of the object with id @param id, such as a {@link ini.trakem2.display.Patch} whose image changed,
+	 * from the store of @param loader, if there is one. */
+	static public final void remove(final Loader loader, final long id) {
+		final FeatureStore store;
+		synchronized (stores) {
+			store = stores.containsKey(loader.getUNUIdFolder()) || new File(loader.getUNUIdFolder() + NAME).exists() ? get(loader) : null;
+		}
+		if (null != store) store.remove(id);
+	}
+
+	/** Close the store of @param loader, if open. */
+	static public final void close(final Loader loader) {
+		final FeatureStore store;
+		synchronized (stores) {
+			store = stores.remove(loader.getUNUIdFolder());
+		}
+		if (null != store) store.close();
+	}
+
+	private FeatureStore(final File file) throws IOException {
+		this.file = file;
+		final File dir = file.getParentFile();
+		if (null != dir) dir.mkdirs();
+		open();
+		if (obsolete > end / 2 && end > 16 * 1024 * 1024) compact();
+	}
+
+	private final void open() throws IOException {
+		ra = new RandomAccessFile(file, "rw");
+		if (ra.length() < MAGIC.length) {
+			ra.setLength(0);
+			ra.write(MAGIC);
+			end = MAGIC.length;
+			return;
+		}
+		final byte[] magic = new byte[MAGIC.length];
+		ra.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("Not a feature store: " + file);
+		}
+		// Read only the headers
+		final long length = ra.length();
+		long pos = MAGIC.length;
+		final byte[] header = new byte[29]; // type, id1, id2, hash, prefix length
+		while (pos + 4 + header.length <= length) {
+			ra.seek(pos);
+			final int len = ra.readInt();
+			if (len < header.length + 8 || pos + 4 + len > length) break;
+			ra.readFully(header);
+			final ByteBuffer b = ByteBuffer.wrap(header);
+			final byte type = b.get();
+			final long id1 = b.getLong(),
+			           id2 = b.getLong(),
+			           hash = b.getLong();
+			if (REMOVAL == type) {
+				removeFromIndex(id1);
+				obsolete += 4 + len;
+			} else {
+				final int prefix_len = b.getInt();
+				final byte[] prefix = new byte[prefix_len];
+				ra.readFully(prefix);
+				addToIndex(indexKey(type, new String(prefix, "UTF-8"), id1, id2, hash), id1, id2, pos, 4 + len);
+			}
+			pos += 4 + len;
+		}
+		end = pos;
+		if (end < length) {
+			Utils.log("Truncating " + (length - end) + " bytes of an incomplete record in " + file);
+			ra.setLength(end);
+		}
+	}
+
+	private final void close() {
+		synchronized (this) {
+			try {
+				if (null != ra) ra.close();
+			} catch (final IOException ioe) {
+				IJError.print(ioe);
+			}
+			ra = null;
+		}
+	}
+
+	/** Rewrite the file with only the records in use. */
+	private final synchronized void compact() {
+		final File ftmp = new File(file.getAbsolutePath() + ".tmp");
+		RandomAccessFile out = null;
+		try {
+			final long t0 = System.currentTimeMillis();
+			out = new RandomAccessFile(ftmp, "rw");
+			out.setLength(0);
+			out.write(MAGIC);
+			final HashMap<String,Long> moved = new HashMap<String,Long>();
+			for (final Map.Entry<String,Long> e : index.entrySet()) {
+				final byte[] record = readRecord(e.getValue());
+				moved.put(e.getKey(), out.getFilePointer());
+				out.writeInt(record.length);
+				out.write(record);
+			}
+			out.close();
+			out = null;
+			ra.close();
+			ra = null;
+			if (!file.delete() || !ftmp.renameTo(file)) throw new IOException("Could not replace " + file);
+			index.putAll(moved);
+			obsolete = 0;
+			ra = new RandomAccessFile(file, "rw");
+			end = ra.length();
+			Utils.log2("Compacted " + file + " in " + (System.currentTimeMillis() - t0) + " ms");
+		} catch (final Exception e) {
+			IJError.print(e);
+			try {
+				if (null != out) out.close();
+				if (null == ra) {
+					// Start anew: it's a cache
+					index.clear();
+					by_id.clear();
+					file.delete();
+					ftmp.delete();
+					open();
+				}
+			} catch (final IOException ioe) {
+				IJError.print(ioe);
+			}
+		}
+	}
+
+	static private final String indexKey(final byte type, final String prefix, final long id1, final long id2, final long hash) {
+		return new StringBuilder().append(type).append(':').append(prefix).append(':').append(id1).append(':').append(id2).append(':').append(hash).toString();
+	}
+
+	private final void addToIndex(final String key, final long id1, final long id2, final long pos, final int length) {
+		final Long old = index.put(key, pos);
+		if (null != old) obsolete += length; // approximate: the old one may have been of a different size
+		for (final long id : new long[]{id1, id2}) {
+			if (-1 == id) continue;
+			HashSet<String> keys = by_id.get(id);
+			if (null == keys) {
+				keys = new HashSet<String>();
+				by_id.put(id, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	/** Returns whether any record referred to @param id. */
+	private final boolean removeFromIndex(final long id) {
+		final HashSet<String> keys = by_id.remove(id);
+		if (null == keys) return false;
+		for (final String key : keys) {
+			if (null != index.remove(key)) obsolete += 1024; // unknown size; only used as a hint for compaction
+		}
+		// Remove the keys also from the sets of the other ids they referred to
+		for (final Iterator<HashSet<String>> it = by_id.values().iterator(); it.hasNext(); ) {
+			final HashSet<String> other = it.next();
+			other.removeAll(keys);
+			if (other.isEmpty()) it.remove();
+		}
+		return true;
+	}
+
+	/** Returns the record at @param pos, without its leading length. */
+	private final synchronized byte[] readRecord(final long pos) throws IOException {
+		ra.seek(pos);
+		final byte[] record = new byte[ra.readInt()];
+		ra.readFully(record);
+		return record;
+	}
+
+	/** Append a record made of @param header and @param payload, and index it. */
+	private final boolean append(final byte type, final String prefix, final long id1, final long id2, final long hash, final byte[] key, final ByteArrayOutputStream payload) {
+		try {
+			final byte[] bprefix = prefix.getBytes("UTF-8");
+			final ByteArrayOutputStream bout = new ByteArrayOutputStream(64 + bprefix.length + key.length + payload.size());
+			final DataOutputStream dos = new DataOutputStream(bout);
+			dos.writeInt(0); // placeholder for the length
+			dos.writeByte(type);
+			dos.writeLong(id1);
+			dos.writeLong(id2);
+			dos.writeLong(hash);
+			dos.writeInt(bprefix.length);
+			dos.write(bprefix);
+			dos.writeInt(key.length);
+			dos.write(key);
+			payload.writeTo(dos);
+			dos.writeLong(0); // placeholder for the CRC32
+			dos.flush();
+			final byte[] record = bout.toByteArray();
+			final ByteBuffer b = ByteBuffer.wrap(record);
+			b.putInt(0, record.length - 4);
+			final CRC32 crc = new CRC32();
+			crc.update(record, 4, record.length - 12);
+			b.putLong(record.length - 8, crc.getValue());
+			synchronized (this) {
+				if (null == ra) return false;
+				ra.seek(end);
+				ra.write(record);
+				if (REMOVAL != type) addToIndex(indexKey(type, prefix, id1, id2, hash), id1, id2, end, record.length);
+				end += record.length;
+			}
+			return true;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return false;
+		}
+	}
+
+	/** Find the record for the given parameters and return its payload, positioned after the key, or null if not found or invalid. */
+	private final ByteBuffer find(final byte type, final String prefix, final long id1, final long id2, final byte[] key) {
+		final Long pos;
+		synchronized (this) {
+			if (null == ra) return null;
+			pos = index.get(indexKey(type, prefix, id1, id2, hash(key)));
+		}
+		if (null == pos) return null;
+		try {
+			final byte[] record = readRecord(pos);
+			final CRC32 crc = new CRC32();
+			crc.update(record, 0, record.length - 8);
+			final ByteBuffer b = ByteBuffer.wrap(record);
+			if (crc.getValue() != b.getLong(record.length - 8)) {
+				Utils.log("Invalid record in " + file);
+				return null;
+			}
+			b.position(1 + 8 + 8 + 8);
+			b.position(b.position() + 4 + b.getInt(b.position()));
+			final int key_len = b.getInt();
+			final byte[] stored_key = new byte[key_len];
+			b.get(stored_key);
+			if (!Arrays.equals(key, stored_key)) return null;
+			return b;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return null;
+		}
+	}
+
+	static private final byte[] serializeKey(final Object key) throws IOException {
+		final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		final ObjectOutputStream oos = new ObjectOutputStream(bout);
+		oos.writeObject(key);
+		oos.close();
+		return bout.toByteArray();
+	}
+
+	/** 64-bit FNV-1a. */
+	static private final long hash(final byte[] b) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=0; i<b.length; ++i) {
+			h ^= (b[i] & 0xff);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/** Store the @param features of the object with id @param id, under the @param key that describes how they were extracted. */
+	public boolean putFeatures(final Object key, final String prefix, final long id, final Collection<Feature> features) {
+		try {
+			final byte[] bkey = serializeKey(key);
+			final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			final DataOutputStream dos = new DataOutputStream(bout);
+			final Feature first = features.isEmpty() ? null : features.iterator().next();
+			final int loc_dim = null == first ? 0 : first.location.length,
+			          desc_dim = null == first ? 0 : first.descriptor.length;
+			dos.writeInt(features.size());
+			dos.writeInt(loc_dim);
+			dos.writeInt(desc_dim);
+			final ByteBuffer fb = ByteBuffer.allocate(8 * (2 + loc_dim) + 4 * desc_dim);
+			for (final Feature f : features) {
+				if (f.location.length != loc_dim || f.descriptor.length != desc_dim) {
+					Utils.log("Features of different dimensions cannot be stored together.");
+					return false;
+				}
+				fb.clear();
+				fb.putDouble(f.scale);
+				fb.putDouble(f.orientation);
+				for (int i=0; i<loc_dim; ++i) fb.putDouble(f.location[i]);
+				fb.asFloatBuffer().put(f.descriptor);
+				dos.write(fb.array());
+			}
+			dos.flush();
+			return append(FEATURES, null == prefix ? "" : prefix, id, -1, hash(bkey), bkey, bout);
+		} catch (final Exception e) {
+			IJError.print(e);
+			return false;
+		}
+	}
+
+	/** Returns the features stored for the object with id @param id under a @param key equal to the given one, or null if none. */
+	public ArrayList<Feature> getFeatures(final Object key, final String prefix, final long id) {
+		try {
+			final ByteBuffer b = find(FEATURES, null == prefix ? "" : prefix, id, -1, serializeKey(key));
+			if (null == b) return null;
+			final int n = b.getInt(),
+			          loc_dim = b.getInt(),
+			          desc_dim = b.getInt();
+			final ArrayList<Feature> features = new ArrayList<Feature>(n);
+			for (int k=0; k<n; ++k) {
+				final double scale = b.getDouble(),
+				             orientation = b.getDouble();
+				final double[] location = new double[loc_dim];
+				for (int i=0; i<loc_dim; ++i) location[i] = b.getDouble();
+				final float[] descriptor = new float[desc_dim];
+				b.asFloatBuffer().get(descriptor);
+				b.position(b.position() + 4 * desc_dim);
+				features.add(new Feature(scale, orientation, location, descriptor));
+			}
+			return features;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return null;
+		}
+	}
+
+	/** Store the point @param matches from the object with id @param id1 to that with id @param id2. */
+	public boolean putPointMatches(final Object key, final String prefix, final long id1, final long id2, final Collection<PointMatch> matches) {
+		try {
+			final byte[] bkey = serializeKey(key);
+			final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			final DataOutputStream dos = new DataOutputStream(bout);
+			final int dim = matches.isEmpty() ? 0 : matches.iterator().next().getP1().getL().length;
+			dos.writeInt(matches.size());
+			dos.writeInt(dim);
+			for (final PointMatch pm : matches) {
+				final double[][] coords = new double[][]{pm.getP1().getL(), pm.getP1().getW(), pm.getP2().getL(), pm.getP2().getW()};
+				for (final double[] c : coords) {
+					if (c.length != dim) {
+						Utils.log("Point matches of different dimensions cannot be stored together.");
+						return false;
+					}
+					for (int i=0; i<dim; ++i) dos.writeDouble(c[i]);
+				}
+				final double[] weights = pm.getWeights();
+				dos.writeInt(weights.length);
+				for (int i=0; i<weights.length; ++i) dos.writeDouble(weights[i]);
+				dos.writeDouble(pm.getStrength());
+			}
+			dos.flush();
+			return append(POINTMATCHES, null == prefix ? "" : prefix, id1, id2, hash(bkey), bkey, bout);
+		} catch (final Exception e) {
+			IJError.print(e);
+			return false;
+		}
+	}
+
+	/** Returns the point matches stored from the object with id @param id1 to that with id @param id2,
+	 * or flipped from those stored in the opposite direction, under a @param key equal to the given one; or null if none. */
+	public ArrayList<PointMatch> getPointMatches(final Object key, final String prefix, final long id1, final long id2) {
+		try {
+			final byte[] bkey = serializeKey(key);
+			final String p = null == prefix ? "" : prefix;
+			ByteBuffer b = find(POINTMATCHES, p, id1, id2, bkey);
+			final boolean flip = null == b;
+			if (flip) {
+				b = find(POINTMATCHES, p, id2, id1, bkey);
+				if (null == b) return null;
+			}
+			final int n = b.getInt(),
+			          dim = b.getInt();
+			final ArrayList<PointMatch> matches = new ArrayList<PointMatch>(n);
+			for (int k=0; k<n; ++k) {
+				final Point p1 = readPoint(b, dim),
+				            p2 = readPoint(b, dim);
+				final double[] weights = new double[b.getInt()];
+				for (int i=0; i<weights.length; ++i) weights[i] = b.getDouble();
+				final double strength = b.getDouble();
+				matches.add(flip ? new PointMatch(p2, p1, weights, strength) : new PointMatch(p1, p2, weights, strength));
+			}
+			return matches;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return null;
+		}
+	}
+
+	static private final Point readPoint(final ByteBuffer b, final int dim) {
+		final double[] l = new double[dim];
+		for (int i=0; i<dim; ++i) l[i] = b.getDouble();
+		final Point p = new Point(l);
+		final double[] w = p.getW();
+		for (int i=0; i<dim; ++i) w[i] = b.getDouble();
+		return p;
+	}
+
+	/** Remove all features and point matches that refer to the object with id @param id. */
+	public void remove(final long id) {
+		synchronized (this) {
+			if (!removeFromIndex(id)) return;
+		}
+		append(REMOVAL, "", id, -1, 0, new byte[0], new ByteArrayOutputStream(0));
+	}
+}
@@ -105,6 +105,7 @@ import ini.trakem2.display.DLabel;
 import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.DisplayablePanel;
+import ini.trakem2.display.FlatImageRenderer;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.MipMapImage;
@@ -124,10 +125,12 @@ import ini.trakem2.imaging.filters.IFilter;
 import ini.trakem2.io.AmiraImporter;
 import ini.trakem2.io.ImageFileFilter;
 import ini.trakem2.io.ImageFileHeader;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.tree.DTDParser;
 import ini.trakem2.tree.TemplateThing;
 import ini.trakem2.utils.Bureaucrat;
-import ini.trakem2.utils.CachingThread;
+import ini.trakem2.utils.ArrayPool;
 import ini.trakem2.utils.Dispatcher;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Montage;
@@ -137,7 +140,6 @@ import ini.trakem2.utils.Worker;
 import loci.formats.ChannelSeparator;
 import loci.formats.FormatException;
 import loci.formats.IFormatReader;
-import mpi.fruitfly.general.MultiThreading;
 import mpi.fruitfly.math.datastructures.FloatArray2D;
 import mpi.fruitfly.registration.ImageFilter;
 import mpicbg.trakem2.transform.ExportUnsignedShort;
@@ -574,6 +576,11 @@ abstract public class Loader {
 	/** If true, preloading is disabled. */
 	static private boolean low_memory_conditions = false;
 
+	/** Whether preloading and prefetching of images are disabled for lack of memory. */
+	static public final boolean isLowMemory() {
+		return low_memory_conditions;
+	}
+
 	/** 150 Mb per processor, which is ~2x 67 Mb, the size of a 32-bit 4096x4096 image. */
 	public static long computeDesirableMinFreeBytes() {
 		final long f = 150000000 * Runtime.getRuntime().availableProcessors();
@@ -688,7 +695,8 @@ abstract public class Loader {
 
 			// Sanity check:
 			if (0 == mawts.size()) {
-				CachingThread.releaseAll();
+				ArrayPool.clear();
+				TransformCache.clear();
 				// Remove any autotraces
 				Polyline.flushTraceCache(Project.findProject(this));
 				// TODO should measure the polyline trace cache and add it to 'released'
@@ -725,7 +733,8 @@ abstract public class Loader {
 		for (final Loader lo : new ArrayList<Loader>(v_loaders)) { // calls v_loaders.toArray, synchronized.
 			lo.releaseAll();
 		}
-		CachingThread.releaseAll();
+		ArrayPool.clear();
+		TransformCache.clear();
 	}
 
 	/** Empties the caches. */
@@ -757,34 +766,28 @@ abstract public class Loader {
 
 	/** Removes from the cache all awt images bond to the given id. */
 	public void decacheAWT(final long id) {
-		synchronized (db_lock) {
-			try {
-				mawts.removeAndFlushPyramid(id); // where are my lisp macros! Wrapping any function in a synch/lock/unlock could be done crudely with reflection, but what a pain
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			mawts.removeAndFlushPyramid(id); // where are my lisp macros! Wrapping any function in a synch/lock/unlock could be done crudely with reflection, but what a pain
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 	}
 
 	public Image getCachedAWT(final long id, final int level) {
-		synchronized (db_lock) {
-			try {
-				return mawts.get(id, level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.get(id, level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
 
 	public void cacheAWT( final long id, final Image awt) {
 		if (null == awt) return;
-		synchronized (db_lock) {
-			try {
-				mawts.put(id, awt, 0);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			mawts.put(id, awt, 0);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 	}
 
@@ -847,71 +850,64 @@ abstract public class Loader {
 	}
 
 	public boolean isImagePlusCached(final Patch p) {
-		synchronized (db_lock) {
-			try {
-				return null != mawts.get(p.getId());
-			} catch (final Throwable t) {
-				handleCacheError(t);
-				return false;
-			}
+		try {
+			return null != mawts.get(p.getId());
+		} catch (final Throwable t) {
+			handleCacheError(t);
+			return false;
 		}
 	}
 
 	/** Returns true if there is a cached awt image for the given mag and Patch id. */
 	public boolean isCached(final Patch p, final double mag) {
 		final int level = Loader.getMipMapLevel(mag, maxDim(p));
-		synchronized (db_lock) {
-			try {
-				return mawts.contains(p.getId(), level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-				return false;
-			}
+		try {
+			return mawts.contains(p.getId(), level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
+			return false;
 		}
 	}
 
 	public MipMapImage getCached(final long id, final int level) {
-		synchronized (db_lock) {
-			try {
-				return mawts.getClosestAbove(id, level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.getClosestAbove(id, level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
 	
+	/** The bytes that the image cache can take before it has to evict any image. */
+	public long getFreeCacheBytes() {
+		return Math.max(0, mawts.getMaxBytes() - mawts.getBytes());
+	}
+
 	/** Only the indicated level for the given Patch id. */
 	public void removeCached(final long id, final int level) {
-		synchronized (db_lock) {
-			try {
-				mawts.remove(id, level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			mawts.remove(id, level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 	}
 	
 	/** All levels of the Patch. */
 	public void removeCached(final long id) {
-		synchronized (db_lock) {
-			try {
-				mawts.remove(id);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			mawts.remove(id);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 	}
 
 	/** Above or equal in size. */
 	public MipMapImage getCachedClosestAboveImage(final Patch p, final double mag) {
 		final int level = Loader.getMipMapLevel(mag, maxDim(p));
-		synchronized (db_lock) {
-			try {
-				return mawts.getClosestAbove(p.getId(), level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.getClosestAbove(p.getId(), level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
@@ -919,12 +915,10 @@ abstract public class Loader {
 	/** Below, not equal. */
 	public MipMapImage getCachedClosestBelowImage(final Patch p, final double mag) {
 		final int level = Loader.getMipMapLevel(mag, maxDim(p));
-		synchronized (db_lock) {
-			try {
-				return mawts.getClosestBelow(p.getId(), level);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.getClosestBelow(p.getId(), level);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
@@ -981,30 +975,31 @@ abstract public class Loader {
 	}
 
 	final public MipMapImage fetchAWTImage(final Patch p, final int level, final int max_level) {
-		// Below, the complexity of the synchronized blocks is to provide sufficient granularity. Keep in mind that only one thread at at a time can access a synchronized block for the same object (in this case, the db_lock), and thus calling lock() and unlock() is not enough. One needs to break the statement in as many synch blocks as possible for maximizing the number of threads concurrently accessing different parts of this function.
+		// The cache is concurrent: reads of cached images never lock. The db_lock only guards the table of image loading locks,
+		// and each image loading lock serializes the loading of one level of one Patch, so that it is loaded only once.
 
 		// find an equal or larger existing pyramid awt
 		final long id = p.getId();
 		ImageLoadingLock plock = null;
 
-		synchronized (db_lock) {
-			try {
-				if (null == mawts) {
-					return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() ); // when lazy repainting after closing a project, the awts is null
+		try {
+			if (null == mawts) {
+				return new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() ); // when lazy repainting after closing a project, the awts is null
+			}
+			if (level >= 0 && isMipMapsRegenerationEnabled()) {
+				// 1 - check if the exact level is cached
+				final Image mawt = mawts.get( id, level );
+				if (null != mawt) {
+					//Utils.log2("returning cached exact mawt for level " + level);
+					final double scale = Math.pow( 2.0, level );
+					return new MipMapImage( mawt, scale, scale );
 				}
-				if (level >= 0 && isMipMapsRegenerationEnabled()) {
-					// 1 - check if the exact level is cached
-					final Image mawt = mawts.get( id, level );
-					if (null != mawt) {
-						//Utils.log2("returning cached exact mawt for level " + level);
-						final double scale = Math.pow( 2.0, level );
-						return new MipMapImage( mawt, scale, scale );
-					}
+				synchronized (db_lock) {
 					plock = getOrMakeImageLoadingLock(p.getId(), level);
 				}
-			} catch (final Exception e) {
-				IJError.print(e);
 			}
+		} catch (final Exception e) {
+			IJError.print(e);
 		}
 
 		MipMapImage mipMap = null;
@@ -1012,10 +1007,7 @@ abstract public class Loader {
 		// 2 - check if the exact file is present for the desired level
 		if (level >= 0 && isMipMapsRegenerationEnabled()) {
 			synchronized (plock) {
-				final Image mawt;
-				synchronized (db_lock) {
-					mawt = mawts.get( id, level );
-				}
+				final Image mawt = mawts.get( id, level );
 				if (null != mawt) {
 					final double scale = Math.pow( 2.0, level );
 					return new MipMapImage( mawt, scale, scale ); // was loaded by a different thread
@@ -1035,42 +1027,42 @@ abstract public class Loader {
 					mipMap = null;
 				}
 
-				synchronized (db_lock) {
-					try {
-						if ( null != mipMap ) {
-							//Utils.log2("returning exact mawt from file for level " + level);
-							if ( REGENERATING != mipMap.image ) {
-								mawts.put( id, mipMap.image, level );
-								Display.repaintSnapshot(p);
-							}
-							return mipMap;
+				try {
+					if ( null != mipMap ) {
+						//Utils.log2("returning exact mawt from file for level " + level);
+						if ( REGENERATING != mipMap.image ) {
+							mawts.put( id, mipMap.image, level );
+							Display.repaintSnapshot(p);
 						}
+						return mipMap;
+					}
 
-						// Check if an appropriate level is cached
-						mipMap = mawts.getClosestAbove(id, level);
-
-						if ( mipMap == null ) {
-							// 3 - else, load closest level to it but still giving a larger image
-							final int lev = getClosestMipMapLevel(p, level, max_level); // finds the file for the returned level, otherwise returns zero
-							//Utils.log2("closest mipmap level is " + lev);
-							if (lev > -1) {
-								mipMap = fetchMipMapAWT( p, lev, n_bytes ); // overestimating n_bytes
-								if ( null != mipMap ) {
-									mawts.put( id, mipMap.image, lev );
-									//Utils.log2("from getClosestMipMapLevel: mawt is " + mawt);
-									Display.repaintSnapshot( p );
-									//Utils.log2("returning from getClosestMipMapAWT with level " + lev);
-									return mipMap;
-								}
-							} else if (ERROR_PATH_NOT_FOUND == lev) {
-								mipMap = new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() );
+					// Check if an appropriate level is cached
+					mipMap = mawts.getClosestAbove(id, level);
+
+					if ( mipMap == null ) {
+						// 3 - else, load closest level to it but still giving a larger image
+						final int lev = getClosestMipMapLevel(p, level, max_level); // finds the file for the returned level, otherwise returns zero
+						//Utils.log2("closest mipmap level is " + lev);
+						if (lev > -1) {
+							mipMap = fetchMipMapAWT( p, lev, n_bytes ); // overestimating n_bytes
+							if ( null != mipMap ) {
+								mawts.put( id, mipMap.image, lev );
+								//Utils.log2("from getClosestMipMapLevel: mawt is " + mawt);
+								Display.repaintSnapshot( p );
+								//Utils.log2("returning from getClosestMipMapAWT with level " + lev);
+								return mipMap;
 							}
-						} else {
-							return mipMap;
+						} else if (ERROR_PATH_NOT_FOUND == lev) {
+							mipMap = new MipMapImage( NOT_FOUND, p.getWidth() / NOT_FOUND.getWidth(), p.getHeight() / NOT_FOUND.getHeight() );
 						}
-					} catch (final Throwable t) {
-						handleCacheError(t);
-					} finally {
+					} else {
+						return mipMap;
+					}
+				} catch (final Throwable t) {
+					handleCacheError(t);
+				} finally {
+					synchronized (db_lock) {
 						removeImageLoadingLock(plock);
 					}
 				}
@@ -1080,17 +1072,15 @@ abstract public class Loader {
 		// level is zero or nonsensically lower than zero, or was not found
 		//Utils.log2("not found!");
 
-		synchronized (db_lock) {
-			try {
-				// 4 - check if any suitable level is cached (whithout mipmaps, it may be the large image)
-				mipMap = mawts.getClosestAbove(id, level);
-				if (null != mipMap) {
-					//Utils.log2("returning from getClosest with level " + level);
-					return mipMap;
-				}
-			} catch (final Exception e) {
-				IJError.print(e);
+		try {
+			// 4 - check if any suitable level is cached (whithout mipmaps, it may be the large image)
+			mipMap = mawts.getClosestAbove(id, level);
+			if (null != mipMap) {
+				//Utils.log2("returning from getClosest with level " + level);
+				return mipMap;
 			}
+		} catch (final Exception e) {
+			IJError.print(e);
 		}
 
 		// 5 - else, fetch the (perhaps) transformed ImageProcessor and make an image from it of the proper size and quality
@@ -1132,17 +1122,17 @@ abstract public class Loader {
 			mawt = null;
 		}
 
-		synchronized (db_lock) {
-			try {
-				if (null != mawt) {
-					mawts.put(id, mawt, 0);
-					Display.repaintSnapshot(p);
-					//Utils.log2("Created mawt from scratch.");
-					return new MipMapImage( mawt, 1.0, 1.0 );
-				}
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			} finally {
+		try {
+			if (null != mawt) {
+				mawts.put(id, mawt, 0);
+				Display.repaintSnapshot(p);
+				//Utils.log2("Created mawt from scratch.");
+				return new MipMapImage( mawt, 1.0, 1.0 );
+			}
+		} catch (final Throwable t) {
+			handleCacheError(t);
+		} finally {
+			synchronized (db_lock) {
 				removeImageLoadingLock(plock);
 			}
 		}
@@ -1176,12 +1166,10 @@ abstract public class Loader {
 
 	/** Simply reads from the cache, does no reloading at all. If the ImagePlus is not found in the cache, it returns null and the burden is on the calling method to do reconstruct it if necessary. This is intended for the LayerStack. */
 	public ImagePlus getCachedImagePlus(final long id) {
-		synchronized(db_lock) {
-			try {
-				return mawts.get(id);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-			}
+		try {
+			return mawts.get(id);
+		} catch (final Throwable t) {
+			handleCacheError(t);
 		}
 		return null;
 	}
@@ -2177,7 +2165,7 @@ while (it.hasNext()) {
 							np = np / 2;
 							break;
 					}
-					final ExecutorService ex = Utils.newFixedThreadPool(np, "import-images");
+					final ExecutorService ex = ExecutorProvider.getExecutorService(Scheduler.Priority.BATCH, np, "import-images");
 					final List<Future<?>> imported = new ArrayList<Future<?>>();
 					final Worker wo = this;
 
@@ -2563,23 +2551,23 @@ while (it.hasNext()) {
 		recreateBuckets(lall);
 	}
 
-	/** Recreate buckets for each Layer, one thread per layer, in as many threads as CPUs. */
+	/** Recreate buckets for each Layer, one task per layer, in as many threads as CPUs. */
 	public void recreateBuckets(final Layer[] la) {
-		final AtomicInteger ai = new AtomicInteger(0);
-		final Thread[] threads = MultiThreading.newThreads();
-
-		for (int ithread = 0; ithread < threads.length; ++ithread) {
-			threads[ithread] = new Thread() {
-				@Override
-                public void run() {
-					setPriority(Thread.NORM_PRIORITY);
-					for (int i = ai.getAndIncrement(); i < la.length; i = ai.getAndIncrement()) {
-						la[i].recreateBuckets();
+		final ExecutorService exec = ExecutorProvider.getExecutorService(Scheduler.Priority.BATCH, Runtime.getRuntime().availableProcessors(), "recreateBuckets");
+		try {
+			final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+			for (final Layer layer : la) {
+				fus.add(exec.submit(new Runnable() {
+					@Override
+					public void run() {
+						layer.recreateBuckets();
 					}
-				}
-			};
+				}));
+			}
+			Utils.wait(fus);
+		} finally {
+			exec.shutdown();
 		}
-		MultiThreading.startAndJoin(threads);
 	}
 
 	private double getMeanOfRange(final ImageStatistics st, final double min, final double max) {
@@ -2923,7 +2911,35 @@ while (it.hasNext()) {
 			at_original.preConcatenate(atc);
 			g2d.setTransform(at_original);
 
+			// When there are only images, and if so chosen, resample their mipmaps directly into the pixels of the flat image, in parallel.
+			// Off by default: the pixels may differ from those painted with AWT by a few gray levels.
 			boolean zd_done = false;
+			if (layer.getProject().getBooleanProperty("parallel_flat_images")) {
+				final ArrayList<Patch> patches = new ArrayList<Patch>();
+				boolean only_patches = true;
+				for (final ZDisplayable zd : al_zdispl) {
+					if (!zd.isOutOfRepaintingClip(scaleP, srcRect, null)) {
+						only_patches = false;
+						break;
+					}
+				}
+				if (only_patches) {
+					for (final Displayable d : al_displ) {
+						if (d.isOutOfRepaintingClip(scaleP, srcRect, null)) continue;
+						if (!FlatImageRenderer.canRender(d, bi)) {
+							only_patches = false;
+							break;
+						}
+						patches.add((Patch)d);
+					}
+				}
+				if (only_patches) {
+					FlatImageRenderer.render(bi, patches, atc, scaleP, c_alphas);
+					al_displ = new ArrayList<Displayable>();
+					zd_done = true;
+				}
+			}
+
 			final List<Layer> layers = layer.getParent().getColorCueLayerRange(layer);
 			for (final Displayable d : al_displ) {
 				// paint the ZDisplayables before the first label, if any
@@ -3430,15 +3446,19 @@ while (it.hasNext()) {
 			final FileOutputStream fos = new FileOutputStream(ftmp);
 
 			// TODO: test saving times if the BufferedOutputStream is given a much larger buffer size than the default 8192.
-			java.io.Writer writer;
-			if (fxml.getName().endsWith(".xml.gz")) {
+			final boolean binary = BinaryProject.isBinary(fxml.getName());
+			java.io.Closeable writer;
+			if (binary) {
+				writer = new BufferedOutputStream(fos, 65536);
+			} else if (fxml.getName().endsWith(".xml.gz")) {
 				writer = new OutputStreamWriter(new GZIPOutputStream(new BufferedOutputStream(fos)), "8859_1");
 			} else {
 				writer = new OutputStreamWriter(new BufferedOutputStream(fos), "8859_1");
 			}
 
 			try {
-				writeXMLTo(project, writer, options);
+				if (binary) BinaryProject.write(project, (BufferedOutputStream)writer, options);
+				else writeXMLTo(project, (java.io.Writer)writer, options);
 				fos.getFD().sync(); // ensure the file is synch'ed with the file system, given that we are going to rename it after closing it.
 			} catch (final Exception e) {
 				Utils.log("FAILED to write to the file at " + fxml);
@@ -3577,7 +3597,7 @@ while (it.hasNext()) {
 		if (null == fxml) return null; // User canceled dialog
 		// ... which means we must do some checking here:
 		final String name = fxml.getName();
-		if ( !(name.endsWith(".xml") || name.endsWith(".xml.gz"))) {
+		if ( !(name.endsWith(".xml") || name.endsWith(".xml.gz") || BinaryProject.isBinary(name))) {
 			// Default to compressed XML
 			fxml = new File(Utils.fixDir(fxml.getParent()) + name + ".xml.gz");
 		}
@@ -3860,6 +3880,9 @@ while (it.hasNext()) {
 			.append(" (").append((100 * b) / (float)mb).append("%)")
 			.append(" (ids: ").append(lo.mawts.size()).append(')');
 		}
+		sb.append('\n').append(Scheduler.getInstance().getMetrics());
+		sb.append('\n').append(ArrayPool.getStats());
+		sb.append('\n').append(TransformCache.getStats());
 		Utils.log2(sb.toString());
 	}
 
@@ -3937,13 +3960,11 @@ while (it.hasNext()) {
 
 	/** Check if an awt exists to paint as a snap. */
 	public boolean isSnapPaintable(final long id) {
-		synchronized (db_lock) {
-			try {
-				return mawts.contains(id);
-			} catch (final Throwable t) {
-				handleCacheError(t);
-				return false;
-			}
+		try {
+			return mawts.contains(id);
+		} catch (final Throwable t) {
+			handleCacheError(t);
+			return false;
 		}
 	}
 
@@ -4041,7 +4062,7 @@ while (it.hasNext()) {
 		//}
 	}
 
-	/** Must be called within the context of the db_lock. */
+	/** The cache is thread-safe; there is no need to hold the db_lock to call this method. */
 	final protected void handleCacheError(final Throwable t) {
 		Utils.log("ERROR with image cache!");
 		IJError.print(t);
@@ -4299,14 +4320,14 @@ while (it.hasNext()) {
 		} else if (num_preloader_threads > 4) {
 			Utils.log("WARNING: setting preloader threads to more than the recommended maximum of " + Math.min(4, Runtime.getRuntime().availableProcessors() -1) + ": " + num_preloader_threads);
 		}
-		preloader = Utils.newFixedThreadPool(num_preloader_threads);
+		preloader = ExecutorProvider.getExecutorService(Scheduler.Priority.INTERACTIVE, num_preloader_threads, "preloader");
 	}
 
 	/** Uses maximum 4 concurrent threads: higher thread number does not improve performance. */
 	static public final void setupPreloader(final ControlWindow master) {
 		if (num_preloader_threads < 1) return;
 		if (null == preloader) {
-			preloader = Utils.newFixedThreadPool(num_preloader_threads, "preloader");
+			preloader = ExecutorProvider.getExecutorService(Scheduler.Priority.INTERACTIVE, num_preloader_threads, "preloader");
 		}
 	}
 
@@ -4602,7 +4623,7 @@ while (it.hasNext()) {
 	public String getParentFolder() { return null; }
 
 	// Will be shut down by Loader.destroy()
-	private final ExecutorService exec = Utils.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), "loader-do-later");
+	private final ExecutorService exec = Utils.newLane(Runtime.getRuntime().availableProcessors(), "loader-do-later", Scheduler.Priority.INTERACTIVE);
 
 	public < T > Future< T > doLater( final Callable< T > fn ) {
 		return exec.submit( fn );
@@ -4656,7 +4677,7 @@ while (it.hasNext()) {
 
 	/** Returns an ImageStack, one slice per region. */
 	public<I> ImagePlus createFlyThrough(final List<? extends Region<I>> regions, final double magnification, final int type, final String dir) {
-		final ExecutorService ex = Utils.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "fly-through");
+		final ExecutorService ex = Utils.newLane(Runtime.getRuntime().availableProcessors(), "fly-through", Scheduler.Priority.BATCH);
 		final List<Future<ImagePlus>> fus = new ArrayList<Future<ImagePlus>>();
 		for (final Region<I> r : regions) {
 			fus.add(ex.submit(new Callable<ImagePlus>() {
@@ -4721,6 +4742,12 @@ while (it.hasNext()) {
 	/** Does nothing unless overriden. */
 	public int getMipMapFormat() { return -1; }
 
+	/** Does nothing unless overriden. */
+	public void setMemoryMappedMipMaps(final boolean b) {}
+
+	/** Does nothing and returns false unless overriden. */
+	public boolean isMemoryMappedMipMaps() { return false; }
+
 	/** Does nothing unless overriden. */
 	public Bureaucrat updateMipMapsFormat(final int old_format, final int new_format) { return null; }
 
@@ -0,0 +1,406 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.display.Display;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/** A write-ahead journal of the {@link Displayable} objects that changed since the project file
+ * was last written in full. Each {@link DBObject#updateInDatabase(String)} marks its object as dirty;
+ * a journaled save then appends the XML of only the dirty objects to a ".journal" file next to the
+ * project file, so that its cost depends on the amount of changes and not on the size of the project.
+ *
+ * Only edits to existing objects can be journaled. Adding or removing objects, and changes to
+ * layers, layer sets or the project tree, are structural changes: the next save rewrites
+ * the project file in full, which also deletes the journal. A full save, or compaction,
+ * also happens when the journal grows beyond a quarter of the size of the project file.
+ *
+ * When opening a project, the XML of each journaled object replaces that of the object
+ * in the project file as it is being parsed (see {@link #filter(Map, DefaultHandler)}).
+ *
+ * The journal file starts with {@link #MAGIC} and the length and last modification time of the project file
+ * it applies to, followed by records of: the object id (a long), the number of bytes (an int),
+ * the UTF-8 bytes of the XML and the CRC32 (a long) of all the former. A record with id {@link #COMMIT}
+ * and no bytes closes the set of records appended by a save; records of a set that was not closed,
+ * for example because of a crash while writing it, are ignored and truncated away.
+ */
+public final class ProjectJournal
+{
+	static public final String EXTENSION = ".journal";
+
+	static private final byte[] MAGIC = new byte[]{'T', '2', 'J', 'R', 'N', 'L', 0, 1};
+	static private final long COMMIT = -1;
+	/** The journal is always allowed to grow up to this size before requesting compaction. */
+	static private final long MIN_COMPACTION_SIZE = 4 * 1024 * 1024;
+
+	private final File file, base;
+	/** Objects with changes not yet in the journal nor in the project file. */
+	private final LinkedHashSet<Displayable> dirty = new LinkedHashSet<Displayable>();
+	private boolean structural = false,
+	                compaction_requested = false;
+
+	/** Track changes to the project stored at @param project_file_path, continuing its journal if it has one. */
+	public ProjectJournal(final String project_file_path) {
+		this.base = new File(project_file_path);
+		this.file = new File(pathFor(project_file_path));
+	}
+
+	static public final String pathFor(final String project_file_path) {
+		return project_file_path + EXTENSION;
+	}
+
+	/** Record a change to @param ob, as reported by {@link Loader#updateInDatabase(DBObject, String)}. */
+	public final void changed(final DBObject ob) {
+		if (ob instanceof Display) return; // the view is not part of the data
+		synchronized (dirty) {
+			if (ob instanceof Displayable && !(ob instanceof LayerSet)) dirty.add((Displayable)ob);
+			else structural = true;
+		}
+	}
+
+	/** Record the addition or removal of an object. */
+	public final void structuralChange() {
+		synchronized (dirty) {
+			structural = true;
+		}
+	}
+
+	/** Make the next save a full one. */
+	public final void requestCompaction() {
+		synchronized (dirty) {
+			compaction_requested = true;
+		}
+	}
+
+	/** Whether the changes made since the last save can be appended to the journal. */
+	public final boolean canAppend() {
+		synchronized (dirty) {
+			return !structural && !compaction_requested && !needsCompaction();
+		}
+	}
+
+	/** Whether the journal has grown large enough that it should be folded into the project file. */
+	public final boolean needsCompaction() {
+		return file.length() > Math.max(MIN_COMPACTION_SIZE, base.length() / 4);
+	}
+
+	/** Append the XML of every dirty object to the journal, as one set of records.
+	 *  Returns false if writing failed, in which case the next save will be a full one. */
+	public final boolean append(final XMLOptions options) {
+		final ArrayList<Displayable> ds;
+		synchronized (dirty) {
+			ds = new ArrayList<Displayable>(dirty);
+			dirty.clear();
+		}
+		if (ds.isEmpty()) return true;
+		final long t0 = System.currentTimeMillis();
+		FileOutputStream fos = null;
+		try {
+			final boolean exists = file.exists() && file.length() > 0;
+			fos = new FileOutputStream(file, true);
+			final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+			if (!exists) {
+				dos.write(MAGIC);
+				dos.writeLong(base.length());
+				dos.writeLong(base.lastModified());
+			}
+			final StringBuilder sb = new StringBuilder(4096);
+			final CRC32 crc = new CRC32();
+			for (final Displayable d : ds) {
+				sb.setLength(0);
+				d.exportXML(sb, "", options);
+				writeRecord(dos, crc, d.getId(), sb.toString().getBytes("UTF-8"));
+			}
+			writeRecord(dos, crc, COMMIT, new byte[0]);
+			dos.flush();
+			fos.getFD().sync();
+			Utils.log2("Journaled " + ds.size() + " objects in " + (System.currentTimeMillis() - t0) + " ms");
+			return true;
+		} catch (final Throwable t) {
+			Utils.log("FAILED to write to the journal at " + file);
+			IJError.print(t);
+			synchronized (dirty) {
+				dirty.addAll(ds);
+				compaction_requested = true;
+			}
+			return false;
+		} finally {
+			if (null != fos) try { fos.close(); } catch (final IOException ioe) { IJError.print(ioe); }
+		}
+	}
+
+	static private final void writeRecord(final DataOutputStream dos, final CRC32 crc, final long id, final byte[] b) throws IOException {
+		crc.reset();
+		crc.update(toBytes(id));
+		crc.update(toBytes(b.length));
+		crc.update(b);
+		dos.writeLong(id);
+		dos.writeInt(b.length);
+		dos.write(b);
+		dos.writeLong(crc.getValue());
+	}
+
+	static private final byte[] toBytes(final long v) {
+		final byte[] b = new byte[8];
+		for (int i=0; i<8; ++i) b[i] = (byte)(v >>> (56 - 8 * i));
+		return b;
+	}
+
+	static private final byte[] toBytes(final int v) {
+		return new byte[]{(byte)(v >>> 24), (byte)(v >>> 16), (byte)(v >>> 8), (byte)v};
+	}
+
+	/** To be called before writing the project file in full: returns the dirty objects,
+	 *  to be handed back to {@link #failedFullSave(Collection)} if the save fails. */
+	public final Collection<Displayable> startFullSave() {
+		synchronized (dirty) {
+			final ArrayList<Displayable> ds = new ArrayList<Displayable>(dirty);
+			dirty.clear();
+			structural = false;
+			compaction_requested = false;
+			return ds;
+		}
+	}
+
+	public final void failedFullSave(final Collection<Displayable> ds) {
+		synchronized (dirty) {
+			dirty.addAll(ds);
+			structural = true;
+		}
+	}
+
+	/** The project file has been written in full: the journal is no longer needed. */
+	public final void reset() {
+		if (file.exists() && !file.delete()) {
+			Utils.log("FAILED to delete the journal at " + file);
+		}
+	}
+
+	/** Returns the latest XML of each object recorded in the journal of the project file at @param project_file_path,
+	 * or null if there isn't a journal or it doesn't apply to the project file, in which case the journal is renamed
+	 * with a ".stale" extension. Any incomplete set of records at the end of the journal is truncated away. */
+	static public final Map<Long,String> read(final String project_file_path) {
+		final File file = new File(pathFor(project_file_path));
+		if (!file.exists()) return null;
+		final File base = new File(project_file_path);
+		final HashMap<Long,String> xml = new HashMap<Long,String>();
+		long committed = 0; // length of the valid part of the journal
+		int n_commits = 0;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			final byte[] magic = new byte[MAGIC.length];
+			dis.readFully(magic);
+			final long base_length = dis.readLong(),
+			           base_modified = dis.readLong();
+			if (!Arrays.equals(magic, MAGIC) || base_length != base.length() || base_modified != base.lastModified()) {
+				dis.close();
+				dis = null;
+				final File stale = new File(file.getPath() + ".stale");
+				Utils.logAll("WARNING: the journal " + file.getName() + " does not apply to " + base.getName() + "\n  --> renamed it to " + stale.getName());
+				if (stale.exists()) stale.delete();
+				file.renameTo(stale);
+				return null;
+			}
+			committed = MAGIC.length + 16;
+			final HashMap<Long,String> pending = new HashMap<Long,String>();
+			final CRC32 crc = new CRC32();
+			long pos = committed;
+			while (true) {
+				final long id;
+				final byte[] b;
+				try {
+					id = dis.readLong();
+					final int len = dis.readInt();
+					if (len < 0 || len > file.length() - pos) break;
+					b = new byte[len];
+					dis.readFully(b);
+					crc.reset();
+					crc.update(toBytes(id));
+					crc.update(toBytes(len));
+					crc.update(b);
+					if (crc.getValue() != dis.readLong()) break;
+					pos += 20 + len;
+				} catch (final EOFException eofe) {
+					break;
+				}
+				if (COMMIT == id) {
+					xml.putAll(pending);
+					pending.clear();
+					committed = pos;
+					++n_commits;
+				} else {
+					pending.put(id, new String(b, "UTF-8"));
+				}
+			}
+		} catch (final Throwable t) {
+			IJError.print(t);
+			return null;
+		} finally {
+			if (null != dis) try { dis.close(); } catch (final IOException ioe) { IJError.print(ioe); }
+		}
+		if (committed < file.length()) {
+			Utils.logAll("WARNING: ignoring the last " + (file.length() - committed) + " bytes of the journal " + file.getName() + ", which were not fully written.");
+			RandomAccessFile ra = null;
+			try {
+				ra = new RandomAccessFile(file, "rw");
+				ra.setLength(committed);
+			} catch (final Throwable t) {
+				IJError.print(t);
+			} finally {
+				if (null != ra) try { ra.close(); } catch (final IOException ioe) { IJError.print(ioe); }
+			}
+		}
+		Utils.log2("Read " + xml.size() + " journaled objects from " + n_commits + " saves in " + file.getName());
+		return xml;
+	}
+
+	/** Returns a handler that forwards all events to @param handler, except that the events of the element of any object
+	 * in @param xml (as returned by {@link #read(String)}) are replaced by those of parsing its journaled XML. */
+	static public final DefaultHandler filter(final Map<Long,String> xml, final DefaultHandler handler) {
+		return new Filter(xml, handler);
+	}
+
+	static private final class Filter extends DefaultHandler
+	{
+		private final Map<Long,String> xml;
+		private final DefaultHandler handler;
+		/** Forwards the events of a journaled object to the handler, minus the document ones. */
+		private final DefaultHandler replay;
+		/** Depth of the replaced element being skipped, or zero. */
+		private int skipping = 0;
+		private int n_replaced = 0;
+
+		Filter(final Map<Long,String> xml, final DefaultHandler handler) {
+			this.xml = xml;
+			this.handler = handler;
+			this.replay = new DefaultHandler() {
+				@Override
+				public void startElement(final String uri, final String local_name, final String qualified_name, final Attributes attributes) throws SAXException {
+					handler.startElement(uri, local_name, qualified_name, attributes);
+				}
+				@Override
+				public void endElement(final String uri, final String local_name, final String qualified_name) throws SAXException {
+					handler.endElement(uri, local_name, qualified_name);
+				}
+				@Override
+				public void characters(final char[] c, final int start, final int length) throws SAXException {
+					handler.characters(c, start, length);
+				}
+			};
+		}
+
+		@Override
+		public void startDocument() throws SAXException {
+			handler.startDocument();
+		}
+
+		@Override
+		public void endDocument() throws SAXException {
+			if (n_replaced < xml.size()) {
+				Utils.logAll("WARNING: " + (xml.size() - n_replaced) + " journaled objects were not found in the project file.");
+			}
+			Utils.log2("Applied " + n_replaced + " journaled objects.");
+			handler.endDocument();
+		}
+
+		@Override
+		public void startElement(final String uri, final String local_name, final String qualified_name, final Attributes attributes) throws SAXException {
+			if (skipping > 0) {
+				++skipping;
+				return;
+			}
+			final String oid = attributes.getValue("oid");
+			if (null != oid && TMLHandler.isDisplayable(qualified_name.toLowerCase())) {
+				final String s = xml.get(Long.parseLong(oid));
+				if (null != s) {
+					try {
+						final SAXParserFactory factory = SAXParserFactory.newInstance();
+						factory.setValidating(false);
+						factory.setXIncludeAware(false);
+						final SAXParser parser = factory.newSAXParser();
+						parser.parse(new InputSource(new StringReader(s)), replay);
+					} catch (final SAXException se) {
+						throw se;
+					} catch (final Exception e) {
+						throw new SAXException(e);
+					}
+					++n_replaced;
+					skipping = 1;
+					return;
+				}
+			}
+			handler.startElement(uri, local_name, qualified_name, attributes);
+		}
+
+		@Override
+		public void endElement(final String uri, final String local_name, final String qualified_name) throws SAXException {
+			if (skipping > 0) {
+				--skipping;
+				return;
+			}
+			handler.endElement(uri, local_name, qualified_name);
+		}
+
+		@Override
+		public void characters(final char[] c, final int start, final int length) throws SAXException {
+			if (skipping > 0) return;
+			handler.characters(c, start, length);
+		}
+
+		@Override
+		public void ignorableWhitespace(final char[] c, final int start, final int length) throws SAXException {
+			if (skipping > 0) return;
+			handler.ignorableWhitespace(c, start, length);
+		}
+
+		@Override
+		public void skippedEntity(final String name) throws SAXException {
+			handler.skippedEntity(name);
+		}
+
+		@Override
+		public void warning(final SAXParseException e) throws SAXException {
+			handler.warning(e);
+		}
+
+		@Override
+		public void error(final SAXParseException e) throws SAXException {
+			handler.error(e);
+		}
+
+		@Override
+		public void fatalError(final SAXParseException e) throws SAXException {
+			handler.fatalError(e);
+		}
+	}
+}
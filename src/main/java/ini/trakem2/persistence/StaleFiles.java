@@ -3,6 +3,7 @@ package ini.trakem2.persistence;
 import ini.trakem2.Project;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 
@@ -81,7 +82,7 @@ public class StaleFiles {
 		final LinkedList<File> subdirs = new LinkedList<File>();
 		subdirs.add(new File(topDir));
 		final AtomicInteger counter = new AtomicInteger(0);
-		final ExecutorService exec = Utils.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), "Stale-file-remover");
+		final ExecutorService exec = Utils.newLane(Math.max(2, Runtime.getRuntime().availableProcessors()), "Stale-file-remover", Scheduler.Priority.BATCH);
 		while (!subdirs.isEmpty()) {
 			final File fdir = subdirs.removeFirst();
 			final String absPath = fdir.getAbsolutePath();
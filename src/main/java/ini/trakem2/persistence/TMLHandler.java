@@ -46,6 +46,7 @@ import ini.trakem2.display.Tree;
 import ini.trakem2.display.Treeline;
 import ini.trakem2.display.ZDisplayable;
 import ini.trakem2.imaging.filters.IFilter;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.tree.DTDParser;
 import ini.trakem2.tree.LayerThing;
 import ini.trakem2.tree.ProjectThing;
@@ -57,6 +58,7 @@ import ini.trakem2.utils.Utils;
 
 import java.awt.Color;
 import java.awt.event.KeyEvent;
+import java.awt.geom.Area;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -67,6 +69,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.regex.Pattern;
@@ -122,7 +125,8 @@ public class TMLHandler extends DefaultHandler {
 	private Connector last_connector = null;
 	private Tree<?> last_tree = null;
 	final private LinkedList<Taggable> taggables = new LinkedList<Taggable>();
-	private ReconstructArea reca = null;
+	/** The SVG paths of the t2_area being read, if any. */
+	private ArrayList<String> area_paths = null;
 	private Node<?> last_root_node = null;
 	final private LinkedList<Node<?>> nodes = new LinkedList<Node<?>>();
 	final private Map<Long,List<Node<?>>> node_layer_table = new HashMap<Long,List<Node<?>>>();
@@ -135,6 +139,45 @@ public class TMLHandler extends DefaultHandler {
 	private boolean open_displays = true;
 	final private LinkedList<Runnable> legacy = new LinkedList<Runnable>();
 
+	/** Number of threads with which to construct objects while the XML file is being parsed:
+	 *  areas of AreaList and AreaTree, file checks of Patch instances, and node caches of Tree instances.
+	 *  With 1 thread everything is done in the parsing thread, as it used to be. */
+	static public volatile int n_construction_threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	/** Null when constructing everything in the parsing thread. */
+	private ExecutorService construction_exec = null;
+	private int construction_threads = 1;
+	/** Tasks submitted to the construction_exec, which must complete before the project can be assembled. */
+	final private LinkedList<Future<?>> construction_tasks = new LinkedList<Future<?>>();
+	/** Areas being reconstructed in the construction_exec, in the order in which they were read. */
+	final private ArrayList<PendingArea> pending_areas = new ArrayList<PendingArea>();
+
+	/** An Area being reconstructed from its SVG paths, to be added later to its AreaList or AreaTree node. */
+	static private final class PendingArea {
+		final AreaList area_list;
+		final long layer_id;
+		final AreaTree.AreaNode node;
+		final Future<Area> fu;
+		PendingArea(final AreaList area_list, final long layer_id, final AreaTree.AreaNode node, final Future<Area> fu) {
+			this.area_list = area_list;
+			this.layer_id = layer_id;
+			this.node = node;
+			this.fu = fu;
+		}
+		final void apply() throws Exception {
+			set(area_list, layer_id, node, fu.get());
+		}
+		static final void set(final AreaList area_list, final long layer_id, final AreaTree.AreaNode node, final Area area) {
+			if (null != area_list) area_list.addArea(layer_id, area); // it's local
+			else node.setData(area);
+		}
+	}
+
+	static private final Area reconstructArea(final List<String> svg_paths) {
+		final ReconstructArea reca = new ReconstructArea();
+		for (final String d : svg_paths) reca.add(d);
+		return reca.getArea();
+	}
+
 
 	/** @param path The XML file that contains the project data in XML format.
 	 *  @param loader The FSLoader for the project.
@@ -192,6 +235,52 @@ public class TMLHandler extends DefaultHandler {
 		this.project_tt = new TemplateThing("project");
 		project_tt.addChild(this.root_tt);
 		//TODO//project_tt.addAttribute("title", "Project");
+
+		if (n_construction_threads > 1) {
+			// A lane of the shared threads: nothing is left running if the parsing fails and getProjectData is never called
+			this.construction_threads = n_construction_threads;
+			this.construction_exec = Utils.newLane(construction_threads, "TMLHandler-construct", Scheduler.Priority.BATCH);
+		}
+	}
+
+	/** Run @param task in the construction_exec, or right away if there isn't one. */
+	private final void construct(final Runnable task) {
+		if (null == construction_exec) {
+			task.run();
+			return;
+		}
+		construction_tasks.add(construction_exec.submit(task));
+		// Forget about the tasks already done, to avoid accumulating one Future per Patch
+		if (0 == construction_tasks.size() % 4096) {
+			for (final Iterator<Future<?>> it = construction_tasks.iterator(); it.hasNext(); ) {
+				if (it.next().isDone()) it.remove();
+			}
+		}
+	}
+
+	/** Wait for all tasks of the construction_exec and add the reconstructed areas to their objects. */
+	private final void finishConstruction() {
+		if (null == construction_exec) return;
+		Utils.wait(construction_tasks);
+		construction_tasks.clear();
+		for (final PendingArea pa : pending_areas) {
+			try {
+				pa.apply();
+			} catch (Exception e) {
+				IJError.print(e);
+			}
+		}
+		pending_areas.clear();
+	}
+
+	/** The number of XML elements read so far. */
+	public int getElementCount() {
+		return counter;
+	}
+
+	/** The number of threads used for constructing objects in parallel with the parsing. */
+	public int getConstructionThreadCount() {
+		return construction_threads;
 	}
 
 	public boolean isUnreadable() {
@@ -212,6 +301,8 @@ public class TMLHandler extends DefaultHandler {
 	public Object[] getProjectData(final boolean open_displays) {
 		if (null == project) return null;
 		this.open_displays = open_displays;
+		// 0 - Wait for the objects being constructed in parallel with the parsing
+		finishConstruction();
 		// 1 - Reconstruct links using ht_links
 		// Links exist between Displayable objects.
 		for (final Displayable d : ht_displayables.values()) {
@@ -281,15 +372,25 @@ public class TMLHandler extends DefaultHandler {
 			Utils.log("ERROR: node_layer_table is not empty!");
 		}
 		// 5 - Assign root nodes to Treelines, now that all nodes have a layer
+		final List<Future<?>> fus_roots = new ArrayList<Future<?>>();
 		for (final Map.Entry<Tree<?>,Node<?>> e : tree_root_nodes.entrySet()) {
 			if (null == e.getValue()) {
 				//Utils.log2("Ignoring, applies to new Treeline format only.");
 				continue;
 			}
-			// Can't compile with <?>
-			e.getKey().setRoot((Node)e.getValue()); // will generate node caches of each Treeline
+			final Runnable r = new Runnable() { public void run() {
+				// Can't compile with <?>
+				e.getKey().setRoot((Node)e.getValue()); // will generate node caches of each Treeline
+			}};
+			if (null == construction_exec) r.run();
+			else fus_roots.add(construction_exec.submit(r)); // each Tree caches its own nodes
 		}
+		Utils.wait(fus_roots);
 		tree_root_nodes.clear();
+		if (null != construction_exec) {
+			construction_exec.shutdown();
+			construction_exec = null;
+		}
 		// Assign colors to nodes
 		for (final Map.Entry<Color,Collection<Node<?>>> e : node_colors.entrySet()) {
 			for (final Node<?> nd : e.getValue()) {
@@ -325,7 +426,7 @@ public class TMLHandler extends DefaultHandler {
 					n -= 2;
 					break;
 			}
-			final ExecutorService exec = Utils.newFixedThreadPool(n, "TMLHandler-recreateBuckets");
+			final ExecutorService exec = Utils.newLane(n, "TMLHandler-recreateBuckets", Scheduler.Priority.BATCH);
 
 			final Set<Long> dlids = new HashSet<Long>();
 			final LayerSet layer_set = (LayerSet) root_lt.getObject();
@@ -534,13 +635,22 @@ public class TMLHandler extends DefaultHandler {
 			last_area_list = null;
 			last_displayable = null;
 		} else if (orig_qualified_name.equals("t2_area")) {
-			if (null != reca) {
-				if (null != last_area_list) {
-					last_area_list.addArea(last_area_list_layer_id, reca.getArea()); // it's local
+			if (null != area_paths) {
+				final List<String> svg_paths = area_paths;
+				final AreaList area_list = last_area_list;
+				final long layer_id = last_area_list_layer_id;
+				final AreaTree.AreaNode node = null == area_list ? (AreaTree.AreaNode)nodes.getLast() : null;
+				if (null == construction_exec) {
+					PendingArea.set(area_list, layer_id, node, reconstructArea(svg_paths));
 				} else {
-					((AreaTree.AreaNode)nodes.getLast()).setData(reca.getArea());
+					// Parse the paths and compute the Area in parallel, but add them to their objects in order
+					final Future<Area> fu = construction_exec.submit(new Callable<Area>() { public Area call() {
+						return reconstructArea(svg_paths);
+					}});
+					construction_tasks.add(fu);
+					pending_areas.add(new PendingArea(area_list, layer_id, node, fu));
 				}
-				reca = null;
+				area_paths = null;
 			}
 		} else if (orig_qualified_name.equals("ict_transform_list")) {
 			ct_list_stack.remove( ct_list_stack.size() - 1 );
@@ -548,15 +658,26 @@ public class TMLHandler extends DefaultHandler {
 			if (last_patch_filters.size() > 0) {
 				last_patch.setFilters(last_patch_filters.toArray(new IFilter[last_patch_filters.size()]));
 			}
+			final boolean check_ct_file = null == last_ct;
 			if (null != last_ct) {
 				last_patch.setCoordinateTransformSilently(last_ct);
 				last_ct = null;
-			} else if (!last_patch.checkCoordinateTransformFile()) {
-				Utils.log("ERROR: could not find a file for the coordinate transform #" + last_patch.getCoordinateTransformId() + " of Patch #" + last_patch.getId());
-			}
-			if (!last_patch.checkAlphaMaskFile()) {
-				Utils.log("ERROR: could not find a file for the alpha mask #" + last_patch.getAlphaMaskId() + " of Patch #" + last_patch.getId());
 			}
+			// Checking that files exist is slow on network file systems: do it in parallel.
+			// The legacy alpha masks were upgraded already in the parsing thread, before setting the coordinate transform.
+			final Patch patch = last_patch;
+			construct(new Runnable() { public void run() {
+				try {
+					if (check_ct_file && !patch.checkCoordinateTransformFile()) {
+						Utils.log("ERROR: could not find a file for the coordinate transform #" + patch.getCoordinateTransformId() + " of Patch #" + patch.getId());
+					}
+					if (!patch.checkAlphaMaskFile()) {
+						Utils.log("ERROR: could not find a file for the alpha mask #" + patch.getAlphaMaskId() + " of Patch #" + patch.getId());
+					}
+				} catch (Exception e) {
+					IJError.print(e);
+				}
+			}});
 			last_patch = null;
 			last_patch_filters.clear();
 			last_displayable = null;
@@ -612,6 +733,14 @@ public class TMLHandler extends DefaultHandler {
 		return false;
 	}
 
+	/** Whether the lower-case element name @param s is that of a Displayable other than a LayerSet. */
+	static final boolean isDisplayable(final String s) {
+		for (int i=all_displayables.length-1; i>-1; i--) {
+			if (s.equals(all_displayables[i])) return true;
+		}
+		return false;
+	}
+
 	public void characters(char[] c, int start, int length) {
 		if (null != last_treeline) {
 			// for old format:
@@ -821,13 +950,13 @@ public class TMLHandler extends DefaultHandler {
 				addToLastOpenLayerSet(con);
 				return null;
 			} else if (type.equals("path")) {
-				if (null != reca) {
-					reca.add(ht_attributes.get("d"));
+				if (null != area_paths) {
+					area_paths.add(ht_attributes.get("d"));
 					return null;
 				}
 				return null;
 			} else if (type.equals("area")) {
-				reca = new ReconstructArea();
+				area_paths = new ArrayList<String>();
 				if (null != last_area_list) {
 					last_area_list_layer_id = Long.parseLong(ht_attributes.get("layer_id"));
 				}
@@ -0,0 +1,207 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.io.CoordinateTransformXML;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import mpicbg.trakem2.transform.CoordinateTransform;
+import mpicbg.trakem2.transform.TransformMesh;
+
+/** A cache of parsed {@link CoordinateTransform} instances and of the {@link TransformMesh} built from them,
+ * shared by all projects and bounded by an estimate of the bytes they occupy.
+ *
+ * Transforms are keyed by the absolute path of the file they are read from, which is unique
+ * for each pair of patch id and transform id. Meshes are keyed by that same path and the
+ * resolution and dimensions they were built for. Entries are evicted least recently used first.
+ *
+ * Cached instances are shared: callers must {@link CoordinateTransform#copy()} the transforms
+ * before handing them out, and must not modify the meshes. */
+public final class TransformCache
+{
+	private TransformCache() {}
+
+	/** Estimated bytes per vertex of a mesh: a PointMatch of two Points, each with two double[2]. */
+	static private final long BYTES_PER_VERTEX = 200;
+	/** Estimated bytes per triangle of a mesh: its AffineModel2D, its list of vertices and the map entries. */
+	static private final long BYTES_PER_TRIANGLE = 250;
+
+	static private final class Entry
+	{
+		final String path;
+		final CoordinateTransform ct;
+		final TransformMesh mesh;
+		final Rectangle box;
+		final long bytes;
+
+		Entry(final String path, final CoordinateTransform ct, final TransformMesh mesh, final Rectangle box, final long bytes) {
+			this.path = path;
+			this.ct = ct;
+			this.mesh = mesh;
+			this.box = box;
+			this.bytes = bytes;
+		}
+	}
+
+	/** In access order, the least recently used first. Guarded by itself. */
+	static private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(256, 0.75f, true);
+
+	static private long budget = Math.min(128L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 32);
+	static private long held = 0;
+	/** Incremented by every invalidation, so that entries built from what was read before it are not cached. */
+	static private long generation = 0;
+
+	static private long ct_hits = 0,
+	                    ct_misses = 0,
+	                    mesh_hits = 0,
+	                    mesh_misses = 0,
+	                    evictions = 0;
+
+	static private final String meshKey(final String path, final int meshResolution, final int width, final int height) {
+		return new StringBuilder(path.length() + 24).append(path).append('#').append(meshResolution)
+			.append('#').append(width).append('x').append(height).toString();
+	}
+
+	/** Return the cached {@link CoordinateTransform} read from {@code path}, parsing and caching it if not there.
+	 * The returned instance is shared and must not be modified.
+	 * @throws Exception if the file could not be read or parsed. */
+	static public final CoordinateTransform getCoordinateTransform(final String path) throws Exception {
+		final long gen;
+		synchronized (entries) {
+			final Entry e = entries.get(path);
+			if (null != e) {
+				++ct_hits;
+				return e.ct;
+			}
+			++ct_misses;
+			gen = generation;
+		}
+		// Parse outside the lock; concurrent misses on the same path parse it more than once
+		final CoordinateTransform ct = CoordinateTransformXML.parse(path);
+		final long length = new File(path).length();
+		putEntry(path, new Entry(path, ct, null, null, 64 + Math.max(0, length)), gen);
+		return ct;
+	}
+
+	/** Cache {@code ct} as the transform read from {@code path}, which has just been written with its {@code xml_length} chars,
+	 * dropping the meshes built from what the file held before. The instance must not be modified after this call. */
+	static public final void putCoordinateTransform(final String path, final CoordinateTransform ct, final long xml_length) {
+		synchronized (entries) {
+			invalidate(path);
+			putEntry(path, new Entry(path, ct, null, null, 64 + Math.max(0, xml_length)), generation);
+		}
+	}
+
+	/** Return the cached {@link TransformMesh} of the transform read from {@code path}, building it
+	 * from {@code ct} if not there. The returned mesh is shared and must not be modified.
+	 * @param ct the transform read from {@code path}, or null to get it from the cache. */
+	static public final TransformMesh getMesh(final String path, final CoordinateTransform ct, final int meshResolution, final int width, final int height) throws Exception {
+		return getMeshEntry(path, ct, meshResolution, width, height).mesh;
+	}
+
+	/** Return a copy of the bounding box of the cached {@link TransformMesh}, as in {@link #getMesh(String, CoordinateTransform, int, int, int)}. */
+	static public final Rectangle getBoundingBox(final String path, final CoordinateTransform ct, final int meshResolution, final int width, final int height) throws Exception {
+		return new Rectangle(getMeshEntry(path, ct, meshResolution, width, height).box);
+	}
+
+	static private final Entry getMeshEntry(final String path, CoordinateTransform ct, final int meshResolution, final int width, final int height) throws Exception {
+		final String key = meshKey(path, meshResolution, width, height);
+		final long gen;
+		synchronized (entries) {
+			final Entry e = entries.get(key);
+			if (null != e) {
+				++mesh_hits;
+				return e;
+			}
+			++mesh_misses;
+			gen = generation;
+		}
+		if (null == ct) ct = getCoordinateTransform(path);
+		final TransformMesh mesh = new TransformMesh(ct, meshResolution, width, height);
+		// As in the mesh: numX columns, and rows of about the same height as the side of a triangle
+		final long numX = Math.max(1, meshResolution);
+		final long numY = Math.max(1, Math.round(numX * height / Math.max(1.0, width) * 2 / Math.sqrt(3)));
+		final long bytes = (numX + 1) * (numY + 1) * BYTES_PER_VERTEX + 2 * numX * numY * BYTES_PER_TRIANGLE;
+		final Entry e = new Entry(path, null, mesh, new Rectangle(mesh.getBoundingBox()), bytes);
+		putEntry(key, e, gen);
+		return e;
+	}
+
+	/** Cache {@code e} unless an invalidation happened since generation {@code gen}. */
+	static private final void putEntry(final String key, final Entry e, final long gen) {
+		synchronized (entries) {
+			if (gen != generation) return;
+			final Entry old = entries.put(key, e);
+			if (null != old) held -= old.bytes;
+			held += e.bytes;
+			evict();
+		}
+	}
+
+	/** Evict least recently used entries until under budget, keeping at least the most recent one. Call while holding the lock. */
+	static private final void evict() {
+		for (final Iterator<Entry> it = entries.values().iterator(); held > budget && entries.size() > 1 && it.hasNext(); ) {
+			held -= it.next().bytes;
+			it.remove();
+			++evictions;
+		}
+	}
+
+	/** Drop the transform read from {@code path} and all meshes built from it. */
+	static public final void invalidate(final String path) {
+		if (null == path) return;
+		synchronized (entries) {
+			++generation;
+			for (final Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+				final Entry e = it.next();
+				if (path.equals(e.path)) {
+					held -= e.bytes;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/** Drop all cached transforms and meshes. */
+	static public final void clear() {
+		synchronized (entries) {
+			++generation;
+			entries.clear();
+			held = 0;
+		}
+	}
+
+	/** Set the maximum number of bytes that the cached transforms and meshes are estimated to occupy. */
+	static public final void setBudget(final long n_bytes) {
+		synchronized (entries) {
+			budget = Math.max(0, n_bytes);
+			evict();
+		}
+	}
+
+	static public final long getBudget() {
+		synchronized (entries) {
+			return budget;
+		}
+	}
+
+	static private final String rate(final long hits, final long misses) {
+		final long n = hits + misses;
+		return 0 == n ? "--" : Utils.cutNumber(100.0 * hits / n, 1) + "%";
+	}
+
+	/** The hit rates of transforms and meshes, the evictions, and the bytes held. */
+	static public final String getStats() {
+		synchronized (entries) {
+			return new StringBuilder("Transform cache: transforms ").append(ct_hits).append(" hits, ").append(ct_misses)
+				.append(" misses (").append(rate(ct_hits, ct_misses)).append("); meshes ").append(mesh_hits).append(" hits, ")
+				.append(mesh_misses).append(" misses (").append(rate(mesh_hits, mesh_misses)).append("); ")
+				.append(evictions).append(" evicted, ").append(entries.size()).append(" entries, ")
+				.append(held / 1024).append(" of ").append(budget / 1024).append(" KB held")
+				.toString();
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package ini.trakem2.persistence;
+
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/** A store of the encoded data of undo steps that have aged out of memory, bounded by bytes in memory and bytes on disk.
+ *
+ * Blobs are reference counted and deduplicated by content, so that data shared by consecutive steps,
+ * such as the unchanged layers of an AreaList, is stored only once. Blobs are kept in memory until the
+ * memory budget is exceeded, and then the oldest are written to files in a temporary folder, from where
+ * they are read back when needed. When the disk budget is exceeded, {@link #isOverBudget()} returns true
+ * and the owner is expected to drop its oldest steps, {@link #release(long) releasing} their blobs. */
+public final class UndoStore
+{
+	static private final class Blob
+	{
+		final long key;
+		final long digest;
+		final int length;
+		/** Null when on disk. */
+		byte[] bytes;
+		int refs = 1;
+
+		Blob(final long key, final long digest, final byte[] bytes) {
+			this.key = key;
+			this.digest = digest;
+			this.length = bytes.length;
+			this.bytes = bytes;
+		}
+	}
+
+	private final String name;
+	private long memory_budget,
+	             disk_budget;
+
+	/** All blobs, by key. */
+	private final HashMap<Long,Blob> blobs = new HashMap<Long,Blob>();
+	/** Blobs by digest of their content, for deduplication. */
+	private final HashMap<Long,Blob> by_digest = new HashMap<Long,Blob>();
+	/** Blobs held in memory, the oldest first. */
+	private final LinkedHashMap<Long,Blob> resident = new LinkedHashMap<Long,Blob>();
+
+	private File dir = null;
+	private long next_key = 1,
+	             memory_bytes = 0,
+	             disk_bytes = 0,
+	             n_shared = 0;
+
+	/**
+	 * @param name used in the name of the temporary folder and in the stats.
+	 * @param memory_budget maximum bytes of blobs to hold in memory.
+	 * @param disk_budget bytes of blobs on disk beyond which the store is over budget.
+	 */
+	public UndoStore(final String name, final long memory_budget, final long disk_budget) {
+		this.name = name;
+		this.memory_budget = Math.max(0, memory_budget);
+		this.disk_budget = Math.max(0, disk_budget);
+	}
+
+	static private final long digest(final byte[] bytes) {
+		final CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (crc.getValue() << 32) | (Arrays.hashCode(bytes) & 0xffffffffL);
+	}
+
+	/** Store a copy-free reference to {@code bytes}, which must not be modified afterwards, and return its key.
+	 * If an identical blob is already stored, its reference count is incremented and its key returned instead. */
+	synchronized public final long put(final byte[] bytes) {
+		final long digest = digest(bytes);
+		final Blob same = by_digest.get(digest);
+		if (null != same && same.length == bytes.length) {
+			final byte[] b = read(same);
+			if (null != b && Arrays.equals(b, bytes)) {
+				++same.refs;
+				++n_shared;
+				return same.key;
+			}
+		}
+		final Blob blob = new Blob(next_key++, digest, bytes);
+		blobs.put(blob.key, blob);
+		if (null == same) by_digest.put(digest, blob);
+		resident.put(blob.key, blob);
+		memory_bytes += blob.length;
+		spill();
+		return blob.key;
+	}
+
+	/** Increment the reference count of the blob, for another step that holds the same data.
+	 * Returns false if the key is unknown, for example because its blob was already released. */
+	synchronized public final boolean retain(final long key) {
+		final Blob blob = blobs.get(key);
+		if (null == blob) return false;
+		++blob.refs;
+		++n_shared;
+		return true;
+	}
+
+	/** Return the bytes of the blob, reading them from disk if necessary; null if the key is unknown or the blob could not be read.
+	 * The returned array must not be modified. */
+	synchronized public final byte[] get(final long key) {
+		final Blob blob = blobs.get(key);
+		if (null == blob) return null;
+		return read(blob);
+	}
+
+	/** Decrement the reference count of the blob, dropping it when no longer referenced. */
+	synchronized public final void release(final long key) {
+		final Blob blob = blobs.get(key);
+		if (null == blob || --blob.refs > 0) return;
+		blobs.remove(key);
+		if (by_digest.get(blob.digest) == blob) by_digest.remove(blob.digest);
+		if (null != resident.remove(key)) {
+			memory_bytes -= blob.length;
+		} else {
+			disk_bytes -= blob.length;
+			final File f = file(key);
+			if (!f.delete() && f.exists()) Utils.log2("UndoStore: could not delete " + f);
+		}
+	}
+
+	/** The bytes that the blob occupies in memory: 0 when on disk or unknown. */
+	synchronized public final long getMemoryBytes(final long key) {
+		final Blob blob = resident.get(key);
+		return null == blob ? 0 : blob.length;
+	}
+
+	/** Whether the blobs on disk exceed the disk budget. */
+	synchronized public final boolean isOverBudget() {
+		return disk_bytes > disk_budget;
+	}
+
+	synchronized public final void setBudgets(final long memory_budget, final long disk_budget) {
+		this.memory_budget = Math.max(0, memory_budget);
+		this.disk_budget = Math.max(0, disk_budget);
+		spill();
+	}
+
+	/** Drop all blobs and delete the temporary folder. */
+	synchronized public final void clear() {
+		blobs.clear();
+		by_digest.clear();
+		resident.clear();
+		memory_bytes = 0;
+		disk_bytes = 0;
+		if (null != dir) {
+			final File[] fs = dir.listFiles();
+			if (null != fs) for (final File f : fs) f.delete();
+			dir.delete();
+			dir = null;
+		}
+	}
+
+	synchronized public final String getStats() {
+		return new StringBuilder("Undo store ").append(name).append(": ").append(blobs.size()).append(" blobs, ")
+			.append(n_shared).append(" shared; ").append(memory_bytes / 1024).append(" of ").append(memory_budget / 1024)
+			.append(" KB in memory, ").append(disk_bytes / 1024).append(" of ").append(disk_budget / 1024).append(" KB on disk")
+			.toString();
+	}
+
+	private final File file(final long key) {
+		return new File(dir, Long.toString(key));
+	}
+
+	private final byte[] read(final Blob blob) {
+		if (null != blob.bytes) return blob.bytes;
+		RandomAccessFile ra = null;
+		try {
+			ra = new RandomAccessFile(file(blob.key), "r");
+			final byte[] b = new byte[blob.length];
+			ra.readFully(b);
+			return b;
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			return null;
+		} finally {
+			if (null != ra) try { ra.close(); } catch (final IOException ioe) {}
+		}
+	}
+
+	/** Write the oldest blobs in memory to disk until within the memory budget. Blobs that cannot be written stay in memory. */
+	private final void spill() {
+		for (final Iterator<Blob> it = resident.values().iterator(); memory_bytes > memory_budget && it.hasNext(); ) {
+			final Blob blob = it.next();
+			if (!write(blob)) return;
+			it.remove();
+			blob.bytes = null;
+			memory_bytes -= blob.length;
+			disk_bytes += blob.length;
+		}
+	}
+
+	private final boolean write(final Blob blob) {
+		FileOutputStream out = null;
+		try {
+			if (null == dir) {
+				final File tmp = File.createTempFile("trakem2-undo-", "");
+				if (!tmp.delete() || !tmp.mkdir()) throw new IOException("Could not create folder " + tmp);
+				tmp.deleteOnExit();
+				dir = tmp;
+			}
+			final File f = file(blob.key);
+			f.deleteOnExit();
+			out = new FileOutputStream(f);
+			out.write(blob.bytes);
+			return true;
+		} catch (final IOException ioe) {
+			IJError.print(ioe);
+			return false;
+		} finally {
+			if (null != out) try { out.close(); } catch (final IOException ioe) {}
+		}
+	}
+}
@@ -1,6 +1,7 @@
 
 package ini.trakem2.tree;
 
+import ini.trakem2.persistence.BinaryProject;
 import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
@@ -26,6 +27,10 @@ public class DTDParser {
 	/** Extracts the template by reading the ELEMENT and ATTLIST tags from a .dtd file or the DOCTYPE of an .xml file. */
 	static public TemplateThing[] extractTemplate(String path) throws Exception {
 		if (path.matches(".*(\\.xml|\\.xml\\.gz)")) return parseXMLFile(path);
+		if (BinaryProject.isBinary(path)) {
+			final StringBuilder data = BinaryProject.readDTD(path);
+			return null == data || 0 == data.length() ? null : parseDTD(data);
+		}
 		if (path.length() -4 == path.lastIndexOf(".dtd")) return parseDTDFile(path);
 		return null;
 	}
@@ -62,6 +67,13 @@ public class DTDParser {
 
 	/** Parses a !DOCTYPE chunk from an .xml file, if any. Returns the TemplateThing roots. Assumes there is only one continuous DOCTYPE clause and the root template thing, the layer_set and the display are part of the project tag. */
 	static public TemplateThing[] parseXMLFile(String xml_path) throws Exception {
+		final StringBuilder data = extractDTD(xml_path);
+		if (null == data || 0 == data.length()) return null;
+		return parseDTD(data);
+	}
+
+	/** Returns the content of the !DOCTYPE chunk from an .xml file, without the enclosing brackets, or null if the file doesn't exist. */
+	static public StringBuilder extractDTD(final String xml_path) {
 		// fetch file
 		BufferedReader dis = null;
 		final StringBuilder data = new StringBuilder();
@@ -108,9 +120,32 @@ public class DTDParser {
 			} catch (Exception e) { IJError.print(e); }
 		}
 
-		if (0 == data.length()) return null;
+		return data;
+	}
 
-		return parseDTD(data);
+	/** Returns the name of the !DOCTYPE of an .xml file, or null if none. */
+	static public String extractDocType(final String xml_path) {
+		BufferedReader dis = null;
+		try {
+			InputStream i_stream = FSLoader.isURL(xml_path) ? new java.net.URL(xml_path).openStream() : new FileInputStream(xml_path);
+			if (xml_path.endsWith(".xml.gz")) i_stream = new GZIPInputStream(i_stream);
+			dis = new BufferedReader(new InputStreamReader(i_stream));
+			String tmp;
+			while (null != (tmp = dis.readLine())) {
+				final int i_doc = tmp.indexOf("<!DOCTYPE ");
+				if (-1 != i_doc) {
+					final String[] words = tmp.substring(i_doc + 10).trim().split("[ \\[]");
+					return words[0];
+				}
+			}
+		} catch (Exception e) {
+			IJError.print(e);
+		} finally {
+			try {
+				if (null != dis) dis.close();
+			} catch (Exception e) { IJError.print(e); }
+		}
+		return null;
 	}
 
 	static private class Attribute {
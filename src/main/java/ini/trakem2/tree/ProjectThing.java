@@ -25,6 +25,7 @@ package ini.trakem2.tree;
 import ij.measure.ResultsTable;
 import ini.trakem2.Project;
 import ini.trakem2.display.AreaContainer;
+import ini.trakem2.display.AreaList;
 import ini.trakem2.display.Display;
 import ini.trakem2.display.Display3D;
 import ini.trakem2.display.Displayable;
@@ -770,6 +771,12 @@ public final class ProjectThing extends DBObject implements TitledThing {
 	/** Measure each node, recursively into children, and at the end display all the result tables, one for each data type. */
 	public void measure() {
 		final HashMap<Class<?>,ResultsTable> ht = new HashMap<Class<?>,ResultsTable>();
+		// Measure the layers of all visible AreaLists at once, in parallel
+		final ArrayList<AreaList> alis = new ArrayList<AreaList>();
+		for (final AreaList ali : findObjects(AreaList.class)) {
+			if (ali.isVisible()) alis.add(ali);
+		}
+		AreaList.measureLayers(alis);
 		measure(ht);
 		// Show all tables. Need to be done at the end -- otherwise, at each call to "show"
 		// the entire text panel is flushed and refilled with all data and repainted.
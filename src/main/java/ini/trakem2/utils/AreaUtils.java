@@ -1,10 +1,15 @@
 package ini.trakem2.utils;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -13,7 +18,6 @@ import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import org.scijava.vecmath.Point3f;
@@ -27,6 +31,7 @@ import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.imaging.BinaryInterpolation2D;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.vector.Editions;
 import ini.trakem2.vector.SkinMaker;
 import ini.trakem2.vector.VectorString2D;
@@ -36,7 +41,6 @@ import mpicbg.imglib.container.shapelist.ShapeListCached;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.display.imagej.ImageJFunctions;
 import mpicbg.imglib.type.logic.BitType;
-import mpicbg.imglib.type.numeric.integer.ByteType;
 
 
 public final class AreaUtils {
@@ -46,6 +50,9 @@ public final class AreaUtils {
 
 	private AreaUtils() {}
 
+	/** Number of planes of cubes that each thread meshes at a time in {@link #generateTriangles(Displayable, double, int, Map)}. */
+	static private final int SLAB_DEPTH = 8;
+
 	/** Expects areas in local coordinates to the Displayable @param d.
 	 *  @param d
 	 *  @param scale The scaling of the entire universe, to limit the overall box
@@ -121,29 +128,8 @@ public final class AreaUtils {
 				Utils.log("WARNING could not find all areas for " + d);
 			}
 
-			// No zero-padding: Marching Cubes now can handle edges
-			final ShapeList<ByteType> shapeList = new ShapeListCached<ByteType>(new int[]{w, h, depth}, new ByteType(), 32);
-			final Image<ByteType> shapeListImage = new Image<ByteType>(shapeList, shapeList.getBackground(), "ShapeListContainer");
-			final ByteType intensity = new ByteType((byte)127); // 255 or -1 don't work !? So, giving the highest value (127) that is both a byte and an int.
-
-			for (final Map.Entry<Integer,Area> e : ma.entrySet()) {
-				Area a = e.getValue();
-				if (!aff.isIdentity()) {
-					a = M.areaInIntsByRounding(a.createTransformedArea(aff));
-				}
-				shapeList.addShape(a, intensity, new int[]{e.getKey()});
-			}
-
-			//debug:
-			//ImagePlus imp = ImageJFunctions.displayAsVirtualStack(shapeListImage);
-			//imp.getProcessor().setMinAndMax( 0, 255 );
-			//imp.show();
-
-			//Utils.log2("Using imglib Shape List Image Container");
-
-			// Now marching cubes
-			final List<Point3f> list = new MCTriangulator().getTriangles(shapeListImage, 1, new float[3]); // origins at 0,0,0: uncalibrated
-
+			// Marching cubes, over slabs of a few sections at a time
+			final List<Point3f> list = triangulateInSlabs(ma, aff, w, h, depth);
 
 			// The list of triangles has coordinates:
 			// - in x,y: in pixels, scaled by K = (1 / resample) * scale,
@@ -263,6 +249,113 @@ public final class AreaUtils {
 		return null;
 	}
 
+	/** Marching cubes on the sections in {@code ma}, one per depth index, transformed by {@code aff} into a volume of {@code w, h, depth} voxels.
+	 *  The planes of cubes, from -1 to {@code depth}, are split into slabs of {@link #SLAB_DEPTH} planes that are meshed in parallel.
+	 *  Each slab rasterizes only the sections its cubes touch, and each section only within its own bounds,
+	 *  so that memory use is proportional to the slabs being meshed rather than to the whole volume.
+	 *  Each cube belongs to exactly one slab, and a section shared by two consecutive slabs is rasterized identically by both,
+	 *  so the triangles of consecutive slabs meet at the seams just like when meshing the whole volume at once.
+	 *  @return The triangles as three consecutive vertices, in voxel coordinates, with z being the depth index. */
+	static private List<Point3f> triangulateInSlabs(final Map<Integer,Area> ma, final AffineTransform aff, final int w, final int h, final int depth) throws InterruptedException, ExecutionException {
+		final int n_slabs = (depth + 2 + SLAB_DEPTH - 1) / SLAB_DEPTH;
+		final ExecutorService exec = Utils.newLane(Math.min(n_slabs, Runtime.getRuntime().availableProcessors()), "AreaList-slabs", Scheduler.Priority.BATCH);
+		final ArrayList<Future<List<Point3f>>> fus = new ArrayList<Future<List<Point3f>>>();
+		try {
+			for (int k=0; k<n_slabs; k++) {
+				// The planes of cubes of this slab, inclusive, which touch the sections from first to last + 1
+				final int first = -1 + k * SLAB_DEPTH,
+				          last = Math.min(depth, first + SLAB_DEPTH - 1);
+				fus.add(exec.submit(new Callable<List<Point3f>>() {
+					@Override
+					public List<Point3f> call() {
+						final Section[] sections = new Section[last - first + 2];
+						for (int i=0; i<sections.length; i++) {
+							final Area a = ma.get(first + i);
+							if (null == a) continue;
+							sections[i] = new Section(aff.isIdentity() ? a : M.areaInIntsByRounding(a.createTransformedArea(aff)));
+						}
+						final MCCube.Voxels voxels = new MCCube.Voxels() {
+							@Override
+							public final int get(final int x, final int y, final int z) {
+								final Section s = sections[z - first];
+								return null == s ? 0 : s.get(x, y);
+							}
+						};
+						final List<Point3f> tri = new ArrayList<Point3f>();
+						final ArrayList<Rectangle> bounds = new ArrayList<Rectangle>();
+						for (int z=first; z<=last; z++) {
+							if (Thread.currentThread().isInterrupted()) return tri;
+							bounds.clear();
+							if (null != sections[z - first]) bounds.addAll(sections[z - first].parts);
+							if (null != sections[z - first + 1]) bounds.addAll(sections[z - first + 1].parts);
+							MCCube.getTriangles(voxels, w, h, depth, 1, z, bounds, tri);
+						}
+						return tri;
+					}
+				}));
+			}
+			final ArrayList<Point3f> list = new ArrayList<Point3f>();
+			for (final Future<List<Point3f>> fu : fus) {
+				list.addAll(fu.get());
+			}
+			return list;
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/** One section rasterized within its bounds, plus the bounds of each of its parts
+	 *  enlarged to include the cubes that touch them. */
+	static private final class Section {
+		private final Rectangle b;
+		private final byte[] pixels;
+		private final ArrayList<Rectangle> parts = new ArrayList<Rectangle>();
+
+		Section(final Area area) {
+			this.b = area.getBounds();
+			if (b.isEmpty()) {
+				this.pixels = null;
+				return;
+			}
+			final BufferedImage bi = new BufferedImage(b.width, b.height, BufferedImage.TYPE_BYTE_GRAY);
+			final Graphics2D g = bi.createGraphics();
+			g.translate(-b.x, -b.y);
+			g.setColor(Color.white);
+			g.fill(area);
+			g.dispose();
+			this.pixels = ((DataBufferByte)bi.getRaster().getDataBuffer()).getData();
+			// Cubes from x -1 to x + width -1 touch the voxels of a part
+			double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE,
+			       x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+			final double[] coords = new double[6];
+			for (final PathIterator pit = area.getPathIterator(null); !pit.isDone(); pit.next()) {
+				switch (pit.currentSegment(coords)) {
+					case PathIterator.SEG_MOVETO:
+					case PathIterator.SEG_LINETO:
+						x0 = Math.min(x0, coords[0]);
+						y0 = Math.min(y0, coords[1]);
+						x1 = Math.max(x1, coords[0]);
+						y1 = Math.max(y1, coords[1]);
+						break;
+					case PathIterator.SEG_CLOSE:
+						final int px = (int)Math.floor(x0),
+						          py = (int)Math.floor(y0);
+						parts.add(new Rectangle(px - 1, py - 1, (int)Math.ceil(x1) - px + 1, (int)Math.ceil(y1) - py + 1));
+						x0 = y0 = Double.MAX_VALUE;
+						x1 = y1 = -Double.MAX_VALUE;
+						break;
+				}
+			}
+		}
+
+		final int get(int x, int y) {
+			x -= b.x;
+			y -= b.y;
+			if (null == pixels || x < 0 || y < 0 || x >= b.width || y >= b.height) return 0;
+			return 0 == pixels[y * b.width + x] ? 0 : 127;
+		}
+	}
+
 	/**
 	 * @param list The original points
 	 * @param output The accumulated list of modified points to construct a mesh from
@@ -498,7 +591,7 @@ public final class AreaUtils {
 		// TODO parallelize, which needs the means to call process() in parallel too--currently it cannot,
 		// the result would get overwritten.
 
-		final ExecutorService exec = Executors.newFixedThreadPool(Math.min(nInterpolates, Runtime.getRuntime().availableProcessors()));
+		final ExecutorService exec = Utils.newLane(Math.min(nInterpolates, Runtime.getRuntime().availableProcessors()), "AreaUtils-interpolate", Scheduler.Priority.BATCH);
 		final ArrayList<Future<Area>> fus = new ArrayList<Future<Area>>();
 
 		try {
@@ -0,0 +1,286 @@
+package ini.trakem2.utils;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A pool of byte[], short[], int[] and float[] arrays for reuse, shared by all threads.
+ *
+ * Released arrays are filed by size class (the power of two equal or larger than their length in bytes).
+ * Callers that use only the length they ask for, such as those that create a {@link BufferedImage} of a given
+ * width and height, take an array of at least that length: any array of its size class will do, so that arrays
+ * are reused across images of different sizes. Callers that hand the array to code that takes its length
+ * as the number of pixels, such as an ImageJ processor, take an array of the exact length instead. Each thread keeps a small magazine of recently released
+ * small arrays, which it reuses without any locking; all other arrays go to a shared depot,
+ * whose arrays add up to at most the budget (see {@link #setBudget(long)}) and are strongly referenced
+ * until reused or {@link #clear()}ed, to be dropped when the image cache needs memory.
+ *
+ * Only release arrays that nothing else references anymore. */
+public final class ArrayPool
+{
+	private ArrayPool() {}
+
+	/** Arrays up to this size in bytes may be kept in the magazine of a thread. */
+	static private final int MAGAZINE_MAX_BYTES = 64 * 1024;
+	static private final int MAGAZINE_SIZE = 8;
+	/** Arrays kept per size class in the depot. */
+	static private final int DEPOT_CLASS_SIZE = 32;
+
+	static private final AtomicLong budget = new AtomicLong(Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 32));
+	/** Bytes held by the depots. */
+	static private final AtomicLong held = new AtomicLong(0);
+	/** Incremented by {@link #clear()}, so that each thread drops its magazines when next used. */
+	static private final AtomicInteger epoch = new AtomicInteger(0);
+
+	static private final AtomicLong n_requests = new AtomicLong(0),
+	                                n_hits = new AtomicLong(0),
+	                                n_released = new AtomicLong(0),
+	                                n_refused = new AtomicLong(0),
+	                                bytes_recycled = new AtomicLong(0);
+
+	static private final Pool<byte[]> bytes = new Pool<byte[]>(byte[].class, 1);
+	static private final Pool<short[]> shorts = new Pool<short[]>(short[].class, 2);
+	static private final Pool<int[]> ints = new Pool<int[]>(int[].class, 4);
+	static private final Pool<float[]> floats = new Pool<float[]>(float[].class, 4);
+
+	/** The pool of one type of array. */
+	static private final class Pool<A>
+	{
+		private final Class<A> clazz;
+		private final int bytes_per_element;
+		/** One deque per size class, each guarded by itself. */
+		private final ArrayDeque<A>[] depot;
+		private final ThreadLocal<Magazine<A>> magazines = new ThreadLocal<Magazine<A>>() {
+			@Override
+			protected Magazine<A> initialValue() {
+				return new Magazine<A>();
+			}
+		};
+
+		@SuppressWarnings("unchecked")
+		Pool(final Class<A> clazz, final int bytes_per_element) {
+			this.clazz = clazz;
+			this.bytes_per_element = bytes_per_element;
+			this.depot = new ArrayDeque[35];
+			for (int i=0; i<depot.length; ++i) depot[i] = new ArrayDeque<A>();
+		}
+
+		private final int sizeClass(final long n_bytes) {
+			return n_bytes <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(n_bytes - 1);
+		}
+
+		private final Magazine<A> magazine() {
+			final Magazine<A> m = magazines.get();
+			final int e = epoch.get();
+			if (m.epoch != e) {
+				m.clear();
+				m.epoch = e;
+			}
+			return m;
+		}
+
+		/** Returns an array of exactly {@code length} elements, or of any length of the same size class
+		 * equal or larger than {@code length} unless {@code exact}. */
+		@SuppressWarnings("unchecked")
+		final A take(final int length, final boolean exact) {
+			n_requests.incrementAndGet();
+			final long n_bytes = (long)length * bytes_per_element;
+			final int c = sizeClass(n_bytes);
+			final int max_length = exact ? length : (int)Math.min(Integer.MAX_VALUE, (1L << c) / bytes_per_element);
+			A a = null;
+			if (n_bytes <= MAGAZINE_MAX_BYTES) a = magazine().take(length, max_length);
+			if (null == a) {
+				final ArrayDeque<A> d = depot[c];
+				synchronized (d) {
+					// The shortest that fits, or the first of the exact length
+					int best = Integer.MAX_VALUE;
+					for (final A b : d) {
+						final int len = Array.getLength(b);
+						if (len < length || len > max_length || len >= best) continue;
+						a = b;
+						best = len;
+						if (len == length) break;
+					}
+					if (null != a) {
+						d.remove(a);
+						held.addAndGet(-(long)best * bytes_per_element);
+					}
+				}
+			}
+			if (null == a) return (A) Array.newInstance(clazz.getComponentType(), length);
+			n_hits.incrementAndGet();
+			bytes_recycled.addAndGet((long)Array.getLength(a) * bytes_per_element);
+			return a;
+		}
+
+		final void give(final A a) {
+			if (null == a) return;
+			final int length = Array.getLength(a);
+			if (0 == length) return;
+			n_released.incrementAndGet();
+			final long n_bytes = (long)length * bytes_per_element;
+			final A overflow;
+			if (n_bytes <= MAGAZINE_MAX_BYTES) {
+				overflow = magazine().give(a);
+				if (null == overflow) return;
+			} else {
+				overflow = a;
+			}
+			// Into the depot
+			final long ov_bytes = (long)Array.getLength(overflow) * bytes_per_element;
+			final ArrayDeque<A> d = depot[sizeClass(ov_bytes)];
+			synchronized (d) {
+				if (d.size() == DEPOT_CLASS_SIZE) {
+					// Drop the oldest of this class
+					held.addAndGet(-(long)Array.getLength(d.removeFirst()) * bytes_per_element);
+				}
+				if (held.get() + ov_bytes > budget.get()) {
+					n_refused.incrementAndGet();
+					return;
+				}
+				held.addAndGet(ov_bytes);
+				d.addLast(overflow);
+			}
+		}
+
+		final void clear() {
+			for (final ArrayDeque<A> d : depot) {
+				synchronized (d) {
+					for (final A a : d) held.addAndGet(-(long)Array.getLength(a) * bytes_per_element);
+					d.clear();
+				}
+			}
+		}
+	}
+
+	/** A few recently released small arrays of one thread. */
+	static private final class Magazine<A>
+	{
+		private final Object[] slots = new Object[MAGAZINE_SIZE];
+		private int next = 0;
+		int epoch = 0;
+
+		/** Returns the shortest array of {@code length} to {@code max_length} elements, if any. */
+		@SuppressWarnings("unchecked")
+		A take(final int length, final int max_length) {
+			int k = -1,
+			    best = Integer.MAX_VALUE;
+			for (int i=0; i<slots.length; ++i) {
+				final Object o = slots[i];
+				if (null == o) continue;
+				final int len = Array.getLength(o);
+				if (len < length || len > max_length || len >= best) continue;
+				k = i;
+				best = len;
+				if (len == length) break;
+			}
+			if (-1 == k) return null;
+			final Object o = slots[k];
+			slots[k] = null;
+			return (A) o;
+		}
+
+		/** Returns the array displaced to make room, if any. */
+		@SuppressWarnings("unchecked")
+		A give(final A a) {
+			for (int i=0; i<slots.length; ++i) {
+				if (null == slots[i]) {
+					slots[i] = a;
+					return null;
+				}
+			}
+			final Object displaced = slots[next];
+			slots[next] = a;
+			next = (next + 1) % slots.length;
+			return (A) displaced;
+		}
+
+		void clear() {
+			for (int i=0; i<slots.length; ++i) slots[i] = null;
+		}
+	}
+
+	/** Returns an array of exactly {@code length} elements. */
+	static public final byte[] takeBytes(final int length) { return bytes.take(length, true); }
+	static public final short[] takeShorts(final int length) { return shorts.take(length, true); }
+	static public final int[] takeInts(final int length) { return ints.take(length, true); }
+	static public final float[] takeFloats(final int length) { return floats.take(length, true); }
+
+	/** Returns an array of exactly {@code length} elements for each of {@code num}. */
+	static public final byte[][] takeBytes(final int num, final int length) {
+		final byte[][] b = new byte[num][];
+		for (int i=0; i<num; ++i) b[i] = bytes.take(length, true);
+		return b;
+	}
+
+	/** Returns an array of {@code length} elements or more, up to the size class of {@code length}:
+	 * use only its first {@code length} elements, and never its length as the number of pixels. */
+	static public final byte[] takeBytesAtLeast(final int length) { return bytes.take(length, false); }
+	static public final short[] takeShortsAtLeast(final int length) { return shorts.take(length, false); }
+	static public final int[] takeIntsAtLeast(final int length) { return ints.take(length, false); }
+	static public final float[] takeFloatsAtLeast(final int length) { return floats.take(length, false); }
+
+	static public final void give(final byte[] a) { bytes.give(a); }
+	static public final void give(final short[] a) { shorts.give(a); }
+	static public final void give(final int[] a) { ints.give(a); }
+	static public final void give(final float[] a) { floats.give(a); }
+
+	static public final void give(final byte[][] b) {
+		for (final byte[] a : b) bytes.give(a);
+	}
+
+	/** Release the pixel array of {@code img}, if it is a {@link BufferedImage} backed by one array of a pooled type.
+	 * Only for images that the caller alone has ever seen, such as those it created to be written to a file:
+	 * never for images that were put in the image cache, which other threads may still be reading from. */
+	static public final void give(final Image img) {
+		if (img.getClass() != BufferedImage.class) return;
+		// The raster itself, not a copy of it as returned by getData()
+		final DataBuffer db = ((BufferedImage)img).getRaster().getDataBuffer();
+		if (1 != db.getNumBanks()) return;
+		final Class<?> c = db.getClass();
+		if (c == DataBufferInt.class) ints.give(((DataBufferInt)db).getData());
+		else if (c == DataBufferByte.class) bytes.give(((DataBufferByte)db).getData());
+		else if (c == DataBufferUShort.class) shorts.give(((DataBufferUShort)db).getData());
+		else if (c == DataBufferFloat.class) floats.give(((DataBufferFloat)db).getData());
+	}
+
+	/** Drop all pooled arrays. */
+	static public final void clear() {
+		epoch.incrementAndGet();
+		bytes.clear();
+		shorts.clear();
+		ints.clear();
+		floats.clear();
+	}
+
+	/** Set the maximum number of bytes of the arrays kept in the shared depot. */
+	static public final void setBudget(final long n_bytes) {
+		budget.set(Math.max(0, n_bytes));
+		if (held.get() > n_bytes) clear();
+	}
+
+	static public final long getBudget() {
+		return budget.get();
+	}
+
+	/** The number of requests, how many of them were served with a released array, and the bytes recycled. */
+	static public final String getStats() {
+		final long requests = n_requests.get(),
+		           hits = n_hits.get();
+		return new StringBuilder("Array pool: ").append(requests).append(" requests, ")
+			.append(hits).append(" recycled (").append(0 == requests ? "--" : Utils.cutNumber(100.0 * hits / requests, 1) + "%").append("), ")
+			.append(bytes_recycled.get() / (1024 * 1024)).append(" MB recycled, ")
+			.append(n_released.get()).append(" released, ")
+			.append(n_refused.get()).append(" refused over budget, ")
+			.append(held.get() / (1024 * 1024)).append(" of ").append(budget.get() / (1024 * 1024)).append(" MB held")
+			.toString();
+	}
+}
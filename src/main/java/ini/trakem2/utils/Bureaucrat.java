@@ -24,6 +24,7 @@ package ini.trakem2.utils;
 
 import ini.trakem2.ControlWindow;
 import ini.trakem2.Project;
+import ini.trakem2.parallel.Scheduler;
 
 import java.util.ArrayList;
 
@@ -45,7 +46,7 @@ public class Bureaucrat extends Thread {
 		super(tg, "T2-Bureaucrat");
 		setPriority(Thread.NORM_PRIORITY);
 		this.worker = worker;
-		this.worker_thread = new CachingThread(tg, worker, worker.getThreadName());
+		this.worker_thread = new Thread(tg, worker, worker.getThreadName());
 		this.worker_thread.setPriority(NORM_PRIORITY);
 		worker.setThread(worker_thread);
 		this.project = project;
@@ -159,7 +160,8 @@ public class Bureaucrat extends Thread {
 		return worker.getTaskName();
 	}
 	/** Waits until worker finishes before returning.
-	 *  Calls quit() on the Worker and interrupt() on each threads in this ThreadGroup and subgroups. */
+	 *  Calls quit() on the Worker and interrupt() on each threads in this ThreadGroup and subgroups,
+	 *  and cancels the tasks of the {@link Scheduler} lanes created by them. */
 	public void quit() {
 		try {
 
@@ -184,6 +186,7 @@ public class Bureaucrat extends Thread {
 			// Set flag to each thread and thread in subgroup to quit:
 			worker.quit();
 			getThreadGroup().interrupt();
+			Scheduler.getInstance().interrupt(getThreadGroup());
 
 		} catch (Exception e) {
 			IJError.print(e);
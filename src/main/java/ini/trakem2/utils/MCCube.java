@@ -6,6 +6,7 @@ import java.awt.Shape;
 import java.awt.geom.Area;
 import java.awt.geom.PathIterator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -167,12 +168,14 @@ public final class MCCube {
 	private static final class Carrier {
 		int w, h, d;
 		Volume volume;
+		Voxels voxels;
 		float threshold;
 
 		final int intensity(final Point3f p) {
 			if(p.x < 0 || p.y < 0 || p.z < 0
 				|| p.x >= w || p.y >= h || p.z >= d)
 				return 0;
+			if (null != voxels) return voxels.get((int)p.x, (int)p.y, (int)p.z);
 			return volume.load((int)p.x, (int)p.y, (int)p.z);
 		}
 	}
@@ -219,6 +222,62 @@ public final class MCCube {
 		return tri;
 	}
 
+	/** The values of the voxels of a volume that is not an {@link ij3d.Volume}, such as a few sections rasterized on demand. */
+	public interface Voxels {
+		/** Returns the value at {@code x, y, z}, which may be outside the volume, in which case the value is zero. */
+		public int get(int x, int y, int z);
+	}
+
+	/**
+	 * Add to {@code tri} the triangles of the cubes whose first corner lays at plane {@code z}
+	 * and within any of the {@code bounds}, in voxel coordinates. Each cube is visited only once
+	 * even where the bounds overlap, so that the planes of a volume can be split among threads
+	 * and the resulting lists concatenated.
+	 * @param voxels
+	 * @param w The width of the volume.
+	 * @param h The height of the volume.
+	 * @param d The depth of the volume.
+	 * @param thresh
+	 * @param z The plane, from -1 to {@code d}.
+	 * @param bounds The rectangles of plane {@code z} where to place cubes.
+	 * @param tri
+	 */
+	public static final void getTriangles(final Voxels voxels, final int w, final int h, final int d, final int thresh,
+			final int z, final List<Rectangle> bounds, final List<Point3f> tri) {
+		if (bounds.isEmpty()) return;
+		final Carrier car = new Carrier();
+		car.w = w;
+		car.h = h;
+		car.d = d;
+		car.threshold = thresh + 0.5f;
+		car.voxels = voxels;
+		final MCCube cube = new MCCube();
+		final Rectangle all = new Rectangle(bounds.get(0));
+		for (final Rectangle r : bounds) all.add(r);
+		// Per row, the runs of x covered by the bounds, sorted by start and merged
+		final long[] runs = new long[bounds.size()];
+		for (int y = all.y; y < all.y + all.height; y += 1) {
+			int n = 0;
+			for (final Rectangle r : bounds) {
+				if (y < r.y || y >= r.y + r.height) continue;
+				runs[n++] = (((long)r.x) << 32) | ((r.x + r.width) & 0xffffffffL);
+			}
+			if (0 == n) continue;
+			Arrays.sort(runs, 0, n);
+			int next = Integer.MIN_VALUE;
+			for (int i = 0; i < n; i++) {
+				final int start = Math.max(next, (int)(runs[i] >> 32)),
+				          end = (int)runs[i];
+				for (int x = start; x < end; x += 1) {
+					cube.init(x, y, z);
+					cube.computeEdges(car);
+					cube.getTriangles(tri, car);
+				}
+				next = Math.max(next, end);
+			}
+		}
+	}
+
 	/** Identical to getTriangles, but iterates only the minimal necessary bounding box, by asking the shapes objects. */
 	private static final void getShapeListImageTriangles(final ImgLibVolume volume, final Carrier car, final List<Point3f> tri) {
 		final ShapeList sli = (ShapeList) volume.getImage().getContainer();
@@ -69,6 +69,7 @@ import java.util.Map;
 import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
@@ -107,6 +108,8 @@ import ini.trakem2.display.Layer;
 import ini.trakem2.display.Pipe;
 import ini.trakem2.display.YesNoDialog;
 import ini.trakem2.imaging.FloatProcessorT2;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.plugin.TPlugIn;
 import ini.trakem2.tree.ProjectThing.Profile_List;
@@ -1561,18 +1564,26 @@ public class Utils implements ij.plugin.PlugIn {
 	}
 
 	/** Creates a new fixed thread pool whose threads are in the same ThreadGroup as the Thread that calls this method.
-	 *  This allows for the threads to be interrupted when the caller thread's group is interrupted. */
+	 *  This allows for the threads to be interrupted when the caller thread's group is interrupted.
+	 *  @deprecated Use {@link #newLane(int, String, Scheduler.Priority)}, whose tasks share the threads of all TrakEM2 background work. */
+	@Deprecated
 	static public final ThreadPoolExecutor newFixedThreadPool(final int n_proc) {
 		return newFixedThreadPool(n_proc, null);
 	}
-	/** Creates a new fixed thread pool with as many threads as CPUs, and whose threads are in the same ThreadGroup as the Thread that calls this method. */
+	/** Creates a new fixed thread pool with as many threads as CPUs, and whose threads are in the same ThreadGroup as the Thread that calls this method.
+	 *  @deprecated Use {@link #newLane(int, String, Scheduler.Priority)}. */
+	@Deprecated
 	static public final ThreadPoolExecutor newFixedThreadPool(final String namePrefix) {
 		return newFixedThreadPool(Runtime.getRuntime().availableProcessors(), namePrefix);
 	}
+	/** @deprecated Use {@link #newLane(int, String, Scheduler.Priority)}. */
+	@Deprecated
 	static public final ThreadPoolExecutor newFixedThreadPool(final int n_proc, final String namePrefix) {
 		return newFixedThreadPool(n_proc, namePrefix, true);
 	}
 	
+	/** @deprecated Use {@link #newLane(int, String, Scheduler.Priority)}; arrays are pooled for all threads by the {@link ArrayPool}. */
+	@Deprecated
 	static public final ThreadPoolExecutor newFixedThreadPool(final int n_proc, final String namePrefix, final boolean use_caching_thread) {
 		final ThreadPoolExecutor exec = (ThreadPoolExecutor) Executors.newFixedThreadPool(n_proc);
 		exec.setThreadFactory(new ThreadFactory() {
@@ -1594,6 +1605,15 @@ public class Utils implements ij.plugin.PlugIn {
 		});
 		return exec;
 	}
+
+	/** Returns a lane of the {@link Scheduler}, as given by the {@link ExecutorProvider}, that runs at most @param n_proc
+	 *  of its tasks at a time as tasks of class @param priority, on threads named after @param namePrefix while they run them,
+	 *  or after the ThreadGroup of the calling Thread when null. Its tasks are cancelled when the ThreadGroup of the calling
+	 *  Thread is interrupted through {@link Scheduler#interrupt(ThreadGroup)}, as by {@link Bureaucrat#quit()}.
+	 *  Shut it down when done, like any thread pool. */
+	static public final ExecutorService newLane(final int n_proc, final String namePrefix, final Scheduler.Priority priority) {
+		return ExecutorProvider.getExecutorService(priority, n_proc, null == namePrefix ? Thread.currentThread().getThreadGroup().getName() : namePrefix);
+	}
 	/** If both are null will throw an error. */
 	static public final boolean equalContent(final Collection<?> a, final Collection<?> b) {
 		if ((null == a && null != b)
@@ -12,6 +12,9 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.IJ;
@@ -23,8 +26,10 @@ import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Selection;
 import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.persistence.FeatureStore;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Filter;
+import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 import mpicbg.ij.FeatureTransform;
 import mpicbg.ij.SIFT;
@@ -458,75 +463,95 @@ public class Align
 
 	/**
 	 * Extracts {@link Feature SIFT-features} from a {@link List} of
-	 * {@link AbstractAffineTile2D Tiles} and saves them to disk.
+	 * {@link AbstractAffineTile2D Tiles} and saves them to disk, running
+	 * in parallel as many as fit in memory.
 	 */
-	final static protected class ExtractFeaturesThread extends Thread
+	final static protected void extractFeatures(
+			final Param p,
+			final List< AbstractAffineTile2D< ? > > tiles,
+			final AtomicInteger ap,
+			final int steps,
+			final int numThreads ) throws InterruptedException
 	{
-		final protected Param p;
-		final protected List< AbstractAffineTile2D< ? > > tiles;
-//		final protected HashMap< AbstractAffineTile2D< ? >, Collection< Feature > > tileFeatures;
-		final protected AtomicInteger ai;
-		final protected AtomicInteger ap;
-		final protected int steps;
+		final FeatureExtractor extractor = new FeatureExtractor( "extractTileFeatures", numThreads );
+		final List< Future< Collection< Feature > > > fus = new ArrayList< Future< Collection< Feature > > >();
 
-		public ExtractFeaturesThread(
-				final Param p,
-				final List< AbstractAffineTile2D< ? > > tiles,
-//				final HashMap< AbstractAffineTile2D< ? >, Collection< Feature > > tileFeatures,
-				final AtomicInteger ai,
-				final AtomicInteger ap,
-				final int steps )
-		{
-			this.p = p;
-			this.tiles = tiles;
-			this.ai = ai;
-			this.ap = ap;
-			this.steps = steps;
-		}
-
-		@Override
-		final public void run()
+		for ( int j = 0; j < tiles.size(); ++j )
 		{
-			final FloatArray2DSIFT sift = new FloatArray2DSIFT( p.sift );
-			final SIFT ijSIFT = new SIFT( sift );
-
-			for ( int i = ai.getAndIncrement(); i < tiles.size() && !isInterrupted(); i = ai.getAndIncrement() )
+			final int i = j;
+			final AbstractAffineTile2D< ? > tile = tiles.get( i );
+			final Param pc = p.clone();
+			fus.add( extractor.submit( tile.getPatch().getProject().getLoader(), FeatureExtractor.estimateBytes( tile.getPatch(), pc.sift ), new Callable< Collection< Feature > >()
 			{
-				if (isInterrupted()) return;
-				final AbstractAffineTile2D< ? > tile = tiles.get( i );
-				Collection< Feature > features = deserializeFeatures( p, tile );
-				if ( features == null )
+				@Override
+				public Collection< Feature > call()
 				{
-					/* extract features and, in case there is not enough memory available, try to free it and do again */
-					boolean memoryFlushed;
-					do
+					if ( Thread.currentThread().isInterrupted() ) return null;
+					Collection< Feature > features = deserializeFeatures( pc, tile );
+					if ( features == null )
 					{
-						try
+						/* SIFT instances are not thread safe */
+						final SIFT ijSIFT = new SIFT( new FloatArray2DSIFT( pc.sift ) );
+						/* extract features and, in case there is not enough memory available, try to free it and do again */
+						boolean memoryFlushed;
+						do
 						{
-							features = new ArrayList< Feature >();
-							final long s = System.currentTimeMillis();
-							ijSIFT.extractFeatures( tile.createMaskedByteImage(), features );
-							Utils.log( features.size() + " features extracted in tile " + i + " \"" + tile.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
-							if ( !serializeFeatures( p, tile, features ) )
-								Utils.log( "Saving features failed for tile \"" + tile.getPatch() + "\"" );
-							memoryFlushed = false;
-						}
-						catch ( final OutOfMemoryError e )
-						{
-							Utils.log2( "Flushing memory for feature extraction" );
-							Loader.releaseAllCaches();
-							memoryFlushed = true;
+							try
+							{
+								features = new ArrayList< Feature >();
+								final long s = System.currentTimeMillis();
+								ijSIFT.extractFeatures( tile.createMaskedByteImage(), features );
+								Utils.log( features.size() + " features extracted in tile " + i + " \"" + tile.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
+								if ( !serializeFeatures( pc, tile, features ) )
+									Utils.log( "Saving features failed for tile \"" + tile.getPatch() + "\"" );
+								memoryFlushed = false;
+							}
+							catch ( final OutOfMemoryError e )
+							{
+								Utils.log2( "Flushing memory for feature extraction" );
+								Loader.releaseAllCaches();
+								memoryFlushed = true;
+							}
 						}
+						while ( memoryFlushed );
 					}
-					while ( memoryFlushed );
-				}
-				else
-				{
-					Utils.log( features.size() + " features loaded for tile " + i + " \"" + tile.getPatch().getTitle() + "\"." );
+					else
+					{
+						Utils.log( features.size() + " features loaded for tile " + i + " \"" + tile.getPatch().getTitle() + "\"." );
+						features = null; // not counted as extracted
+					}
+					IJ.showProgress( ap.getAndIncrement(), steps );
+					return features;
 				}
-				IJ.showProgress( ap.getAndIncrement(), steps );
+			} ) );
+		}
+		extractor.shutdown();
+
+		/* wait for all tiles, so that no features are still being written when matching starts, and then report the failures */
+		final List< ExecutionException > errors = new ArrayList< ExecutionException >();
+		for ( final Future< Collection< Feature > > fu : fus )
+		{
+			try
+			{
+				fu.get();
 			}
+			catch ( final ExecutionException e )
+			{
+				errors.add( e );
+			}
+			catch ( final InterruptedException e )
+			{
+				extractor.shutdownNow();
+				throw e;
+			}
+		}
+		if ( !errors.isEmpty() )
+		{
+			Utils.log( "Feature extraction failed for " + errors.size() + " of " + fus.size() + " tiles:" );
+			for ( final ExecutionException e : errors )
+				IJError.print( e );
 		}
+		extractor.report();
 	}
 
 
@@ -756,12 +781,20 @@ public class Align
 	}
 
 
+	/**
+	 * Save the features of a tile to the project's {@link FeatureStore},
+	 * keyed by the SIFT parameters, or to a file of their own if that fails.
+	 */
 	final static protected boolean serializeFeatures( final Param p, final AbstractAffineTile2D< ? > t, final Collection< Feature > f )
 	{
-		final ArrayList< Feature > list = new ArrayList< Feature >();
-		list.addAll( f );
 		final Patch patch = t.getPatch();
 		final Loader loader = patch.getProject().getLoader();
+		final FeatureStore store = FeatureStore.get( loader );
+		if ( null != store && store.putFeatures( p.sift, null, patch.getId(), f ) )
+			return true;
+
+		final ArrayList< Feature > list = new ArrayList< Feature >();
+		list.addAll( f );
 		final Features fe = new Features( p.sift, list );
 		return loader.serialize( fe, new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
 			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString() );
@@ -769,11 +802,20 @@ public class Align
 
 	/**
 	 * Retrieve the features only if saved with the exact same relevant SIFT parameters.
+	 * The project's {@link FeatureStore} is looked up first; features found
+	 * only in a file of their own are copied into it.
 	 */
 	final static protected Collection< Feature > deserializeFeatures( final Param p, final AbstractAffineTile2D< ? > t )
 	{
 		final Patch patch = t.getPatch();
 		final Loader loader = patch.getProject().getLoader();
+		final FeatureStore store = FeatureStore.get( loader );
+		if ( null != store )
+		{
+			final ArrayList< Feature > features = store.getFeatures( p.sift, null, patch.getId() );
+			if ( null != features )
+				return features;
+		}
 
 		final Object ob = loader.deserialize( new StringBuilder( loader.getUNUIdFolder() ).append( "features.ser/" )
 			.append( FSLoader.createIdPath( Long.toString( patch.getId() ), "features", ".ser" ) ).toString() );
@@ -784,6 +826,8 @@ public class Align
 				final Features fe = ( Features )ob;
 				if ( p.sift.equals( fe.p ) && null != fe.p )
 				{
+					if ( null != store )
+						store.putFeatures( p.sift, null, patch.getId(), fe.features );
 					return fe.features;
 				}
 			}
@@ -820,6 +864,8 @@ public class Align
 	 * Save a {@link Collection} of {@link PointMatch PointMatches} two-sided.
 	 * Creates two serialization files which is desperately required to clean
 	 * up properly invalid serializations on change of a {@link Patch}.
+	 * The project's {@link FeatureStore} is used instead when possible: it
+	 * stores one side only, indexed by both ids, and flips it when read.
 	 *
 	 * @param p
 	 * @param t1
@@ -833,13 +879,17 @@ public class Align
 			final AbstractAffineTile2D< ? > t2,
 			final Collection< PointMatch > m )
 	{
+		final Patch p1 = t1.getPatch();
+		final Patch p2 = t2.getPatch();
+		final Loader loader = p1.getProject().getLoader();
+		final FeatureStore store = FeatureStore.get( loader );
+		if ( null != store && store.putPointMatches( p, null, p1.getId(), p2.getId(), m ) )
+			return true;
+
 		final ArrayList< PointMatch > list = new ArrayList< PointMatch >();
 		list.addAll( m );
 		final ArrayList< PointMatch > tsil = new ArrayList< PointMatch >();
 		PointMatch.flip( m, tsil );
-		final Patch p1 = t1.getPatch();
-		final Patch p2 = t2.getPatch();
-		final Loader loader = p1.getProject().getLoader();
 		return
 			loader.serialize(
 				new PointMatches( p, list ),
@@ -858,6 +908,13 @@ public class Align
 		final Patch p1 = t1.getPatch();
 		final Patch p2 = t2.getPatch();
 		final Loader loader = p1.getProject().getLoader();
+		final FeatureStore store = FeatureStore.get( loader );
+		if ( null != store )
+		{
+			final ArrayList< PointMatch > pointMatches = store.getPointMatches( p, null, p1.getId(), p2.getId() );
+			if ( null != pointMatches )
+				return pointMatches;
+		}
 
 		final Object ob = loader.deserialize( new StringBuilder( loader.getUNUIdFolder() ).append( "pointmatches.ser/" )
 				.append( FSLoader.createIdPath( Long.toString( p1.getId() ) + "_" + Long.toString( p2.getId() ), "pointmatches", ".ser" ) ).toString() );
@@ -869,6 +926,8 @@ public class Align
 				final PointMatches pm = ( PointMatches )ob;
 				if ( p.equals( pm.p ) && null != pm.p )
 				{
+					if ( null != store )
+						store.putPointMatches( p, null, p1.getId(), p2.getId(), pm.pointMatches );
 					return pm.pointMatches;
 				}
 			}
@@ -1117,33 +1176,16 @@ public class Align
 		final AtomicInteger ai = new AtomicInteger( 0 );
 		final AtomicInteger ap = new AtomicInteger( 0 );
 		final int steps = tiles.size() + tilePairs.size();
-		final List< ExtractFeaturesThread > extractFeaturesThreads = new ArrayList< ExtractFeaturesThread >();
 		final List< MatchFeaturesAndFindModelThread > matchFeaturesAndFindModelThreads = new ArrayList< MatchFeaturesAndFindModelThread >();
 
 		/** Extract and save Features */
-		for ( int i = 0; i < numThreads; ++i )
-		{
-			final ExtractFeaturesThread thread = new ExtractFeaturesThread( p.clone(), tiles, ai, ap, steps );
-			extractFeaturesThreads.add( thread );
-			thread.start();
-		}
-
 		try
 		{
-			for ( final ExtractFeaturesThread thread : extractFeaturesThreads )
-				thread.join();
+			extractFeatures( p, tiles, ap, steps, numThreads );
 		}
 		catch ( final InterruptedException e )
 		{
 			Utils.log( "Feature extraction interrupted." );
-			for ( final Thread thread : extractFeaturesThreads )
-				thread.interrupt();
-			try
-			{
-				for ( final Thread thread : extractFeaturesThreads )
-					thread.join();
-			}
-			catch ( final InterruptedException f ) {}
 			Thread.currentThread().interrupt();
 			IJ.showProgress( 1.0 );
 			return;
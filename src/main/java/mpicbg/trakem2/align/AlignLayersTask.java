@@ -24,6 +24,7 @@ import ini.trakem2.display.Display;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.Filter;
@@ -512,7 +513,7 @@ final public class AlignLayersTask
 		final List< PointMatch > inliers = new ArrayList< PointMatch >();
 
 		final int n_proc = Runtime.getRuntime().availableProcessors() > 1 ? 2 : 1;
-		final ExecutorService exec = Utils.newFixedThreadPool(n_proc, "alignLayersNonLinearly");
+		final ExecutorService exec = Utils.newLane(n_proc, "alignLayersNonLinearly", Scheduler.Priority.BATCH);
 
 		List<Patch> previousPatches = null;
 
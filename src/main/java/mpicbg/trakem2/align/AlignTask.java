@@ -32,6 +32,7 @@ import ini.trakem2.display.Selection;
 import ini.trakem2.display.VectorData;
 import ini.trakem2.display.VectorDataTransform;
 import ini.trakem2.imaging.StitchingTEM;
+import ini.trakem2.parallel.Scheduler;
 import ini.trakem2.persistence.DBObject;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
@@ -437,7 +438,7 @@ A:		for ( final Layer layer : layers )
 		final Map<Long,Patch.TransformProperties> tp = new HashMap<Long,Patch.TransformProperties>();
 		// Parallelize! This operation can be insanely expensive
 		final int nproc = Runtime.getRuntime().availableProcessors();
-		final ExecutorService exec = Utils.newFixedThreadPool(nproc, "AlignTask-createTransformPropertiesTable");
+		final ExecutorService exec = Utils.newLane(nproc, "AlignTask-createTransformPropertiesTable", Scheduler.Priority.BATCH);
 		final LinkedList<Future> tasks = new LinkedList<Future>();
 		final Thread current = Thread.currentThread();
 		final AtomicInteger counter = new AtomicInteger(0);
@@ -512,7 +513,7 @@ A:		for ( final Layer layer : layers )
 
 		// Parallelize! This operation can be insanely expensive
 		final int nproc = Runtime.getRuntime().availableProcessors();
-		final ExecutorService exec = Utils.newFixedThreadPool(nproc, "AlignTask-createTransformPropertiesTable");
+		final ExecutorService exec = Utils.newLane(nproc, "AlignTask-createTransformPropertiesTable", Scheduler.Priority.BATCH);
 		final List<Future<?>> dtasks = new ArrayList<Future<?>>();
 		final List<Future<?>> ltasks = new ArrayList<Future<?>>();
 		final Thread current = Thread.currentThread();
@@ -656,7 +657,7 @@ A:		for ( final Layer layer : layers )
 		 final Collection<Displayable> vdata, 		/* The VectorData instances to transform along with images. */
 		 final LayerSet target_layerset) 		/* The LayerSet in which the vdata and the transformed images exist. */
 	{
-		final ExecutorService exec = Utils.newFixedThreadPool("AlignTask-transformVectorData");
+		final ExecutorService exec = Utils.newLane(Runtime.getRuntime().availableProcessors(), "AlignTask-transformVectorData", Scheduler.Priority.BATCH);
 
 		try {
 			final Collection<Future<?>> fus = new ArrayList<Future<?>>();
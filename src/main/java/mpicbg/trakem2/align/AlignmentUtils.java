@@ -20,7 +20,6 @@ package mpicbg.trakem2.align;
 import ij.IJ;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
-import ini.trakem2.parallel.ExecutorProvider;
 import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
@@ -32,7 +31,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -126,7 +124,14 @@ final public class AlignmentUtils
 			final int numThreads ) throws ExecutionException, InterruptedException
 	{
         final long sTime = System.currentTimeMillis();
-		final ExecutorService exec = ExecutorProvider.getExecutorService(1.0f / (float)numThreads);
+		final FeatureExtractor extractor = new FeatureExtractor( "extractLayerFeatures", numThreads );
+
+		/* the flat images are read from the mipmaps at the requested scale; rendered at twice the size with quality on */
+		final long n_bytes = FeatureExtractor.estimateBytes(
+				( int )Math.ceil( box.width * scale ),
+				( int )Math.ceil( box.height * scale ),
+				5,
+				siftParam );
 
 		/* extract features for all slices and store them to disk */
 		final AtomicInteger counter = new AtomicInteger( 0 );
@@ -134,10 +139,11 @@ final public class AlignmentUtils
 
         for (final Layer layer : layerRange)
         {
-            siftTasks.add(exec.submit(
+            siftTasks.add(extractor.submit(layer.getProject().getLoader(), n_bytes,
                     new LayerFeatureCallable(layer, box, scale, filter,
                             siftParam, clearCache)));
         }
+		extractor.shutdown();
 
 		/* join */
 		try
@@ -153,7 +159,7 @@ final public class AlignmentUtils
 			Utils.log( "Feature extraction interrupted." );
 			IJError.print( e );
 			siftTasks.clear();
-			//exec.shutdownNow();
+			extractor.shutdownNow();
 			throw e;
 		}
 		catch ( final ExecutionException e )
@@ -161,13 +167,13 @@ final public class AlignmentUtils
 			Utils.log( "Execution exception during feature extraction." );
 			IJError.print( e );
 			siftTasks.clear();
-			//exec.shutdownNow();
+			extractor.shutdownNow();
 			throw e;
 		}
 
 		siftTasks.clear();
         IJ.log("Extracted features in " + (System.currentTimeMillis() - sTime) + "ms");
-		//exec.shutdown();
+		extractor.report();
 	}
 
     private static class LayerFeatureCallable implements Callable<ArrayList<Feature>>, Serializable
@@ -210,9 +216,6 @@ final public class AlignmentUtils
 
             if ( null == fs )
             {
-                /* free memory */
-                layer.getProject().getLoader().releaseAll();
-
                 final FloatArray2DSIFT sift = new FloatArray2DSIFT( siftParam );
                 final SIFT ijSIFT = new SIFT( sift );
                 fs = new ArrayList< Feature >();
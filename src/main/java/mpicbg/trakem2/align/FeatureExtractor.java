@@ -0,0 +1,194 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.align;
+
+import ij.ImagePlus;
+import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.Scheduler;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.Utils;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+
+/**
+ * Runs feature extraction jobs in parallel, admitting each only when the
+ * memory that its images are estimated to need fits, together with that of
+ * the jobs already running, within a memory budget.  Large images therefore
+ * run fewer at a time, instead of all threads opening one and running out of
+ * memory.
+ *
+ * Jobs run as {@link Scheduler.Priority#BATCH} work; a job waiting for memory
+ * gives up its thread to other work.  {@link #report()} logs the features
+ * per second achieved by each thread.
+ */
+final public class FeatureExtractor
+{
+	/** The budget is counted in units of this many bytes, to fit in the permits of a {@link Semaphore}. */
+	static private final long UNIT = 1024 * 1024;
+
+	final private ExecutorService exec;
+	final private Semaphore memory;
+	final private int budget_units;
+	final private String name;
+
+	/** Per thread id: number of features and nanoseconds spent extracting them. */
+	final private Map< Long, long[] > stats = new TreeMap< Long, long[] >();
+
+	/**
+	 * @param name of the threads while they run the jobs
+	 * @param numThreads maximum number of jobs to run at a time
+	 * @param budget maximum number of bytes that the running jobs may need together
+	 */
+	public FeatureExtractor( final String name, final int numThreads, final long budget )
+	{
+		this.name = name;
+		this.exec = ExecutorProvider.getExecutorService( Scheduler.Priority.BATCH, Math.max( 1, numThreads ), name );
+		this.budget_units = ( int )Math.max( 1, Math.min( Integer.MAX_VALUE, budget / UNIT ) );
+		this.memory = new Semaphore( budget_units, true );
+	}
+
+	/** With half of the memory available to the JVM as budget. */
+	public FeatureExtractor( final String name, final int numThreads )
+	{
+		this( name, numThreads, Runtime.getRuntime().maxMemory() / 2 );
+	}
+
+	/**
+	 * Estimate the bytes needed to extract features from an image of
+	 * {@code width} by {@code height} pixels: the image and its float copy,
+	 * the {@code extra} bytes per pixel of any images it is made from, and
+	 * the scale space of the SIFT octaves.
+	 */
+	static public long estimateBytes( final int width, final int height, final int extra, final FloatArray2DSIFT.Param sift )
+	{
+		final long pixels = ( long )width * height;
+		final double s = Math.min( 1.0, ( double )sift.maxOctaveSize / Math.max( 1, Math.max( width, height ) ) );
+		final long octave_pixels = ( long )( pixels * s * s );
+		// Each octave holds steps + 3 blurred and steps + 2 difference images, each octave a quarter of the previous
+		return pixels * ( 1 + 4 + extra ) + octave_pixels * 4 * ( 2 * sift.steps + 5 ) * 4 / 3;
+	}
+
+	/** Estimate the bytes needed to extract features from the transformed and masked image of a {@link Patch}. */
+	static public long estimateBytes( final Patch patch, final FloatArray2DSIFT.Param sift )
+	{
+		final int bytes_per_pixel;
+		switch ( patch.getType() )
+		{
+			case ImagePlus.GRAY16:
+				bytes_per_pixel = 2;
+				break;
+			case ImagePlus.GRAY32:
+			case ImagePlus.COLOR_RGB:
+				bytes_per_pixel = 4;
+				break;
+			default:
+				bytes_per_pixel = 1;
+		}
+		// The image, its outside and alpha masks, and the conversion to 8-bit
+		return estimateBytes( patch.getOWidth(), patch.getOHeight(), bytes_per_pixel + 2, sift );
+	}
+
+	/**
+	 * Run {@code job} once the {@code bytes} it is estimated to need fit within the budget,
+	 * first releasing cached images to make room for them.  The size of the returned
+	 * collection of features is counted towards the throughput of the thread.
+	 */
+	public < C extends Collection< Feature > > Future< C > submit( final Loader loader, final long bytes, final Callable< C > job )
+	{
+		final int units = ( int )Math.min( budget_units, Math.max( 1, ( bytes + UNIT - 1 ) / UNIT ) );
+		return exec.submit( new Callable< C >()
+		{
+			@Override
+			public C call() throws Exception
+			{
+				Scheduler.acquire( memory, units );
+				try
+				{
+					if ( null != loader ) loader.releaseToFit( bytes );
+					final long t0 = System.nanoTime();
+					final C features = job.call();
+					count( null == features ? 0 : features.size(), System.nanoTime() - t0 );
+					return features;
+				}
+				finally
+				{
+					memory.release( units );
+				}
+			}
+		} );
+	}
+
+	private void count( final int n_features, final long nanos )
+	{
+		final Long id = Thread.currentThread().getId();
+		synchronized ( stats )
+		{
+			long[] s = stats.get( id );
+			if ( null == s )
+			{
+				s = new long[ 2 ];
+				stats.put( id, s );
+			}
+			s[ 0 ] += n_features;
+			s[ 1 ] += nanos;
+		}
+	}
+
+	/** Log the number of features extracted per second by each thread, and by all together. */
+	public void report()
+	{
+		final StringBuilder sb = new StringBuilder( name ).append( ": features/sec per thread:" );
+		long n = 0;
+		long nanos = 0;
+		synchronized ( stats )
+		{
+			for ( final Map.Entry< Long, long[] > e : stats.entrySet() )
+			{
+				final long[] s = e.getValue();
+				sb.append( "\n  thread " ).append( e.getKey() ).append( ": " ).append( s[ 0 ] ).append( " features, " )
+				  .append( Utils.cutNumber( s[ 0 ] / Math.max( 1e-9, s[ 1 ] / 1e9 ), 1 ) ).append( "/s" );
+				n += s[ 0 ];
+				nanos += s[ 1 ];
+			}
+		}
+		sb.append( "\n  total: " ).append( n ).append( " features in " ).append( Utils.cutNumber( nanos / 1e9, 1 ) )
+		  .append( " thread-seconds" );
+		Utils.log( sb.toString() );
+	}
+
+	/** Stop accepting jobs; those already submitted run to completion. */
+	public void shutdown()
+	{
+		exec.shutdown();
+	}
+
+	/** Cancel the jobs not yet started and interrupt those running. */
+	public void shutdownNow()
+	{
+		exec.shutdownNow();
+	}
+}
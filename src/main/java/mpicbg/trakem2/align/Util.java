@@ -21,6 +21,7 @@ import ij.process.FloatProcessor;
 import ini.trakem2.Project;
 import ini.trakem2.display.Patch;
 import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.persistence.FeatureStore;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Utils;
 
@@ -81,6 +82,8 @@ public class Util
 	 * Save a {@link Collection} of {@link Feature Features} to the TrakEM2
 	 * project folder.  The saved file contains a key {@link Object} which
 	 * may specify the properties of the {@link Feature} {@link Collection}. 
+	 * The {@link Feature Features} are written to the project's
+	 * {@link FeatureStore}, or to a file of their own if that fails.
 	 *  
 	 * @param project
 	 * @param key
@@ -96,12 +99,16 @@ public class Util
 			final long id,
 			final Collection< Feature > f )
 	{
+		final Loader loader = project.getLoader();
+		final FeatureStore store = FeatureStore.get( loader );
+		if ( null != store && store.putFeatures( key, prefix, id, f ) )
+			return true;
+
 		final ArrayList< Feature > list = new ArrayList< Feature >();
 		list.addAll( f );
 		
 		final String name = prefix == null ? "features" : prefix + ".features";
 		
-		final Loader loader = project.getLoader();
 		final Features fe = new Features( key, list );
 		return loader.serialize(
 				fe,
@@ -118,6 +125,8 @@ public class Util
 	 * <li>the file as identified by project, prefix, and id exists and</li>
 	 * <li>its contained key {@link Object#equals(Object) equals} key.</li>
 	 * </ol>
+	 * The project's {@link FeatureStore} is looked up first; features found
+	 * only in a file of their own are copied into it.
 	 * 
 	 * @param project
 	 * @param key
@@ -131,9 +140,17 @@ public class Util
 			final String prefix,
 			final long id )
 	{
+		final Loader loader = project.getLoader();
+		final FeatureStore store = FeatureStore.get( loader );
+		if ( null != store )
+		{
+			final ArrayList< Feature > features = store.getFeatures( key, prefix, id );
+			if ( null != features )
+				return features;
+		}
+
 		final String name = prefix == null ? "features" : prefix + ".features";
 		
-		final Loader loader = project.getLoader();
 
 		final Object ob = loader.deserialize(
 				new StringBuilder( loader.getUNUIdFolder() )
@@ -147,7 +164,11 @@ public class Util
 				final Features fe = ( Features )ob;
 //				Utils.log( fe.key == null ? "key is null" : key.equals( fe.key ) ? "key is equal" : "key is not equal" );
 				if ( fe.key != null && key.equals( fe.key ) )
+				{
+					if ( null != store )
+						store.putFeatures( key, prefix, id, fe.features );
 					return fe.features;
+				}
 			}
 			catch ( final Exception e )
 			{
@@ -164,6 +185,8 @@ public class Util
 	 * Save a {@link Collection} of {@link PointMatch PointMatches} two-sided.
 	 * Creates two serialization files which is desperately required to clean
 	 * up properly invalid serializations on change of a {@link Patch}.
+	 * The project's {@link FeatureStore} is used instead when possible: it
+	 * stores one side only, indexed by both ids, and flips it when read.
 	 * 
 	 * @param project
 	 * @param key
@@ -181,6 +204,10 @@ public class Util
 			final long id2,
 			final Collection< PointMatch > m )
 	{
+		final FeatureStore store = FeatureStore.get( project.getLoader() );
+		if ( null != store && store.putPointMatches( key, prefix, id1, id2, m ) )
+			return true;
+
 		final ArrayList< PointMatch > list = new ArrayList< PointMatch >();
 		list.addAll( m );
 		final ArrayList< PointMatch > tsil = new ArrayList< PointMatch >();
@@ -210,9 +237,17 @@ public class Util
 			final long id1,
 			final long id2 )
 	{
+		final Loader loader = project.getLoader();
+		final FeatureStore store = FeatureStore.get( loader );
+		if ( null != store )
+		{
+			final ArrayList< PointMatch > pointMatches = store.getPointMatches( key, prefix, id1, id2 );
+			if ( null != pointMatches )
+				return pointMatches;
+		}
+
 		final String name = prefix == null ? "pointmatches" : prefix + ".pointmatches";
 		
-		final Loader loader = project.getLoader();
 		
 		final Object ob = loader.deserialize(
 				new StringBuilder( loader.getUNUIdFolder() )
@@ -225,7 +260,11 @@ public class Util
 			{
 				final PointMatches pm = ( PointMatches )ob;
 				if ( pm.key != null && key.equals( pm.key ) )
+				{
+					if ( null != store )
+						store.putPointMatches( key, prefix, id1, id2, pm.pointMatches );
 					return pm.pointMatches;
+				}
 			}
 			catch ( final Exception e )
 			{
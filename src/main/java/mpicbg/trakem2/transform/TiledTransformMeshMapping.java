@@ -0,0 +1,222 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package mpicbg.trakem2.transform;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.parallel.Scheduler;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.PointMatch;
+
+/**
+ * Maps an image and its alpha mask through a {@link TransformMesh}, like
+ * {@link TransformMeshMapping#createMappedMaskedImageInterpolated}, but
+ * splitting the target into square tiles that are rendered in parallel as
+ * {@link Scheduler.Priority#MIPMAPS} work.  Each tile maps only the triangles
+ * that overlap it and writes only its own pixels, straight into the target
+ * images.
+ *
+ * Tiling saves time, not memory: the targets are the same whole,
+ * full-resolution image, alpha mask and outside mask that
+ * {@link TransformMeshMapping} allocates, all held at once, and the tiles are
+ * not streamed into the mipmap pipeline.  The level 0 mipmap is the full target
+ * itself, and both {@link ini.trakem2.persistence.DownsamplerMipMaps} and the
+ * Gaussian downsampling of {@link ini.trakem2.persistence.FSLoader} read each
+ * level whole to make the next one, so bounding the memory would need those
+ * rewritten to consume bands of rows.
+ */
+final public class TiledTransformMeshMapping
+{
+	/** Side of the square tiles, in target pixels. */
+	static private final int TILE_SIZE = 256;
+
+	private TiledTransformMeshMapping() {}
+
+	/** A triangle of the mesh: its vertices in the target, and the inverse of its affine. */
+	static private final class Triangle
+	{
+		final double[] x = new double[ 3 ], y = new double[ 3 ];
+		/** The target to source transform, as m00, m10, m01, m11, m02, m12. */
+		final double[] inv = new double[ 6 ];
+		/** The target pixels that it may cover, within the target. */
+		final int minX, minY, maxX, maxY;
+
+		Triangle( final ArrayList< PointMatch > pm, final AffineTransform inverse, final int width, final int height )
+		{
+			double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+			for ( int i = 0; i < 3; ++i )
+			{
+				final double[] w = pm.get( i ).getP2().getW();
+				x[ i ] = w[ 0 ];
+				y[ i ] = w[ 1 ];
+				x0 = Math.min( x0, w[ 0 ] );
+				y0 = Math.min( y0, w[ 1 ] );
+				x1 = Math.max( x1, w[ 0 ] );
+				y1 = Math.max( y1, w[ 1 ] );
+			}
+			inverse.getMatrix( inv );
+			minX = Math.max( 0, ( int )Math.floor( x0 ) );
+			minY = Math.max( 0, ( int )Math.floor( y0 ) );
+			maxX = Math.min( width - 1, ( int )Math.ceil( x1 ) );
+			maxY = Math.min( height - 1, ( int )Math.ceil( y1 ) );
+		}
+
+		/** Whether the target pixel x,y is inside or on the edges of the triangle, whatever the orientation of its vertices. */
+		final boolean contains( final double px, final double py )
+		{
+			final double d0 = ( x[ 1 ] - x[ 0 ] ) * ( py - y[ 0 ] ) - ( y[ 1 ] - y[ 0 ] ) * ( px - x[ 0 ] );
+			final double d1 = ( x[ 2 ] - x[ 1 ] ) * ( py - y[ 1 ] ) - ( y[ 2 ] - y[ 1 ] ) * ( px - x[ 1 ] );
+			final double d2 = ( x[ 0 ] - x[ 2 ] ) * ( py - y[ 2 ] ) - ( y[ 0 ] - y[ 2 ] ) * ( px - x[ 2 ] );
+			return ( d0 >= 0 && d1 >= 0 && d2 >= 0 ) || ( d0 <= 0 && d1 <= 0 && d2 <= 0 );
+		}
+	}
+
+	/**
+	 * Map {@code source}, and its {@code alpha} mask if any, into {@code target} and {@code targetAlpha},
+	 * with bilinear interpolation, marking in {@code targetOutside} with 255 the pixels that the mesh covers.
+	 * The targets must have the dimensions of the bounding box of the {@code mesh}, and be blank.
+	 *
+	 * @param mesh read only, and may be shared with other threads.
+	 * @param alpha the alpha mask of {@code source}, or null.
+	 * @param targetAlpha null when {@code alpha} is null.
+	 * @param numThreads maximum number of tiles to render at a time.
+	 */
+	static public void mapInterpolated(
+			final TransformMesh mesh,
+			final ImageProcessor source,
+			final ImageProcessor alpha,
+			final ImageProcessor target,
+			final ByteProcessor targetAlpha,
+			final ByteProcessor targetOutside,
+			final int numThreads ) throws InterruptedException, ExecutionException
+	{
+		final int width = target.getWidth(),
+		          height = target.getHeight();
+		final int nTilesX = ( width + TILE_SIZE - 1 ) / TILE_SIZE,
+		          nTilesY = ( height + TILE_SIZE - 1 ) / TILE_SIZE;
+
+		// File each triangle under every tile that its bounds overlap
+		@SuppressWarnings( "unchecked" )
+		final ArrayList< Triangle >[] tiles = new ArrayList[ nTilesX * nTilesY ];
+		for ( final Map.Entry< AffineModel2D, ArrayList< PointMatch > > e : mesh.getAV().entrySet() )
+		{
+			final AffineTransform inverse;
+			try
+			{
+				inverse = e.getKey().createAffine().createInverse();
+			}
+			catch ( final NoninvertibleTransformException nte )
+			{
+				// A degenerate triangle covers no pixels
+				continue;
+			}
+			final Triangle t = new Triangle( e.getValue(), inverse, width, height );
+			if ( t.minX > t.maxX || t.minY > t.maxY ) continue;
+			for ( int ty = t.minY / TILE_SIZE; ty <= t.maxY / TILE_SIZE; ++ty )
+			{
+				for ( int tx = t.minX / TILE_SIZE; tx <= t.maxX / TILE_SIZE; ++tx )
+				{
+					final int k = ty * nTilesX + tx;
+					if ( null == tiles[ k ] ) tiles[ k ] = new ArrayList< Triangle >();
+					tiles[ k ].add( t );
+				}
+			}
+		}
+
+		final int sourceInterpolation = source.getInterpolationMethod();
+		final int alphaInterpolation = null == alpha ? 0 : alpha.getInterpolationMethod();
+		source.setInterpolationMethod( ImageProcessor.BILINEAR );
+		if ( null != alpha ) alpha.setInterpolationMethod( ImageProcessor.BILINEAR );
+
+		final byte[] outside = ( byte[] )targetOutside.getPixels();
+		final ExecutorService exec = ExecutorProvider.getExecutorService( Scheduler.Priority.MIPMAPS, Math.max( 1, numThreads ), "transformed-image-tiles" );
+		final ArrayList< Future< ? > > fus = new ArrayList< Future< ? > >();
+		try
+		{
+			for ( int k = 0; k < tiles.length; ++k )
+			{
+				if ( null == tiles[ k ] ) continue;
+				final ArrayList< Triangle > triangles = tiles[ k ];
+				final int x0 = ( k % nTilesX ) * TILE_SIZE,
+				          y0 = ( k / nTilesX ) * TILE_SIZE,
+				          x1 = Math.min( width, x0 + TILE_SIZE ) - 1,
+				          y1 = Math.min( height, y0 + TILE_SIZE ) - 1;
+				fus.add( exec.submit( new Callable< Object >()
+				{
+					@Override
+					public Object call()
+					{
+						for ( final Triangle t : triangles )
+						{
+							if ( Thread.currentThread().isInterrupted() ) return null;
+							final double[] m = t.inv;
+							final int ymin = Math.max( y0, t.minY ), ymax = Math.min( y1, t.maxY ),
+							          xmin = Math.max( x0, t.minX ), xmax = Math.min( x1, t.maxX );
+							for ( int y = ymin; y <= ymax; ++y )
+							{
+								for ( int x = xmin; x <= xmax; ++x )
+								{
+									if ( !t.contains( x, y ) ) continue;
+									final double sx = m[ 0 ] * x + m[ 2 ] * y + m[ 4 ],
+									             sy = m[ 1 ] * x + m[ 3 ] * y + m[ 5 ];
+									target.putPixel( x, y, source.getPixelInterpolated( sx, sy ) );
+									if ( null != alpha ) targetAlpha.putPixel( x, y, alpha.getPixelInterpolated( sx, sy ) );
+									outside[ y * width + x ] = ( byte )255;
+								}
+							}
+						}
+						return null;
+					}
+				} ) );
+			}
+		}
+		finally
+		{
+			exec.shutdown();
+		}
+		try
+		{
+			for ( final Future< ? > fu : fus ) fu.get();
+		}
+		catch ( final InterruptedException ie )
+		{
+			for ( final Future< ? > fu : fus ) fu.cancel( true );
+			throw ie;
+		}
+		catch ( final ExecutionException ee )
+		{
+			for ( final Future< ? > fu : fus ) fu.cancel( true );
+			throw ee;
+		}
+		finally
+		{
+			source.setInterpolationMethod( sourceInterpolation );
+			if ( null != alpha ) alpha.setInterpolationMethod( alphaInterpolation );
+		}
+	}
+}
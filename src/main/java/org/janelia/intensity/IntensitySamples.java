@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package org.janelia.intensity;
+
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+
+import java.util.Collection;
+
+import mpicbg.models.PointMatch;
+
+/**
+ * The intensity correspondences between the overlapping pixels of two
+ * patches, grouped by the pair of coefficients of either patch that each
+ * pixel falls into.  All correspondences are stored in three primitive
+ * arrays, those of each coefficient pair in a contiguous range, instead of
+ * as one {@link PointMatch} with two {@link mpicbg.models.Point}s each.
+ */
+public class IntensitySamples
+{
+	/** Number of coefficients of each patch. */
+	final protected int numCoefficients;
+	/** The samples of coefficient pair k are those from offsets[ k ] to offsets[ k + 1 ] - 1. */
+	final protected int[] offsets;
+	/** Intensity in the first patch, in the second patch, and weight of each sample. */
+	final protected float[] p, q;
+	final protected double[] w;
+
+	/**
+	 * Collect the pixels where both patches have a coefficient and a
+	 * non-zero weight, as rendered by {@link Render}.  Coefficient labels
+	 * start at 1; a label of 0 means outside the patch.
+	 *
+	 * @param numCoefficients number of coefficients of each patch, that is the square of the coefficient resolution
+	 */
+	public IntensitySamples(
+			final int numCoefficients,
+			final FloatProcessor pixels1,
+			final FloatProcessor weights1,
+			final ColorProcessor coefficients1,
+			final FloatProcessor pixels2,
+			final FloatProcessor weights2,
+			final ColorProcessor coefficients2 )
+	{
+		this.numCoefficients = numCoefficients;
+		final int n = pixels1.getWidth() * pixels1.getHeight();
+		final float[] w1s = ( float[] )weights1.getPixels();
+		final float[] w2s = ( float[] )weights2.getPixels();
+
+		/* count the samples of each coefficient pair */
+		offsets = new int[ numCoefficients * numCoefficients + 1 ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final int k = pairIndex( coefficients1.get( i ), coefficients2.get( i ), w1s[ i ], w2s[ i ] );
+			if ( k >= 0 )
+				++offsets[ k + 1 ];
+		}
+		for ( int k = 1; k < offsets.length; ++k )
+			offsets[ k ] += offsets[ k - 1 ];
+
+		/* fill each range in pixel order */
+		final int size = offsets[ offsets.length - 1 ];
+		p = new float[ size ];
+		q = new float[ size ];
+		w = new double[ size ];
+		final int[] next = offsets.clone();
+		final float[] p1s = ( float[] )pixels1.getPixels();
+		final float[] p2s = ( float[] )pixels2.getPixels();
+		for ( int i = 0; i < n; ++i )
+		{
+			final int k = pairIndex( coefficients1.get( i ), coefficients2.get( i ), w1s[ i ], w2s[ i ] );
+			if ( k >= 0 )
+			{
+				final int j = next[ k ]++;
+				p[ j ] = p1s[ i ];
+				q[ j ] = p2s[ i ];
+				w[ j ] = ( double )w1s[ i ] * w2s[ i ];
+			}
+		}
+	}
+
+	/** The index of the coefficient pair of a pixel, or -1 if it is not a sample. */
+	final private int pairIndex( final int c1, final int c2, final float w1, final float w2 )
+	{
+		if ( c1 > 0 && c2 > 0 && w1 > 0 && w2 > 0 )
+			return ( c1 - 1 ) + ( c2 - 1 ) * numCoefficients;
+		return -1;
+	}
+
+	final protected int pairIndex( final int i, final int j )
+	{
+		return i + j * numCoefficients;
+	}
+
+	/** The number of samples in coefficient {@code i} of the first patch and coefficient {@code j} of the second. */
+	public int size( final int i, final int j )
+	{
+		final int k = pairIndex( i, j );
+		return offsets[ k + 1 ] - offsets[ k ];
+	}
+
+	/** The total number of samples. */
+	public int size()
+	{
+		return p.length;
+	}
+
+	/** Filter the samples of coefficient {@code i} of the first patch and coefficient {@code j} of the second. */
+	public void filter( final int i, final int j, final SampleFilter filter, final Collection< PointMatch > inliers )
+	{
+		final int k = pairIndex( i, j );
+		filter.filter( p, q, w, offsets[ k ], offsets[ k + 1 ] - offsets[ k ], inliers );
+	}
+}
@@ -63,7 +63,7 @@ public class MatchIntensities implements TPlugIn
 		final private Rectangle roi;
 		final private ValuePair< Patch, Patch > patchPair;
 		final private HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles;
-		final private PointMatchFilter filter;
+		final private SampleFilter filter;
 		final private double scale;
 		final private int numCoefficients;
 
@@ -71,7 +71,7 @@ public class MatchIntensities implements TPlugIn
 				final Rectangle roi,
 				final ValuePair< Patch, Patch > patchPair,
 				final HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles,
-				final PointMatchFilter filter,
+				final SampleFilter filter,
 				final double scale,
 				final int numCoefficients )
 		{
@@ -100,7 +100,6 @@ public class MatchIntensities implements TPlugIn
 
 			final int w = ( int ) ( box.width * scale + 0.5 );
 			final int h = ( int ) ( box.height * scale + 0.5 );
-			final int n = w * h;
 
 			final FloatProcessor pixels1 = new FloatProcessor( w, h );
 			final FloatProcessor weights1 = new FloatProcessor( w, h );
@@ -113,57 +112,28 @@ public class MatchIntensities implements TPlugIn
 			Render.render( p2, numCoefficients, numCoefficients, pixels2, weights2, coefficients2, box.x, box.y, scale );
 
 			/*
-			 * generate a matrix of all coefficients in p1 to all
-			 * coefficients in p2 to store matches
+			 * collect the samples of all coefficients in p1 to all
+			 * coefficients in p2 in primitive arrays
 			 */
-			final ArrayList< ArrayList< PointMatch > > list = new ArrayList< ArrayList< PointMatch > >();
-			for ( int i = 0; i < numCoefficients * numCoefficients * numCoefficients * numCoefficients; ++i )
+			final IntensitySamples samples = new IntensitySamples( numCoefficients * numCoefficients, pixels1, weights1, coefficients1, pixels2, weights2, coefficients2 );
+
+			/* filter matches of each pair of coefficients */
+			final int numPairs = numCoefficients * numCoefficients * numCoefficients * numCoefficients;
+			final ArrayList< ArrayList< PointMatch > > list = new ArrayList< ArrayList< PointMatch > >( numPairs );
+			for ( int i = 0; i < numPairs; ++i )
 				list.add( new ArrayList< PointMatch >() );
 			final ListImg< ArrayList< PointMatch > > matrix = new ListImg< ArrayList< PointMatch > >( list, numCoefficients * numCoefficients, numCoefficients * numCoefficients );
 			final ListRandomAccess< ArrayList< PointMatch > > ra = matrix.randomAccess();
-
-			/*
-			 * iterate over all pixels and feed matches into the match
-			 * matrix
-			 */
-			for ( int i = 0; i < n; ++i )
+			for ( int i = 0; i < numCoefficients * numCoefficients; ++i )
 			{
-				final int c1 = coefficients1.get( i );
-				if ( c1 > 0 )
+				ra.setPosition( i, 0 );
+				for ( int j = 0; j < numCoefficients * numCoefficients; ++j )
 				{
-					final int c2 = coefficients2.get( i );
-					if ( c2 > 0 )
-					{
-						final double w1 = weights1.getf( i );
-						if ( w1 > 0 )
-						{
-							final double w2 = weights2.getf( i );
-							if ( w2 > 0 )
-							{
-								final double p = pixels1.getf( i );
-								final double q = pixels2.getf( i );
-								final PointMatch pq = new PointMatch( new Point( new double[] { p } ), new Point( new double[] { q } ), w1 * w2 );
-
-								/* first label is 1 */
-								ra.setPosition( c1 - 1, 0 );
-								ra.setPosition( c2 - 1, 1 );
-								ra.get().add( pq );
-							}
-						}
-					}
+					ra.setPosition( j, 1 );
+					samples.filter( i, j, filter, ra.get() );
 				}
 			}
 
-			/* filter matches */
-			final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
-			for ( final ArrayList< PointMatch > candidates : matrix )
-			{
-				inliers.clear();
-				filter.filter( candidates, inliers );
-				candidates.clear();
-				candidates.addAll( inliers );
-			}
-
 			/* get the coefficient tiles of p2 */
 			final ArrayList< Tile< ? > > p2CoefficientsTiles = coefficientsTiles.get( p2 );
 
@@ -385,7 +355,7 @@ public class MatchIntensities implements TPlugIn
 		final int lastLayerIndex = layerset.getLayerIndex( layers.get( layers.size() - 1 ).getId() );
 
 		// final PointMatchFilter filter = new RansacRegressionFilter();
-		final PointMatchFilter filter = new RansacRegressionReduceFilter();
+		final SampleFilter filter = new RansacRegressionReduceFilter();
 
 		/* collect patches */
 		Utils.log( "Collecting patches ... " );
@@ -3,9 +3,11 @@
  */
 package org.janelia.intensity;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import mpicbg.models.AffineModel1D;
 import mpicbg.models.Model;
@@ -16,7 +18,7 @@ import mpicbg.models.PointMatch;
  * @author Stephan Saalfeld saalfelds@janelia.hhmi.org
  *
  */
-public class RansacRegressionReduceFilter implements PointMatchFilter
+public class RansacRegressionReduceFilter implements PointMatchFilter, SampleFilter
 {
 	final protected Model< ? > model = new AffineModel1D();
 	final protected int iterations = 1000;
@@ -25,6 +27,9 @@ public class RansacRegressionReduceFilter implements PointMatchFilter
 	final protected int minNumInliers = 10;
 	final protected double maxTrust = 3.0;
 
+	/** Seed of the random samples of {@link #filter(float[], float[], double[], int, int, Collection)}, as that of mpicbg's models. */
+	final static protected long SEED = 69997;
+
 	final static protected double[] minMax( final Iterable< PointMatch > matches )
 	{
 		final Iterator< PointMatch > iter = matches.iterator();
@@ -80,4 +85,187 @@ public class RansacRegressionReduceFilter implements PointMatchFilter
 		}
 	}
 
+	/**
+	 * Same as {@link #filter(List, Collection)} with an {@link AffineModel1D},
+	 * on the samples {@code p[i]} &rarr; {@code q[i]} with weight {@code w[i]}
+	 * for {@code offset} &le; i &lt; {@code offset + length}: RANSAC,
+	 * robust regression of its inliers, and reduction of the inliers to two
+	 * matches at their smallest and largest {@code p}.  The samples are
+	 * tracked by index, no {@link PointMatch} is created for them, and the
+	 * model is local to the call, so that threads can share this filter.
+	 * The random samples of RANSAC are drawn from a generator seeded anew
+	 * for each call, so that results do not depend on the order in which
+	 * threads run.
+	 */
+	@Override
+	public void filter( final float[] p, final float[] q, final double[] w, final int offset, final int length, final Collection< PointMatch > inliers )
+	{
+		inliers.clear();
+		/* AffineModel1D needs two matches */
+		if ( length < 2 )
+			return;
+
+		final double[] ab = new double[ 2 ];
+		final int[] best = new int[ length ];
+		final int numBest = ransac( p, q, w, offset, length, ab, best );
+		if ( numBest == 0 )
+			return;
+		final int numInliers = robustRegression( p, q, w, best, numBest, ab );
+		if ( numInliers < 0 || !fit( p, q, w, best, numInliers, ab ) )
+			return;
+
+		double min = p[ best[ 0 ] ], max = min;
+		for ( int k = 1; k < numInliers; ++k )
+		{
+			final double x = p[ best[ k ] ];
+			if ( x < min )
+				min = x;
+			else if ( x > max )
+				max = x;
+		}
+
+		final Point p1 = new Point( new double[]{ min } );
+		final Point p2 = new Point( new double[]{ max } );
+		p1.getW()[ 0 ] = ab[ 0 ] * min + ab[ 1 ];
+		p2.getW()[ 0 ] = ab[ 0 ] * max + ab[ 1 ];
+		inliers.add( new PointMatch( p1, new Point( p1.getW().clone() ) ) );
+		inliers.add( new PointMatch( p2, new Point( p2.getW().clone() ) ) );
+	}
+
+	/**
+	 * Weighted least squares fit of q = a * p + b to the samples listed in
+	 * {@code indices}, into {@code ab}.
+	 *
+	 * @return false if the samples do not define a model
+	 */
+	final static protected boolean fit( final float[] p, final float[] q, final double[] w, final int[] indices, final int n, final double[] ab )
+	{
+		double ws = 0, pc = 0, qc = 0;
+		for ( int k = 0; k < n; ++k )
+		{
+			final int i = indices[ k ];
+			ws += w[ i ];
+			pc += w[ i ] * p[ i ];
+			qc += w[ i ] * q[ i ];
+		}
+		pc /= ws;
+		qc /= ws;
+		double pp = 0, pq = 0;
+		for ( int k = 0; k < n; ++k )
+		{
+			final int i = indices[ k ];
+			final double dp = p[ i ] - pc;
+			pp += w[ i ] * dp * dp;
+			pq += w[ i ] * dp * ( q[ i ] - qc );
+		}
+		if ( pp == 0 )
+			return false;
+		ab[ 0 ] = pq / pp;
+		ab[ 1 ] = qc - ab[ 0 ] * pc;
+		return true;
+	}
+
+	/**
+	 * List in {@code inliers} the samples from {@code offset} to
+	 * {@code offset + length - 1} that the model {@code ab} maps to within
+	 * {@code maxEpsilon}.
+	 *
+	 * @return the number of inliers
+	 */
+	final protected int test( final float[] p, final float[] q, final int offset, final int length, final double[] ab, final int[] inliers )
+	{
+		int n = 0;
+		for ( int i = offset; i < offset + length; ++i )
+			if ( Math.abs( ab[ 0 ] * p[ i ] + ab[ 1 ] - q[ i ] ) < maxEpsilon )
+				inliers[ n++ ] = i;
+		return n;
+	}
+
+	/**
+	 * RANSAC as in mpicbg's models: fit to two random samples, then refit to
+	 * the inliers until their number stops growing, and keep the model with
+	 * the largest inlier ratio.
+	 *
+	 * @return the number of inliers of the best model, listed in {@code best}, and the model in {@code ab}; 0 if none
+	 */
+	final protected int ransac( final float[] p, final float[] q, final double[] w, final int offset, final int length, final double[] ab, final int[] best )
+	{
+		final Random rnd = new Random( SEED );
+		final int[] sample = new int[ 2 ];
+		final int[] temp = new int[ length ];
+		final double[] m = new double[ 2 ];
+		double bestCost = Double.MAX_VALUE;
+		int numBest = 0;
+		A: for ( int iteration = 0; iteration < iterations; ++iteration )
+		{
+			sample[ 0 ] = offset + ( int )( rnd.nextDouble() * length );
+			do
+				sample[ 1 ] = offset + ( int )( rnd.nextDouble() * length );
+			while ( sample[ 1 ] == sample[ 0 ] );
+
+			if ( !fit( p, q, w, sample, 2, m ) )
+				continue;
+
+			int numTemp = test( p, q, offset, length, m, temp );
+			/* the first test requires as many inliers as the model needs matches */
+			boolean isGood = numTemp >= 2 && numTemp > minInlierRatio * length;
+			int numInliers = 0;
+			while ( isGood && numInliers < numTemp )
+			{
+				numInliers = numTemp;
+				if ( !fit( p, q, w, temp, numTemp, m ) )
+					continue A;
+				numTemp = test( p, q, offset, length, m, temp );
+				isGood = numTemp >= minNumInliers && numTemp > minInlierRatio * length;
+			}
+			final double cost = Math.max( 0.0, Math.min( 1.0, 1.0 - ( double )numTemp / length ) );
+			if ( isGood && cost < bestCost && numTemp >= minNumInliers )
+			{
+				bestCost = cost;
+				ab[ 0 ] = m[ 0 ];
+				ab[ 1 ] = m[ 1 ];
+				System.arraycopy( temp, 0, best, 0, numTemp );
+				numBest = numTemp;
+			}
+		}
+		return numBest;
+	}
+
+	/**
+	 * Robust regression as in mpicbg's models: refit to the samples in
+	 * {@code inliers} and drop those farther than {@link #maxTrust} times the
+	 * median distance, until none is dropped.
+	 *
+	 * @return the number of remaining inliers, listed first in {@code inliers}, or -1 if too few or ill-defined
+	 */
+	final protected int robustRegression( final float[] p, final float[] q, final double[] w, final int[] inliers, final int n, final double[] ab )
+	{
+		final double[] d = new double[ n ];
+		final double[] sorted = new double[ n ];
+		int numInliers = n;
+		int numTemp;
+		do
+		{
+			numTemp = numInliers;
+			if ( !fit( p, q, w, inliers, numTemp, ab ) )
+				return -1;
+			for ( int k = 0; k < numTemp; ++k )
+			{
+				final int i = inliers[ k ];
+				d[ k ] = Math.abs( ab[ 0 ] * p[ i ] + ab[ 1 ] - q[ i ] );
+			}
+			System.arraycopy( d, 0, sorted, 0, numTemp );
+			Arrays.sort( sorted, 0, numTemp );
+			final double median = numTemp % 2 == 0 ?
+					( sorted[ numTemp / 2 - 1 ] + sorted[ numTemp / 2 ] ) * 0.5 :
+					sorted[ numTemp / 2 ];
+			final double t = median * maxTrust;
+			numInliers = 0;
+			for ( int k = 0; k < numTemp; ++k )
+				if ( d[ k ] <= t )
+					inliers[ numInliers++ ] = inliers[ k ];
+		}
+		while ( numTemp > numInliers );
+		return numTemp < minNumInliers ? -1 : numInliers;
+	}
 }
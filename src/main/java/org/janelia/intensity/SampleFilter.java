@@ -0,0 +1,30 @@
+/**
+ *
+ */
+package org.janelia.intensity;
+
+import java.util.Collection;
+
+import mpicbg.models.PointMatch;
+
+/**
+ * Filters intensity correspondences stored in primitive arrays, as
+ * collected by {@link IntensitySamples}, instead of one {@link PointMatch}
+ * per sample as for a {@link PointMatchFilter}.
+ */
+public interface SampleFilter
+{
+	/**
+	 * Filter the correspondences {@code p[i]} &rarr; {@code q[i]} with
+	 * weight {@code w[i]}, for {@code offset} &le; i &lt;
+	 * {@code offset + length}, adding the matches that represent the
+	 * inliers to {@code inliers}.
+	 */
+	public void filter(
+			final float[] p,
+			final float[] q,
+			final double[] w,
+			final int offset,
+			final int length,
+			final Collection< PointMatch > inliers );
+}
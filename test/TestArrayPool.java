@@ -0,0 +1,109 @@
+package test;
+
+import ini.trakem2.utils.ArrayPool;
+
+/** Test that {@link ArrayPool} hands out arrays of the exact length when asked to, and otherwise reuses
+ * any released array of the same size class that is long enough, both from the magazine of a thread
+ * and from the shared depot. */
+public class TestArrayPool
+{
+	static public final void main(String[] args) {
+		final long budget = ArrayPool.getBudget();
+		try {
+			ArrayPool.clear();
+			ArrayPool.setBudget(64L * 1024 * 1024);
+			int nErrors = 0;
+
+			// Small arrays, from the magazine of this thread
+			final byte[] b = ArrayPool.takeBytes(100);
+			ArrayPool.give(b);
+			final byte[] b1 = ArrayPool.takeBytes(99);
+			if (99 != b1.length || b1 == b) {
+				System.out.println("ERROR: exact byte[99] from a byte[100]");
+				++nErrors;
+			}
+			final byte[] b2 = ArrayPool.takeBytesAtLeast(99);
+			if (b2 != b) {
+				System.out.println("ERROR: byte[100] not reused for at least 99");
+				++nErrors;
+			}
+			ArrayPool.give(b2);
+			final byte[] b3 = ArrayPool.takeBytesAtLeast(101);
+			if (b3 == b) {
+				System.out.println("ERROR: byte[100] reused for at least 101");
+				++nErrors;
+			}
+			ArrayPool.give(b3);
+			final byte[] b4 = ArrayPool.takeBytesAtLeast(50);
+			if (b4 == b) {
+				System.out.println("ERROR: byte[100] of a larger size class reused for at least 50");
+				++nErrors;
+			}
+
+			// Large arrays, from the depot, also for other threads
+			final int[] f = ArrayPool.takeInts(300000);
+			ArrayPool.give(f);
+			final int[][] other = new int[1][];
+			final Thread t = new Thread() {
+				public void run() {
+					other[0] = ArrayPool.takeIntsAtLeast(270000);
+				}
+			};
+			t.start();
+			t.join();
+			if (other[0] != f) {
+				System.out.println("ERROR: int[300000] not reused by another thread for at least 270000");
+				++nErrors;
+			}
+			ArrayPool.give(f);
+			if (f == ArrayPool.takeInts(270000)) {
+				System.out.println("ERROR: exact int[270000] from an int[300000]");
+				++nErrors;
+			}
+			// Of two that fit, the shortest
+			final int[] g = ArrayPool.takeInts(280000);
+			ArrayPool.give(g);
+			if (g != ArrayPool.takeIntsAtLeast(270000) || f != ArrayPool.takeIntsAtLeast(270000)) {
+				System.out.println("ERROR: int[280000] and then int[300000] not reused for at least 270000");
+				++nErrors;
+			}
+
+			// Arrays of each type are pooled apart
+			final float[] h = ArrayPool.takeFloats(300000);
+			ArrayPool.give(h);
+			if (300000 != ArrayPool.takeIntsAtLeast(300000).length || h != ArrayPool.takeFloatsAtLeast(300000)) {
+				System.out.println("ERROR: arrays of different types mixed");
+				++nErrors;
+			}
+
+			// Over the budget, arrays are not kept
+			ArrayPool.clear();
+			ArrayPool.setBudget(1024);
+			final int[] big = ArrayPool.takeInts(100000);
+			ArrayPool.give(big);
+			if (big == ArrayPool.takeIntsAtLeast(100000)) {
+				System.out.println("ERROR: int[100000] over the budget reused");
+				++nErrors;
+			}
+
+			// Nothing is kept after clear()
+			ArrayPool.setBudget(64L * 1024 * 1024);
+			final byte[] c = ArrayPool.takeBytes(100);
+			ArrayPool.give(c);
+			ArrayPool.clear();
+			if (c == ArrayPool.takeBytesAtLeast(100)) {
+				System.out.println("ERROR: byte[100] reused after clear()");
+				++nErrors;
+			}
+
+			System.out.println(ArrayPool.getStats());
+			System.out.println("Number of errors: " + nErrors);
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			ArrayPool.clear();
+			ArrayPool.setBudget(budget);
+		}
+	}
+}
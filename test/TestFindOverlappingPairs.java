@@ -0,0 +1,62 @@
+package test;
+
+import ini.trakem2.imaging.StitchingTEM;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Random;
+
+/** Test that {@link StitchingTEM#findOverlappingPairs(Rectangle[])} finds the same pairs, in the same order,
+ * as testing every pair of boxes. */
+public class TestFindOverlappingPairs
+{
+	static public final void main(String[] args) {
+		try {
+			final Random rnd = new Random(4321);
+			int nErrors = 0;
+			for (int trial=0; trial<20; ++trial) {
+				// A grid of tiles with some jitter, plus a few boxes of any size and some empty ones
+				final int side = 1 + rnd.nextInt(12);
+				final Rectangle[] boxes = new Rectangle[side * side + 10];
+				int k = 0;
+				for (int row=0; row<side; ++row) {
+					for (int col=0; col<side; ++col) {
+						boxes[k++] = new Rectangle(col * 900 - 5000 + rnd.nextInt(200), row * 900 - 3000 + rnd.nextInt(200), 1024, 1024);
+					}
+				}
+				while (k < boxes.length) {
+					final int w = rnd.nextInt(10) < 2 ? 0 : 1 + rnd.nextInt(4000);
+					boxes[k++] = new Rectangle(rnd.nextInt(side * 900 + 2000) - 6000, rnd.nextInt(side * 900 + 2000) - 4000, w, 1 + rnd.nextInt(4000));
+				}
+
+				// Reference: all pairs
+				final ArrayList<int[]> p1 = new ArrayList<int[]>();
+				for (int i=0; i<boxes.length; ++i) {
+					for (int j=i+1; j<boxes.length; ++j) {
+						if (boxes[i].intersects(boxes[j])) p1.add(new int[]{i, j});
+					}
+				}
+
+				// To compare with: the grid
+				final ArrayList<int[]> p2 = StitchingTEM.findOverlappingPairs(boxes);
+
+				if (p1.size() != p2.size()) {
+					System.out.println("ERROR in trial " + trial + ": " + p1.size() + " pairs != " + p2.size());
+					++nErrors;
+					continue;
+				}
+				for (int i=0; i<p1.size(); ++i) {
+					if (p1.get(i)[0] != p2.get(i)[0] || p1.get(i)[1] != p2.get(i)[1]) {
+						System.out.println("ERROR in trial " + trial + ", pair " + i + ": " + p1.get(i)[0] + "," + p1.get(i)[1] + " != " + p2.get(i)[0] + "," + p2.get(i)[1]);
+						++nErrors;
+					}
+				}
+			}
+
+			System.out.println("Number of differences between all pairs and the grid: " + nErrors);
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
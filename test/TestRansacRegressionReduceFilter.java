@@ -0,0 +1,83 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+import org.janelia.intensity.RansacRegressionReduceFilter;
+
+/** Test that the {@link org.janelia.intensity.SampleFilter} path of {@link RansacRegressionReduceFilter},
+ * on primitive arrays, finds the same two matches as its {@link org.janelia.intensity.PointMatchFilter} path. */
+public class TestRansacRegressionReduceFilter
+{
+	static public final void main(String[] args) {
+		try {
+			final Random rnd = new Random(1234);
+			final int offset = 100,
+			          length = 500;
+			final float[] p = new float[offset + length + 100];
+			final float[] q = new float[p.length];
+			final double[] w = new double[p.length];
+			// Samples outside of the range tested are junk that must be ignored
+			for (int i=0; i<p.length; ++i) {
+				p[i] = rnd.nextFloat();
+				q[i] = rnd.nextFloat() * 100;
+				w[i] = 1;
+			}
+			// 70% inliers near q = 0.8 * p + 0.1, and outliers far from it
+			for (int i=offset; i<offset + length; ++i) {
+				p[i] = rnd.nextFloat();
+				final double line = 0.8 * p[i] + 0.1;
+				if (rnd.nextDouble() < 0.7) {
+					q[i] = (float)(line + (rnd.nextDouble() - 0.5) * 0.02);
+				} else {
+					q[i] = (float)(line + (rnd.nextBoolean() ? 1 : -1) * (1 + rnd.nextDouble() * 5));
+				}
+				w[i] = 0.5 + rnd.nextDouble() * 0.5;
+			}
+
+			final RansacRegressionReduceFilter filter = new RansacRegressionReduceFilter();
+			final String[] names = new String[]{"inliers and outliers", "too few samples", "no samples"};
+			final int[] lengths = new int[]{length, 1, 0};
+			int nErrors = 0;
+
+			for (int t=0; t<names.length; ++t) {
+				// Reference: one PointMatch per sample
+				final ArrayList<PointMatch> candidates = new ArrayList<PointMatch>();
+				for (int i=offset; i<offset + lengths[t]; ++i) {
+					candidates.add(new PointMatch(new Point(new double[]{p[i]}), new Point(new double[]{q[i]}), w[i]));
+				}
+				final ArrayList<PointMatch> m1 = new ArrayList<PointMatch>();
+				filter.filter(candidates, m1);
+
+				// To compare with: the samples in primitive arrays
+				final ArrayList<PointMatch> m2 = new ArrayList<PointMatch>();
+				filter.filter(p, q, w, offset, lengths[t], m2);
+
+				System.out.println(names[t] + ": " + m1.size() + " matches");
+				if (m1.size() != m2.size()) {
+					System.out.println("ERROR with " + names[t] + ": " + m1.size() + " matches != " + m2.size());
+					++nErrors;
+					continue;
+				}
+				for (int k=0; k<m1.size(); ++k) {
+					final double p1 = m1.get(k).getP1().getL()[0],
+					             p2 = m2.get(k).getP1().getL()[0],
+					             q1 = m1.get(k).getP2().getL()[0],
+					             q2 = m2.get(k).getP2().getL()[0];
+					if (Math.abs(p1 - p2) > 1e-5 || Math.abs(q1 - q2) > 1e-5) {
+						System.out.println("ERROR with " + names[t] + ", match " + k + ": " + p1 + " -> " + q1 + " != " + p2 + " -> " + q2);
+						++nErrors;
+					}
+				}
+			}
+
+			System.out.println("Number of differences between the PointMatch and the sample paths: " + nErrors);
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package test;
+
+import ini.trakem2.ControlWindow;
+import ini.trakem2.Project;
+import ini.trakem2.display.Bucket;
+import ini.trakem2.display.DLabel;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.SpatialIndex;
+
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+/** Test that the {@link ini.trakem2.display.RTree} finds the same objects, in the same order,
+ * as the grid of {@link Bucket}, before and after moving some of them. */
+public class TestSpatialIndex
+{
+	static public final void main(String[] args) {
+		ControlWindow.setGUIEnabled(false);
+		Project project = null;
+		File dir = null;
+		try {
+			dir = File.createTempFile("spatial", "index");
+			dir.delete();
+			dir.mkdir();
+			project = Project.newFSProject("blank", null, dir.getAbsolutePath() + "/", false);
+			final LayerSet ls = project.getRootLayerSet();
+			final Layer layer = new Layer(project, 0, 1, ls);
+			ls.add(layer);
+			final int w = (int)ls.getLayerWidth(),
+			          h = (int)ls.getLayerHeight();
+
+			// Boxes of many sizes, some of them overlapping, all within the layer
+			final Random rnd = new Random(6007);
+			final ArrayList<DLabel> labels = new ArrayList<DLabel>();
+			for (int i=0; i<2000; ++i) {
+				final int bw = 1 + rnd.nextInt(rnd.nextInt(10) < 8 ? 200 : w / 4),
+				          bh = 1 + rnd.nextInt(rnd.nextInt(10) < 8 ? 200 : h / 4);
+				final DLabel label = new DLabel(project, project.getLoader().getNextId(), "label " + i, bw, bh, DLabel.TEXT, "SansSerif", Font.PLAIN, 12, false,
+						new AffineTransform(1, 0, 0, 1, rnd.nextInt(w - bw), rnd.nextInt(h - bh)));
+				layer.add(label, false);
+				labels.add(label);
+			}
+
+			int nErrors = 0;
+			for (int round=0; round<2; ++round) {
+				project.setProperty("spatial_index", "buckets");
+				final SpatialIndex buckets = Bucket.createIndex(layer, layer);
+				project.setProperty("spatial_index", "rtree");
+				final SpatialIndex rtree = Bucket.createIndex(layer, layer);
+
+				if (1 == round) {
+					// Move a tenth of the labels, and reindex them
+					for (int i=0; i<labels.size(); i+=10) {
+						final DLabel label = labels.get(i);
+						final Rectangle b = label.getBoundingBox();
+						label.setLocation(rnd.nextInt(w - b.width), rnd.nextInt(h - b.height));
+						buckets.updatePosition(label, layer);
+						rtree.updatePosition(label, layer);
+					}
+				}
+
+				for (int i=0; i<1000; ++i) {
+					final int rw = 1 + rnd.nextInt(w / 4),
+					          rh = 1 + rnd.nextInt(h / 4);
+					final Rectangle r = new Rectangle(rnd.nextInt(w - rw), rnd.nextInt(h - rh), rw, rh);
+					final ArrayList<Displayable> r1 = new ArrayList<Displayable>(buckets.find(r, layer, false)),
+					                             r2 = new ArrayList<Displayable>(rtree.find(r, layer, false));
+					if (!r1.equals(r2)) {
+						System.out.println("ERROR in round " + round + " with " + r + ": " + r1.size() + " found != " + r2.size());
+						++nErrors;
+					}
+					final ArrayList<Displayable> c1 = new ArrayList<Displayable>(buckets.find(DLabel.class, r, layer, false, false)),
+					                             c2 = new ArrayList<Displayable>(rtree.find(DLabel.class, r, layer, false, false));
+					if (!c1.equals(c2)) {
+						System.out.println("ERROR in round " + round + " with DLabel in " + r + ": " + c1.size() + " found != " + c2.size());
+						++nErrors;
+					}
+					final double px = rnd.nextDouble() * w,
+					             py = rnd.nextDouble() * h;
+					final ArrayList<Displayable> p1 = new ArrayList<Displayable>(buckets.find(px, py, layer, false)),
+					                             p2 = new ArrayList<Displayable>(rtree.find(px, py, layer, false));
+					if (!p1.equals(p2)) {
+						System.out.println("ERROR in round " + round + " at " + px + "," + py + ": " + p1.size() + " found != " + p2.size());
+						++nErrors;
+					}
+				}
+			}
+
+			System.out.println("Number of differences between the buckets and the R-tree: " + nErrors);
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			if (null != project) {
+				project.getLoader().setChanged(false);
+				project.destroy();
+			}
+			if (null != dir) {
+				// The storage folder and all within, deepest first
+				final ArrayList<File> fs = new ArrayList<File>();
+				fs.add(dir);
+				for (int i=0; i<fs.size(); ++i) {
+					final File[] children = fs.get(i).listFiles();
+					if (null != children) for (final File f : children) fs.add(f);
+				}
+				for (int i=fs.size()-1; i>-1; --i) fs.get(i).delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package test;
+
+import ini.trakem2.analysis.TriangularScores;
+
+import java.io.File;
+
+/** Test that {@link TriangularScores} in a file read back the scores and done tiles they were written with,
+ * and start anew when reopened for another comparison. */
+public class TestTriangularScores
+{
+	static public final void main(String[] args) {
+		File file = null;
+		try {
+			final int n = 7,
+			          m = 3;
+			file = File.createTempFile("scores", ".bin");
+			int nErrors = 0;
+
+			// Write all scores, but mark only the tile of the first block as done
+			TriangularScores ts = new TriangularScores(file, n, m, 42);
+			if (m * (m + 1) / 2 != ts.countPending()) {
+				System.out.println("ERROR: a new file has " + ts.countPending() + " tiles pending");
+				++nErrors;
+			}
+			for (int i=0; i<n; ++i) {
+				for (int j=i+1; j<n; ++j) {
+					ts.set(i, j, i * 100 + j + 0.5f);
+				}
+			}
+			ts.setDone(ts.tile(0, 0), 0, 2);
+			ts.close();
+
+			// Reopen for the same comparison
+			ts = new TriangularScores(file, n, m, 42);
+			if (!ts.isDone(ts.tile(0, 0)) || m * (m + 1) / 2 - 1 != ts.countPending()) {
+				System.out.println("ERROR with the done tiles: " + ts.countPending() + " pending");
+				++nErrors;
+			}
+			final float[][] matrix = ts.toMatrix();
+			for (int i=0; i<n; ++i) {
+				if (0 != ts.get(i, i) || 0 != matrix[i][i]) {
+					System.out.println("ERROR with the diagonal at " + i);
+					++nErrors;
+				}
+				for (int j=i+1; j<n; ++j) {
+					final float score = i * 100 + j + 0.5f;
+					if (score != ts.get(i, j) || score != ts.get(j, i) || score != matrix[i][j] || score != matrix[j][i]) {
+						System.out.println("ERROR with score " + i + "," + j + ": " + ts.get(i, j) + " != " + score);
+						++nErrors;
+					}
+				}
+			}
+			if ((n - 2) * 100 + n - 1 + 0.5f != ts.max()) {
+				System.out.println("ERROR with max: " + ts.max());
+				++nErrors;
+			}
+			ts.close();
+
+			// Reopen for another comparison: starts anew
+			ts = new TriangularScores(file, n, m, 43);
+			if (m * (m + 1) / 2 != ts.countPending() || 0 != ts.max()) {
+				System.out.println("ERROR: another key found " + ts.countPending() + " tiles pending and a max of " + ts.max());
+				++nErrors;
+			}
+			ts.close();
+
+			// In memory
+			ts = new TriangularScores(n, m, 42);
+			for (int i=0; i<n; ++i) {
+				for (int j=i+1; j<n; ++j) {
+					ts.set(i, j, i * 100 + j + 0.5f);
+				}
+			}
+			ts.divide(2);
+			if (103.5f / 2 != ts.get(3, 1)) {
+				System.out.println("ERROR with divide: " + ts.get(3, 1));
+				++nErrors;
+			}
+
+			System.out.println("Number of errors: " + nErrors);
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			if (null != file) file.delete();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package test;
+
+import ini.trakem2.persistence.UndoStore;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Test the reference counting of the blobs of an {@link UndoStore},
+ * and that blobs spilled to disk read back the same. */
+public class TestUndoStore
+{
+	static public final void main(String[] args) {
+		final UndoStore store = new UndoStore("test", 1000, 1000);
+		try {
+			final Random rnd = new Random(777);
+			int nErrors = 0;
+
+			// Identical content is stored once, and held until released by each holder
+			final byte[] a = new byte[300];
+			rnd.nextBytes(a);
+			final long ka = store.put(a);
+			if (ka != store.put(a.clone()) || !store.retain(ka)) {
+				System.out.println("ERROR: identical content not shared");
+				++nErrors;
+			}
+			store.release(ka);
+			store.release(ka);
+			if (!Arrays.equals(a, store.get(ka))) {
+				System.out.println("ERROR: blob dropped before its last release");
+				++nErrors;
+			}
+			store.release(ka);
+			if (null != store.get(ka) || store.retain(ka)) {
+				System.out.println("ERROR: blob not dropped at its last release");
+				++nErrors;
+			}
+
+			// Beyond the memory budget, the oldest blobs go to disk
+			final byte[][] data = new byte[6][400];
+			final long[] keys = new long[data.length];
+			for (int i=0; i<data.length; ++i) {
+				rnd.nextBytes(data[i]);
+				keys[i] = store.put(data[i]);
+			}
+			if (0 != store.getMemoryBytes(keys[0]) || 400 != store.getMemoryBytes(keys[data.length - 1]) || !store.isOverBudget()) {
+				System.out.println("ERROR: the oldest blobs were not spilled to disk");
+				++nErrors;
+			}
+			for (int i=0; i<data.length; ++i) {
+				if (!Arrays.equals(data[i], store.get(keys[i]))) {
+					System.out.println("ERROR: blob " + i + " does not read back the same");
+					++nErrors;
+				}
+			}
+
+			// A spilled blob is shared too
+			if (keys[0] != store.put(data[0].clone())) {
+				System.out.println("ERROR: identical content of a spilled blob not shared");
+				++nErrors;
+			}
+			store.release(keys[0]);
+			if (!Arrays.equals(data[0], store.get(keys[0]))) {
+				System.out.println("ERROR: spilled blob dropped before its last release");
+				++nErrors;
+			}
+
+			// Releasing spilled blobs brings the disk usage back within budget
+			store.release(keys[0]);
+			store.release(keys[1]);
+			store.release(keys[2]);
+			if (store.isOverBudget() || null != store.get(keys[1])) {
+				System.out.println("ERROR: released spilled blobs still on disk");
+				++nErrors;
+			}
+
+			System.out.println(store.getStats());
+			System.out.println("Number of errors: " + nErrors);
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			store.clear();
+		}
+	}
+}